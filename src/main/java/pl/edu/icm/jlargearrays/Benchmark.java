@@ -574,6 +574,54 @@ public class Benchmark
         return results;
     }
 
+    public static double[][] benchmarkJLargeArraysDoubleSequentualSegmented(long[] sizes, int[] nthreads, int iters, String file)
+    {
+        double[][] results = new double[nthreads.length][sizes.length];
+        long k;
+        System.out.println("Benchmarking JLargeArrays (doubles, sequentual, segmented)");
+        for (int th = 0; th < nthreads.length; th++) {
+            int nt = nthreads[th];
+            Thread[] threads = new Thread[nt];
+            System.out.println("\tNumber of threads = " + nt);
+            for (int i = 0; i < sizes.length; i++) {
+                System.out.print("\tSize = " + sizes[i]);
+                final DoubleLargeArray a = new DoubleLargeArray(sizes[i], true, true);
+                double t = System.nanoTime();
+                for (int it = 0; it < iters; it++) {
+                    k = sizes[i] / nt;
+                    for (int j = 0; j < nt; j++) {
+                        final long firstIdx = j * k;
+                        final long lastIdx = (j == nt - 1) ? sizes[i] : firstIdx + k;
+                        threads[j] = new Thread(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                for (long k = firstIdx; k < lastIdx; k++) {
+                                    a.setDouble(k, 1.);
+                                    a.setDouble(k, (a.getDouble(k) + 1.));
+                                }
+                            }
+                        });
+                        threads[j].start();
+                    }
+                    try {
+                        for (int j = 0; j < nt; j++) {
+                            threads[j].join();
+                            threads[j] = null;
+                        }
+                    } catch (Exception ex) {
+                        ex.printStackTrace();
+                    }
+                }
+                results[th][i] = (System.nanoTime() - t) / 1000000000.0 / (double) iters;
+                System.out.println(" : " + String.format("%.7f sec", results[th][i]));
+            }
+        }
+        writeToFile(sizes, nthreads, results, file);
+        return results;
+    }
+
     public static double[][] benchmarkJLargeArraysByteRandom(long[] sizes, int[] nthreads, int iters, String file)
     {
         final int[] randIdx = new int[(int) sizes[sizes.length - 1]];
@@ -702,6 +750,13 @@ public class Benchmark
         benchmarkJLargeArraysDoubleSequentual(sizes, nthreads, iters, directory + System.getProperty("file.separator") + "jlargearrays_double_sequentual.txt");
     }
 
+    public static void benchmarkDoubleSegmentedVsNative(long[] sizes, int[] nthreads, int iters, String directory)
+    {
+        benchmarkJLargeArraysDoubleSequentualNative(sizes, nthreads, iters, directory + System.getProperty("file.separator") + "jlargearrays_double_sequentual_native.txt");
+        System.gc();
+        benchmarkJLargeArraysDoubleSequentualSegmented(sizes, nthreads, iters, directory + System.getProperty("file.separator") + "jlargearrays_double_sequentual_segmented.txt");
+    }
+
     public static void benchmarkByteRandom(long[] sizes, int[] nthreads, int iters, String directory)
     {
         benchmarkJavaArraysByteRandom(sizes, nthreads, iters, directory + System.getProperty("file.separator") + "java_arrays_byte_random.txt");
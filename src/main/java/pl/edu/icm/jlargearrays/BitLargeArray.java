@@ -26,28 +26,38 @@
  * ***** END LICENSE BLOCK ***** */
 package pl.edu.icm.jlargearrays;
 
-import sun.misc.Cleaner;
+import java.util.Arrays;
+import java.util.concurrent.Future;
 
 /**
  *
  * An array of bits (0 and 1) that can store up to 2<SUP>63</SUP> elements.
+ * The bits are packed into 64-bit words: bit i is stored in word i / 64 at
+ * position i % 64. By default, all setters update the words with atomic
+ * compare-and-swap operations, so different threads can safely modify
+ * different bits of the same word without locking. Getters never lock.
+ * In the single writer mode the words are updated with plain reads and
+ * writes, which is faster, but then only one thread at a time may modify
+ * the array.
  *
  * @author Piotr Wendykier (p.wendykier@icm.edu.pl)
  */
 public class BitLargeArray extends LargeArray
 {
 
-    private static final long serialVersionUID = -3499412355469845345L;
-    private byte[] data;
+    private static final long serialVersionUID = 6352947102781235519L;
+    private static final long LONG_ARRAY_BASE_OFFSET = Utilities.UNSAFE.arrayBaseOffset(long[].class);
+    private long[] data;
     private long size;
-    private final Object LOCK = new Object();
-
+    private boolean singleWriter = false;
 
     /**
      * Creates new instance of this class by wrapping a native pointer.
      * Providing an invalid pointer, parent or length will result in
      * unpredictable behavior and likely JVM crash. The assumption is that the
-     * pointer is valid as long as the parent is not garbage collected.
+     * pointer is valid as long as the parent is not garbage collected. The
+     * pointer has to be 8-byte aligned and the memory has to hold
+     * (length + 63) / 64 64-bit words.
      * 
      * @param parent class instance responsible for handling the pointer's life
      *            cycle, the created instance of LargeArray will prevent the GC
@@ -60,6 +70,10 @@ public class BitLargeArray extends LargeArray
                       final long length)
     {
         super(parent, nativePointer, LargeArrayType.BIT, length);
+        if ((nativePointer & 7) != 0) {
+            throw new IllegalArgumentException("nativePointer has to be 8-byte aligned");
+        }
+        this.size = (((length - 1l) >>> 6) + 1l) << 3;
     }
 
     /**
@@ -86,22 +100,17 @@ public class BitLargeArray extends LargeArray
             throw new IllegalArgumentException(length + " is not a positive long value");
         }
         this.length = length;
-        long tmp = (length - 1l) / 8l;
-        this.size = tmp + 1;
+        long words = ((length - 1l) >>> 6) + 1l;
+        this.size = words << 3;
         if (length > LARGEST_32BIT_INDEX) {
-            System.gc();
-            this.ptr = Utilities.UNSAFE.allocateMemory(this.size * this.sizeof);
-            if (zeroNativeMemory) {
-                zeroNativeMemory(this.size);
+            allocateNativeMemory(this.size, zeroNativeMemory);
+            if (!zeroNativeMemory) {
+                // bits beyond length are always kept clear
+                Utilities.UNSAFE.putLong(this.ptr + this.size - 8, 0l);
             }
-            Cleaner.create(this,
-                           new LargeArray.Deallocator(this.ptr,
-                                                      this.size,
-                                                      this.sizeof));
-            MemoryCounter.increaseCounter(this.size * this.sizeof);
         }
         else {
-            data = new byte[(int) this.size];
+            data = new long[(int) words];
         }
     }
 
@@ -116,8 +125,9 @@ public class BitLargeArray extends LargeArray
             throw new IllegalArgumentException("constantValue has to be 0 or 1");
         }
         this.length = length;
+        this.size = (((length - 1l) >>> 6) + 1l) << 3;
         this.isConstant = true;
-        this.data = new byte[]
+        this.data = new long[]
         { constantValue };
     }
 
@@ -129,36 +139,31 @@ public class BitLargeArray extends LargeArray
     public BitLargeArray(boolean[] data)
     {
         this(data.length);
-        if (ptr != 0) {
-            for (int i = 0; i < data.length; i++) {
-                int v = 0;
+        long words = size >>> 3;
+        for (long w = 0; w < words; w++) {
+            long word = 0;
+            int first = (int) (w << 6);
+            int last = Math.min(data.length, first + 64);
+            for (int i = first; i < last; i++) {
                 if (data[i]) {
-                    v = 1;
+                    word |= 1l << i;
                 }
-                long index = i / 8l;
-                long ii = i % 8l;
-                byte oldV = Utilities.UNSAFE.getByte(ptr + index);
-                oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-                byte newV = (byte) ((v << (8l - (ii + 1l))) | oldV);
-                Utilities.UNSAFE.putByte(ptr + index, newV);
             }
-        }
-        else {
-            for (int i = 0; i < data.length; i++) {
-                int v = 0;
-                if (data[i]) {
-                    v = 1;
-                }
-                int index = i / 8;
-                int ii = i % 8;
-                byte oldV = this.data[index];
-                oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-                byte newV = (byte) ((v << (8 - (ii + 1))) | oldV);
-                this.data[index] = newV;
+            if (ptr != 0) {
+                Utilities.UNSAFE.putLong(ptr + (w << 3), word);
+            }
+            else {
+                this.data[(int) w] = word;
             }
         }
     }
 
+    @Override
+    protected long getNativeMemorySize()
+    {
+        return size * sizeof;
+    }
+
     /**
      * Returns a deep copy of this instance. (The elements themselves are
      * copied.)
@@ -173,227 +178,202 @@ public class BitLargeArray extends LargeArray
         }
         else {
             BitLargeArray v = new BitLargeArray(length, false);
-            Utilities.arraycopy(this, 0, v, 0, length);
+            Utilities.copyMemory(ptr != 0 ? null : data, ptr != 0 ? ptr : LONG_ARRAY_BASE_OFFSET, v.ptr != 0 ? null : v.data, v.ptr != 0 ? v.ptr : LONG_ARRAY_BASE_OFFSET, size >>> 3, 8);
+            v.singleWriter = singleWriter;
             return v;
         }
     }
 
-    @Override
-    public Boolean get(long i)
+    /**
+     * Returns true if the array is in the single writer mode. In this mode
+     * bits are set without atomic operations and only one thread at a time
+     * may modify the array.
+     *
+     * @return true if the array is in the single writer mode, false otherwise
+     */
+    public boolean isSingleWriterMode()
     {
-        return getBoolean(i);
+        return singleWriter;
     }
 
-    @Override
-    public Boolean getFromNative(long i)
+    /**
+     * Enables or disables the single writer mode. In this mode bits are set
+     * with plain reads and writes of the underlying 64-bit words, which is
+     * faster than the default compare-and-swap update, but concurrent writes
+     * to bits stored in the same word may be lost. The mode should be changed
+     * only when no other thread modifies the array.
+     *
+     * @param singleWriter if true, then the single writer mode is enabled
+     */
+    public void setSingleWriterMode(boolean singleWriter)
     {
-        long index = i / 8l;
-        Utilities.UNSAFE.monitorEnter(LOCK);
-        byte v = Utilities.UNSAFE.getByte(ptr + index);
-        Utilities.UNSAFE.monitorExit(LOCK);
-        long ii = i % 8l;
-        int value = v >> (8l - (ii + 1l)) & 0x0001;
-        return value == 1;
+        this.singleWriter = singleWriter;
     }
 
-    @Override
-    public boolean getBoolean(long i)
+    /**
+     * Returns the bit at index i as 0 or 1. Array bounds are not checked.
+     *
+     * @param i an index
+     *
+     * @return the bit at index i
+     */
+    private int getBit(long i)
     {
         if (ptr != 0) {
-            long index = i / 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte v = Utilities.UNSAFE.getByte(ptr + index);
-            Utilities.UNSAFE.monitorExit(LOCK);
-            long ii = i % 8l;
-            int value = v >> (8l - (ii + 1l)) & 0x0001;
-            return value == 1;
+            return (int) (Utilities.UNSAFE.getLong(ptr + ((i >>> 6) << 3)) >>> i) & 1;
         }
         else {
             if (isConstant()) {
-                return data[0] == 1;
+                return (int) data[0];
             }
             else {
-                int index = (int) i / 8;
-                Utilities.UNSAFE.monitorEnter(LOCK);
-                byte v = data[index];
-                Utilities.UNSAFE.monitorExit(LOCK);
-                int ii = (int) i % 8;
-                int value = v >> (8 - (ii + 1)) & 0x0001;
-                return value == 1;
+                return (int) (data[(int) (i >>> 6)] >>> i) & 1;
             }
         }
     }
 
-    @Override
-    public byte getByte(long i)
+    /**
+     * Sets the bit at index i to a given value. Array bounds are not checked.
+     *
+     * @param i an index
+     * @param value value to set, 0 or 1
+     */
+    private void setBit(long i, int value)
     {
+        Object base;
+        long offset;
         if (ptr != 0) {
-            long index = i / 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte v = Utilities.UNSAFE.getByte(ptr + index);
-            Utilities.UNSAFE.monitorExit(LOCK);
-            long ii = i % 8l;
-            int value = v >> (8l - (ii + 1l)) & 0x0001;
-            return (byte) value;
+            base = null;
+            offset = ptr + ((i >>> 6) << 3);
         }
         else {
             if (isConstant()) {
-                return data[0];
+                throw new IllegalAccessError("Constant arrays cannot be modified.");
             }
-            else {
-                int index = (int) i / 8;
-                Utilities.UNSAFE.monitorEnter(LOCK);
-                byte v = data[index];
-                Utilities.UNSAFE.monitorExit(LOCK);
-                int ii = (int) i % 8;
-                int value = v >> (8 - (ii + 1)) & 0x0001;
-                return (byte) value;
+            base = data;
+            offset = LONG_ARRAY_BASE_OFFSET + ((i >>> 6) << 3);
+        }
+        long mask = 1l << i;
+        if (singleWriter) {
+            long word = Utilities.UNSAFE.getLong(base, offset);
+            Utilities.UNSAFE.putLong(base, offset, value == 1 ? word | mask : word & ~mask);
+        }
+        else {
+            long word, newWord;
+            do {
+                word = Utilities.UNSAFE.getLongVolatile(base, offset);
+                newWord = value == 1 ? word | mask : word & ~mask;
+                if (newWord == word) {
+                    return;
+                }
             }
+            while (!Utilities.UNSAFE.compareAndSwapLong(base, offset, word, newWord));
         }
     }
 
+    @Override
+    public Boolean get(long i)
+    {
+        return getBoolean(i);
+    }
+
+    @Override
+    public Boolean getFromNative(long i)
+    {
+        return ((Utilities.UNSAFE.getLong(ptr + ((i >>> 6) << 3)) >>> i) & 1l) == 1l;
+    }
+
+    @Override
+    public boolean getBoolean(long i)
+    {
+        return getBit(i) == 1;
+    }
+
+    @Override
+    public byte getByte(long i)
+    {
+        return (byte) getBit(i);
+    }
+
     @Override
     public short getShort(long i)
     {
-        if (ptr != 0) {
-            long index = i / 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte v = Utilities.UNSAFE.getByte(ptr + index);
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            long ii = i % 8l;
-            int value = v >> (8l - (ii + 1l)) & 0x0001;
-            return (short) value;
-        }
-        else {
-            if (isConstant()) {
-                return data[0];
-            }
-            else {
-                int index = (int) i / 8;
-                Utilities.UNSAFE.monitorEnter(LOCK);
-                byte v = data[index];
-                Utilities.UNSAFE.monitorExit(LOCK);
-                int ii = (int) i % 8;
-                int value = v >> (8 - (ii + 1)) & 0x0001;
-                return (short) value;
-            }
-        }
+        return (short) getBit(i);
     }
 
     @Override
     public int getInt(long i)
     {
-        if (ptr != 0) {
-            long index = i / 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte v = Utilities.UNSAFE.getByte(ptr + index);
-            Utilities.UNSAFE.monitorExit(LOCK);
-            long ii = i % 8l;
-            int value = v >> (8l - (ii + 1l)) & 0x0001;
-            return value;
-        }
-        else {
-            if (isConstant()) {
-                return data[0];
-            }
-            else {
-                int index = (int) i / 8;
-                Utilities.UNSAFE.monitorEnter(LOCK);
-                byte v = data[index];
-                Utilities.UNSAFE.monitorExit(LOCK);
-                int ii = (int) i % 8;
-                int value = v >> (8 - (ii + 1)) & 0x0001;
-                return value;
-            }
-        }
+        return getBit(i);
     }
 
     @Override
     public long getLong(long i)
     {
-        if (ptr != 0) {
-            long index = i / 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte v = Utilities.UNSAFE.getByte(ptr + index);
-            Utilities.UNSAFE.monitorExit(LOCK);
-            long ii = i % 8l;
-            int value = v >> (8l - (ii + 1l)) & 0x0001;
-            return value;
-        }
-        else {
-            if (isConstant()) {
-                return data[0];
-            }
-            else {
-                int index = (int) i / 8;
-                Utilities.UNSAFE.monitorEnter(LOCK);
-                byte v = data[index];
-                Utilities.UNSAFE.monitorExit(LOCK);
-                int ii = (int) i % 8;
-                int value = v >> (8 - (ii + 1)) & 0x0001;
-                return value;
-            }
-        }
+        return getBit(i);
     }
 
     @Override
     public float getFloat(long i)
     {
-        if (ptr != 0) {
-            long index = i / 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte v = Utilities.UNSAFE.getByte(ptr + index);
-            Utilities.UNSAFE.monitorExit(LOCK);
-            long ii = i % 8l;
-            int value = v >> (8l - (ii + 1l)) & 0x0001;
-            return value;
-        }
-        else {
-            if (isConstant()) {
-                return data[0];
-            }
-            else {
-                int index = (int) i / 8;
-                Utilities.UNSAFE.monitorEnter(LOCK);
-                byte v = data[index];
-                Utilities.UNSAFE.monitorExit(LOCK);
-                int ii = (int) i % 8;
-                int value = v >> (8 - (ii + 1)) & 0x0001;
-                return value;
-            }
-        }
+        return getBit(i);
     }
 
     @Override
     public double getDouble(long i)
+    {
+        return getBit(i);
+    }
+
+    /**
+     * For non-constant arrays, if the size of the array is smaller than
+     * LARGEST_32BIT_INDEX, then this method returns a new array of bytes
+     * holding 8 bits per byte, the first bit in the most significant
+     * position; otherwise, it returns null. For constant arrays, if the size
+     * of the array is smaller than LARGEST_32BIT_INDEX, then this methods
+     * returns a new array of length bytes equal to the constant value;
+     * otherwise, it returns null. Use getWords() to access the internal
+     * storage.
+     *
+     * @return an array of bytes representing the array or null
+     */
+    @Override
+    public byte[] getData()
     {
         if (ptr != 0) {
-            long index = i / 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte v = Utilities.UNSAFE.getByte(ptr + index);
-            Utilities.UNSAFE.monitorExit(LOCK);
-            long ii = i % 8l;
-            int value = v >> (8l - (ii + 1l)) & 0x0001;
-            return value;
+            return null;
         }
         else {
             if (isConstant()) {
-                return data[0];
+                if (length > getMaxSizeOf32bitArray())
+                    return null;
+                byte[] out = new byte[(int) length];
+                Arrays.fill(out, (byte) data[0]);
+                return out;
             }
             else {
-                int index = (int) i / 8;
-                Utilities.UNSAFE.monitorEnter(LOCK);
-                byte v = data[index];
-                Utilities.UNSAFE.monitorExit(LOCK);
-                int ii = (int) i % 8;
-                int value = v >> (8 - (ii + 1)) & 0x0001;
-                return value;
+                byte[] out = new byte[(int) ((length + 7) >>> 3)];
+                for (int i = 0; i < length; i++) {
+                    if ((data[i >>> 6] & (1l << i)) != 0) {
+                        out[i >>> 3] |= 1 << (7 - (i & 7));
+                    }
+                }
+                return out;
             }
         }
     }
 
-    @Override
-    public byte[] getData()
+    /**
+     * For non-constant arrays, if the size of the array is smaller than
+     * LARGEST_32BIT_INDEX, then this method returns a reference to the internal
+     * array of 64-bit words; bit i is stored in word i / 64 at position
+     * i % 64. For constant arrays, if the size of the array is smaller than
+     * LARGEST_32BIT_INDEX, then this methods returns a new array of 64-bit
+     * words representing the array. Otherwise, it returns null.
+     *
+     * @return reference to the internal array of words or null
+     */
+    public long[] getWords()
     {
         if (ptr != 0) {
             return null;
@@ -402,9 +382,12 @@ public class BitLargeArray extends LargeArray
             if (isConstant()) {
                 if (length > getMaxSizeOf32bitArray())
                     return null;
-                byte[] out = new byte[(int) length];
-                for (int i = 0; i < length; i++) {
-                    out[i] = data[0];
+                long[] out = new long[(int) (size >>> 3)];
+                if (data[0] == 1) {
+                    for (int i = 0; i < out.length; i++) {
+                        out[i] = -1l;
+                    }
+                    out[out.length - 1] = -1l >>> -length;
                 }
                 return out;
             }
@@ -421,28 +404,13 @@ public class BitLargeArray extends LargeArray
             return null;
         }
         else {
-            if (isConstant()) {
-                if (length > getMaxSizeOf32bitArray())
-                    return null;
-                boolean[] out = new boolean[(int) length];
-                boolean elem = data[0] == 1;
-                for (int i = 0; i < length; i++) {
-                    out[i] = elem;
-                }
-                return out;
-            }
-            else {
-                boolean[] out = new boolean[(int) length];
-                byte v;
-                int ii;
-                for (int i = 0; i < out.length; i++) {
-                    v = data[i / 8];
-                    ii = i % 8;
-                    int value = v >> (8 - (ii + 1)) & 0x0001;
-                    out[i] = value == 1;
-                }
-                return out;
+            if (length > getMaxSizeOf32bitArray())
+                return null;
+            boolean[] out = new boolean[(int) length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = getBit(i) == 1;
             }
+            return out;
         }
     }
 
@@ -475,31 +443,8 @@ public class BitLargeArray extends LargeArray
                 out = new boolean[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
-                for (long i = startPos; i < endPos; i += step) {
-                    long index = i / 8l;
-                    byte v = Utilities.UNSAFE.getByte(ptr + index);
-                    long ii = i % 8l;
-                    int value = v >> (8l - (ii + 1l)) & 0x0001;
-                    out[idx++] = value == 1;
-                }
-            }
-            else {
-                if (isConstant()) {
-                    boolean elem = data[0] == 1;
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = elem;
-                    }
-                }
-                else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        int index = (int) i / 8;
-                        byte v = data[index];
-                        int ii = (int) i % 8;
-                        int value = v >> (8 - (ii + 1)) & 0x0001;
-                        out[idx++] = value == 1;
-                    }
-                }
+            for (long i = startPos; i < endPos; i += step) {
+                out[idx++] = getBit(i) == 1;
             }
             return out;
         }
@@ -512,26 +457,13 @@ public class BitLargeArray extends LargeArray
             return null;
         }
         else {
-            if (isConstant()) {
-                if (length > getMaxSizeOf32bitArray())
-                    return null;
-                byte[] out = new byte[(int) length];
-                for (int i = 0; i < length; i++) {
-                    out[i] = data[0];
-                }
-                return out;
-            }
-            else {
-                byte[] out = new byte[(int) length];
-                byte v;
-                int ii;
-                for (int i = 0; i < out.length; i++) {
-                    v = data[i / 8];
-                    ii = i % 8;
-                    out[i] = (byte) (v >> (8 - (ii + 1)) & 0x0001);
-                }
-                return out;
+            if (length > getMaxSizeOf32bitArray())
+                return null;
+            byte[] out = new byte[(int) length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = (byte) getBit(i);
             }
+            return out;
         }
     }
 
@@ -564,28 +496,8 @@ public class BitLargeArray extends LargeArray
                 out = new byte[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
-                for (long i = startPos; i < endPos; i += step) {
-                    long index = i / 8l;
-                    byte v = Utilities.UNSAFE.getByte(ptr + index);
-                    long ii = i % 8l;
-                    out[idx++] = (byte) (v >> (8l - (ii + 1l)) & 0x0001);
-                }
-            }
-            else {
-                if (isConstant()) {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[0];
-                    }
-                }
-                else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        int index = (int) i / 8;
-                        byte v = data[index];
-                        int ii = (int) i % 8;
-                        out[idx++] = (byte) (v >> (8 - (ii + 1)) & 0x0001);
-                    }
-                }
+            for (long i = startPos; i < endPos; i += step) {
+                out[idx++] = (byte) getBit(i);
             }
             return out;
         }
@@ -598,26 +510,13 @@ public class BitLargeArray extends LargeArray
             return null;
         }
         else {
-            if (isConstant()) {
-                if (length > getMaxSizeOf32bitArray())
-                    return null;
-                short[] out = new short[(int) length];
-                for (int i = 0; i < length; i++) {
-                    out[i] = data[0];
-                }
-                return out;
-            }
-            else {
-                short[] out = new short[(int) length];
-                byte v;
-                int ii;
-                for (int i = 0; i < out.length; i++) {
-                    v = data[i / 8];
-                    ii = i % 8;
-                    out[i] = (short) (v >> (8 - (ii + 1)) & 0x0001);
-                }
-                return out;
+            if (length > getMaxSizeOf32bitArray())
+                return null;
+            short[] out = new short[(int) length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = (short) getBit(i);
             }
+            return out;
         }
     }
 
@@ -650,28 +549,8 @@ public class BitLargeArray extends LargeArray
                 out = new short[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
-                for (long i = startPos; i < endPos; i += step) {
-                    long index = i / 8l;
-                    byte v = Utilities.UNSAFE.getByte(ptr + index);
-                    long ii = i % 8l;
-                    out[idx++] = (short) (v >> (8l - (ii + 1l)) & 0x0001);
-                }
-            }
-            else {
-                if (isConstant()) {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[0];
-                    }
-                }
-                else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        int index = (int) i / 8;
-                        byte v = data[index];
-                        int ii = (int) i % 8;
-                        out[idx++] = (short) (v >> (8 - (ii + 1)) & 0x0001);
-                    }
-                }
+            for (long i = startPos; i < endPos; i += step) {
+                out[idx++] = (short) getBit(i);
             }
             return out;
         }
@@ -684,26 +563,13 @@ public class BitLargeArray extends LargeArray
             return null;
         }
         else {
-            if (isConstant()) {
-                if (length > getMaxSizeOf32bitArray())
-                    return null;
-                int[] out = new int[(int) length];
-                for (int i = 0; i < length; i++) {
-                    out[i] = data[0];
-                }
-                return out;
-            }
-            else {
-                int[] out = new int[(int) length];
-                byte v;
-                int ii;
-                for (int i = 0; i < out.length; i++) {
-                    v = data[i / 8];
-                    ii = i % 8;
-                    out[i] = v >> (8 - (ii + 1)) & 0x0001;
-                }
-                return out;
+            if (length > getMaxSizeOf32bitArray())
+                return null;
+            int[] out = new int[(int) length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = getBit(i);
             }
+            return out;
         }
     }
 
@@ -736,28 +602,8 @@ public class BitLargeArray extends LargeArray
                 out = new int[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
-                for (long i = startPos; i < endPos; i += step) {
-                    long index = i / 8l;
-                    byte v = Utilities.UNSAFE.getByte(ptr + index);
-                    long ii = i % 8l;
-                    out[idx++] = v >> (8l - (ii + 1l)) & 0x0001;
-                }
-            }
-            else {
-                if (isConstant()) {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[0];
-                    }
-                }
-                else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        int index = (int) i / 8;
-                        byte v = data[index];
-                        int ii = (int) i % 8;
-                        out[idx++] = v >> (8 - (ii + 1)) & 0x0001;
-                    }
-                }
+            for (long i = startPos; i < endPos; i += step) {
+                out[idx++] = getBit(i);
             }
             return out;
         }
@@ -770,26 +616,13 @@ public class BitLargeArray extends LargeArray
             return null;
         }
         else {
-            if (isConstant()) {
-                if (length > getMaxSizeOf32bitArray())
-                    return null;
-                long[] out = new long[(int) length];
-                for (int i = 0; i < length; i++) {
-                    out[i] = data[0];
-                }
-                return out;
-            }
-            else {
-                long[] out = new long[(int) length];
-                byte v;
-                int ii;
-                for (int i = 0; i < out.length; i++) {
-                    v = data[i / 8];
-                    ii = i % 8;
-                    out[i] = v >> (8 - (ii + 1)) & 0x0001;
-                }
-                return out;
+            if (length > getMaxSizeOf32bitArray())
+                return null;
+            long[] out = new long[(int) length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = getBit(i);
             }
+            return out;
         }
     }
 
@@ -822,28 +655,8 @@ public class BitLargeArray extends LargeArray
                 out = new long[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
-                for (long i = startPos; i < endPos; i += step) {
-                    long index = i / 8l;
-                    byte v = Utilities.UNSAFE.getByte(ptr + index);
-                    long ii = i % 8l;
-                    out[idx++] = v >> (8l - (ii + 1l)) & 0x0001;
-                }
-            }
-            else {
-                if (isConstant()) {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[0];
-                    }
-                }
-                else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        int index = (int) i / 8;
-                        byte v = data[index];
-                        int ii = (int) i % 8;
-                        out[idx++] = v >> (8 - (ii + 1)) & 0x0001;
-                    }
-                }
+            for (long i = startPos; i < endPos; i += step) {
+                out[idx++] = getBit(i);
             }
             return out;
         }
@@ -856,26 +669,13 @@ public class BitLargeArray extends LargeArray
             return null;
         }
         else {
-            if (isConstant()) {
-                if (length > getMaxSizeOf32bitArray())
-                    return null;
-                float[] out = new float[(int) length];
-                for (int i = 0; i < length; i++) {
-                    out[i] = data[0];
-                }
-                return out;
-            }
-            else {
-                float[] out = new float[(int) length];
-                byte v;
-                int ii;
-                for (int i = 0; i < out.length; i++) {
-                    v = data[i / 8];
-                    ii = i % 8;
-                    out[i] = v >> (8 - (ii + 1)) & 0x0001;
-                }
-                return out;
+            if (length > getMaxSizeOf32bitArray())
+                return null;
+            float[] out = new float[(int) length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = getBit(i);
             }
+            return out;
         }
     }
 
@@ -908,28 +708,8 @@ public class BitLargeArray extends LargeArray
                 out = new float[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
-                for (long i = startPos; i < endPos; i += step) {
-                    long index = i / 8l;
-                    byte v = Utilities.UNSAFE.getByte(ptr + index);
-                    long ii = i % 8l;
-                    out[idx++] = v >> (8l - (ii + 1l)) & 0x0001;
-                }
-            }
-            else {
-                if (isConstant()) {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[0];
-                    }
-                }
-                else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        int index = (int) i / 8;
-                        byte v = data[index];
-                        int ii = (int) i % 8;
-                        out[idx++] = v >> (8 - (ii + 1)) & 0x0001;
-                    }
-                }
+            for (long i = startPos; i < endPos; i += step) {
+                out[idx++] = getBit(i);
             }
             return out;
         }
@@ -942,26 +722,13 @@ public class BitLargeArray extends LargeArray
             return null;
         }
         else {
-            if (isConstant()) {
-                if (length > getMaxSizeOf32bitArray())
-                    return null;
-                double[] out = new double[(int) length];
-                for (int i = 0; i < length; i++) {
-                    out[i] = data[0];
-                }
-                return out;
-            }
-            else {
-                double[] out = new double[(int) length];
-                byte v;
-                int ii;
-                for (int i = 0; i < out.length; i++) {
-                    v = data[i / 8];
-                    ii = i % 8;
-                    out[i] = v >> (8 - (ii + 1)) & 0x0001;
-                }
-                return out;
+            if (length > getMaxSizeOf32bitArray())
+                return null;
+            double[] out = new double[(int) length];
+            for (int i = 0; i < out.length; i++) {
+                out[i] = getBit(i);
             }
+            return out;
         }
     }
 
@@ -994,182 +761,496 @@ public class BitLargeArray extends LargeArray
                 out = new double[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
-                for (long i = startPos; i < endPos; i += step) {
-                    long index = i / 8l;
-                    byte v = Utilities.UNSAFE.getByte(ptr + index);
-                    long ii = i % 8l;
-                    out[idx++] = v >> (8l - (ii + 1l)) & 0x0001;
-                }
-            }
-            else {
-                if (isConstant()) {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[0];
-                    }
-                }
-                else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        int index = (int) i / 8;
-                        byte v = data[index];
-                        int ii = (int) i % 8;
-                        out[idx++] = v >> (8 - (ii + 1)) & 0x0001;
-                    }
-                }
+            for (long i = startPos; i < endPos; i += step) {
+                out[idx++] = getBit(i);
             }
             return out;
         }
     }
 
-    @Override
-    public void setToNative(long i, Object value)
+    /**
+     * Copies len elements of this array, beginning at srcPos, to the
+     * specified position of the destination array. Array bounds are checked.
+     *
+     * @param srcPos starting position in this array.
+     * @param dst    the destination array.
+     * @param dstOff starting position in the destination array.
+     * @param len    the number of elements to be copied.
+     */
+    public void get(long srcPos, boolean[] dst, int dstOff, int len)
     {
-        int v = 0;
-        if ((Boolean) value) {
-            v = 1;
+        ensureOpen();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (srcPos < 0 || srcPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos + len > length");
+        }
+        if (dstOff < 0 || (long) dstOff + len > dst.length) {
+            throw new ArrayIndexOutOfBoundsException("dstOff < 0 || dstOff + len > dst.length");
+        }
+        for (int j = 0; j < len; j++) {
+            dst[dstOff + j] = getBoolean(srcPos + j);
         }
-        long index = i / 8l;
-        long ii = i % 8l;
-        Utilities.UNSAFE.monitorEnter(LOCK);
-        byte oldV = Utilities.UNSAFE.getByte(ptr + index);
-        oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-        byte newV = (byte) ((v << (8l - (ii + 1l))) | oldV);
-        Utilities.UNSAFE.putByte(ptr + index, newV);
-        Utilities.UNSAFE.monitorExit(LOCK);
+    }
 
+    /**
+     * Copies len elements of the source array, beginning at srcOff, to the
+     * specified position of this array. Array bounds are checked.
+     *
+     * @param dstPos starting position in this array.
+     * @param src    the source array.
+     * @param srcOff starting position in the source array.
+     * @param len    the number of elements to be copied.
+     */
+    public void set(long dstPos, boolean[] src, int srcOff, int len)
+    {
+        ensureWritable();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (dstPos < 0 || dstPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("dstPos < 0 || dstPos + len > length");
+        }
+        if (srcOff < 0 || (long) srcOff + len > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcOff < 0 || srcOff + len > src.length");
+        }
+        if (isConstant()) {
+            throw new IllegalAccessError("Constant arrays cannot be modified.");
+        }
+        for (int j = 0; j < len; j++) {
+            setBoolean(dstPos + j, src[srcOff + j]);
+        }
     }
 
-    @Override
-    public void setBoolean(long i, boolean value)
+    /**
+     * Returns the number of bits set to 1.
+     *
+     * @return the number of bits set to 1
+     */
+    public long cardinality()
     {
-        if (ptr != 0) {
-            int v = 0;
-            if (value) {
-                v = 1;
+        if (isConstant()) {
+            return data[0] * length;
+        }
+        return processWords(0, size >>> 3, new WordRangeTask()
+        {
+            @Override
+            public long process(long firstWord, long lastWord)
+            {
+                long count = 0;
+                for (long w = firstWord; w < lastWord; w++) {
+                    count += Long.bitCount(getWord(w));
+                }
+                return count;
             }
-            long index = i / 8l;
-            long ii = i % 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = Utilities.UNSAFE.getByte(ptr + index);
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8l - (ii + 1l))) | oldV);
-            Utilities.UNSAFE.putByte(ptr + index, newV);
-            Utilities.UNSAFE.monitorExit(LOCK);
+        });
+    }
+
+    /**
+     * Returns the index of the first bit that is set to 1 that occurs on or
+     * after the specified index.
+     *
+     * @param fromIndex the index to start checking from (inclusive)
+     *
+     * @return the index of the next set bit, or -1 if there is no such bit
+     */
+    public long nextSetBit(long fromIndex)
+    {
+        if (fromIndex < 0) {
+            throw new ArrayIndexOutOfBoundsException("fromIndex < 0");
         }
-        else {
-            if (isConstant()) {
-                throw new IllegalAccessError("Constant arrays cannot be modified.");
+        if (fromIndex >= length) {
+            return -1;
+        }
+        long words = size >>> 3;
+        long w = fromIndex >>> 6;
+        long word = getWord(w) & (-1l << fromIndex);
+        while (word == 0) {
+            if (++w == words) {
+                return -1;
             }
-            int v = 0;
-            if (value) {
-                v = 1;
+            word = getWord(w);
+        }
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+    }
+
+    /**
+     * Returns the index of the first bit that is set to 0 that occurs on or
+     * after the specified index.
+     *
+     * @param fromIndex the index to start checking from (inclusive)
+     *
+     * @return the index of the next clear bit, or -1 if there is no such bit
+     */
+    public long nextClearBit(long fromIndex)
+    {
+        if (fromIndex < 0) {
+            throw new ArrayIndexOutOfBoundsException("fromIndex < 0");
+        }
+        if (fromIndex >= length) {
+            return -1;
+        }
+        long words = size >>> 3;
+        long w = fromIndex >>> 6;
+        long word = ~getWord(w) & (-1l << fromIndex);
+        while (word == 0) {
+            if (++w == words) {
+                return -1;
             }
-            int index = (int) i / 8;
-            int ii = (int) i % 8;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = this.data[index];
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8 - (ii + 1))) | oldV);
-            this.data[index] = newV;
-            Utilities.UNSAFE.monitorExit(LOCK);
+            word = ~getWord(w);
         }
+        long index = (w << 6) + Long.numberOfTrailingZeros(word);
+        return index < length ? index : -1;
     }
 
-    @Override
-    public void setByte(long i, byte value)
+    /**
+     * Sets the bits from fromIndex (inclusive) to toIndex (exclusive) to the
+     * specified value.
+     *
+     * @param fromIndex index of the first bit to be set
+     * @param toIndex index after the last bit to be set
+     * @param value value to set
+     */
+    public void set(long fromIndex, long toIndex, boolean value)
     {
-        if (value < 0 || value > 1) {
-            throw new IllegalArgumentException("The value has to be 0 or 1.");
+        updateRange(fromIndex, toIndex, value ? OP_SET : OP_CLEAR);
+    }
+
+    /**
+     * Sets the bits from fromIndex (inclusive) to toIndex (exclusive) to 0.
+     *
+     * @param fromIndex index of the first bit to be cleared
+     * @param toIndex index after the last bit to be cleared
+     */
+    public void clear(long fromIndex, long toIndex)
+    {
+        updateRange(fromIndex, toIndex, OP_CLEAR);
+    }
+
+    /**
+     * Sets each bit from fromIndex (inclusive) to toIndex (exclusive) to the
+     * complement of its current value.
+     *
+     * @param fromIndex index of the first bit to be flipped
+     * @param toIndex index after the last bit to be flipped
+     */
+    public void flip(long fromIndex, long toIndex)
+    {
+        updateRange(fromIndex, toIndex, OP_FLIP);
+    }
+
+    /**
+     * Sets each bit of this array to the complement of its current value.
+     */
+    public void not()
+    {
+        updateRange(0, length, OP_FLIP);
+    }
+
+    /**
+     * Performs a logical AND of this array with the argument array. Both
+     * arrays need to have the same length.
+     *
+     * @param other an array
+     */
+    public void and(final BitLargeArray other)
+    {
+        combine(other, OP_AND);
+    }
+
+    /**
+     * Performs a logical OR of this array with the argument array. Both arrays
+     * need to have the same length.
+     *
+     * @param other an array
+     */
+    public void or(final BitLargeArray other)
+    {
+        combine(other, OP_OR);
+    }
+
+    /**
+     * Performs a logical XOR of this array with the argument array. Both
+     * arrays need to have the same length.
+     *
+     * @param other an array
+     */
+    public void xor(final BitLargeArray other)
+    {
+        combine(other, OP_XOR);
+    }
+
+    /**
+     * Clears all of the bits in this array whose corresponding bit is set in
+     * the argument array. Both arrays need to have the same length.
+     *
+     * @param other an array
+     */
+    public void andNot(final BitLargeArray other)
+    {
+        combine(other, OP_ANDNOT);
+    }
+
+    private static final int OP_SET = 0;
+    private static final int OP_CLEAR = 1;
+    private static final int OP_FLIP = 2;
+    private static final int OP_AND = 3;
+    private static final int OP_OR = 4;
+    private static final int OP_XOR = 5;
+    private static final int OP_ANDNOT = 6;
+
+    /**
+     * A task processing a range of 64-bit words.
+     */
+    private interface WordRangeTask
+    {
+
+        long process(long firstWord, long lastWord);
+    }
+
+    /**
+     * Runs a task over a range of words, in parallel if the range is large
+     * enough, and returns the sum of the values returned by the task. If the
+     * calling thread is interrupted, the parallel tasks are run to completion
+     * and an IllegalStateException is thrown with the interrupt status of the
+     * thread set.
+     */
+    private static long processWords(final long firstWord, final long lastWord, final WordRangeTask task)
+    {
+        long n = lastWord - firstWord;
+        int nthreads = (int) Math.min(n, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || n < ConcurrencyUtils.getConcurrentThreshold()) {
+            return task.process(firstWord, lastWord);
+        }
+        else {
+            long k = n / nthreads;
+            final long[] results = new long[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
+            for (int j = 0; j < nthreads; j++) {
+                final int jj = j;
+                final long firstIdx = firstWord + j * k;
+                final long lastIdx = (j == nthreads - 1) ? lastWord : firstIdx + k;
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        results[jj] = task.process(firstIdx, lastIdx);
+                    }
+                });
+            }
+            try {
+                ConcurrencyUtils.waitForCompletion(futures);
+            }
+            catch (InterruptedException ex) {
+                ConcurrencyUtils.drain(futures);
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("The operation has been interrupted.", ex);
+            }
+            long res = 0;
+            for (int j = 0; j < nthreads; j++) {
+                res += results[j];
+            }
+            return res;
         }
+    }
+
+    /**
+     * Returns the word at index w. For constant arrays, the bits beyond length
+     * are cleared.
+     */
+    private long getWord(long w)
+    {
         if (ptr != 0) {
-            int v = value & 0xFF;
-            long index = i / 8l;
-            long ii = i % 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = Utilities.UNSAFE.getByte(ptr + index);
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8l - (ii + 1l))) | oldV);
-            Utilities.UNSAFE.putByte(ptr + index, newV);
-            Utilities.UNSAFE.monitorExit(LOCK);
+            return Utilities.UNSAFE.getLong(ptr + (w << 3));
         }
         else {
             if (isConstant()) {
-                throw new IllegalAccessError("Constant arrays cannot be modified.");
+                if (data[0] == 0) {
+                    return 0l;
+                }
+                return (w == (size >>> 3) - 1) ? -1l >>> -length : -1l;
+            }
+            else {
+                return data[(int) w];
             }
-            int v = value & 0xFF;
-            int index = (int) i / 8;
-            int ii = (int) i % 8;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = this.data[index];
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8 - (ii + 1))) | oldV);
-            this.data[index] = newV;
-            Utilities.UNSAFE.monitorExit(LOCK);
         }
     }
 
-    @Override
-    public void setShort(long i, short value)
+    /**
+     * Replaces the word at index w. This is not an atomic operation.
+     */
+    private void putWord(long w, long value)
     {
-        if (value < 0 || value > 1) {
-            throw new IllegalArgumentException("The value has to be 0 or 1.");
+        if (ptr != 0) {
+            Utilities.UNSAFE.putLong(ptr + (w << 3), value);
         }
+        else {
+            data[(int) w] = value;
+        }
+    }
+
+    /**
+     * Sets, clears or flips the bits selected by mask in the word at index w.
+     * Unless the array is in the single writer mode, the word is updated
+     * atomically, so that concurrent updates of other bits are preserved.
+     */
+    private void updateWord(long w, long mask, int op)
+    {
+        Object base;
+        long offset;
         if (ptr != 0) {
-            int v = (byte) value & 0xFF;
-            long index = i / 8l;
-            long ii = i % 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = Utilities.UNSAFE.getByte(ptr + index);
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8l - (ii + 1l))) | oldV);
-            Utilities.UNSAFE.putByte(ptr + index, newV);
-            Utilities.UNSAFE.monitorExit(LOCK);
+            base = null;
+            offset = ptr + (w << 3);
         }
         else {
-            if (isConstant()) {
-                throw new IllegalAccessError("Constant arrays cannot be modified.");
+            base = data;
+            offset = LONG_ARRAY_BASE_OFFSET + (w << 3);
+        }
+        long word, newWord;
+        do {
+            word = singleWriter ? Utilities.UNSAFE.getLong(base, offset) : Utilities.UNSAFE.getLongVolatile(base, offset);
+            switch (op) {
+                case OP_SET:
+                    newWord = word | mask;
+                    break;
+                case OP_CLEAR:
+                    newWord = word & ~mask;
+                    break;
+                default:
+                    newWord = word ^ mask;
+                    break;
+            }
+            if (singleWriter) {
+                Utilities.UNSAFE.putLong(base, offset, newWord);
+                return;
+            }
+        }
+        while (newWord != word && !Utilities.UNSAFE.compareAndSwapLong(base, offset, word, newWord));
+    }
+
+    private void updateRange(final long fromIndex, final long toIndex, final int op)
+    {
+        if (fromIndex < 0 || toIndex > length || fromIndex > toIndex) {
+            throw new ArrayIndexOutOfBoundsException("fromIndex < 0 || toIndex > length || fromIndex > toIndex");
+        }
+        if (isConstant()) {
+            throw new IllegalAccessError("Constant arrays cannot be modified.");
+        }
+        if (fromIndex == toIndex) {
+            return;
+        }
+        long firstWord = fromIndex >>> 6;
+        long lastWord = (toIndex - 1) >>> 6;
+        long firstMask = -1l << fromIndex;
+        long lastMask = -1l >>> -toIndex;
+        if (firstWord == lastWord) {
+            updateWord(firstWord, firstMask & lastMask, op);
+            return;
+        }
+        updateWord(firstWord, firstMask, op);
+        updateWord(lastWord, lastMask, op);
+        processWords(firstWord + 1, lastWord, new WordRangeTask()
+        {
+            @Override
+            public long process(long first, long last)
+            {
+                for (long w = first; w < last; w++) {
+                    switch (op) {
+                        case OP_SET:
+                            putWord(w, -1l);
+                            break;
+                        case OP_CLEAR:
+                            putWord(w, 0l);
+                            break;
+                        default:
+                            putWord(w, ~getWord(w));
+                            break;
+                    }
+                }
+                return 0;
             }
-            int v = (byte) value & 0xFF;
-            int index = (int) i / 8;
-            int ii = (int) i % 8;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = this.data[index];
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8 - (ii + 1))) | oldV);
-            this.data[index] = newV;
-            Utilities.UNSAFE.monitorExit(LOCK);
+        });
+    }
+
+    private void combine(final BitLargeArray other, final int op)
+    {
+        if (other.length() != length) {
+            throw new IllegalArgumentException("other.length() != length()");
         }
+        if (isConstant()) {
+            throw new IllegalAccessError("Constant arrays cannot be modified.");
+        }
+        processWords(0, size >>> 3, new WordRangeTask()
+        {
+            @Override
+            public long process(long first, long last)
+            {
+                switch (op) {
+                    case OP_AND:
+                        for (long w = first; w < last; w++) {
+                            putWord(w, getWord(w) & other.getWord(w));
+                        }
+                        break;
+                    case OP_OR:
+                        for (long w = first; w < last; w++) {
+                            putWord(w, getWord(w) | other.getWord(w));
+                        }
+                        break;
+                    case OP_XOR:
+                        for (long w = first; w < last; w++) {
+                            putWord(w, getWord(w) ^ other.getWord(w));
+                        }
+                        break;
+                    default:
+                        for (long w = first; w < last; w++) {
+                            putWord(w, getWord(w) & ~other.getWord(w));
+                        }
+                        break;
+                }
+                return 0;
+            }
+        });
     }
 
     @Override
-    public void setInt(long i, int value)
+    public void setToNative(long i, Object value)
+    {
+        setBit(i, (Boolean) value ? 1 : 0);
+    }
+
+    @Override
+    public void setBoolean(long i, boolean value)
+    {
+        setBit(i, value ? 1 : 0);
+    }
+
+    @Override
+    public void setByte(long i, byte value)
     {
         if (value < 0 || value > 1) {
             throw new IllegalArgumentException("The value has to be 0 or 1.");
         }
-        if (ptr != 0) {
-            long index = i / 8l;
-            long ii = i % 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = Utilities.UNSAFE.getByte(ptr + index);
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((value << (8l - (ii + 1l))) | oldV);
-            Utilities.UNSAFE.putByte(ptr + index, newV);
-            Utilities.UNSAFE.monitorExit(LOCK);
+        setBit(i, value);
+    }
+
+    @Override
+    public void setShort(long i, short value)
+    {
+        if (value < 0 || value > 1) {
+            throw new IllegalArgumentException("The value has to be 0 or 1.");
         }
-        else {
-            if (isConstant()) {
-                throw new IllegalAccessError("Constant arrays cannot be modified.");
-            }
-            int index = (int) i / 8;
-            int ii = (int) i % 8;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = this.data[index];
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((value << (8 - (ii + 1))) | oldV);
-            this.data[index] = newV;
-            Utilities.UNSAFE.monitorExit(LOCK);
+        setBit(i, value);
+    }
+
+    @Override
+    public void setInt(long i, int value)
+    {
+        if (value < 0 || value > 1) {
+            throw new IllegalArgumentException("The value has to be 0 or 1.");
         }
+        setBit(i, value);
     }
 
     @Override
@@ -1178,30 +1259,7 @@ public class BitLargeArray extends LargeArray
         if (value < 0 || value > 1) {
             throw new IllegalArgumentException("The value has to be 0 or 1.");
         }
-        int v = (int) value;
-        if (ptr != 0) {
-            long index = i / 8l;
-            long ii = i % 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = Utilities.UNSAFE.getByte(ptr + index);
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8l - (ii + 1l))) | oldV);
-            Utilities.UNSAFE.putByte(ptr + index, newV);
-            Utilities.UNSAFE.monitorExit(LOCK);
-        }
-        else {
-            if (isConstant()) {
-                throw new IllegalAccessError("Constant arrays cannot be modified.");
-            }
-            int index = (int) i / 8;
-            int ii = (int) i % 8;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = this.data[index];
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8 - (ii + 1))) | oldV);
-            this.data[index] = newV;
-            Utilities.UNSAFE.monitorExit(LOCK);
-        }
+        setBit(i, (int) value);
     }
 
     @Override
@@ -1210,30 +1268,7 @@ public class BitLargeArray extends LargeArray
         if (value != 0.0 && value != 1.0) {
             throw new IllegalArgumentException("The value has to be 0 or 1.");
         }
-        int v = (int) value;
-        if (ptr != 0) {
-            long index = i / 8l;
-            long ii = i % 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = Utilities.UNSAFE.getByte(ptr + index);
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8l - (ii + 1l))) | oldV);
-            Utilities.UNSAFE.putByte(ptr + index, newV);
-            Utilities.UNSAFE.monitorExit(LOCK);
-        }
-        else {
-            if (isConstant()) {
-                throw new IllegalAccessError("Constant arrays cannot be modified.");
-            }
-            int index = (int) i / 8;
-            int ii = (int) i % 8;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = this.data[index];
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8 - (ii + 1))) | oldV);
-            this.data[index] = newV;
-            Utilities.UNSAFE.monitorExit(LOCK);
-        }
+        setBit(i, (int) value);
     }
 
     @Override
@@ -1242,29 +1277,6 @@ public class BitLargeArray extends LargeArray
         if (value != 0.0 && value != 1.0) {
             throw new IllegalArgumentException("The value has to be 0 or 1.");
         }
-        int v = (int) value;
-        if (ptr != 0) {
-            long index = i / 8l;
-            long ii = i % 8l;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = Utilities.UNSAFE.getByte(ptr + index);
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8l - (ii + 1l))) | oldV);
-            Utilities.UNSAFE.putByte(ptr + index, newV);
-            Utilities.UNSAFE.monitorExit(LOCK);
-        }
-        else {
-            if (isConstant()) {
-                throw new IllegalAccessError("Constant arrays cannot be modified.");
-            }
-            int index = (int) i / 8;
-            int ii = (int) i % 8;
-            Utilities.UNSAFE.monitorEnter(LOCK);
-            byte oldV = this.data[index];
-            oldV = (byte) (((0xFF7F >> ii) & oldV) & 0x00FF);
-            byte newV = (byte) ((v << (8 - (ii + 1))) | oldV);
-            this.data[index] = newV;
-            Utilities.UNSAFE.monitorExit(LOCK);
-        }
+        setBit(i, (int) value);
     }
 }
@@ -26,7 +26,7 @@
  * ***** END LICENSE BLOCK ***** */
 package pl.edu.icm.jlargearrays;
 
-import sun.misc.Cleaner;
+import java.util.Arrays;
 
 /**
  *
@@ -39,6 +39,7 @@ public class ByteLargeArray extends LargeArray
 
     private static final long serialVersionUID = 3135411647668758832L;
     private byte[] data;
+    private byte[][] segments;
 
     /**
      * Creates new instance of this class by wrapping a native pointer.
@@ -76,6 +77,20 @@ public class ByteLargeArray extends LargeArray
      * @param zeroNativeMemory if true, then the native memory is zeroed.
      */
     public ByteLargeArray(long length, boolean zeroNativeMemory)
+    {
+        this(length, zeroNativeMemory, SEGMENTED_HEAP);
+    }
+
+    /**
+     * Creates new instance of this class.
+     *
+     * @param length           number of elements
+     * @param zeroNativeMemory if true, then the native memory is zeroed.
+     * @param segmented        if true, then an array larger than
+     *                         getMaxSizeOf32bitArray() is stored on the heap
+     *                         in segments instead of the native memory.
+     */
+    public ByteLargeArray(long length, boolean zeroNativeMemory, boolean segmented)
     {
         this.type = LargeArrayType.BYTE;
         this.sizeof = 1;
@@ -84,15 +99,15 @@ public class ByteLargeArray extends LargeArray
         }
         this.length = length;
         if (length > LARGEST_32BIT_INDEX) {
-            System.gc();
-            this.ptr = Utilities.UNSAFE.allocateMemory(this.length * this.sizeof);
-            if (zeroNativeMemory) {
-                zeroNativeMemory(length);
+            if (segmented) {
+                segments = new byte[initSegments()][];
+                for (int j = 0; j < segments.length; j++) {
+                    segments[j] = new byte[segmentLength(j)];
+                }
+            }
+            else {
+                allocateNativeMemory(this.length, zeroNativeMemory);
             }
-            Cleaner.create(this, new Deallocator(this.ptr,
-                                                 this.length,
-                                                 this.sizeof));
-            MemoryCounter.increaseCounter(this.length * this.sizeof);
         }
         else {
             data = new byte[(int) length];
@@ -138,12 +153,18 @@ public class ByteLargeArray extends LargeArray
             return new ByteLargeArray(length, getByte(0));
         }
         else {
-            ByteLargeArray v = new ByteLargeArray(length, false);
+            ByteLargeArray v = new ByteLargeArray(length, false, isSegmented());
             Utilities.arraycopy(this, 0, v, 0, length);
             return v;
         }
     }
 
+    @Override
+    byte[][] getSegments()
+    {
+        return segments;
+    }
+
     @Override
     public Byte get(long i)
     {
@@ -162,6 +183,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             return (Utilities.UNSAFE.getByte(ptr + i)) != 0;
         }
+        else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]) != 0;
+        }
         else {
             if (isConstant()) {
                 return data[0] != 0;
@@ -178,6 +202,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             return Utilities.UNSAFE.getByte(ptr + i);
         }
+        else if (segments != null) {
+            return segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)];
+        }
         else {
             if (isConstant()) {
                 return data[0];
@@ -194,6 +221,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             return (Utilities.UNSAFE.getByte(ptr + i));
         }
+        else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
+        }
         else {
             if (isConstant()) {
                 return data[0];
@@ -210,6 +240,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             return (Utilities.UNSAFE.getByte(ptr + i));
         }
+        else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
+        }
         else {
             if (isConstant()) {
                 return data[0];
@@ -226,6 +259,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             return (Utilities.UNSAFE.getByte(ptr + i));
         }
+        else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
+        }
         else {
             if (isConstant()) {
                 return data[0];
@@ -242,6 +278,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             return (Utilities.UNSAFE.getByte(ptr + i));
         }
+        else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
+        }
         else {
             if (isConstant()) {
                 return data[0];
@@ -258,6 +297,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             return Utilities.UNSAFE.getByte(ptr + i);
         }
+        else if (segments != null) {
+            return segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)];
+        }
         else {
             if (isConstant()) {
                 return data[0];
@@ -297,7 +339,12 @@ public class ByteLargeArray extends LargeArray
                 out = new boolean[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getBoolean(i);
+                }
+            }
+            else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     byte v = Utilities.UNSAFE.getByte(ptr + i);
                     out[idx++] = v == 1;
@@ -324,7 +371,7 @@ public class ByteLargeArray extends LargeArray
     @Override
     public boolean[] getBooleanData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         }
         else {
@@ -352,7 +399,7 @@ public class ByteLargeArray extends LargeArray
     @Override
     public byte[] getData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         }
         else {
@@ -374,7 +421,7 @@ public class ByteLargeArray extends LargeArray
     @Override
     public byte[] getByteData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         }
         else {
@@ -423,9 +470,19 @@ public class ByteLargeArray extends LargeArray
                 out = new byte[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
                 for (long i = startPos; i < endPos; i += step) {
-                    out[idx++] = Utilities.UNSAFE.getByte(ptr + i);
+                    out[idx++] = getByte(i);
+                }
+            }
+            else if (ptr != 0) {
+                if (step == 1) {
+                    Utilities.copyMemory(null, ptr + sizeof * startPos, out, Utilities.UNSAFE.arrayBaseOffset(byte[].class), len, sizeof);
+                }
+                else {
+                    for (long i = startPos; i < endPos; i += step) {
+                        out[idx++] = Utilities.UNSAFE.getByte(ptr + i);
+                    }
                 }
             }
             else {
@@ -435,8 +492,13 @@ public class ByteLargeArray extends LargeArray
                     }
                 }
                 else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[(int) i];
+                    if (step == 1) {
+                        System.arraycopy(data, (int) startPos, out, 0, (int) len);
+                    }
+                    else {
+                        for (long i = startPos; i < endPos; i += step) {
+                            out[idx++] = data[(int) i];
+                        }
                     }
                 }
             }
@@ -447,7 +509,7 @@ public class ByteLargeArray extends LargeArray
     @Override
     public short[] getShortData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         }
         else {
@@ -500,7 +562,12 @@ public class ByteLargeArray extends LargeArray
                 out = new short[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getShort(i);
+                }
+            }
+            else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getByte(ptr + i);
                 }
@@ -524,7 +591,7 @@ public class ByteLargeArray extends LargeArray
     @Override
     public int[] getIntData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         }
         else {
@@ -577,7 +644,12 @@ public class ByteLargeArray extends LargeArray
                 out = new int[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getInt(i);
+                }
+            }
+            else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getByte(ptr + i);
                 }
@@ -601,7 +673,7 @@ public class ByteLargeArray extends LargeArray
     @Override
     public long[] getLongData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         }
         else {
@@ -654,7 +726,12 @@ public class ByteLargeArray extends LargeArray
                 out = new long[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getLong(i);
+                }
+            }
+            else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getByte(ptr + i);
                 }
@@ -678,7 +755,7 @@ public class ByteLargeArray extends LargeArray
     @Override
     public float[] getFloatData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         }
         else {
@@ -731,7 +808,12 @@ public class ByteLargeArray extends LargeArray
                 out = new float[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getFloat(i);
+                }
+            }
+            else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getByte(ptr + i);
                 }
@@ -755,7 +837,7 @@ public class ByteLargeArray extends LargeArray
     @Override
     public double[] getDoubleData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         }
         else {
@@ -808,7 +890,12 @@ public class ByteLargeArray extends LargeArray
                 out = new double[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getDouble(i);
+                }
+            }
+            else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getByte(ptr + i);
                 }
@@ -829,6 +916,90 @@ public class ByteLargeArray extends LargeArray
         }
     }
 
+    /**
+     * Copies len elements of this array, beginning at srcPos, to the
+     * specified position of the destination array. Array bounds are checked.
+     *
+     * @param srcPos starting position in this array.
+     * @param dst    the destination array.
+     * @param dstOff starting position in the destination array.
+     * @param len    the number of elements to be copied.
+     */
+    public void get(long srcPos, byte[] dst, int dstOff, int len)
+    {
+        ensureOpen();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (srcPos < 0 || srcPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos + len > length");
+        }
+        if (dstOff < 0 || (long) dstOff + len > dst.length) {
+            throw new ArrayIndexOutOfBoundsException("dstOff < 0 || dstOff + len > dst.length");
+        }
+        if (segments != null) {
+            for (int done = 0; done < len;) {
+                long i = srcPos + done;
+                byte[] segment = segments[(int) (i >>> segmentShift)];
+                int n = (int) Math.min(len - done, segment.length - (i & segmentMask));
+                System.arraycopy(segment, (int) (i & segmentMask), dst, dstOff + done, n);
+                done += n;
+            }
+        }
+        else if (ptr != 0) {
+            Utilities.copyMemory(null, ptr + sizeof * srcPos, dst, Utilities.UNSAFE.arrayBaseOffset(byte[].class) + sizeof * dstOff, len, sizeof);
+        }
+        else {
+            if (isConstant()) {
+                Arrays.fill(dst, dstOff, dstOff + len, data[0]);
+            }
+            else {
+                System.arraycopy(data, (int) srcPos, dst, dstOff, len);
+            }
+        }
+    }
+
+    /**
+     * Copies len elements of the source array, beginning at srcOff, to the
+     * specified position of this array. Array bounds are checked.
+     *
+     * @param dstPos starting position in this array.
+     * @param src    the source array.
+     * @param srcOff starting position in the source array.
+     * @param len    the number of elements to be copied.
+     */
+    public void set(long dstPos, byte[] src, int srcOff, int len)
+    {
+        ensureWritable();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (dstPos < 0 || dstPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("dstPos < 0 || dstPos + len > length");
+        }
+        if (srcOff < 0 || (long) srcOff + len > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcOff < 0 || srcOff + len > src.length");
+        }
+        if (segments != null) {
+            for (int done = 0; done < len;) {
+                long i = dstPos + done;
+                byte[] segment = segments[(int) (i >>> segmentShift)];
+                int n = (int) Math.min(len - done, segment.length - (i & segmentMask));
+                System.arraycopy(src, srcOff + done, segment, (int) (i & segmentMask), n);
+                done += n;
+            }
+        }
+        else if (ptr != 0) {
+            Utilities.copyMemory(src, Utilities.UNSAFE.arrayBaseOffset(byte[].class) + sizeof * srcOff, null, ptr + sizeof * dstPos, len, sizeof);
+        }
+        else {
+            if (isConstant()) {
+                throw new IllegalAccessError("Constant arrays cannot be modified.");
+            }
+            System.arraycopy(src, srcOff, data, (int) dstPos, len);
+        }
+    }
+
     @Override
     public void setToNative(long i, Object value)
     {
@@ -843,6 +1014,9 @@ public class ByteLargeArray extends LargeArray
                                      value == true ? (byte) 1
                                                   : (byte) 0);
         }
+        else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value == true ? (byte) 1 : (byte) 0;
+        }
         else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -857,6 +1031,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             Utilities.UNSAFE.putByte(ptr + i, value);
         }
+        else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value;
+        }
         else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -871,6 +1048,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             Utilities.UNSAFE.putByte(ptr + i, (byte) value);
         }
+        else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (byte) value;
+        }
         else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -885,6 +1065,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             Utilities.UNSAFE.putByte(ptr + i, (byte) value);
         }
+        else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (byte) value;
+        }
         else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -899,6 +1082,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             Utilities.UNSAFE.putByte(ptr + i, (byte) value);
         }
+        else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (byte) value;
+        }
         else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -913,6 +1099,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             Utilities.UNSAFE.putByte(ptr + i, (byte) value);
         }
+        else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (byte) value;
+        }
         else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -927,6 +1116,9 @@ public class ByteLargeArray extends LargeArray
         if (ptr != 0) {
             Utilities.UNSAFE.putByte(ptr + i, (byte) value);
         }
+        else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (byte) value;
+        }
         else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -0,0 +1,54 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+/**
+ * Codecs of the payload of files written by LargeArrayIO. Compressed files are
+ * divided into chunks that are compressed independently, so they can be
+ * compressed and decompressed in parallel and read selectively.
+ *
+ * @author agent (agent@local)
+ */
+public enum Codec
+{
+
+    /**
+     * Uncompressed elements. Files with this codec can be memory-mapped.
+     */
+    RAW,
+    /**
+     * Chunks compressed with java.util.zip.Deflater.
+     */
+    DEFLATE,
+    /**
+     * Each element of a chunk is replaced by its difference from the previous
+     * one and the result is compressed with java.util.zip.Deflater. Smooth
+     * integer data, such as 16-bit images, compress much better this way.
+     * Supported only for arrays of type BYTE, SHORT, INT and LONG.
+     */
+    DELTA_DEFLATE
+}
@@ -0,0 +1,353 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrency utilities. All parallel operations in JLargeArrays submit their
+ * tasks to a single, library-wide thread pool managed by this class.
+ *
+ * @author agent (agent@local)
+ */
+public class ConcurrencyUtils
+{
+
+    private static final long DEFAULT_CONCURRENT_THRESHOLD = 100000;
+
+    private static int NTHREADS = getNumberOfProcessors();
+
+    private static long CONCURRENT_THRESHOLD = DEFAULT_CONCURRENT_THRESHOLD;
+
+    private static ExecutorService THREAD_POOL = createDefaultThreadPool(NTHREADS);
+
+    private ConcurrencyUtils()
+    {
+    }
+
+    /**
+     * Creates the default thread pool. The pool keeps nthreads daemon worker
+     * threads alive and creates additional threads only when all of them are
+     * busy (e.g. when tasks are submitted from within other tasks).
+     *
+     * @param nthreads number of core threads
+     *
+     * @return new thread pool
+     */
+    private static ExecutorService createDefaultThreadPool(int nthreads)
+    {
+        return new ThreadPoolExecutor(nthreads, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new DaemonThreadFactory());
+    }
+
+    /**
+     * Returns the number of available processors.
+     *
+     * @return number of available processors
+     */
+    public static int getNumberOfProcessors()
+    {
+        return Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Returns the current number of threads used in parallel operations.
+     *
+     * @return the current number of threads.
+     */
+    public static int getNumberOfThreads()
+    {
+        return NTHREADS;
+    }
+
+    /**
+     * Sets the number of threads used in parallel operations. If the default
+     * thread pool is in use, its number of core threads is adjusted
+     * accordingly.
+     *
+     * @param n new number of threads
+     */
+    public static synchronized void setNumberOfThreads(int n)
+    {
+        if (n < 1) {
+            throw new IllegalArgumentException("n has to be positive");
+        }
+        NTHREADS = n;
+        if (THREAD_POOL instanceof ThreadPoolExecutor && ((ThreadPoolExecutor) THREAD_POOL).getThreadFactory() instanceof DaemonThreadFactory) {
+            ((ThreadPoolExecutor) THREAD_POOL).setCorePoolSize(n);
+        }
+    }
+
+    /**
+     * Returns the minimal number of elements that an operation has to process
+     * in order to be executed in parallel.
+     *
+     * @return the minimal number of elements processed in parallel.
+     */
+    public static long getConcurrentThreshold()
+    {
+        return CONCURRENT_THRESHOLD;
+    }
+
+    /**
+     * Sets the minimal number of elements that an operation has to process in
+     * order to be executed in parallel.
+     *
+     * @param concurrentThreshold the minimal number of elements processed in
+     *                            parallel.
+     */
+    public static void setConcurrentThreshold(long concurrentThreshold)
+    {
+        if (concurrentThreshold < 1) {
+            throw new IllegalArgumentException("concurrentThreshold has to be positive");
+        }
+        CONCURRENT_THRESHOLD = concurrentThreshold;
+    }
+
+    /**
+     * Resets the minimal number of elements processed in parallel to its
+     * default value (100000).
+     */
+    public static void resetConcurrentThreshold()
+    {
+        CONCURRENT_THRESHOLD = DEFAULT_CONCURRENT_THRESHOLD;
+    }
+
+    /**
+     * Returns the thread pool used in parallel operations.
+     *
+     * @return the thread pool.
+     */
+    public static ExecutorService getThreadPool()
+    {
+        return THREAD_POOL;
+    }
+
+    /**
+     * Replaces the thread pool used in parallel operations. The previous pool
+     * is not shut down.
+     *
+     * @param executor new thread pool
+     */
+    public static synchronized void setThreadPool(ExecutorService executor)
+    {
+        if (executor == null) {
+            throw new IllegalArgumentException("executor cannot be null");
+        }
+        THREAD_POOL = executor;
+    }
+
+    /**
+     * Shuts down the current thread pool, waits for the termination of all
+     * running tasks and installs a new default thread pool.
+     */
+    public static synchronized void shutdownThreadPoolAndAwaitTermination()
+    {
+        THREAD_POOL.shutdown();
+        try {
+            if (!THREAD_POOL.awaitTermination(60, TimeUnit.SECONDS)) {
+                THREAD_POOL.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            THREAD_POOL.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        THREAD_POOL = createDefaultThreadPool(NTHREADS);
+    }
+
+    /**
+     * Submits a Runnable task for execution and returns a Future representing
+     * that task.
+     *
+     * @param task a task to submit
+     *
+     * @return a handle to the task submitted for execution
+     */
+    public static Future<?> submit(Runnable task)
+    {
+        return THREAD_POOL.submit(task);
+    }
+
+    /**
+     * Submits a value-returning task for execution and returns a Future
+     * representing the pending results of the task.
+     *
+     * @param <T> type of the result
+     * @param task a task to submit
+     *
+     * @return a handle to the task submitted for execution
+     */
+    public static <T> Future<T> submit(Callable<T> task)
+    {
+        return THREAD_POOL.submit(task);
+    }
+
+    /**
+     * Waits for all tasks to complete. An exception thrown by any of the tasks
+     * is rethrown in the calling thread.
+     *
+     * @param futures handles to running tasks
+     *
+     * @throws InterruptedException if the calling thread was interrupted while
+     *                              waiting
+     */
+    public static void waitForCompletion(Future<?>[] futures) throws InterruptedException
+    {
+        for (int j = 0; j < futures.length; j++) {
+            try {
+                futures[j].get();
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException(cause);
+            }
+        }
+    }
+
+    /**
+     * Waits for all I/O tasks to complete. An exception thrown by any of the
+     * tasks is rethrown in the calling thread.
+     *
+     * @param futures handles to running tasks
+     *
+     * @throws IOException if any of the tasks failed with an IOException, or
+     *                     the calling thread was interrupted while waiting
+     */
+    static void waitForIOCompletion(Future<?>[] futures) throws IOException
+    {
+        waitForIOCompletion(futures, null);
+    }
+
+    /**
+     * Waits for all I/O tasks to complete. If any of the tasks fails or the
+     * calling thread is interrupted, abort is set and the remaining tasks are
+     * waited for before the exception is rethrown in the calling thread, so
+     * that no task accesses the array or the channel afterwards.
+     *
+     * @param futures handles to running tasks
+     * @param abort   flag checked by the tasks to stop early, can be null
+     *
+     * @throws IOException if any of the tasks failed with an IOException, or
+     *                     the calling thread was interrupted while waiting
+     */
+    static void waitForIOCompletion(Future<?>[] futures, AtomicBoolean abort) throws IOException
+    {
+        for (int j = 0; j < futures.length; j++) {
+            try {
+                futures[j].get();
+            } catch (InterruptedException ex) {
+                abort(futures, abort);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            } catch (ExecutionException ex) {
+                abort(futures, abort);
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+
+    private static void abort(Future<?>[] futures, AtomicBoolean abort)
+    {
+        if (abort != null) {
+            abort.set(true);
+        }
+        drain(futures);
+    }
+
+    /**
+     * Waits for all tasks to complete, ignoring their results and exceptions.
+     * Used to make sure that no task is still running before an exception is
+     * propagated to the caller. The interrupt status of the calling thread is
+     * preserved.
+     *
+     * @param futures handles to submitted tasks
+     */
+    static void drain(Future<?>[] futures)
+    {
+        boolean interrupted = false;
+        for (int j = 0; j < futures.length; j++) {
+            if (futures[j] == null) {
+                continue;
+            }
+            while (true) {
+                try {
+                    futures[j].get();
+                    break;
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                } catch (ExecutionException ex) {
+                    break;
+                } catch (CancellationException ex) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory
+    {
+
+        private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r)
+        {
+            Thread t = new Thread(r, "jlargearrays-worker-" + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+/**
+ * Policies of running the garbage collector before native memory is allocated.
+ * Native memory of unreachable large arrays is released only after they are
+ * collected, so a GC can make memory available for new arrays.
+ *
+ * @author agent (agent@local)
+ */
+public enum GCPolicy
+{
+
+    /**
+     * The garbage collector is never run.
+     */
+    NEVER,
+    /**
+     * The garbage collector is run only when an allocation fails, and the
+     * allocation is retried.
+     */
+    ON_FAILURE,
+    /**
+     * The garbage collector is run when the amount of native memory counted
+     * by MemoryCounter would exceed the threshold set by
+     * MemoryBudget.setGCThreshold().
+     */
+    ABOVE_THRESHOLD
+}
@@ -26,7 +26,8 @@
  * ***** END LICENSE BLOCK ***** */
 package pl.edu.icm.jlargearrays;
 
-import sun.misc.Cleaner;
+import java.nio.IntBuffer;
+import java.util.Arrays;
 
 /**
  *
@@ -39,6 +40,7 @@ public class IntLargeArray extends LargeArray
 
     private static final long serialVersionUID = 86623276977976615L;
     private int[] data;
+    private int[][] segments;
 
     /**
      * Creates new instance of this class by wrapping a native pointer.
@@ -76,6 +78,20 @@ public class IntLargeArray extends LargeArray
      * @param zeroNativeMemory if true, then the native memory is zeroed.
      */
     public IntLargeArray(long length, boolean zeroNativeMemory)
+    {
+        this(length, zeroNativeMemory, SEGMENTED_HEAP);
+    }
+
+    /**
+     * Creates new instance of this class.
+     *
+     * @param length           number of elements
+     * @param zeroNativeMemory if true, then the native memory is zeroed.
+     * @param segmented        if true, then an array larger than
+     *                         getMaxSizeOf32bitArray() is stored on the heap
+     *                         in segments instead of the native memory.
+     */
+    public IntLargeArray(long length, boolean zeroNativeMemory, boolean segmented)
     {
         this.type = LargeArrayType.INT;
         this.sizeof = 4;
@@ -84,13 +100,14 @@ public class IntLargeArray extends LargeArray
         }
         this.length = length;
         if (length > LARGEST_32BIT_INDEX) {
-            System.gc();
-            this.ptr = Utilities.UNSAFE.allocateMemory(this.length * this.sizeof);
-            if (zeroNativeMemory) {
-                zeroNativeMemory(length);
+            if (segmented) {
+                segments = new int[initSegments()][];
+                for (int j = 0; j < segments.length; j++) {
+                    segments[j] = new int[segmentLength(j)];
+                }
+            } else {
+                allocateNativeMemory(this.length, zeroNativeMemory);
             }
-            Cleaner.create(this, new Deallocator(this.ptr, this.length, this.sizeof));
-            MemoryCounter.increaseCounter(this.length * this.sizeof);
         } else {
             data = new int[(int) length];
         }
@@ -132,12 +149,18 @@ public class IntLargeArray extends LargeArray
         if (isConstant()) {
             return new IntLargeArray(length, getInt(0));
         } else {
-            IntLargeArray v = new IntLargeArray(length, false);
+            IntLargeArray v = new IntLargeArray(length, false, isSegmented());
             Utilities.arraycopy(this, 0, v, 0, length);
             return v;
         }
     }
 
+    @Override
+    int[][] getSegments()
+    {
+        return segments;
+    }
+
     @Override
     public Integer get(long i)
     {
@@ -155,6 +178,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (Utilities.UNSAFE.getInt(ptr + sizeof * i)) != 0;
+        } else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]) != 0;
         } else {
             if (isConstant()) {
                 return data[0] != 0;
@@ -169,6 +194,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (byte) (Utilities.UNSAFE.getInt(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (byte) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (byte) data[0];
@@ -183,6 +210,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (short) (Utilities.UNSAFE.getInt(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (short) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (short) data[0];
@@ -197,6 +226,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return Utilities.UNSAFE.getInt(ptr + sizeof * i);
+        } else if (segments != null) {
+            return segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)];
         } else {
             if (isConstant()) {
                 return data[0];
@@ -211,6 +242,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (Utilities.UNSAFE.getInt(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return data[0];
@@ -225,6 +258,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (Utilities.UNSAFE.getInt(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return data[0];
@@ -239,6 +274,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (Utilities.UNSAFE.getInt(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return data[0];
@@ -251,7 +288,7 @@ public class IntLargeArray extends LargeArray
     @Override
     public int[] getData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -267,10 +304,40 @@ public class IntLargeArray extends LargeArray
         }
     }
 
+    /**
+     * Returns a IntBuffer that shares length elements of this array, starting
+     * at offset. No data is copied: for arrays stored in the native memory
+     * the returned buffer is a view of a direct ByteBuffer aliasing that
+     * memory (see asByteBuffer()), otherwise it wraps the internal Java
+     * array.
+     *
+     * @param offset index of the first element
+     * @param length number of elements
+     *
+     * @return the buffer
+     */
+    public IntBuffer asIntBuffer(long offset, int length)
+    {
+        checkBuffer(offset, length);
+        if (ptr != 0) {
+            return asByteBuffer(offset, length).asIntBuffer();
+        }
+        if (segments != null) {
+            int[] segment = segments[(int) (offset >>> segmentShift)];
+            if ((offset & segmentMask) + length > segment.length) {
+                throw new UnsupportedOperationException("The elements are not stored in a single segment.");
+            }
+            IntBuffer buffer = IntBuffer.wrap(segment, (int) (offset & segmentMask), length).slice();
+            return readOnly ? buffer.asReadOnlyBuffer() : buffer;
+        }
+        IntBuffer buffer = IntBuffer.wrap(data, (int) offset, length).slice();
+        return readOnly ? buffer.asReadOnlyBuffer() : buffer;
+    }
+
     @Override
     public boolean[] getBooleanData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -316,7 +383,11 @@ public class IntLargeArray extends LargeArray
                 out = new boolean[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getBoolean(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     int v = Utilities.UNSAFE.getInt(ptr + sizeof * i);
                     out[idx++] = v != 0;
@@ -340,7 +411,7 @@ public class IntLargeArray extends LargeArray
     @Override
     public byte[] getByteData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -386,7 +457,11 @@ public class IntLargeArray extends LargeArray
                 out = new byte[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getByte(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (byte) Utilities.UNSAFE.getInt(ptr + sizeof * i);
                 }
@@ -414,7 +489,7 @@ public class IntLargeArray extends LargeArray
     @Override
     public short[] getShortData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -460,7 +535,11 @@ public class IntLargeArray extends LargeArray
                 out = new short[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getShort(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (short) Utilities.UNSAFE.getInt(ptr + sizeof * i);
                 }
@@ -482,7 +561,7 @@ public class IntLargeArray extends LargeArray
     @Override
     public int[] getIntData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -523,9 +602,17 @@ public class IntLargeArray extends LargeArray
                 out = new int[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
                 for (long i = startPos; i < endPos; i += step) {
-                    out[idx++] = Utilities.UNSAFE.getInt(ptr + sizeof * i);
+                    out[idx++] = getInt(i);
+                }
+            } else if (ptr != 0) {
+                if (step == 1) {
+                    Utilities.copyMemory(null, ptr + sizeof * startPos, out, Utilities.UNSAFE.arrayBaseOffset(int[].class), len, sizeof);
+                } else {
+                    for (long i = startPos; i < endPos; i += step) {
+                        out[idx++] = Utilities.UNSAFE.getInt(ptr + sizeof * i);
+                    }
                 }
             } else {
                 if (isConstant()) {
@@ -533,8 +620,12 @@ public class IntLargeArray extends LargeArray
                         out[idx++] = data[0];
                     }
                 } else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[(int) i];
+                    if (step == 1) {
+                        System.arraycopy(data, (int) startPos, out, 0, (int) len);
+                    } else {
+                        for (long i = startPos; i < endPos; i += step) {
+                            out[idx++] = data[(int) i];
+                        }
                     }
                 }
             }
@@ -545,7 +636,7 @@ public class IntLargeArray extends LargeArray
     @Override
     public long[] getLongData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -590,7 +681,11 @@ public class IntLargeArray extends LargeArray
                 out = new long[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getLong(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getInt(ptr + sizeof * i);
                 }
@@ -612,7 +707,7 @@ public class IntLargeArray extends LargeArray
     @Override
     public float[] getFloatData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -657,7 +752,11 @@ public class IntLargeArray extends LargeArray
                 out = new float[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getFloat(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getInt(ptr + sizeof * i);
                 }
@@ -679,7 +778,7 @@ public class IntLargeArray extends LargeArray
     @Override
     public double[] getDoubleData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -724,7 +823,11 @@ public class IntLargeArray extends LargeArray
                 out = new double[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getDouble(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getInt(ptr + sizeof * i);
                 }
@@ -743,6 +846,85 @@ public class IntLargeArray extends LargeArray
         }
     }
 
+    /**
+     * Copies len elements of this array, beginning at srcPos, to the
+     * specified position of the destination array. Array bounds are checked.
+     *
+     * @param srcPos starting position in this array.
+     * @param dst    the destination array.
+     * @param dstOff starting position in the destination array.
+     * @param len    the number of elements to be copied.
+     */
+    public void get(long srcPos, int[] dst, int dstOff, int len)
+    {
+        ensureOpen();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (srcPos < 0 || srcPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos + len > length");
+        }
+        if (dstOff < 0 || (long) dstOff + len > dst.length) {
+            throw new ArrayIndexOutOfBoundsException("dstOff < 0 || dstOff + len > dst.length");
+        }
+        if (segments != null) {
+            for (int done = 0; done < len;) {
+                long i = srcPos + done;
+                int[] segment = segments[(int) (i >>> segmentShift)];
+                int n = (int) Math.min(len - done, segment.length - (i & segmentMask));
+                System.arraycopy(segment, (int) (i & segmentMask), dst, dstOff + done, n);
+                done += n;
+            }
+        } else if (ptr != 0) {
+            Utilities.copyMemory(null, ptr + sizeof * srcPos, dst, Utilities.UNSAFE.arrayBaseOffset(int[].class) + sizeof * dstOff, len, sizeof);
+        } else {
+            if (isConstant()) {
+                Arrays.fill(dst, dstOff, dstOff + len, data[0]);
+            } else {
+                System.arraycopy(data, (int) srcPos, dst, dstOff, len);
+            }
+        }
+    }
+
+    /**
+     * Copies len elements of the source array, beginning at srcOff, to the
+     * specified position of this array. Array bounds are checked.
+     *
+     * @param dstPos starting position in this array.
+     * @param src    the source array.
+     * @param srcOff starting position in the source array.
+     * @param len    the number of elements to be copied.
+     */
+    public void set(long dstPos, int[] src, int srcOff, int len)
+    {
+        ensureWritable();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (dstPos < 0 || dstPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("dstPos < 0 || dstPos + len > length");
+        }
+        if (srcOff < 0 || (long) srcOff + len > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcOff < 0 || srcOff + len > src.length");
+        }
+        if (segments != null) {
+            for (int done = 0; done < len;) {
+                long i = dstPos + done;
+                int[] segment = segments[(int) (i >>> segmentShift)];
+                int n = (int) Math.min(len - done, segment.length - (i & segmentMask));
+                System.arraycopy(src, srcOff + done, segment, (int) (i & segmentMask), n);
+                done += n;
+            }
+        } else if (ptr != 0) {
+            Utilities.copyMemory(src, Utilities.UNSAFE.arrayBaseOffset(int[].class) + sizeof * srcOff, null, ptr + sizeof * dstPos, len, sizeof);
+        } else {
+            if (isConstant()) {
+                throw new IllegalAccessError("Constant arrays cannot be modified.");
+            }
+            System.arraycopy(src, srcOff, data, (int) dstPos, len);
+        }
+    }
+
     @Override
     public void setToNative(long i, Object value)
     {
@@ -754,6 +936,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putInt(ptr + sizeof * i, value == true ? 1 : 0);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value == true ? 1 : 0;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -767,6 +951,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putInt(ptr + sizeof * i, value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -780,6 +966,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putInt(ptr + sizeof * i, value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -793,6 +981,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putInt(ptr + sizeof * i, value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -806,6 +996,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putInt(ptr + sizeof * i, (int) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (int) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -819,6 +1011,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putInt(ptr + sizeof * i, (int) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (int) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -832,6 +1026,8 @@ public class IntLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putInt(ptr + sizeof * i, (int) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (int) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
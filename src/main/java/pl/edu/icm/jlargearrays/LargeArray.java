@@ -26,6 +26,21 @@
  * ***** END LICENSE BLOCK ***** */
 package pl.edu.icm.jlargearrays;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputValidation;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+import sun.misc.Cleaner;
+
 /**
  * The base class for all large arrays. All implementations of this abstract
  * class can store up to 2<SUP>63</SUP> elements of primitive data types.
@@ -34,7 +49,8 @@ package pl.edu.icm.jlargearrays;
  */
 public abstract class LargeArray implements
                                 java.io.Serializable,
-                                Cloneable
+                                Cloneable,
+                                AutoCloseable
 {
 
     private static final long serialVersionUID = 7921589398878016801L;
@@ -42,8 +58,13 @@ public abstract class LargeArray implements
     protected long length;
     protected long sizeof;
     protected boolean isConstant = false;
-    protected Object parent = null;
-    protected long ptr = 0;
+    protected transient Object parent = null;
+    protected transient long ptr = 0;
+    protected transient Cleaner cleaner = null;
+    protected transient volatile boolean closed = false;
+    protected transient boolean readOnly = false;
+    protected int segmentShift = 0;
+    protected long segmentMask = 0;
 
     /**
      * Largest array size for which a regular 1D Java array is used to store the
@@ -51,6 +72,37 @@ public abstract class LargeArray implements
      */
     protected static int LARGEST_32BIT_INDEX = 1073741824; // 2^30;
 
+    /**
+     * If true, then zeroed native memory is mapped from the operating system
+     * instead of being allocated and zeroed explicitly.
+     */
+    protected static boolean ZERO_ON_FIRST_TOUCH = false;
+
+    /**
+     * If true, then arrays larger than LARGEST_32BIT_INDEX are stored on the
+     * Java heap in segments instead of the native memory.
+     */
+    protected static boolean SEGMENTED_HEAP = false;
+
+    /**
+     * Base-2 logarithm of the number of elements of a segment.
+     */
+    protected static int SEGMENT_SHIFT = 26;
+
+    /**
+     * Maximal number of bytes transferred by a single read or write call in
+     * writeTo() and readFrom().
+     */
+    private static final int IO_WINDOW_SIZE = 1 << 30;
+
+    /**
+     * Size of the intermediate buffer used by writeTo() and readFrom() for
+     * arrays stored on the Java heap.
+     */
+    private static final int IO_BUFFER_SIZE = 1 << 20;
+
+    private static final long BYTE_ARRAY_BASE_OFFSET = Utilities.UNSAFE.arrayBaseOffset(byte[].class);
+
     /**
      * Creates new instance of this class.
      */
@@ -137,6 +189,7 @@ public abstract class LargeArray implements
      */
     public Object get_safe(final long i)
     {
+        ensureOpen();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -174,6 +227,7 @@ public abstract class LargeArray implements
      */
     public boolean getBoolean_safe(final long i)
     {
+        ensureOpen();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -199,6 +253,7 @@ public abstract class LargeArray implements
      */
     public byte getByte_safe(final long i)
     {
+        ensureOpen();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -224,6 +279,7 @@ public abstract class LargeArray implements
      */
     public short getShort_safe(final long i)
     {
+        ensureOpen();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -249,6 +305,7 @@ public abstract class LargeArray implements
      */
     public int getInt_safe(final long i)
     {
+        ensureOpen();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -274,6 +331,7 @@ public abstract class LargeArray implements
      */
     public long getLong_safe(final long i)
     {
+        ensureOpen();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -299,6 +357,7 @@ public abstract class LargeArray implements
      */
     public float getFloat_safe(final long i)
     {
+        ensureOpen();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -324,6 +383,7 @@ public abstract class LargeArray implements
      */
     public double getDouble_safe(final long i)
     {
+        ensureOpen();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -644,6 +704,7 @@ public abstract class LargeArray implements
      */
     public void setBoolean_safe(final long i, final boolean value)
     {
+        ensureWritable();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -667,6 +728,7 @@ public abstract class LargeArray implements
      */
     public void setByte_safe(final long i, final byte value)
     {
+        ensureWritable();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -690,6 +752,7 @@ public abstract class LargeArray implements
      */
     public void setShort_safe(final long i, final short value)
     {
+        ensureWritable();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -713,6 +776,7 @@ public abstract class LargeArray implements
      */
     public void setInt_safe(final long i, final int value)
     {
+        ensureWritable();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -736,6 +800,7 @@ public abstract class LargeArray implements
      */
     public void setLong_safe(final long i, final long value)
     {
+        ensureWritable();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -759,6 +824,7 @@ public abstract class LargeArray implements
      */
     public void setFloat_safe(final long i, final float value)
     {
+        ensureWritable();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -782,6 +848,7 @@ public abstract class LargeArray implements
      */
     public void setDouble_safe(final long i, final double value)
     {
+        ensureWritable();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
@@ -810,6 +877,812 @@ public abstract class LargeArray implements
         return isConstant;
     }
 
+    /**
+     * Releases the native memory of this array immediately, instead of waiting
+     * for the garbage collector. After this call, the array cannot be used:
+     * all methods with array bounds checking throw an IllegalStateException
+     * and the behavior of other methods is undefined. Calling this method
+     * more than once has no effect.
+     */
+    public void free()
+    {
+        if (!closed) {
+            closed = true;
+            ptr = 0;
+            if (cleaner != null) {
+                cleaner.clean();
+            }
+        }
+    }
+
+    /**
+     * Equivalent to free().
+     */
+    @Override
+    public void close()
+    {
+        free();
+    }
+
+    /**
+     * Returns true if this array has been closed. A view is closed when the
+     * array it was created from is closed.
+     *
+     * @return true if this array has been closed, false otherwise
+     */
+    public boolean isClosed()
+    {
+        return closed || (parent instanceof LargeArray && ((LargeArray) parent).isClosed());
+    }
+
+    /**
+     * Throws an IllegalStateException if this array, or the array it is a
+     * view of, has been closed.
+     */
+    protected void ensureOpen()
+    {
+        if (isClosed()) {
+            throw new IllegalStateException("The array has been closed.");
+        }
+    }
+
+    /**
+     * Throws an IllegalStateException if this array has been closed and an
+     * IllegalAccessError if this array is read-only.
+     */
+    protected void ensureWritable()
+    {
+        ensureOpen();
+        if (readOnly) {
+            throw new IllegalAccessError("Read-only arrays cannot be modified.");
+        }
+    }
+
+    /**
+     * Returns true if the array is read-only. Setters with array bounds
+     * checking throw an IllegalAccessError for read-only arrays.
+     *
+     * @return true if the array is read-only, false otherwise
+     */
+    public boolean isReadOnly()
+    {
+        return readOnly;
+    }
+
+    /**
+     * Returns true if the array is backed by a memory-mapped file.
+     *
+     * @return true if the array is backed by a memory-mapped file, false
+     *         otherwise
+     */
+    public boolean isMemoryMapped()
+    {
+        return parent instanceof MemoryMapper.Mapping || (parent instanceof LargeArray && ((LargeArray) parent).isMemoryMapped());
+    }
+
+    /**
+     * Forces any changes made to this array to be written to the file, if the
+     * array was created by map() in READ_WRITE mode. Otherwise, this method has
+     * no effect.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void force() throws IOException
+    {
+        if (parent instanceof MemoryMapper.Mapping) {
+            ((MemoryMapper.Mapping) parent).force();
+        }
+        else if (parent instanceof LargeArray) {
+            ((LargeArray) parent).force();
+        }
+    }
+
+    /**
+     * Returns a view of length consecutive elements of this array, starting
+     * at offset. See view(long, long, long).
+     *
+     * @param offset index of the first element of the view
+     * @param length number of elements of the view
+     *
+     * @return the view
+     */
+    public LargeArray view(final long offset, final long length)
+    {
+        return view(offset, length, 1);
+    }
+
+    /**
+     * Returns a view of length elements of this array, starting at offset and
+     * separated by stride elements. A negative stride selects the elements in
+     * reverse order. No data is copied: the view shares the storage of this
+     * array, so changes made through one of them are visible in the other,
+     * and the view keeps this array reachable. A view of consecutive elements
+     * of an array stored in the native memory is an ordinary array of the
+     * same class, pointing into the memory of this array. All other views are
+     * instances of LargeArrayView. Once this array is closed, the methods
+     * of the view that check the array bounds throw an IllegalStateException,
+     * and the unchecked ones must not be used.
+     *
+     * @param offset index of the first element of the view
+     * @param length number of elements of the view
+     * @param stride distance between consecutive elements of the view
+     *
+     * @return the view
+     */
+    public LargeArray view(final long offset, final long length, final long stride)
+    {
+        ensureOpen();
+        checkView(offset, length, stride);
+        if (stride == 1 && ptr != 0 && type != LargeArrayType.BIT && type != LargeArrayType.STRING) {
+            LargeArray v = wrapPointer(this, ptr + offset * sizeof, type, length);
+            v.readOnly = readOnly;
+            return v;
+        }
+        return new LargeArrayView(this, offset, length, stride);
+    }
+
+    /**
+     * Returns a ByteBuffer of native byte order that shares length elements of
+     * this array, starting at offset. No data is copied: for arrays stored in
+     * the native memory the returned buffer is a direct buffer aliasing that
+     * memory, and it keeps this array reachable. Arrays of bytes stored on the
+     * heap are wrapped. The buffer is read-only if this array is, and must not
+     * be used after this array is closed.
+     *
+     * @param offset index of the first element
+     * @param length number of elements, length * sizeOf() cannot exceed
+     *               Integer.MAX_VALUE
+     *
+     * @return the buffer
+     *
+     * @throws UnsupportedOperationException if this array is constant, an
+     *                                       array of bits or strings, or its
+     *                                       elements are not stored in a
+     *                                       single region of memory
+     */
+    public ByteBuffer asByteBuffer(final long offset, final int length)
+    {
+        checkBuffer(offset, length);
+        ByteBuffer buffer;
+        if (ptr != 0) {
+            buffer = Utilities.newDirectByteBuffer(ptr + offset * sizeof, (int) (length * sizeof), this);
+        }
+        else if (type == LargeArrayType.BYTE && getData() != null) {
+            buffer = ByteBuffer.wrap((byte[]) getData(), (int) offset, length).slice();
+        }
+        else {
+            throw new UnsupportedOperationException("The array is not stored in the native memory.");
+        }
+        return readOnly ? buffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder()) : buffer.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Checks the arguments of asByteBuffer() and the methods returning typed
+     * buffers.
+     */
+    void checkBuffer(final long offset, final int length)
+    {
+        ensureOpen();
+        if (isConstant) {
+            throw new UnsupportedOperationException("Constant arrays cannot be wrapped in a buffer.");
+        }
+        if (type == LargeArrayType.BIT || type == LargeArrayType.STRING) {
+            throw new UnsupportedOperationException("Arrays of type " + type + " cannot be wrapped in a buffer.");
+        }
+        if (length < 0) {
+            throw new IllegalArgumentException("length < 0");
+        }
+        if (length * sizeof > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("length * sizeOf() > Integer.MAX_VALUE");
+        }
+        if (offset < 0 || offset + length > this.length) {
+            throw new ArrayIndexOutOfBoundsException("offset < 0 || offset + length > length");
+        }
+    }
+
+    /**
+     * Checks the arguments of view().
+     */
+    void checkView(final long offset, final long length, final long stride)
+    {
+        if (length <= 0) {
+            throw new IllegalArgumentException(length + " is not a positive long value");
+        }
+        if (stride == 0) {
+            throw new IllegalArgumentException("stride cannot be zero");
+        }
+        if (offset < 0 || offset >= this.length) {
+            throw new ArrayIndexOutOfBoundsException("offset < 0 || offset >= length");
+        }
+        long span = Math.abs(stride);
+        if (length - 1 > (stride > 0 ? this.length - 1 - offset : offset) / span) {
+            throw new ArrayIndexOutOfBoundsException("offset + (length - 1) * stride < 0 || offset + (length - 1) * stride >= length");
+        }
+    }
+
+    /**
+     * Creates a new array backed by a region of a memory-mapped file. The
+     * elements are stored in the native byte order. Supported modes are:
+     * <ul>
+     * <li>READ_ONLY - the array is read-only. Setters with array bounds
+     * checking throw an IllegalAccessError, and changes made by other setters
+     * are not written to the file.</li>
+     * <li>READ_WRITE - changes are written to the file, which is extended if
+     * needed. Use force() to flush them.</li>
+     * <li>PRIVATE - changes are not written to the file (copy-on-write).</li>
+     * </ul>
+     * The file is unmapped when the array is closed or garbage collected. The
+     * mapped memory is not counted by MemoryCounter and MemoryBudget.
+     * Arrays of type BIT and STRING are not supported.
+     *
+     * @param path   file
+     * @param type   array type
+     * @param offset position of the first element in the file (in bytes)
+     * @param length number of elements
+     * @param mode   mapping mode
+     *
+     * @return new array
+     *
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    public static LargeArray map(final Path path, final LargeArrayType type, final long offset, final long length, final FileChannel.MapMode mode) throws IOException
+    {
+        if (type == LargeArrayType.BIT || type == LargeArrayType.STRING) {
+            throw new IllegalArgumentException("Memory mapping of " + type + " arrays is not supported.");
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException(length + " is not a positive long value");
+        }
+        int m;
+        if (mode == FileChannel.MapMode.READ_WRITE) {
+            m = MemoryMapper.MAP_RW;
+        }
+        else if (mode == FileChannel.MapMode.READ_ONLY || mode == FileChannel.MapMode.PRIVATE) {
+            // read-only arrays are mapped privately, so that the unchecked setters cannot crash the JVM
+            m = MemoryMapper.MAP_PV;
+        }
+        else {
+            throw new IllegalArgumentException("Unsupported mode: " + mode);
+        }
+        MemoryMapper.Mapping mapping = MemoryMapper.map(path.toFile(), m, offset, length * type.sizeOf());
+        return wrapMapping(mapping, mapping.getAddress(), type, length, mode == FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * Creates an array of bytes sharing the remaining elements of a direct
+     * ByteBuffer. See wrap(ByteBuffer, LargeArrayType).
+     *
+     * @param buffer direct buffer
+     *
+     * @return the array
+     */
+    public static LargeArray wrap(final ByteBuffer buffer)
+    {
+        return wrap(buffer, LargeArrayType.BYTE);
+    }
+
+    /**
+     * Creates an array of a given type sharing the remaining elements of a
+     * direct ByteBuffer, i.e. the bytes between its position and its limit.
+     * No data is copied, the array keeps the buffer reachable and is
+     * read-only if the buffer is. Arrays of types other than BYTE require the
+     * native byte order, a position aligned to the size of the element and a
+     * number of remaining bytes divisible by it.
+     *
+     * @param buffer direct buffer
+     * @param type   type of the array
+     *
+     * @return the array
+     */
+    public static LargeArray wrap(final ByteBuffer buffer, final LargeArrayType type)
+    {
+        if (buffer == null) {
+            throw new IllegalArgumentException("buffer cannot be null");
+        }
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("The buffer is not direct.");
+        }
+        long sizeof = type.sizeOf();
+        if (sizeof > 1 && buffer.order() != ByteOrder.nativeOrder()) {
+            throw new IllegalArgumentException("The byte order of the buffer is not the native byte order.");
+        }
+        if (buffer.remaining() % sizeof != 0) {
+            throw new IllegalArgumentException("The number of remaining bytes is not a multiple of " + sizeof + ".");
+        }
+        LargeArray a = wrap(Utilities.getDirectBufferAddress(buffer) + buffer.position(), type, buffer.remaining() / sizeof, buffer, null);
+        a.readOnly = buffer.isReadOnly();
+        return a;
+    }
+
+    /**
+     * Creates an array of a given type over native memory owned by another
+     * object, e.g. a buffer of a native library. No data is copied. The array
+     * keeps the owner reachable, and when the array is closed or garbage
+     * collected, the release hook, if any, is called exactly once. Exceptions
+     * thrown by the hook are ignored. Arrays of type BIT and STRING are not
+     * supported.
+     *
+     * @param address address of the first element, aligned to the size of
+     *                the element
+     * @param type    type of the array
+     * @param length  number of elements
+     * @param owner   owner of the memory, can be null
+     * @param release hook releasing the memory, can be null
+     *
+     * @return the array
+     */
+    public static LargeArray wrap(final long address, final LargeArrayType type, final long length, final Object owner, final Runnable release)
+    {
+        if (type == null || type == LargeArrayType.BIT || type == LargeArrayType.STRING) {
+            throw new IllegalArgumentException("Arrays of type " + type + " cannot wrap a native pointer.");
+        }
+        long sizeof = type.sizeOf();
+        if (address == 0) {
+            throw new IllegalArgumentException("address cannot be zero");
+        }
+        if (address % sizeof != 0) {
+            throw new IllegalArgumentException("The address is not aligned to " + sizeof + " bytes.");
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException(length + " is not a positive long value");
+        }
+        if (length > Long.MAX_VALUE / sizeof) {
+            throw new IllegalArgumentException("length * sizeof > Long.MAX_VALUE");
+        }
+        LargeArray a = wrapPointer(owner, address, type, length);
+        if (release != null) {
+            a.cleaner = Cleaner.create(a, new Releaser(owner, release));
+        }
+        return a;
+    }
+
+    /**
+     * Calls the release hook of an array created by wrap(), keeping the owner
+     * of the memory reachable until then.
+     */
+    private static class Releaser implements Runnable
+    {
+
+        private Object owner;
+        private Runnable release;
+
+        Releaser(final Object owner, final Runnable release)
+        {
+            this.owner = owner;
+            this.release = release;
+        }
+
+        @Override
+        public void run()
+        {
+            Runnable r = release;
+            release = null;
+            owner = null;
+            if (r != null) {
+                try {
+                    r.run();
+                } catch (RuntimeException ex) {
+                    // the hook must not terminate the cleaner
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates an array of a given type over a memory-mapped region. The array
+     * becomes responsible for unmapping the region.
+     *
+     * @param mapping  the mapping
+     * @param address  address of the first element
+     * @param type     type of the array
+     * @param length   number of elements
+     * @param readOnly if true, then the array is read-only
+     *
+     * @return the array
+     */
+    static LargeArray wrapMapping(final MemoryMapper.Mapping mapping, final long address, final LargeArrayType type, final long length, final boolean readOnly)
+    {
+        LargeArray a = wrapPointer(mapping, address, type, length);
+        a.readOnly = readOnly;
+        a.cleaner = Cleaner.create(a, mapping);
+        return a;
+    }
+
+    /**
+     * Creates an array of a given type over native memory owned by parent.
+     * Arrays of type BIT and STRING are not supported.
+     *
+     * @param parent  owner of the memory
+     * @param address address of the first element
+     * @param type    type of the array
+     * @param length  number of elements
+     *
+     * @return the array
+     */
+    static LargeArray wrapPointer(final Object parent, final long address, final LargeArrayType type, final long length)
+    {
+        switch (type) {
+            case BYTE:
+                return new ByteLargeArray(parent, address, length);
+            case SHORT:
+                return new ShortLargeArray(parent, address, length);
+            case INT:
+                return new IntLargeArray(parent, address, length);
+            case LONG:
+                return new LongLargeArray(parent, address, length);
+            case FLOAT:
+                return new FloatLargeArray(parent, address, length);
+            case DOUBLE:
+                return new DoubleLargeArray(parent, address, length);
+            default:
+                throw new IllegalArgumentException("Arrays of type " + type + " cannot wrap a native pointer.");
+        }
+    }
+
+    /**
+     * Writes len elements starting at srcPos to a channel at its current
+     * position, and advances the position of the channel. The elements are
+     * written in the native byte order. For arrays stored in the native memory,
+     * data is transferred directly from the memory of this array, without
+     * intermediate copies. Arrays of type BIT and STRING are not supported.
+     *
+     * @param channel the channel
+     * @param srcPos  index of the first element
+     * @param len     number of elements
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public long writeTo(final FileChannel channel, final long srcPos, final long len) throws IOException
+    {
+        long position = channel.position();
+        long bytes = writeTo(channel, position, srcPos, len);
+        channel.position(position + bytes);
+        return bytes;
+    }
+
+    /**
+     * Writes len elements starting at srcPos to a channel at a given position.
+     * The position of the channel is not changed, so this method can be called
+     * concurrently for different regions. See writeTo(FileChannel, long,
+     * long).
+     *
+     * @param channel  the channel
+     * @param position file position at which the first element is written
+     * @param srcPos   index of the first element
+     * @param len      number of elements
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public long writeTo(final FileChannel channel, final long position, final long srcPos, final long len) throws IOException
+    {
+        checkTransfer(position, srcPos, len, false);
+        return transfer(channel, position, srcPos, len, true);
+    }
+
+    /**
+     * Writes len elements starting at srcPos to several channels in parallel.
+     * The region is split into channels.length contiguous stripes, and the
+     * stripe j is written to channels[j] at the position it would have if the
+     * whole region was written at the given position. The channels are
+     * typically opened on the same file. See writeTo(FileChannel, long, long).
+     *
+     * @param channels the channels
+     * @param position file position at which the first element is written
+     * @param srcPos   index of the first element
+     * @param len      number of elements
+     *
+     * @return the number of bytes written
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public long writeTo(final FileChannel[] channels, final long position, final long srcPos, final long len) throws IOException
+    {
+        checkTransfer(position, srcPos, len, false);
+        return transferStriped(channels, position, srcPos, len, true);
+    }
+
+    /**
+     * Reads len elements starting at dstPos from a channel at its current
+     * position, and advances the position of the channel. The elements are
+     * read in the native byte order. For arrays stored in the native memory,
+     * data is transferred directly to the memory of this array, without
+     * intermediate copies. Arrays of type BIT and STRING are not supported.
+     *
+     * @param channel the channel
+     * @param dstPos  index of the first element
+     * @param len     number of elements
+     *
+     * @return the number of bytes read
+     *
+     * @throws IOException  if an I/O error occurs
+     * @throws EOFException if the end of the channel is reached before len
+     *                      elements are read
+     */
+    public long readFrom(final FileChannel channel, final long dstPos, final long len) throws IOException
+    {
+        long position = channel.position();
+        long bytes = readFrom(channel, position, dstPos, len);
+        channel.position(position + bytes);
+        return bytes;
+    }
+
+    /**
+     * Reads len elements starting at dstPos from a channel at a given
+     * position. The position of the channel is not changed, so this method can
+     * be called concurrently for different regions. See readFrom(FileChannel,
+     * long, long).
+     *
+     * @param channel  the channel
+     * @param position file position of the first element
+     * @param dstPos   index of the first element
+     * @param len      number of elements
+     *
+     * @return the number of bytes read
+     *
+     * @throws IOException  if an I/O error occurs
+     * @throws EOFException if the end of the channel is reached before len
+     *                      elements are read
+     */
+    public long readFrom(final FileChannel channel, final long position, final long dstPos, final long len) throws IOException
+    {
+        checkTransfer(position, dstPos, len, true);
+        return transfer(channel, position, dstPos, len, false);
+    }
+
+    /**
+     * Reads len elements starting at dstPos from several channels in
+     * parallel. The stripes are defined as in writeTo(FileChannel[], long,
+     * long, long).
+     *
+     * @param channels the channels
+     * @param position file position of the first element
+     * @param dstPos   index of the first element
+     * @param len      number of elements
+     *
+     * @return the number of bytes read
+     *
+     * @throws IOException  if an I/O error occurs
+     * @throws EOFException if the end of a channel is reached before all
+     *                      elements are read
+     */
+    public long readFrom(final FileChannel[] channels, final long position, final long dstPos, final long len) throws IOException
+    {
+        checkTransfer(position, dstPos, len, true);
+        return transferStriped(channels, position, dstPos, len, false);
+    }
+
+    private void checkTransfer(final long position, final long pos, final long len, final boolean read)
+    {
+        if (type == LargeArrayType.BIT || type == LargeArrayType.STRING) {
+            throw new UnsupportedOperationException("I/O of " + type + " arrays is not supported.");
+        }
+        if (read) {
+            ensureWritable();
+            if (isConstant()) {
+                throw new IllegalAccessError("Constant arrays cannot be modified.");
+            }
+        }
+        else {
+            ensureOpen();
+        }
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (position < 0) {
+            throw new IllegalArgumentException("position < 0");
+        }
+        if (pos < 0 || pos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("pos < 0 || pos + len > length");
+        }
+    }
+
+    private long transferStriped(final FileChannel[] channels, final long position, final long pos, final long len, final boolean write) throws IOException
+    {
+        int nstripes = (int) Math.min(len, channels.length);
+        if (nstripes < 2) {
+            return transfer(channels[0], position, pos, len, write);
+        }
+        long k = len / nstripes;
+        Future<?>[] futures = new Future<?>[nstripes];
+        for (int j = 0; j < nstripes; j++) {
+            final FileChannel channel = channels[j];
+            final long firstIdx = j * k;
+            final long lastIdx = (j == nstripes - 1) ? len : firstIdx + k;
+            futures[j] = ConcurrencyUtils.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    transfer(channel, position + firstIdx * sizeof, pos + firstIdx, lastIdx - firstIdx, write);
+                    return null;
+                }
+            });
+        }
+        ConcurrencyUtils.waitForIOCompletion(futures);
+        return len * sizeof;
+    }
+
+    /**
+     * Transfers len elements starting at pos between this array and a channel
+     * at a given position. Subclasses that do not keep their elements in Java
+     * arrays or in the native memory override this method.
+     */
+    long transfer(final FileChannel channel, final long position, final long pos, final long len, final boolean write) throws IOException
+    {
+        final long bytes = len * sizeof;
+        if (ptr != 0) {
+            long address = ptr + pos * sizeof;
+            for (long done = 0; done < bytes;) {
+                int n = (int) Math.min(IO_WINDOW_SIZE, bytes - done);
+                transferFully(channel, position + done, Utilities.newDirectByteBuffer(address + done, n), write);
+                done += n;
+            }
+        }
+        else {
+            int capacity = (int) Math.min(IO_BUFFER_SIZE, Math.max(bytes, sizeof));
+            long bufferAddress = Utilities.UNSAFE.allocateMemory(capacity);
+            try {
+                ByteBuffer buffer = Utilities.newDirectByteBuffer(bufferAddress, capacity);
+                int bufferSize = (int) (capacity / sizeof * sizeof);
+                if (write && isConstant()) {
+                    fillWithConstant(bufferAddress, bufferSize);
+                }
+                for (long done = 0; done < bytes;) {
+                    long i = pos + done / sizeof;
+                    int n = (int) Math.min(bufferSize, bytes - done);
+                    if (!isConstant()) {
+                        n = (int) Math.min(n, Utilities.getContiguousLength(this, i) * sizeof);
+                    }
+                    buffer.clear().limit(n);
+                    if (write) {
+                        if (isSegmented()) {
+                            Utilities.copySegments(this, i * sizeof, buffer, true);
+                        }
+                        else if (!isConstant()) {
+                            Utilities.UNSAFE.copyMemory(Utilities.getMemoryBase(this, i), Utilities.getMemoryOffset(this, i), null, bufferAddress, n);
+                        }
+                        transferFully(channel, position + done, buffer, true);
+                    }
+                    else {
+                        transferFully(channel, position + done, buffer, false);
+                        if (isSegmented()) {
+                            buffer.flip();
+                            Utilities.copySegments(this, i * sizeof, buffer, false);
+                        }
+                        else {
+                            Utilities.UNSAFE.copyMemory(null, bufferAddress, Utilities.getMemoryBase(this, i), Utilities.getMemoryOffset(this, i), n);
+                        }
+                    }
+                    done += n;
+                }
+            }
+            finally {
+                Utilities.UNSAFE.freeMemory(bufferAddress);
+            }
+        }
+        // the memory of this array must not be released during the transfer
+        ensureOpen();
+        return bytes;
+    }
+
+    private static void transferFully(final FileChannel channel, final long position, final ByteBuffer buffer, final boolean write) throws IOException
+    {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            long p = position + buffer.position() - start;
+            if (write) {
+                channel.write(buffer, p);
+            }
+            else if (channel.read(buffer, p) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+
+    /**
+     * Fills a region of native memory with copies of the value of this
+     * constant array.
+     */
+    private void fillWithConstant(final long address, final int bytes)
+    {
+        switch (type) {
+            case BYTE:
+                Utilities.UNSAFE.setMemory(address, bytes, getByte(0));
+                return;
+            case SHORT:
+                Utilities.UNSAFE.putShort(address, getShort(0));
+                break;
+            case INT:
+                Utilities.UNSAFE.putInt(address, getInt(0));
+                break;
+            case LONG:
+                Utilities.UNSAFE.putLong(address, getLong(0));
+                break;
+            case FLOAT:
+                Utilities.UNSAFE.putFloat(address, getFloat(0));
+                break;
+            default:
+                Utilities.UNSAFE.putDouble(address, getDouble(0));
+                break;
+        }
+        for (long filled = sizeof; filled < bytes; filled *= 2) {
+            Utilities.UNSAFE.copyMemory(address, address + filled, Math.min(filled, bytes - filled));
+        }
+    }
+
+    /**
+     * Returns the number of bytes of native memory used by this array.
+     *
+     * @return the number of bytes of native memory used by this array
+     */
+    protected long getNativeMemorySize()
+    {
+        return length * sizeof;
+    }
+
+    /**
+     * Writes the fields of this class. The content of arrays stored in the
+     * native memory is streamed in blocks of IO_BUFFER_SIZE bytes. Arrays
+     * stored on the heap (including constant arrays, which keep a single
+     * element) are written by the default serialization of subclasses.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        ensureOpen();
+        out.defaultWriteObject();
+        out.writeBoolean(ptr != 0);
+        if (ptr != 0) {
+            long bytes = getNativeMemorySize();
+            out.writeLong(bytes);
+            byte[] buffer = new byte[(int) Math.min(IO_BUFFER_SIZE, bytes)];
+            for (long done = 0; done < bytes;) {
+                int n = (int) Math.min(buffer.length, bytes - done);
+                Utilities.UNSAFE.copyMemory(null, ptr + done, buffer, BYTE_ARRAY_BASE_OFFSET, n);
+                out.write(buffer, 0, n);
+                done += n;
+            }
+        }
+    }
+
+    /**
+     * Reads the fields of this class. The content of arrays that were stored
+     * in the native memory is read into newly allocated native memory, whose
+     * size has to match the length of the array.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        if (in.readBoolean()) {
+            final long bytes = in.readLong();
+            if (bytes <= 0 || bytes % sizeof != 0) {
+                throw new InvalidObjectException("Invalid size of native memory: " + bytes);
+            }
+            // the fields of subclasses that define the size are not read yet
+            in.registerValidation(new ObjectInputValidation()
+            {
+                @Override
+                public void validateObject() throws InvalidObjectException
+                {
+                    if (bytes != getNativeMemorySize()) {
+                        throw new InvalidObjectException("Invalid size of native memory: " + bytes);
+                    }
+                }
+            }, 0);
+            allocateNativeMemory(bytes / sizeof, false);
+            byte[] buffer = new byte[(int) Math.min(IO_BUFFER_SIZE, bytes)];
+            for (long done = 0; done < bytes;) {
+                int n = (int) Math.min(buffer.length, bytes - done);
+                in.readFully(buffer, 0, n);
+                Utilities.UNSAFE.copyMemory(buffer, BYTE_ARRAY_BASE_OFFSET, null, ptr + done, n);
+                done += n;
+            }
+        }
+    }
+
     /**
      * Sets the maximal size of a 32-bit array. For arrays of the size larger
      * than index, the data is stored in the memory allocated by
@@ -825,6 +1698,129 @@ public abstract class LargeArray implements
         LARGEST_32BIT_INDEX = index;
     }
 
+    /**
+     * Enables or disables the lazy zeroing of native memory. When enabled,
+     * the native memory of new arrays that need to be zeroed is mapped from the
+     * operating system, which supplies zeroed pages on first access. Then the
+     * cost of zeroing is spread over the first pass through the array instead
+     * of being paid in the constructor. If anonymous memory mapping is not
+     * supported on this platform, the memory is zeroed explicitly.
+     *
+     * @param zeroOnFirstTouch if true, then the lazy zeroing is enabled
+     */
+    public static void setZeroOnFirstTouch(final boolean zeroOnFirstTouch)
+    {
+        ZERO_ON_FIRST_TOUCH = zeroOnFirstTouch;
+    }
+
+    /**
+     * Returns true if the lazy zeroing of native memory is enabled.
+     *
+     * @return true if the lazy zeroing of native memory is enabled, false
+     *         otherwise
+     */
+    public static boolean isZeroOnFirstTouch()
+    {
+        return ZERO_ON_FIRST_TOUCH;
+    }
+
+    /**
+     * Enables or disables the segmented heap storage. When enabled, numeric
+     * arrays larger than getMaxSizeOf32bitArray() are created as arrays of
+     * Java arrays (segments) of getSegmentLength() elements each, instead of
+     * being stored in the native memory. Such arrays are managed by the garbage
+     * collector and are not accounted in MemoryCounter. The storage of a single
+     * array can be chosen by its constructor.
+     *
+     * @param segmentedHeap if true, then the segmented heap storage is enabled
+     */
+    public static void setSegmentedHeap(final boolean segmentedHeap)
+    {
+        SEGMENTED_HEAP = segmentedHeap;
+    }
+
+    /**
+     * Returns true if the segmented heap storage is enabled.
+     *
+     * @return true if the segmented heap storage is enabled, false otherwise
+     */
+    public static boolean isSegmentedHeap()
+    {
+        return SEGMENTED_HEAP;
+    }
+
+    /**
+     * Sets the number of elements of a segment of new arrays stored on the
+     * heap in segments.
+     *
+     * @param segmentLength the number of elements of a segment, a power of two
+     */
+    public static void setSegmentLength(final int segmentLength)
+    {
+        if (segmentLength <= 0 || (segmentLength & (segmentLength - 1)) != 0) {
+            throw new IllegalArgumentException("segmentLength has to be a positive power of two");
+        }
+        SEGMENT_SHIFT = Integer.numberOfTrailingZeros(segmentLength);
+    }
+
+    /**
+     * Returns the number of elements of a segment of new arrays stored on the
+     * heap in segments.
+     *
+     * @return the number of elements of a segment
+     */
+    public static int getSegmentLength()
+    {
+        return 1 << SEGMENT_SHIFT;
+    }
+
+    /**
+     * Returns true if this array is stored on the heap in segments.
+     *
+     * @return true if this array is stored in segments, false otherwise
+     */
+    public boolean isSegmented()
+    {
+        return getSegments() != null;
+    }
+
+    /**
+     * Returns the segments of an array stored on the heap in segments, or null.
+     */
+    Object[] getSegments()
+    {
+        return null;
+    }
+
+    /**
+     * Initializes the segment shift and mask of this array and returns the
+     * number of its segments.
+     *
+     * @return the number of segments
+     */
+    protected int initSegments()
+    {
+        segmentShift = SEGMENT_SHIFT;
+        segmentMask = (1L << segmentShift) - 1;
+        long count = ((length - 1) >>> segmentShift) + 1;
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The number of segments exceeds Integer.MAX_VALUE.");
+        }
+        return (int) count;
+    }
+
+    /**
+     * Returns the number of elements of the segment j of this array.
+     *
+     * @param j index of the segment
+     *
+     * @return the number of elements of the segment
+     */
+    protected int segmentLength(final int j)
+    {
+        return (int) Math.min(segmentMask + 1, length - ((long) j << segmentShift));
+    }
+
     /**
      * Returns the maximal size of a 32-bit array.
      *
@@ -855,27 +1851,95 @@ public abstract class LargeArray implements
         private long ptr;
         private final long length;
         private final long sizeof;
+        private final LargeArrayType type;
+        private final boolean mapped;
 
         public Deallocator(final long ptr,
                            final long length,
                            final long sizeof)
+        {
+            this(ptr, length, sizeof, null, false);
+        }
+
+        public Deallocator(final long ptr,
+                           final long length,
+                           final long sizeof,
+                           final LargeArrayType type)
+        {
+            this(ptr, length, sizeof, type, false);
+        }
+
+        public Deallocator(final long ptr,
+                           final long length,
+                           final long sizeof,
+                           final LargeArrayType type,
+                           final boolean mapped)
         {
             this.ptr = ptr;
             this.length = length;
             this.sizeof = sizeof;
+            this.type = type;
+            this.mapped = mapped;
         }
 
         @Override
         public void run()
         {
             if (ptr != 0) {
-                Utilities.UNSAFE.freeMemory(ptr);
+                if (mapped) {
+                    MemoryMapper.unmap(ptr, length * sizeof);
+                    MemoryBudget.release(length * sizeof);
+                }
+                else {
+                    MemoryBudget.freeMemory(ptr, length * sizeof);
+                }
                 ptr = 0;
-                MemoryCounter.decreaseCounter(length * sizeof);
+                if (type != null) {
+                    MemoryCounter.decreaseCounter(type, length * sizeof);
+                }
+                else {
+                    MemoryCounter.decreaseCounter(length * sizeof);
+                }
             }
         }
     }
 
+    /**
+     * Allocates native memory for size elements, registers its deallocator and
+     * updates MemoryCounter. If zeroNativeMemory and isZeroOnFirstTouch() are
+     * true, then the memory is mapped from the operating system and is not
+     * zeroed explicitly.
+     *
+     * @param size             number of elements
+     * @param zeroNativeMemory if true, then the native memory is zeroed
+     */
+    protected void allocateNativeMemory(final long size, final boolean zeroNativeMemory)
+    {
+        final long bytes = size * sizeof;
+        boolean mapped = false;
+        if (zeroNativeMemory && ZERO_ON_FIRST_TOUCH && MemoryMapper.isAnonymousMappingAvailable()) {
+            MemoryBudget.reserve(bytes);
+            try {
+                ptr = MemoryMapper.mapAnonymous(bytes);
+                mapped = true;
+            }
+            catch (IOException ex) {
+                MemoryBudget.release(bytes);
+            }
+            catch (OutOfMemoryError ex) {
+                MemoryBudget.release(bytes);
+            }
+        }
+        if (!mapped) {
+            ptr = MemoryBudget.allocateMemory(bytes);
+            if (zeroNativeMemory) {
+                zeroNativeMemory(size);
+            }
+        }
+        cleaner = Cleaner.create(this, new Deallocator(ptr, size, sizeof, type, mapped));
+        MemoryCounter.increaseCounter(type, bytes);
+    }
+
     /**
      * Initializes allocated native memory to zero.
      *
@@ -884,47 +1948,7 @@ public abstract class LargeArray implements
     protected void zeroNativeMemory(final long size)
     {
         if (ptr != 0) {
-            final int nthreads = Runtime.getRuntime()
-                                        .availableProcessors();
-            if (nthreads <= 2 || size < 100000) {
-                Utilities.UNSAFE.setMemory(ptr,
-                                           size * sizeof,
-                                           (byte) 0);
-            }
-            else {
-                final long k = size / nthreads;
-                final Thread[] threads = new Thread[nthreads];
-                final long ptrf = ptr;
-                for (int j = 0; j < nthreads; j++) {
-                    final long firstIdx = j * k;
-                    final long lastIdx = (j == nthreads - 1) ? size
-                                                            : firstIdx + k;
-                    threads[j] = new Thread(new Runnable()
-                    {
-                        @Override
-                        public void run()
-                        {
-                            for (long k = firstIdx; k < lastIdx; k++) {
-                                Utilities.UNSAFE.putByte(ptrf    + sizeof
-                                                                 * k,
-                                                         (byte) 0);
-                            }
-                        }
-                    });
-                    threads[j].start();
-                }
-                try {
-                    for (int j = 0; j < nthreads; j++) {
-                        threads[j].join();
-                        threads[j] = null;
-                    }
-                }
-                catch (final InterruptedException ex) {
-                    Utilities.UNSAFE.setMemory(ptr,
-                                               size * sizeof,
-                                               (byte) 0);
-                }
-            }
+            Utilities.setMemory(ptr, size * sizeof, (byte) 0);
         }
     }
 }
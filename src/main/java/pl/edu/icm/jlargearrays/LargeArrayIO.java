@@ -0,0 +1,1028 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Reading and writing of large arrays in a self-describing binary format.
+ *
+ * A file consists of a 64-byte header, an optional chunk index and the
+ * payload. All header and index fields are big-endian:
+ * <pre>
+ *  0  int   magic number 0x4A4C4152 ("JLAR")
+ *  4  short format version (1)
+ *  6  byte  array type (LargeArrayType ordinal)
+ *  7  byte  byte order of the payload (0 - big-endian, 1 - little-endian)
+ *  8  byte  flags (1 - constant array, 2 - chunk index present)
+ *  9  byte  codec (Codec ordinal)
+ * 10  short reserved
+ * 12  int   reserved
+ * 16  long  array length
+ * 24  long  payload offset
+ * 32  long  payload size in bytes
+ * 40  long  chunk size in bytes (0 if there is no chunk index)
+ * 48  long  number of chunks
+ * 56  int   CRC32 of the index (if present) or of the payload
+ * 60  int   CRC32 of bytes 0-59 of the header
+ * </pre>
+ * Each entry of the chunk index takes 24 bytes: file offset (long), stored
+ * size in bytes (long), CRC32 of the stored bytes of the chunk (int) and a
+ * reserved int. The payload starts at a page-aligned offset and contains the
+ * elements in the byte order stored in the header. Constant arrays store a
+ * single element. Compressed payloads (see Codec) always have a chunk index,
+ * and their chunks are stored one after another.
+ *
+ * Arrays of type BIT and STRING are not supported.
+ *
+ * @author agent (agent@local)
+ */
+public class LargeArrayIO
+{
+
+    /**
+     * Default chunk size (64 MB).
+     */
+    public static final long DEFAULT_CHUNK_SIZE = 1L << 26;
+
+    static final int MAGIC = 0x4A4C4152;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int INDEX_ENTRY_SIZE = 24;
+    static final int FLAG_CONSTANT = 1;
+    static final int FLAG_INDEX = 2;
+    private static final long PAYLOAD_ALIGNMENT = 4096;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long MAX_COMPRESSED_CHUNK_SIZE = 1L << 30;
+
+    private LargeArrayIO()
+    {
+    }
+
+    /**
+     * Header of a file.
+     */
+    public static class Header
+    {
+
+        private final LargeArrayType type;
+        private final ByteOrder byteOrder;
+        private final int flags;
+        private final Codec codec;
+        private final long length;
+        private final long payloadOffset;
+        private final long payloadSize;
+        private final long chunkSize;
+        private final long chunkCount;
+        private final int checksum;
+
+        Header(LargeArrayType type, ByteOrder byteOrder, int flags, Codec codec, long length, long payloadOffset, long payloadSize, long chunkSize, long chunkCount, int checksum)
+        {
+            this.type = type;
+            this.byteOrder = byteOrder;
+            this.flags = flags;
+            this.codec = codec;
+            this.length = length;
+            this.payloadOffset = payloadOffset;
+            this.payloadSize = payloadSize;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.checksum = checksum;
+        }
+
+        /**
+         * Returns the type of the array.
+         *
+         * @return the type of the array
+         */
+        public LargeArrayType getType()
+        {
+            return type;
+        }
+
+        /**
+         * Returns the byte order of the payload.
+         *
+         * @return the byte order of the payload
+         */
+        public ByteOrder getByteOrder()
+        {
+            return byteOrder;
+        }
+
+        /**
+         * Returns true if the array is constant.
+         *
+         * @return true if the array is constant, false otherwise
+         */
+        public boolean isConstant()
+        {
+            return (flags & FLAG_CONSTANT) != 0;
+        }
+
+        /**
+         * Returns true if the file contains a chunk index.
+         *
+         * @return true if the file contains a chunk index, false otherwise
+         */
+        public boolean hasChunkIndex()
+        {
+            return (flags & FLAG_INDEX) != 0;
+        }
+
+        /**
+         * Returns the codec of the payload.
+         *
+         * @return the codec of the payload
+         */
+        public Codec getCodec()
+        {
+            return codec;
+        }
+
+        /**
+         * Returns the length of the array.
+         *
+         * @return the length of the array
+         */
+        public long getLength()
+        {
+            return length;
+        }
+
+        /**
+         * Returns the file offset of the payload.
+         *
+         * @return the file offset of the payload
+         */
+        public long getPayloadOffset()
+        {
+            return payloadOffset;
+        }
+
+        /**
+         * Returns the size of the payload in bytes.
+         *
+         * @return the size of the payload in bytes
+         */
+        public long getPayloadSize()
+        {
+            return payloadSize;
+        }
+
+        /**
+         * Returns the chunk size in bytes, or 0 if there is no chunk index.
+         *
+         * @return the chunk size in bytes
+         */
+        public long getChunkSize()
+        {
+            return chunkSize;
+        }
+
+        /**
+         * Returns the number of chunks.
+         *
+         * @return the number of chunks
+         */
+        public long getChunkCount()
+        {
+            return chunkCount;
+        }
+
+        /**
+         * Returns the CRC32 of the chunk index (if present) or of the payload.
+         *
+         * @return the checksum
+         */
+        public int getChecksum()
+        {
+            return checksum;
+        }
+    }
+
+    /**
+     * Saves an array to a file, with a chunk index of DEFAULT_CHUNK_SIZE
+     * chunks.
+     *
+     * @param path file
+     * @param a    array
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public static void save(Path path, LargeArray a) throws IOException
+    {
+        save(path, a, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Saves an array to a file. The payload is written in the native byte
+     * order. With a chunk index, chunks are written and checksummed in
+     * parallel.
+     *
+     * @param path      file
+     * @param a         array
+     * @param chunkSize chunk size in bytes, 0 means no chunk index
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public static void save(Path path, LargeArray a, long chunkSize) throws IOException
+    {
+        save(path, a, chunkSize, Codec.RAW);
+    }
+
+    /**
+     * Saves an array to a file. The payload is written in the native byte
+     * order. With a chunk index, chunks are written and checksummed in
+     * parallel. Compressed chunks are compressed in parallel, in batches of
+     * ConcurrencyUtils.getNumberOfThreads() chunks, so the compression needs
+     * about twice that many chunks of temporary memory. Constant arrays are
+     * never compressed. Arrays stored in segments on the heap are saved
+     * segment by segment and can be loaded into either storage. Strided
+     * views, views of arrays stored in segments and paged arrays have to be
+     * copied first.
+     *
+     * @param path      file
+     * @param a         array
+     * @param chunkSize chunk size in bytes, 0 means no chunk index
+     * @param codec     codec of the payload, compressed payloads require a
+     *                  chunk index of at most 2<SUP>30</SUP> bytes per chunk
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public static void save(Path path, final LargeArray a, long chunkSize, Codec codec) throws IOException
+    {
+        checkType(a.getType());
+        if (chunkSize < 0) {
+            throw new IllegalArgumentException("chunkSize < 0");
+        }
+        if (codec != Codec.RAW && (chunkSize == 0 || chunkSize > MAX_COMPRESSED_CHUNK_SIZE)) {
+            throw new IllegalArgumentException("Compressed payloads require 0 < chunkSize <= " + MAX_COMPRESSED_CHUNK_SIZE);
+        }
+        if (codec == Codec.DELTA_DEFLATE && !isIntegral(a.getType())) {
+            throw new IllegalArgumentException("Codec " + codec + " does not support arrays of type " + a.getType());
+        }
+        if (!a.isConstant() && !Utilities.isAddressable(a)) {
+            throw new IllegalArgumentException("The elements of the array are not stored in memory, copy the array first.");
+        }
+        if (a.isConstant()) {
+            codec = Codec.RAW;
+        }
+        final long sizeof = a.getType().sizeOf();
+        final long length = a.length();
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            file.setLength(0);
+            final FileChannel channel = file.getChannel();
+            int flags = 0;
+            long payloadSize;
+            long chunkCount = 0;
+            int checksum;
+            ByteBuffer index = null;
+            long payloadOffset;
+            if (a.isConstant()) {
+                flags |= FLAG_CONSTANT;
+                chunkSize = 0;
+                payloadSize = sizeof;
+                payloadOffset = HEADER_SIZE;
+                ByteBuffer value = constantValue(a);
+                CRC32 crc = new CRC32();
+                crc.update(value.array());
+                checksum = (int) crc.getValue();
+                writeFully(channel, value, payloadOffset);
+            }
+            else {
+                payloadSize = length * sizeof;
+                if (chunkSize > 0) {
+                    flags |= FLAG_INDEX;
+                    final long chunkLength = Math.max(1, chunkSize / sizeof);
+                    chunkSize = chunkLength * sizeof;
+                    chunkCount = (length + chunkLength - 1) / chunkLength;
+                    if (chunkCount > (Integer.MAX_VALUE - HEADER_SIZE) / INDEX_ENTRY_SIZE) {
+                        throw new IllegalArgumentException("chunkSize is too small");
+                    }
+                    payloadOffset = align(HEADER_SIZE + chunkCount * INDEX_ENTRY_SIZE);
+                    index = ByteBuffer.allocate((int) (chunkCount * INDEX_ENTRY_SIZE));
+                    if (codec != Codec.RAW) {
+                        payloadSize = writeCompressed(channel, a, chunkLength, chunkCount, payloadOffset, codec, index);
+                    }
+                    else {
+                        final long offset = payloadOffset;
+                        final int[] crcs = new int[(int) chunkCount];
+                        forEachChunk(chunkCount, new ChunkTask()
+                        {
+                            @Override
+                            public void run(long chunk) throws IOException
+                            {
+                                long first = chunk * chunkLength;
+                                long n = Math.min(chunkLength, length - first);
+                                a.writeTo(channel, offset + first * sizeof, first, n);
+                                crcs[(int) chunk] = checksum(a, first * sizeof, n * sizeof);
+                            }
+                        });
+                        for (int j = 0; j < chunkCount; j++) {
+                            long first = j * chunkLength;
+                            index.putLong(payloadOffset + first * sizeof);
+                            index.putLong(Math.min(chunkLength, length - first) * sizeof);
+                            index.putInt(crcs[j]);
+                            index.putInt(0);
+                        }
+                    }
+                    CRC32 crc = new CRC32();
+                    crc.update(index.array());
+                    checksum = (int) crc.getValue();
+                    index.flip();
+                    writeFully(channel, index, HEADER_SIZE);
+                }
+                else {
+                    payloadOffset = align(HEADER_SIZE);
+                    a.writeTo(channel, payloadOffset, 0, length);
+                    checksum = checksum(a, 0, payloadSize);
+                }
+            }
+            Header header = new Header(a.getType(), ByteOrder.nativeOrder(), flags, codec, length, payloadOffset, payloadSize, chunkSize, chunkCount, checksum);
+            writeFully(channel, encodeHeader(header), 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads the header of a file.
+     *
+     * @param path file
+     *
+     * @return the header
+     *
+     * @throws IOException if an I/O error occurs or the file is not valid
+     */
+    public static Header readHeader(Path path) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+        try {
+            return readHeader(file.getChannel());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Opens a file in constant time: only the header is read and the payload is
+     * memory-mapped, so the data is read lazily on first access. The
+     * checksums are not verified, use verify() for that. Constant arrays are
+     * created in memory. Compressed files and files written in the byte order
+     * different than the native one cannot be mapped and are loaded with
+     * load().
+     *
+     * @param path file
+     * @param mode mapping mode, see LargeArray.map()
+     *
+     * @return the array
+     *
+     * @throws IOException if an I/O error occurs or the file is not valid
+     */
+    public static LargeArray open(Path path, FileChannel.MapMode mode) throws IOException
+    {
+        Header header = readHeader(path);
+        if (header.isConstant() || header.getCodec() != Codec.RAW || header.getByteOrder() != ByteOrder.nativeOrder()) {
+            return load(path, false);
+        }
+        return LargeArray.map(path, header.getType(), header.getPayloadOffset(), header.getLength(), mode);
+    }
+
+    /**
+     * Loads an array from a file and verifies its checksums.
+     *
+     * @param path file
+     *
+     * @return the array
+     *
+     * @throws IOException if an I/O error occurs or the file is not valid
+     */
+    public static LargeArray load(Path path) throws IOException
+    {
+        return load(path, true);
+    }
+
+    /**
+     * Loads an array from a file. The array is stored on the heap or in the
+     * native memory depending on LargeArray.getMaxSizeOf32bitArray().
+     *
+     * @param path   file
+     * @param verify if true, then the checksums are verified
+     *
+     * @return the array
+     *
+     * @throws IOException if an I/O error occurs, the file is not valid or the
+     *                     checksums do not match
+     */
+    public static LargeArray load(Path path, final boolean verify) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            final Header header = readHeader(channel);
+            final LargeArrayType type = header.getType();
+            final long sizeof = type.sizeOf();
+            if (header.isConstant()) {
+                ByteBuffer value = ByteBuffer.allocate((int) sizeof).order(header.getByteOrder());
+                readFully(channel, value, header.getPayloadOffset());
+                if (verify) {
+                    CRC32 crc = new CRC32();
+                    crc.update(value.array());
+                    checkCRC((int) crc.getValue(), header.getChecksum());
+                }
+                return newConstantArray(type, header.getLength(), value);
+            }
+            final LargeArray a = Utilities.create(type, header.getLength(), false);
+            if (header.getCodec() != Codec.RAW) {
+                readCompressed(channel, header, a, verify);
+                return a;
+            }
+            if (header.hasChunkIndex()) {
+                final ByteBuffer index = readIndex(channel, header, verify);
+                forEachChunk(header.getChunkCount(), new ChunkTask()
+                {
+                    @Override
+                    public void run(long chunk) throws IOException
+                    {
+                        int entry = (int) (chunk * INDEX_ENTRY_SIZE);
+                        long offset = index.getLong(entry);
+                        long bytes = index.getLong(entry + 8);
+                        long first = (offset - header.getPayloadOffset()) / sizeof;
+                        a.readFrom(channel, offset, first, bytes / sizeof);
+                        if (verify) {
+                            checkCRC(checksum(a, first * sizeof, bytes), index.getInt(entry + 16));
+                        }
+                    }
+                });
+            }
+            else {
+                FileChannel[] channels = new FileChannel[ConcurrencyUtils.getNumberOfThreads()];
+                for (int j = 0; j < channels.length; j++) {
+                    channels[j] = channel;
+                }
+                a.readFrom(channels, header.getPayloadOffset(), 0, header.getLength());
+                if (verify) {
+                    checkCRC(checksum(a, 0, header.getPayloadSize()), header.getChecksum());
+                }
+            }
+            if (header.getByteOrder() != ByteOrder.nativeOrder()) {
+                reverseBytes(a);
+            }
+            return a;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Verifies the checksums of a file without loading it into memory.
+     *
+     * @param path file
+     *
+     * @return true if all checksums match, false otherwise
+     *
+     * @throws IOException if an I/O error occurs or the file is not valid
+     */
+    public static boolean verify(Path path) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+        try {
+            final FileChannel channel = file.getChannel();
+            Header header = readHeader(channel);
+            if (header.hasChunkIndex()) {
+                ByteBuffer index = readIndex(channel, header, false);
+                CRC32 crc = new CRC32();
+                crc.update(index.array());
+                if ((int) crc.getValue() != header.getChecksum()) {
+                    return false;
+                }
+                for (int j = 0; j < header.getChunkCount(); j++) {
+                    int entry = j * INDEX_ENTRY_SIZE;
+                    if (checksum(channel, index.getLong(entry), index.getLong(entry + 8)) != index.getInt(entry + 16)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            return checksum(channel, header.getPayloadOffset(), header.getPayloadSize()) == header.getChecksum();
+        } finally {
+            file.close();
+        }
+    }
+
+    static boolean isIntegral(LargeArrayType type)
+    {
+        return type == LargeArrayType.BYTE || type == LargeArrayType.SHORT || type == LargeArrayType.INT || type == LargeArrayType.LONG;
+    }
+
+    /**
+     * Compresses the chunks of an array in parallel batches and writes them
+     * one after another, starting at payloadOffset. Returns the total size of
+     * the compressed chunks.
+     */
+    private static long writeCompressed(FileChannel channel, final LargeArray a, final long chunkLength, long chunkCount, long payloadOffset, final Codec codec, ByteBuffer index) throws IOException
+    {
+        final long length = a.length();
+        int nthreads = (int) Math.min(chunkCount, ConcurrencyUtils.getNumberOfThreads());
+        final byte[][] chunks = new byte[nthreads][];
+        long position = payloadOffset;
+        for (long firstChunk = 0; firstChunk < chunkCount; firstChunk += nthreads) {
+            int n = (int) Math.min(nthreads, chunkCount - firstChunk);
+            Future<?>[] futures = new Future<?>[n];
+            for (int j = 0; j < n; j++) {
+                final int idx = j;
+                final long first = (firstChunk + j) * chunkLength;
+                futures[j] = ConcurrencyUtils.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call()
+                    {
+                        chunks[idx] = compress(a, first, Math.min(chunkLength, length - first), codec);
+                        return null;
+                    }
+                });
+            }
+            ConcurrencyUtils.waitForIOCompletion(futures);
+            for (int j = 0; j < n; j++) {
+                CRC32 crc = new CRC32();
+                crc.update(chunks[j]);
+                index.putLong(position);
+                index.putLong(chunks[j].length);
+                index.putInt((int) crc.getValue());
+                index.putInt(0);
+                writeFully(channel, ByteBuffer.wrap(chunks[j]), position);
+                position += chunks[j].length;
+                chunks[j] = null;
+            }
+        }
+        return position - payloadOffset;
+    }
+
+    private static byte[] compress(LargeArray a, long first, long n, Codec codec)
+    {
+        long sizeof = a.getType().sizeOf();
+        byte[] raw = new byte[(int) (n * sizeof)];
+        Utilities.getBytes(a, first * sizeof, raw, 0, raw.length);
+        if (codec == Codec.DELTA_DEFLATE) {
+            encodeDelta(raw, a.getType());
+        }
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            byte[] out = new byte[Math.max(64, raw.length / 2)];
+            int len = 0;
+            while (!deflater.finished()) {
+                if (len == out.length) {
+                    out = Arrays.copyOf(out, out.length + Math.max(64, out.length / 2));
+                }
+                len += deflater.deflate(out, len, out.length - len);
+            }
+            return Arrays.copyOf(out, len);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Reads and decompresses the chunks of a file into an array in parallel.
+     */
+    private static void readCompressed(final FileChannel channel, final Header header, final LargeArray a, final boolean verify) throws IOException
+    {
+        final ByteBuffer index = readIndex(channel, header, verify);
+        final LargeArrayType type = header.getType();
+        final long sizeof = type.sizeOf();
+        final long chunkLength = header.getChunkSize() / sizeof;
+        final long length = header.getLength();
+        forEachChunk(header.getChunkCount(), new ChunkTask()
+        {
+            @Override
+            public void run(long chunk) throws IOException
+            {
+                int entry = (int) (chunk * INDEX_ENTRY_SIZE);
+                long offset = index.getLong(entry);
+                byte[] stored = new byte[(int) index.getLong(entry + 8)];
+                readFully(channel, ByteBuffer.wrap(stored), offset);
+                if (verify) {
+                    CRC32 crc = new CRC32();
+                    crc.update(stored);
+                    checkCRC((int) crc.getValue(), index.getInt(entry + 16));
+                }
+                long first = chunk * chunkLength;
+                byte[] raw = new byte[(int) (Math.min(chunkLength, length - first) * sizeof)];
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(stored);
+                    int len = 0;
+                    while (len < raw.length) {
+                        int n = inflater.inflate(raw, len, raw.length - len);
+                        if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                            throw new IOException("Chunk " + chunk + " is truncated.");
+                        }
+                        len += n;
+                    }
+                } catch (DataFormatException ex) {
+                    throw new IOException("Chunk " + chunk + " is corrupted.", ex);
+                } finally {
+                    inflater.end();
+                }
+                decode(raw, type, header.getByteOrder(), header.getCodec() == Codec.DELTA_DEFLATE);
+                Utilities.setBytes(a, first * sizeof, raw, 0, raw.length);
+            }
+        });
+    }
+
+    /**
+     * Replaces each element of a chunk stored in the native byte order by its
+     * difference from the previous element.
+     */
+    static void encodeDelta(byte[] chunk, LargeArrayType type)
+    {
+        ByteBuffer buffer = ByteBuffer.wrap(chunk).order(ByteOrder.nativeOrder());
+        switch (type) {
+            case BYTE:
+                for (int i = chunk.length - 1; i > 0; i--) {
+                    chunk[i] -= chunk[i - 1];
+                }
+                break;
+            case SHORT: {
+                ShortBuffer b = buffer.asShortBuffer();
+                for (int i = b.limit() - 1; i > 0; i--) {
+                    b.put(i, (short) (b.get(i) - b.get(i - 1)));
+                }
+                break;
+            }
+            case INT: {
+                IntBuffer b = buffer.asIntBuffer();
+                for (int i = b.limit() - 1; i > 0; i--) {
+                    b.put(i, b.get(i) - b.get(i - 1));
+                }
+                break;
+            }
+            default: {
+                LongBuffer b = buffer.asLongBuffer();
+                for (int i = b.limit() - 1; i > 0; i--) {
+                    b.put(i, b.get(i) - b.get(i - 1));
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Converts a decompressed chunk stored in a given byte order to the native
+     * byte order and reverses the delta encoding if needed.
+     */
+    static void decode(byte[] chunk, LargeArrayType type, ByteOrder order, boolean delta)
+    {
+        if (!delta && (order == ByteOrder.nativeOrder() || type == LargeArrayType.BYTE)) {
+            return;
+        }
+        ByteBuffer src = ByteBuffer.wrap(chunk).order(order);
+        ByteBuffer dst = ByteBuffer.wrap(chunk).order(ByteOrder.nativeOrder());
+        switch (type) {
+            case BYTE:
+                for (int i = 1; i < chunk.length; i++) {
+                    chunk[i] += chunk[i - 1];
+                }
+                break;
+            case SHORT: {
+                ShortBuffer s = src.asShortBuffer();
+                ShortBuffer d = dst.asShortBuffer();
+                short prev = 0;
+                for (int i = 0; i < s.limit(); i++) {
+                    short v = s.get(i);
+                    prev = delta ? (short) (prev + v) : v;
+                    d.put(i, prev);
+                }
+                break;
+            }
+            case INT:
+            case FLOAT: {
+                IntBuffer s = src.asIntBuffer();
+                IntBuffer d = dst.asIntBuffer();
+                int prev = 0;
+                for (int i = 0; i < s.limit(); i++) {
+                    int v = s.get(i);
+                    prev = delta ? prev + v : v;
+                    d.put(i, prev);
+                }
+                break;
+            }
+            default: {
+                LongBuffer s = src.asLongBuffer();
+                LongBuffer d = dst.asLongBuffer();
+                long prev = 0;
+                for (int i = 0; i < s.limit(); i++) {
+                    long v = s.get(i);
+                    prev = delta ? prev + v : v;
+                    d.put(i, prev);
+                }
+                break;
+            }
+        }
+    }
+
+    static void checkType(LargeArrayType type)
+    {
+        if (type == LargeArrayType.BIT || type == LargeArrayType.STRING) {
+            throw new IllegalArgumentException("Arrays of type " + type + " are not supported.");
+        }
+    }
+
+    static ByteBuffer encodeHeader(Header header)
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putShort(VERSION);
+        buffer.put((byte) header.getType().ordinal());
+        buffer.put((byte) (header.getByteOrder() == ByteOrder.BIG_ENDIAN ? 0 : 1));
+        buffer.put((byte) header.flags);
+        buffer.put((byte) header.getCodec().ordinal());
+        buffer.putShort((short) 0);
+        buffer.putInt(0);
+        buffer.putLong(header.getLength());
+        buffer.putLong(header.getPayloadOffset());
+        buffer.putLong(header.getPayloadSize());
+        buffer.putLong(header.getChunkSize());
+        buffer.putLong(header.getChunkCount());
+        buffer.putInt(header.getChecksum());
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, HEADER_SIZE - 4);
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    static Header readHeader(FileChannel channel) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, buffer, 0);
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a JLargeArrays file.");
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException("Unsupported format version: " + buffer.getShort(4));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), 0, HEADER_SIZE - 4);
+        if ((int) crc.getValue() != buffer.getInt(HEADER_SIZE - 4)) {
+            throw new IOException("Header checksum mismatch.");
+        }
+        LargeArrayType[] types = LargeArrayType.values();
+        int type = buffer.get(6);
+        if (type < 0 || type >= types.length) {
+            throw new IOException("Invalid array type: " + type);
+        }
+        checkType(types[type]);
+        Codec[] codecs = Codec.values();
+        int codec = buffer.get(9);
+        if (codec < 0 || codec >= codecs.length) {
+            throw new IOException("Unsupported codec: " + codec);
+        }
+        return new Header(types[type], buffer.get(7) == 0 ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN, buffer.get(8), codecs[codec],
+                          buffer.getLong(16), buffer.getLong(24), buffer.getLong(32), buffer.getLong(40), buffer.getLong(48), buffer.getInt(56));
+    }
+
+    static ByteBuffer readIndex(FileChannel channel, Header header, boolean verify) throws IOException
+    {
+        ByteBuffer index = ByteBuffer.allocate((int) (header.getChunkCount() * INDEX_ENTRY_SIZE));
+        readFully(channel, index, HEADER_SIZE);
+        if (verify) {
+            CRC32 crc = new CRC32();
+            crc.update(index.array());
+            checkCRC((int) crc.getValue(), header.getChecksum());
+        }
+        return index;
+    }
+
+    static long align(long offset)
+    {
+        return (offset + PAYLOAD_ALIGNMENT - 1) & -PAYLOAD_ALIGNMENT;
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException();
+            }
+            position += n;
+        }
+    }
+
+    private static void checkCRC(int crc, int expected) throws IOException
+    {
+        if (crc != expected) {
+            throw new IOException("Checksum mismatch.");
+        }
+    }
+
+    /**
+     * Computes the CRC32 of a region of the memory of a non-constant array.
+     */
+    static int checksum(LargeArray a, long offset, long bytes)
+    {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, bytes))];
+        CRC32 crc = new CRC32();
+        for (long done = 0; done < bytes;) {
+            int n = (int) Math.min(buffer.length, bytes - done);
+            Utilities.getBytes(a, offset + done, buffer, 0, n);
+            crc.update(buffer, 0, n);
+            done += n;
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Computes the CRC32 of a region of a file.
+     */
+    private static int checksum(FileChannel channel, long position, long bytes) throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, Math.max(1, bytes)));
+        CRC32 crc = new CRC32();
+        for (long done = 0; done < bytes;) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), bytes - done));
+            readFully(channel, buffer, position + done);
+            crc.update(buffer.array(), 0, buffer.limit());
+            done += buffer.limit();
+        }
+        return (int) crc.getValue();
+    }
+
+    static ByteBuffer constantValue(LargeArray a)
+    {
+        ByteBuffer value = ByteBuffer.allocate((int) a.getType().sizeOf()).order(ByteOrder.nativeOrder());
+        switch (a.getType()) {
+            case BYTE:
+                value.put(a.getByte(0));
+                break;
+            case SHORT:
+                value.putShort(a.getShort(0));
+                break;
+            case INT:
+                value.putInt(a.getInt(0));
+                break;
+            case LONG:
+                value.putLong(a.getLong(0));
+                break;
+            case FLOAT:
+                value.putFloat(a.getFloat(0));
+                break;
+            default:
+                value.putDouble(a.getDouble(0));
+                break;
+        }
+        value.flip();
+        return value;
+    }
+
+    static LargeArray newConstantArray(LargeArrayType type, long length, ByteBuffer value)
+    {
+        switch (type) {
+            case BYTE:
+                return new ByteLargeArray(length, value.get(0));
+            case SHORT:
+                return new ShortLargeArray(length, value.getShort(0));
+            case INT:
+                return new IntLargeArray(length, value.getInt(0));
+            case LONG:
+                return new LongLargeArray(length, value.getLong(0));
+            case FLOAT:
+                return new FloatLargeArray(length, value.getFloat(0));
+            default:
+                return new DoubleLargeArray(length, value.getDouble(0));
+        }
+    }
+
+    /**
+     * Reverses the byte order of all elements of an array.
+     */
+    static void reverseBytes(LargeArray a)
+    {
+        long length = a.length();
+        switch (a.getType()) {
+            case SHORT:
+                for (long i = 0; i < length; i++) {
+                    a.setShort(i, Short.reverseBytes(a.getShort(i)));
+                }
+                break;
+            case INT:
+                for (long i = 0; i < length; i++) {
+                    a.setInt(i, Integer.reverseBytes(a.getInt(i)));
+                }
+                break;
+            case FLOAT:
+                for (long i = 0; i < length; i++) {
+                    a.setFloat(i, Float.intBitsToFloat(Integer.reverseBytes(Float.floatToRawIntBits(a.getFloat(i)))));
+                }
+                break;
+            case LONG:
+                for (long i = 0; i < length; i++) {
+                    a.setLong(i, Long.reverseBytes(a.getLong(i)));
+                }
+                break;
+            case DOUBLE:
+                for (long i = 0; i < length; i++) {
+                    a.setDouble(i, Double.longBitsToDouble(Long.reverseBytes(Double.doubleToRawLongBits(a.getDouble(i)))));
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * A task processing a single chunk.
+     */
+    interface ChunkTask
+    {
+
+        void run(long chunk) throws IOException;
+    }
+
+    /**
+     * Runs a task for all chunks, in parallel if there are at least two chunks.
+     */
+    static void forEachChunk(final long chunkCount, final ChunkTask task) throws IOException
+    {
+        int nthreads = (int) Math.min(chunkCount, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2) {
+            for (long j = 0; j < chunkCount; j++) {
+                task.run(j);
+            }
+        }
+        else {
+            long k = chunkCount / nthreads;
+            final AtomicBoolean abort = new AtomicBoolean();
+            Future<?>[] futures = new Future<?>[nthreads];
+            for (int j = 0; j < nthreads; j++) {
+                final long firstIdx = j * k;
+                final long lastIdx = (j == nthreads - 1) ? chunkCount : firstIdx + k;
+                futures[j] = ConcurrencyUtils.submit(new Callable<Void>()
+                {
+                    @Override
+                    public Void call() throws IOException
+                    {
+                        for (long c = firstIdx; c < lastIdx && !abort.get(); c++) {
+                            task.run(c);
+                        }
+                        return null;
+                    }
+                });
+            }
+            ConcurrencyUtils.waitForIOCompletion(futures, abort);
+        }
+    }
+}
@@ -0,0 +1,733 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.util.concurrent.Future;
+
+/**
+ *
+ * An N-dimensional view of an array. The element (i<SUB>0</SUB>, ...,
+ * i<SUB>n-1</SUB>) of a view is the element offset + i<SUB>0</SUB> *
+ * stride<SUB>0</SUB> + ... + i<SUB>n-1</SUB> * stride<SUB>n-1</SUB> of its
+ * base array. Strides are given in elements and may be negative, but not
+ * zero. Views share the storage of their base arrays, and permute(), crop(),
+ * flip() and slice() return new views without copying any data. For
+ * example, a volume stored in C order (x varies fastest) can be accessed by
+ * <pre>
+ * LargeArrayNDView v = new LargeArrayNDView(a, nz, ny, nx);
+ * float value = a.getFloat(v.index(z, y, x));
+ * </pre>
+ * Bulk operations, forEachRun(), copyTo() and copyFrom(), process the
+ * elements in runs along the innermost dimension. Consecutive inner
+ * dimensions that are stored contiguously are merged into a single run.
+ *
+ * @author agent (agent@local)
+ */
+public class LargeArrayNDView
+{
+
+    /**
+     * A visitor of runs of elements of an N-dimensional view.
+     */
+    public interface RunVisitor
+    {
+
+        /**
+         * Visits a run of elements. Runs may be visited in parallel.
+         *
+         * @param index the index of the first element of the run in the C
+         *              order of the view
+         * @param run   a one-dimensional view of the elements of the run
+         */
+        void visit(long index, LargeArray run);
+    }
+
+    private final LargeArray base;
+    private final long offset;
+    private final long[] shape;
+    private final long[] strides;
+    private final long size;
+    private final int runAxis;
+    private final long runLength;
+
+    /**
+     * Creates an N-dimensional view of all elements of an array stored in C
+     * order, i.e. the last dimension varies fastest.
+     *
+     * @param base  array
+     * @param shape dimensions of the view, their product has to be equal to
+     *              the length of the array
+     */
+    public LargeArrayNDView(LargeArray base, long... shape)
+    {
+        this(base, 0, shape, contiguousStrides(shape));
+        if (size != base.length()) {
+            throw new IllegalArgumentException("The product of dimensions is not equal to the length of the array.");
+        }
+    }
+
+    /**
+     * Creates an N-dimensional view of an array.
+     *
+     * @param base    array
+     * @param offset  index of the element (0, ..., 0) in the array
+     * @param shape   dimensions of the view
+     * @param strides distances between consecutive elements along each
+     *                dimension, cannot be zero
+     */
+    public LargeArrayNDView(LargeArray base, long offset, long[] shape, long[] strides)
+    {
+        if (base == null) {
+            throw new IllegalArgumentException("base cannot be null");
+        }
+        if (shape == null || strides == null || shape.length == 0 || shape.length != strides.length) {
+            throw new IllegalArgumentException("shape and strides have to be non-empty arrays of the same length");
+        }
+        this.shape = shape.clone();
+        this.strides = strides.clone();
+        long first = offset;
+        long last = offset;
+        long n = 1;
+        for (int k = 0; k < shape.length; k++) {
+            if (shape[k] <= 0) {
+                throw new IllegalArgumentException(shape[k] + " is not a positive long value");
+            }
+            if (strides[k] == 0) {
+                throw new IllegalArgumentException("strides cannot be zero");
+            }
+            n *= shape[k];
+            long span = (shape[k] - 1) * strides[k];
+            if (span < 0) {
+                first += span;
+            } else {
+                last += span;
+            }
+        }
+        if (first < 0 || last >= base.length()) {
+            throw new ArrayIndexOutOfBoundsException("The view exceeds the bounds of the array.");
+        }
+        if (base instanceof LargeArrayView) {
+            LargeArrayView v = (LargeArrayView) base;
+            offset = v.getOffset() + offset * v.getStride();
+            for (int k = 0; k < shape.length; k++) {
+                this.strides[k] *= v.getStride();
+            }
+            base = v.getBase();
+        }
+        this.base = base;
+        this.offset = offset;
+        this.size = n;
+        int axis = shape.length - 1;
+        long len = shape[axis];
+        while (axis > 0 && this.strides[axis - 1] == len * this.strides[shape.length - 1]) {
+            axis--;
+            len *= shape[axis];
+        }
+        this.runAxis = axis;
+        this.runLength = len;
+    }
+
+    private static long[] contiguousStrides(long[] shape)
+    {
+        if (shape == null) {
+            throw new IllegalArgumentException("shape cannot be null");
+        }
+        long[] strides = new long[shape.length];
+        long stride = 1;
+        for (int k = shape.length - 1; k >= 0; k--) {
+            strides[k] = stride;
+            stride *= shape[k];
+        }
+        return strides;
+    }
+
+    /**
+     * Returns the array viewed by this view.
+     *
+     * @return the base array
+     */
+    public LargeArray getBase()
+    {
+        return base;
+    }
+
+    /**
+     * Returns the index of the element (0, ..., 0) in the base array.
+     *
+     * @return the offset of this view
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * Returns the number of dimensions of this view.
+     *
+     * @return the number of dimensions
+     */
+    public int getNdim()
+    {
+        return shape.length;
+    }
+
+    /**
+     * Returns the dimensions of this view.
+     *
+     * @return a copy of the dimensions
+     */
+    public long[] getShape()
+    {
+        return shape.clone();
+    }
+
+    /**
+     * Returns the strides of this view.
+     *
+     * @return a copy of the strides
+     */
+    public long[] getStrides()
+    {
+        return strides.clone();
+    }
+
+    /**
+     * Returns the number of elements of this view.
+     *
+     * @return the number of elements
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the length of the runs processed by bulk operations.
+     *
+     * @return the number of elements of a run
+     */
+    public long getRunLength()
+    {
+        return runLength;
+    }
+
+    /**
+     * Returns true if the elements of this view are the consecutive elements
+     * of the base array in C order.
+     *
+     * @return true if this view is contiguous, false otherwise
+     */
+    public boolean isContiguous()
+    {
+        return runAxis == 0 && strides[shape.length - 1] == 1;
+    }
+
+    /**
+     * Returns the index of an element in the base array. The indices are
+     * checked against the dimensions of this view.
+     *
+     * @param idx indices of the element, one per dimension
+     *
+     * @return the index in the base array
+     */
+    public long index(long... idx)
+    {
+        if (idx.length != shape.length) {
+            throw new IllegalArgumentException("The number of indices is not equal to the number of dimensions.");
+        }
+        long i = offset;
+        for (int k = 0; k < shape.length; k++) {
+            if (idx[k] < 0 || idx[k] >= shape[k]) {
+                throw new ArrayIndexOutOfBoundsException("idx[" + k + "] < 0 || idx[" + k + "] >= shape[" + k + "]");
+            }
+            i += idx[k] * strides[k];
+        }
+        return i;
+    }
+
+    /**
+     * Returns the index of an element of a two-dimensional view in the base
+     * array. The indices are not checked.
+     *
+     * @param y index along the first dimension
+     * @param x index along the second dimension
+     *
+     * @return the index in the base array
+     */
+    public long index(long y, long x)
+    {
+        checkNdim(2);
+        return offset + y * strides[0] + x * strides[1];
+    }
+
+    /**
+     * Returns the index of an element of a three-dimensional view in the base
+     * array. The indices are not checked.
+     *
+     * @param z index along the first dimension
+     * @param y index along the second dimension
+     * @param x index along the third dimension
+     *
+     * @return the index in the base array
+     */
+    public long index(long z, long y, long x)
+    {
+        checkNdim(3);
+        return offset + z * strides[0] + y * strides[1] + x * strides[2];
+    }
+
+    /**
+     * Returns the index of an element of a four-dimensional view in the base
+     * array. The indices are not checked.
+     *
+     * @param t index along the first dimension
+     * @param z index along the second dimension
+     * @param y index along the third dimension
+     * @param x index along the fourth dimension
+     *
+     * @return the index in the base array
+     */
+    public long index(long t, long z, long y, long x)
+    {
+        checkNdim(4);
+        return offset + t * strides[0] + z * strides[1] + y * strides[2] + x * strides[3];
+    }
+
+    private void checkNdim(int ndim)
+    {
+        if (shape.length != ndim) {
+            throw new IllegalArgumentException("The view has " + shape.length + " dimensions.");
+        }
+    }
+
+    /**
+     * Returns an element of a two-dimensional view.
+     *
+     * @param y index along the first dimension
+     * @param x index along the second dimension
+     *
+     * @return the value of the element
+     */
+    public Object get(long y, long x)
+    {
+        return base.get(index(y, x));
+    }
+
+    /**
+     * Returns an element of a three-dimensional view.
+     *
+     * @param z index along the first dimension
+     * @param y index along the second dimension
+     * @param x index along the third dimension
+     *
+     * @return the value of the element
+     */
+    public Object get(long z, long y, long x)
+    {
+        return base.get(index(z, y, x));
+    }
+
+    /**
+     * Returns an element of a four-dimensional view.
+     *
+     * @param t index along the first dimension
+     * @param z index along the second dimension
+     * @param y index along the third dimension
+     * @param x index along the fourth dimension
+     *
+     * @return the value of the element
+     */
+    public Object get(long t, long z, long y, long x)
+    {
+        return base.get(index(t, z, y, x));
+    }
+
+    /**
+     * Returns an element of a two-dimensional view converted to double.
+     *
+     * @param y index along the first dimension
+     * @param x index along the second dimension
+     *
+     * @return the value of the element
+     */
+    public double getDouble(long y, long x)
+    {
+        return base.getDouble(index(y, x));
+    }
+
+    /**
+     * Returns an element of a three-dimensional view converted to double.
+     *
+     * @param z index along the first dimension
+     * @param y index along the second dimension
+     * @param x index along the third dimension
+     *
+     * @return the value of the element
+     */
+    public double getDouble(long z, long y, long x)
+    {
+        return base.getDouble(index(z, y, x));
+    }
+
+    /**
+     * Returns an element of a four-dimensional view converted to double.
+     *
+     * @param t index along the first dimension
+     * @param z index along the second dimension
+     * @param y index along the third dimension
+     * @param x index along the fourth dimension
+     *
+     * @return the value of the element
+     */
+    public double getDouble(long t, long z, long y, long x)
+    {
+        return base.getDouble(index(t, z, y, x));
+    }
+
+    /**
+     * Sets an element of a two-dimensional view.
+     *
+     * @param y     index along the first dimension
+     * @param x     index along the second dimension
+     * @param value value to set
+     */
+    public void set(long y, long x, Object value)
+    {
+        base.set(index(y, x), value);
+    }
+
+    /**
+     * Sets an element of a three-dimensional view.
+     *
+     * @param z     index along the first dimension
+     * @param y     index along the second dimension
+     * @param x     index along the third dimension
+     * @param value value to set
+     */
+    public void set(long z, long y, long x, Object value)
+    {
+        base.set(index(z, y, x), value);
+    }
+
+    /**
+     * Sets an element of a four-dimensional view.
+     *
+     * @param t     index along the first dimension
+     * @param z     index along the second dimension
+     * @param y     index along the third dimension
+     * @param x     index along the fourth dimension
+     * @param value value to set
+     */
+    public void set(long t, long z, long y, long x, Object value)
+    {
+        base.set(index(t, z, y, x), value);
+    }
+
+    /**
+     * Sets an element of a two-dimensional view.
+     *
+     * @param y     index along the first dimension
+     * @param x     index along the second dimension
+     * @param value value to set
+     */
+    public void setDouble(long y, long x, double value)
+    {
+        base.setDouble(index(y, x), value);
+    }
+
+    /**
+     * Sets an element of a three-dimensional view.
+     *
+     * @param z     index along the first dimension
+     * @param y     index along the second dimension
+     * @param x     index along the third dimension
+     * @param value value to set
+     */
+    public void setDouble(long z, long y, long x, double value)
+    {
+        base.setDouble(index(z, y, x), value);
+    }
+
+    /**
+     * Sets an element of a four-dimensional view.
+     *
+     * @param t     index along the first dimension
+     * @param z     index along the second dimension
+     * @param y     index along the third dimension
+     * @param x     index along the fourth dimension
+     * @param value value to set
+     */
+    public void setDouble(long t, long z, long y, long x, double value)
+    {
+        base.setDouble(index(t, z, y, x), value);
+    }
+
+    private void checkAxis(int axis)
+    {
+        if (axis < 0 || axis >= shape.length) {
+            throw new IllegalArgumentException("axis < 0 || axis >= getNdim()");
+        }
+    }
+
+    /**
+     * Returns a view with permuted dimensions. The dimension k of the
+     * returned view is the dimension axes[k] of this view.
+     *
+     * @param axes permutation of 0, ..., getNdim() - 1
+     *
+     * @return the permuted view
+     */
+    public LargeArrayNDView permute(int... axes)
+    {
+        if (axes.length != shape.length) {
+            throw new IllegalArgumentException("The number of axes is not equal to the number of dimensions.");
+        }
+        boolean[] used = new boolean[shape.length];
+        long[] s = new long[shape.length];
+        long[] st = new long[shape.length];
+        for (int k = 0; k < axes.length; k++) {
+            checkAxis(axes[k]);
+            if (used[axes[k]]) {
+                throw new IllegalArgumentException("axes is not a permutation");
+            }
+            used[axes[k]] = true;
+            s[k] = shape[axes[k]];
+            st[k] = strides[axes[k]];
+        }
+        return new LargeArrayNDView(base, offset, s, st);
+    }
+
+    /**
+     * Returns a view of a box of elements of this view.
+     *
+     * @param origin indices of the first element of the box
+     * @param shape  dimensions of the box
+     *
+     * @return the cropped view
+     */
+    public LargeArrayNDView crop(long[] origin, long[] shape)
+    {
+        if (origin.length != this.shape.length || shape.length != this.shape.length) {
+            throw new IllegalArgumentException("The number of indices is not equal to the number of dimensions.");
+        }
+        for (int k = 0; k < shape.length; k++) {
+            if (shape[k] <= 0) {
+                throw new IllegalArgumentException(shape[k] + " is not a positive long value");
+            }
+            if (origin[k] < 0 || origin[k] + shape[k] > this.shape[k]) {
+                throw new ArrayIndexOutOfBoundsException("origin[" + k + "] < 0 || origin[" + k + "] + shape[" + k + "] > getShape()[" + k + "]");
+            }
+        }
+        return new LargeArrayNDView(base, index(origin), shape, strides);
+    }
+
+    /**
+     * Returns a view with the order of elements along a given dimension
+     * reversed.
+     *
+     * @param axis dimension to reverse
+     *
+     * @return the flipped view
+     */
+    public LargeArrayNDView flip(int axis)
+    {
+        checkAxis(axis);
+        long[] st = strides.clone();
+        st[axis] = -st[axis];
+        return new LargeArrayNDView(base, offset + (shape[axis] - 1) * strides[axis], shape, st);
+    }
+
+    /**
+     * Returns a view of the elements with a given index along a given
+     * dimension, e.g. a plane of a volume. The returned view has one
+     * dimension less than this view.
+     *
+     * @param axis  dimension to fix
+     * @param index index along the dimension
+     *
+     * @return the sliced view
+     */
+    public LargeArrayNDView slice(int axis, long index)
+    {
+        checkAxis(axis);
+        if (shape.length == 1) {
+            throw new IllegalArgumentException("A one-dimensional view cannot be sliced.");
+        }
+        if (index < 0 || index >= shape[axis]) {
+            throw new ArrayIndexOutOfBoundsException("index < 0 || index >= getShape()[axis]");
+        }
+        long[] s = new long[shape.length - 1];
+        long[] st = new long[shape.length - 1];
+        for (int k = 0, j = 0; k < shape.length; k++) {
+            if (k != axis) {
+                s[j] = shape[k];
+                st[j++] = strides[k];
+            }
+        }
+        return new LargeArrayNDView(base, offset + index * strides[axis], s, st);
+    }
+
+    /**
+     * Calls the visitor for each run of elements of this view, in parallel if
+     * the view is large enough. A run consists of the elements along the
+     * innermost dimension, or along several innermost dimensions if they are
+     * stored contiguously, and is passed to the visitor as a view of the base
+     * array, so that it can be processed with bulk operations. Each run is
+     * visited exactly once. If the calling thread is interrupted while
+     * waiting for the parallel tasks, the remaining tasks are cancelled and
+     * some runs may not be visited.
+     *
+     * @param visitor visitor of the runs
+     *
+     * @throws IllegalStateException if the calling thread was interrupted;
+     *                               the interrupt status of the thread is
+     *                               set
+     */
+    public void forEachRun(final RunVisitor visitor)
+    {
+        final long runs = size / runLength;
+        int nthreads = (int) Math.min(runs, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || size < ConcurrencyUtils.getConcurrentThreshold() || base instanceof PagedLargeArray) {
+            visitRuns(visitor, 0, runs);
+        } else {
+            long k = runs / nthreads;
+            Future<?>[] futures = new Future<?>[nthreads];
+            for (int j = 0; j < nthreads; j++) {
+                final long firstRun = j * k;
+                final long lastRun = (j == nthreads - 1) ? runs : firstRun + k;
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        visitRuns(visitor, firstRun, lastRun);
+                    }
+                });
+            }
+            try {
+                ConcurrencyUtils.waitForCompletion(futures);
+            } catch (InterruptedException ex) {
+                for (int j = 0; j < nthreads; j++) {
+                    futures[j].cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("The operation has been interrupted.", ex);
+            }
+        }
+    }
+
+    private void visitRuns(RunVisitor visitor, long firstRun, long lastRun)
+    {
+        if (firstRun >= lastRun) {
+            return;
+        }
+        long runStride = strides[shape.length - 1];
+        long[] idx = new long[runAxis];
+        long pos = offset;
+        long r = firstRun;
+        for (int k = runAxis - 1; k >= 0; k--) {
+            idx[k] = r % shape[k];
+            r /= shape[k];
+            pos += idx[k] * strides[k];
+        }
+        for (long run = firstRun; run < lastRun; run++) {
+            visitor.visit(run * runLength, base.view(pos, runLength, runStride));
+            for (int k = runAxis - 1; k >= 0; k--) {
+                pos += strides[k];
+                if (++idx[k] < shape[k]) {
+                    break;
+                }
+                pos -= shape[k] * strides[k];
+                idx[k] = 0;
+            }
+        }
+    }
+
+    /**
+     * Copies the elements of this view in C order to an array.
+     *
+     * @param dest    destination array
+     * @param destPos starting position in the destination array
+     */
+    public void copyTo(final LargeArray dest, final long destPos)
+    {
+        checkCopy(dest, destPos);
+        base.ensureOpen();
+        dest.ensureWritable();
+        forEachRun(new RunVisitor()
+        {
+            @Override
+            public void visit(long index, LargeArray run)
+            {
+                Utilities.arraycopy(run, 0, dest, destPos + index, run.length());
+            }
+        });
+    }
+
+    /**
+     * Copies the elements of an array to this view in C order.
+     *
+     * @param src    source array
+     * @param srcPos starting position in the source array
+     */
+    public void copyFrom(final LargeArray src, final long srcPos)
+    {
+        checkCopy(src, srcPos);
+        src.ensureOpen();
+        base.ensureWritable();
+        forEachRun(new RunVisitor()
+        {
+            @Override
+            public void visit(long index, LargeArray run)
+            {
+                Utilities.arraycopy(src, srcPos + index, run, 0, run.length());
+            }
+        });
+    }
+
+    private void checkCopy(LargeArray a, long pos)
+    {
+        if (a.getType() != base.getType()) {
+            throw new IllegalArgumentException("The type of the array is different than the type of the view.");
+        }
+        if (pos < 0 || pos + size > a.length()) {
+            throw new ArrayIndexOutOfBoundsException("pos < 0 || pos + size() > a.length()");
+        }
+    }
+
+    /**
+     * Returns a new array containing the elements of this view in C order.
+     *
+     * @return a copy of this view
+     */
+    public LargeArray copy()
+    {
+        LargeArray a = Utilities.create(base.getType(), size, false);
+        copyTo(a, 0);
+        return a;
+    }
+}
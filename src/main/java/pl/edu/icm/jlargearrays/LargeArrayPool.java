@@ -0,0 +1,587 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+import sun.misc.Cleaner;
+
+/**
+ * Pool of native memory blocks for large arrays.
+ *
+ * Arrays obtained from the pool are always stored in native memory, regardless
+ * of the value of LargeArray.getMaxSizeOf32bitArray(). When such an array is
+ * closed (or released, or garbage collected), its memory is returned to the
+ * pool instead of being freed, and it is reused by the next array of the same
+ * size class. Size classes are spaced four per power of two, so at most 25%
+ * of a block is wasted.
+ *
+ * Each thread that allocates from the pool keeps a small cache of recently
+ * released blocks, which is checked before the shared free lists. The total
+ * number of bytes retained by the pool (in the shared free lists and in the
+ * thread caches) is limited; blocks released above this limit are freed.
+ *
+ * The retained blocks are freed by clear(), close(), or when the pool is
+ * garbage collected. Arrays obtained from a closed or garbage collected pool
+ * remain valid, and their memory is freed when they are closed.
+ *
+ * @author agent (agent@local)
+ */
+public class LargeArrayPool implements AutoCloseable
+{
+
+    private static final long MIN_BLOCK_SIZE = 64;
+
+    private final long maxRetainedBytes;
+
+    private final int threadCacheSize;
+
+    private final boolean zeroMemory;
+
+    private final ConcurrentHashMap<Long, ConcurrentLinkedDeque<Block>> freeLists = new ConcurrentHashMap<Long, ConcurrentLinkedDeque<Block>>();
+
+    private final ThreadLocal<ThreadCache> threadCaches = new ThreadLocal<ThreadCache>();
+
+    private final Set<Map<Long, ArrayDeque<Block>>> caches = Collections.newSetFromMap(new ConcurrentHashMap<Map<Long, ArrayDeque<Block>>, Boolean>());
+
+    private volatile boolean closed = false;
+
+    private final AtomicLong retainedBytes = new AtomicLong();
+
+    private final AtomicLong hitCount = new AtomicLong();
+
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * Creates new instance of this class with no limit of retained memory,
+     * thread caches of two blocks per size class and no zeroing.
+     */
+    public LargeArrayPool()
+    {
+        this(Long.MAX_VALUE, 2, false);
+    }
+
+    /**
+     * Creates new instance of this class.
+     *
+     * @param maxRetainedBytes the maximal number of bytes retained by the pool
+     * @param threadCacheSize  the maximal number of blocks per size class
+     *                         cached by each thread, 0 disables thread caches
+     * @param zeroMemory       if true, then the memory of every array handed
+     *                         out by the pool is zeroed, otherwise its
+     *                         content is undefined
+     */
+    public LargeArrayPool(long maxRetainedBytes, int threadCacheSize, boolean zeroMemory)
+    {
+        if (maxRetainedBytes < 0) {
+            throw new IllegalArgumentException(maxRetainedBytes + " is not a non-negative long value");
+        }
+        if (threadCacheSize < 0) {
+            throw new IllegalArgumentException(threadCacheSize + " is not a non-negative int value");
+        }
+        this.maxRetainedBytes = maxRetainedBytes;
+        this.threadCacheSize = threadCacheSize;
+        this.zeroMemory = zeroMemory;
+        Cleaner.create(this, new Releaser(freeLists, caches));
+    }
+
+    /**
+     * Returns a new array of bytes from the pool.
+     *
+     * @param length number of elements
+     *
+     * @return new array
+     */
+    public ByteLargeArray allocateByteArray(long length)
+    {
+        Block block = take(LargeArrayType.BYTE, length);
+        return init(new ByteLargeArray(block, block.ptr, length), block);
+    }
+
+    /**
+     * Returns a new array of shorts from the pool.
+     *
+     * @param length number of elements
+     *
+     * @return new array
+     */
+    public ShortLargeArray allocateShortArray(long length)
+    {
+        Block block = take(LargeArrayType.SHORT, length);
+        return init(new ShortLargeArray(block, block.ptr, length), block);
+    }
+
+    /**
+     * Returns a new array of ints from the pool.
+     *
+     * @param length number of elements
+     *
+     * @return new array
+     */
+    public IntLargeArray allocateIntArray(long length)
+    {
+        Block block = take(LargeArrayType.INT, length);
+        return init(new IntLargeArray(block, block.ptr, length), block);
+    }
+
+    /**
+     * Returns a new array of floats from the pool.
+     *
+     * @param length number of elements
+     *
+     * @return new array
+     */
+    public FloatLargeArray allocateFloatArray(long length)
+    {
+        Block block = take(LargeArrayType.FLOAT, length);
+        return init(new FloatLargeArray(block, block.ptr, length), block);
+    }
+
+    /**
+     * Returns a new array of doubles from the pool.
+     *
+     * @param length number of elements
+     *
+     * @return new array
+     */
+    public DoubleLargeArray allocateDoubleArray(long length)
+    {
+        Block block = take(LargeArrayType.DOUBLE, length);
+        return init(new DoubleLargeArray(block, block.ptr, length), block);
+    }
+
+    /**
+     * Returns the memory of an array to the pool. This is equivalent to
+     * a.close(). The array cannot be used afterwards.
+     *
+     * @param a array obtained from this pool
+     */
+    public void release(LargeArray a)
+    {
+        if (!(a.parent instanceof Block) || ((Block) a.parent).pool.get() != this) {
+            throw new IllegalArgumentException("The array does not belong to this pool.");
+        }
+        a.close();
+    }
+
+    /**
+     * Frees all blocks retained by the pool, in the shared free lists and in
+     * the caches of all threads.
+     */
+    public void clear()
+    {
+        for (Map<Long, ArrayDeque<Block>> blocks : caches) {
+            ThreadCache.drain(this, blocks, true);
+        }
+        for (ConcurrentLinkedDeque<Block> list : freeLists.values()) {
+            Block block;
+            while ((block = list.pollFirst()) != null) {
+                retainedBytes.addAndGet(-block.size);
+                block.free();
+            }
+        }
+    }
+
+    /**
+     * Frees all blocks retained by the pool and closes it. Arrays obtained
+     * from the pool remain valid; their memory is freed when they are closed.
+     * No arrays can be allocated from a closed pool.
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * Returns true if this pool has been closed.
+     *
+     * @return true if this pool has been closed, false otherwise
+     */
+    public boolean isClosed()
+    {
+        return closed;
+    }
+
+    /**
+     * Returns the number of bytes retained by the pool.
+     *
+     * @return the number of bytes retained by the pool
+     */
+    public long getRetainedBytes()
+    {
+        return retainedBytes.get();
+    }
+
+    /**
+     * Returns the maximal number of bytes retained by the pool.
+     *
+     * @return the maximal number of bytes retained by the pool
+     */
+    public long getMaxRetainedBytes()
+    {
+        return maxRetainedBytes;
+    }
+
+    /**
+     * Returns the maximal number of blocks per size class cached by each
+     * thread.
+     *
+     * @return the maximal number of blocks per size class cached by each
+     *         thread
+     */
+    public int getThreadCacheSize()
+    {
+        return threadCacheSize;
+    }
+
+    /**
+     * Returns true if the arrays handed out by the pool are zeroed.
+     *
+     * @return true if the arrays handed out by the pool are zeroed, false
+     *         otherwise
+     */
+    public boolean isZeroMemory()
+    {
+        return zeroMemory;
+    }
+
+    /**
+     * Returns the number of allocations that reused a pooled block.
+     *
+     * @return the number of allocations that reused a pooled block
+     */
+    public long getHitCount()
+    {
+        return hitCount.get();
+    }
+
+    /**
+     * Returns the number of allocations that required new native memory.
+     *
+     * @return the number of allocations that required new native memory
+     */
+    public long getMissCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the size class of a block that can hold the given number of
+     * bytes.
+     *
+     * @param bytes number of bytes
+     *
+     * @return the size class
+     */
+    static long sizeClass(long bytes)
+    {
+        if (bytes <= MIN_BLOCK_SIZE) {
+            return MIN_BLOCK_SIZE;
+        }
+        long step = Long.highestOneBit(bytes - 1) >>> 2;
+        return (bytes + step - 1) & -step;
+    }
+
+    private Block take(LargeArrayType type, long length)
+    {
+        if (length <= 0) {
+            throw new IllegalArgumentException(length + " is not a positive long value");
+        }
+        if (closed) {
+            throw new IllegalStateException("The pool has been closed.");
+        }
+        long size = sizeClass(length * type.sizeOf());
+        Block block = null;
+        if (threadCacheSize > 0) {
+            ThreadCache cache = threadCaches.get();
+            if (cache == null) {
+                cache = new ThreadCache(this);
+                threadCaches.set(cache);
+            }
+            block = cache.poll(size);
+        }
+        if (block == null) {
+            ConcurrentLinkedDeque<Block> list = freeLists.get(size);
+            if (list != null) {
+                block = list.pollFirst();
+            }
+        }
+        if (block != null) {
+            retainedBytes.addAndGet(-size);
+            hitCount.incrementAndGet();
+            block.setType(type);
+        }
+        else {
+            missCount.incrementAndGet();
+            block = new Block(this, MemoryBudget.allocateMemory(size), size, type);
+            MemoryCounter.increaseCounter(type, size);
+        }
+        return block;
+    }
+
+    private <T extends LargeArray> T init(T a, Block block)
+    {
+        a.cleaner = Cleaner.create(a, new Recycler(block));
+        if (zeroMemory) {
+            a.zeroNativeMemory(a.length());
+        }
+        return a;
+    }
+
+    private void recycle(Block block)
+    {
+        if (closed || retainedBytes.addAndGet(block.size) > maxRetainedBytes) {
+            if (!closed) {
+                retainedBytes.addAndGet(-block.size);
+            }
+            block.free();
+            return;
+        }
+        // threads that never allocated from the pool (e.g. the Cleaner thread) have no cache
+        ThreadCache cache = threadCaches.get();
+        if (cache != null && cache.offer(block, threadCacheSize)) {
+            if (closed) {
+                // the pool was closed concurrently
+                ThreadCache.drain(this, cache.blocks, true);
+            }
+            return;
+        }
+        ConcurrentLinkedDeque<Block> list = freeLists.get(block.size);
+        if (list == null) {
+            ConcurrentLinkedDeque<Block> newList = new ConcurrentLinkedDeque<Block>();
+            list = freeLists.putIfAbsent(block.size, newList);
+            if (list == null) {
+                list = newList;
+            }
+        }
+        list.offerFirst(block);
+        if (closed) {
+            clear();
+        }
+    }
+
+    /**
+     * Native memory block.
+     */
+    private static class Block
+    {
+
+        // blocks must not keep the pool reachable, see ThreadCache
+        private final WeakReference<LargeArrayPool> pool;
+        private final long ptr;
+        private final long size;
+        private LargeArrayType type;
+
+        Block(LargeArrayPool pool, long ptr, long size, LargeArrayType type)
+        {
+            this.pool = new WeakReference<LargeArrayPool>(pool);
+            this.ptr = ptr;
+            this.size = size;
+            this.type = type;
+        }
+
+        /**
+         * Attributes the memory of the block to arrays of a given type.
+         */
+        void setType(LargeArrayType type)
+        {
+            if (type != this.type) {
+                MemoryCounter.decreaseCounter(this.type, size);
+                MemoryCounter.increaseCounter(type, size);
+                this.type = type;
+            }
+        }
+
+        void free()
+        {
+            MemoryBudget.freeMemory(ptr, size);
+            MemoryCounter.decreaseCounter(type, size);
+        }
+    }
+
+    /**
+     * Returns a block to the pool when its array is closed or garbage
+     * collected.
+     */
+    private static class Recycler implements Runnable
+    {
+
+        private final Block block;
+
+        Recycler(Block block)
+        {
+            this.block = block;
+        }
+
+        @Override
+        public void run()
+        {
+            LargeArrayPool pool = block.pool.get();
+            if (pool == null) {
+                block.free();
+            }
+            else {
+                pool.recycle(block);
+            }
+        }
+    }
+
+    /**
+     * Per-thread cache of blocks. When the owning thread dies and the cache is
+     * garbage collected, the cached blocks are moved to the shared free lists.
+     * The cache is the value of a ThreadLocal owned by the pool, so it must
+     * not reference the pool, otherwise the pool could never be collected.
+     */
+    private static class ThreadCache
+    {
+
+        private final Map<Long, ArrayDeque<Block>> blocks;
+
+        ThreadCache(LargeArrayPool pool)
+        {
+            blocks = new HashMap<Long, ArrayDeque<Block>>();
+            pool.caches.add(blocks);
+            Cleaner.create(this, new Drainer(pool, blocks));
+        }
+
+        Block poll(long size)
+        {
+            synchronized (blocks) {
+                ArrayDeque<Block> list = blocks.get(size);
+                return list == null ? null : list.pollFirst();
+            }
+        }
+
+        boolean offer(Block block, int maxBlocks)
+        {
+            synchronized (blocks) {
+                ArrayDeque<Block> list = blocks.get(block.size);
+                if (list == null) {
+                    list = new ArrayDeque<Block>();
+                    blocks.put(block.size, list);
+                }
+                if (list.size() >= maxBlocks) {
+                    return false;
+                }
+                list.offerFirst(block);
+                return true;
+            }
+        }
+
+        /**
+         * Moves all blocks to the shared free lists of the pool, or frees them
+         * if free is true or pool is null.
+         */
+        static void drain(LargeArrayPool pool, Map<Long, ArrayDeque<Block>> blocks, boolean free)
+        {
+            synchronized (blocks) {
+                for (Iterator<ArrayDeque<Block>> it = blocks.values().iterator(); it.hasNext();) {
+                    ArrayDeque<Block> list = it.next();
+                    Block block;
+                    while ((block = list.pollFirst()) != null) {
+                        if (pool != null) {
+                            pool.retainedBytes.addAndGet(-block.size);
+                        }
+                        if (free || pool == null) {
+                            block.free();
+                        }
+                        else {
+                            pool.recycle(block);
+                        }
+                    }
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Drains the cache of a thread that has died.
+     */
+    private static class Drainer implements Runnable
+    {
+
+        private final WeakReference<LargeArrayPool> pool;
+        private final Set<Map<Long, ArrayDeque<Block>>> caches;
+        private final Map<Long, ArrayDeque<Block>> blocks;
+
+        Drainer(LargeArrayPool pool, Map<Long, ArrayDeque<Block>> blocks)
+        {
+            this.pool = new WeakReference<LargeArrayPool>(pool);
+            this.caches = pool.caches;
+            this.blocks = blocks;
+        }
+
+        @Override
+        public void run()
+        {
+            caches.remove(blocks);
+            ThreadCache.drain(pool.get(), blocks, false);
+        }
+    }
+
+    /**
+     * Frees the retained blocks when the pool is garbage collected.
+     */
+    private static class Releaser implements Runnable
+    {
+
+        private final ConcurrentHashMap<Long, ConcurrentLinkedDeque<Block>> freeLists;
+        private final Set<Map<Long, ArrayDeque<Block>>> caches;
+
+        Releaser(ConcurrentHashMap<Long, ConcurrentLinkedDeque<Block>> freeLists, Set<Map<Long, ArrayDeque<Block>>> caches)
+        {
+            this.freeLists = freeLists;
+            this.caches = caches;
+        }
+
+        @Override
+        public void run()
+        {
+            for (Map<Long, ArrayDeque<Block>> blocks : caches) {
+                ThreadCache.drain(null, blocks, true);
+            }
+            for (ConcurrentLinkedDeque<Block> list : freeLists.values()) {
+                Block block;
+                while ((block = list.pollFirst()) != null) {
+                    block.free();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Asynchronous read-ahead for sequential scans of arrays stored in files.
+ * The scanned range is divided into blocks. While the consumer processes
+ * block N, blocks N+1, ..., N+depth are loaded by tasks submitted to the
+ * thread pool of ConcurrencyUtils:
+ * <ul>
+ * <li>for memory-mapped arrays every page of the block is touched, so that
+ * the page faults are taken by the background tasks,</li>
+ * <li>for instances of PagedLargeArray the pages of the block are loaded into
+ * the cache with PagedLargeArray.prefetch(),</li>
+ * <li>for views the corresponding range of the base array is loaded,</li>
+ * <li>for other arrays the data is already in memory and nothing is loaded.</li>
+ * </ul>
+ * Typical usage:
+ * <pre>
+ * try (LargeArrayPrefetcher p = new LargeArrayPrefetcher(a, 1 &lt;&lt; 20, 4)) {
+ *     while (p.next()) {
+ *         for (long i = p.getBlockStart(); i &lt; p.getBlockEnd(); i++) {
+ *             sum += a.getDouble(i);
+ *         }
+ *     }
+ * }
+ * </pre>
+ * The time that next() spends waiting for blocks that are not loaded yet is
+ * reported as the stall time. A stall time close to zero means that the scan
+ * is limited by the processing, not by the I/O. Instances of this class are
+ * not thread-safe.
+ *
+ * @author agent (agent@local)
+ */
+public class LargeArrayPrefetcher implements AutoCloseable
+{
+
+    // keeps the JIT from eliminating the reads of touched pages
+    private static volatile int touched;
+    private final LargeArray a;
+    private final long end;
+    private final long blockLength;
+    private final int depth;
+    private final ArrayDeque<Future<?>> pending = new ArrayDeque<Future<?>>();
+    private final AtomicLong loadTime = new AtomicLong();
+    private long submitted;
+    private long blockStart;
+    private long blockEnd;
+    private long blockCount = 0;
+    private long stallCount = 0;
+    private long stallTime = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a prefetcher for a sequential scan of a whole array.
+     *
+     * @param a           array
+     * @param blockLength number of elements in a block
+     * @param depth       number of blocks loaded ahead of the current one
+     */
+    public LargeArrayPrefetcher(LargeArray a, long blockLength, int depth)
+    {
+        this(a, 0, a.length(), blockLength, depth);
+    }
+
+    /**
+     * Creates a prefetcher for a sequential scan of the elements from start
+     * (inclusive) to end (exclusive).
+     *
+     * @param a           array
+     * @param start       index of the first element
+     * @param end         index after the last element
+     * @param blockLength number of elements in a block
+     * @param depth       number of blocks loaded ahead of the current one
+     */
+    public LargeArrayPrefetcher(LargeArray a, long start, long end, long blockLength, int depth)
+    {
+        if (start < 0 || end > a.length() || end < start) {
+            throw new ArrayIndexOutOfBoundsException("start < 0 || end > a.length() || end < start");
+        }
+        if (blockLength < 1) {
+            throw new IllegalArgumentException("blockLength has to be positive");
+        }
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth < 0");
+        }
+        this.a = a;
+        this.end = end;
+        this.blockLength = blockLength;
+        this.depth = depth;
+        this.submitted = start;
+        this.blockStart = start;
+        this.blockEnd = start;
+    }
+
+    /**
+     * Advances to the next block, waiting until it is loaded, and starts
+     * loading the following blocks.
+     *
+     * @return true if there is a next block, false if the scan is complete
+     *
+     * @throws IOException if loading of the block failed
+     */
+    public boolean next() throws IOException
+    {
+        if (closed) {
+            throw new IllegalStateException("The prefetcher has been closed.");
+        }
+        if (blockEnd >= end) {
+            return false;
+        }
+        blockStart = blockEnd;
+        blockEnd = Math.min(end, blockStart + blockLength);
+        while (submitted < end && pending.size() <= depth) {
+            final long first = submitted;
+            final long len = Math.min(end - first, blockLength);
+            pending.add(ConcurrencyUtils.submit(new Callable<Void>()
+            {
+                @Override
+                public Void call() throws IOException
+                {
+                    long t = System.nanoTime();
+                    load(first, len);
+                    loadTime.addAndGet(System.nanoTime() - t);
+                    return null;
+                }
+            }));
+            submitted += len;
+        }
+        Future<?> current = pending.poll();
+        if (!current.isDone()) {
+            long t = System.nanoTime();
+            ConcurrencyUtils.waitForIOCompletion(new Future<?>[]{current});
+            stallTime += System.nanoTime() - t;
+            stallCount++;
+        } else {
+            ConcurrencyUtils.waitForIOCompletion(new Future<?>[]{current});
+        }
+        blockCount++;
+        return true;
+    }
+
+    private void load(long first, long len) throws IOException
+    {
+        LargeArray b = a;
+        if (a instanceof LargeArrayView) {
+            LargeArrayView v = (LargeArrayView) a;
+            b = v.getBase();
+            // with a negative stride the last element of the block comes first in the base array
+            long from = v.getOffset() + first * v.getStride();
+            long to = v.getOffset() + (first + len - 1) * v.getStride();
+            first = Math.min(from, to);
+            len = Math.abs(to - from) + 1;
+        }
+        if (b instanceof PagedLargeArray) {
+            ((PagedLargeArray) b).prefetch(first, len);
+        } else if (b.isMemoryMapped() && b.nativePointer() != 0) {
+            long pageSize = Utilities.UNSAFE.pageSize();
+            long address = b.nativePointer() + first * b.sizeof;
+            long last = address + len * b.sizeof;
+            int sum = 0;
+            for (long p = address; p < last; p += pageSize) {
+                sum += Utilities.UNSAFE.getByte(p);
+            }
+            sum += Utilities.UNSAFE.getByte(last - 1);
+            touched = sum;
+        }
+    }
+
+    /**
+     * Returns the index of the first element of the current block.
+     *
+     * @return the index of the first element of the current block
+     */
+    public long getBlockStart()
+    {
+        return blockStart;
+    }
+
+    /**
+     * Returns the index after the last element of the current block.
+     *
+     * @return the index after the last element of the current block
+     */
+    public long getBlockEnd()
+    {
+        return blockEnd;
+    }
+
+    /**
+     * Returns the number of blocks returned by next().
+     *
+     * @return the number of blocks
+     */
+    public long getBlockCount()
+    {
+        return blockCount;
+    }
+
+    /**
+     * Returns the number of calls to next() that had to wait for a block.
+     *
+     * @return the number of stalls
+     */
+    public long getStallCount()
+    {
+        return stallCount;
+    }
+
+    /**
+     * Returns the total time spent in next() waiting for blocks, in
+     * nanoseconds.
+     *
+     * @return the stall time in nanoseconds
+     */
+    public long getStallTime()
+    {
+        return stallTime;
+    }
+
+    /**
+     * Returns the total time spent by the background tasks loading blocks, in
+     * nanoseconds.
+     *
+     * @return the load time in nanoseconds
+     */
+    public long getLoadTime()
+    {
+        return loadTime.get();
+    }
+
+    /**
+     * Cancels loading of the blocks that have not been started yet and waits
+     * for the tasks that are already running, so that the array can be safely
+     * closed afterwards.
+     */
+    @Override
+    public void close()
+    {
+        if (!closed) {
+            closed = true;
+            Future<?>[] futures = pending.toArray(new Future<?>[pending.size()]);
+            for (Future<?> f : futures) {
+                f.cancel(false);
+            }
+            ConcurrencyUtils.drain(futures);
+            pending.clear();
+        }
+    }
+}
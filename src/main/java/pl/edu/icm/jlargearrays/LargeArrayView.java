@@ -0,0 +1,513 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ *
+ * A view of selected elements of another array, created by
+ * LargeArray.view(). The element i of a view is the element offset + i *
+ * stride of its base array. Views share the storage of their base arrays, so
+ * no data is copied. They are read-only or constant if their base arrays are.
+ *
+ * @author agent (agent@local)
+ */
+public class LargeArrayView extends LargeArray
+{
+
+    private static final long serialVersionUID = 2870339458146226507L;
+    private final LargeArray base;
+    private final long offset;
+    private final long stride;
+
+    LargeArrayView(LargeArray base, long offset, long length, long stride)
+    {
+        this.base = base;
+        this.parent = base;
+        this.offset = offset;
+        this.stride = stride;
+        this.type = base.getType();
+        this.sizeof = base.sizeof;
+        this.length = length;
+        this.isConstant = base.isConstant();
+        this.readOnly = base.isReadOnly();
+    }
+
+    /**
+     * Returns the array viewed by this view.
+     *
+     * @return the base array
+     */
+    public LargeArray getBase()
+    {
+        return base;
+    }
+
+    /**
+     * Returns the index of the first element of this view in the base array.
+     *
+     * @return the offset of this view
+     */
+    public long getOffset()
+    {
+        return offset;
+    }
+
+    /**
+     * Returns the distance between consecutive elements of this view in the
+     * base array.
+     *
+     * @return the stride of this view
+     */
+    public long getStride()
+    {
+        return stride;
+    }
+
+    /**
+     * Returns true if the elements of this view are stored contiguously in
+     * the memory of the base array, i.e. they can be accessed through
+     * Utilities.getMemoryBase() and Utilities.getMemoryOffset().
+     *
+     * @return true if the elements are stored contiguously, false otherwise
+     */
+    boolean isContiguous()
+    {
+        return stride == 1 && type != LargeArrayType.BIT && type != LargeArrayType.STRING && Utilities.isContiguous(base);
+    }
+
+    private long index(long i)
+    {
+        return offset + i * stride;
+    }
+
+    /**
+     * Returns a view of this view. The returned view is a view of the base
+     * array.
+     */
+    @Override
+    public LargeArray view(long offset, long length, long stride)
+    {
+        ensureOpen();
+        checkView(offset, length, stride);
+        return base.view(index(offset), length, stride * this.stride);
+    }
+
+    /**
+     * Returns a deep copy of this view, i.e. a new array of the same type
+     * containing the elements of this view.
+     *
+     * @return a copy of this view
+     */
+    @Override
+    public LargeArray clone()
+    {
+        LargeArray v = Utilities.create(type, length, false);
+        Utilities.arraycopy(this, 0, v, 0, length);
+        return v;
+    }
+
+    @Override
+    long transfer(FileChannel channel, long position, long pos, long len, boolean write) throws IOException
+    {
+        if (stride == 1) {
+            return base.transfer(channel, position, index(pos), len, write);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(1 << 20, len * sizeof) / (int) sizeof * (int) sizeof).order(ByteOrder.nativeOrder());
+        for (long done = 0; done < len;) {
+            int n = (int) Math.min(buffer.capacity() / sizeof, len - done);
+            buffer.clear().limit((int) (n * sizeof));
+            if (write) {
+                for (int j = 0; j < n; j++) {
+                    putElement(buffer, pos + done + j);
+                }
+                buffer.flip();
+                LargeArrayIO.writeFully(channel, buffer, position + done * sizeof);
+            } else {
+                LargeArrayIO.readFully(channel, buffer, position + done * sizeof);
+                buffer.flip();
+                for (int j = 0; j < n; j++) {
+                    getElement(buffer, pos + done + j);
+                }
+            }
+            done += n;
+        }
+        return len * sizeof;
+    }
+
+    private void putElement(ByteBuffer buffer, long i)
+    {
+        switch (type) {
+            case BYTE:
+                buffer.put(getByte(i));
+                break;
+            case SHORT:
+                buffer.putShort(getShort(i));
+                break;
+            case INT:
+                buffer.putInt(getInt(i));
+                break;
+            case LONG:
+                buffer.putLong(getLong(i));
+                break;
+            case FLOAT:
+                buffer.putFloat(getFloat(i));
+                break;
+            default:
+                buffer.putDouble(getDouble(i));
+                break;
+        }
+    }
+
+    private void getElement(ByteBuffer buffer, long i)
+    {
+        switch (type) {
+            case BYTE:
+                setByte(i, buffer.get());
+                break;
+            case SHORT:
+                setShort(i, buffer.getShort());
+                break;
+            case INT:
+                setInt(i, buffer.getInt());
+                break;
+            case LONG:
+                setLong(i, buffer.getLong());
+                break;
+            case FLOAT:
+                setFloat(i, buffer.getFloat());
+                break;
+            default:
+                setDouble(i, buffer.getDouble());
+                break;
+        }
+    }
+
+    @Override
+    public Object get(long i)
+    {
+        return base.get(index(i));
+    }
+
+    @Override
+    public Object getFromNative(long i)
+    {
+        return base.get(index(i));
+    }
+
+    @Override
+    public boolean getBoolean(long i)
+    {
+        return base.getBoolean(index(i));
+    }
+
+    @Override
+    public byte getByte(long i)
+    {
+        return base.getByte(index(i));
+    }
+
+    @Override
+    public short getShort(long i)
+    {
+        return base.getShort(index(i));
+    }
+
+    @Override
+    public int getInt(long i)
+    {
+        return base.getInt(index(i));
+    }
+
+    @Override
+    public long getLong(long i)
+    {
+        return base.getLong(index(i));
+    }
+
+    @Override
+    public float getFloat(long i)
+    {
+        return base.getFloat(index(i));
+    }
+
+    @Override
+    public double getDouble(long i)
+    {
+        return base.getDouble(index(i));
+    }
+
+    /**
+     * Views do not have internal data arrays.
+     *
+     * @return null
+     */
+    @Override
+    public Object getData()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean[] getBooleanData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getBooleanData(null, 0, length, 1);
+    }
+
+    @Override
+    public boolean[] getBooleanData(boolean[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        if (stride > 0) {
+            return base.getBooleanData(a, index(startPos), index(endPos - 1) + 1, step * stride);
+        }
+        boolean[] out = a != null && a.length >= len ? a : new boolean[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getBoolean(i);
+        }
+        return out;
+    }
+
+    @Override
+    public byte[] getByteData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getByteData(null, 0, length, 1);
+    }
+
+    @Override
+    public byte[] getByteData(byte[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        if (stride > 0) {
+            return base.getByteData(a, index(startPos), index(endPos - 1) + 1, step * stride);
+        }
+        byte[] out = a != null && a.length >= len ? a : new byte[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getByte(i);
+        }
+        return out;
+    }
+
+    @Override
+    public short[] getShortData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getShortData(null, 0, length, 1);
+    }
+
+    @Override
+    public short[] getShortData(short[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        if (stride > 0) {
+            return base.getShortData(a, index(startPos), index(endPos - 1) + 1, step * stride);
+        }
+        short[] out = a != null && a.length >= len ? a : new short[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getShort(i);
+        }
+        return out;
+    }
+
+    @Override
+    public int[] getIntData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getIntData(null, 0, length, 1);
+    }
+
+    @Override
+    public int[] getIntData(int[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        if (stride > 0) {
+            return base.getIntData(a, index(startPos), index(endPos - 1) + 1, step * stride);
+        }
+        int[] out = a != null && a.length >= len ? a : new int[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getInt(i);
+        }
+        return out;
+    }
+
+    @Override
+    public long[] getLongData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getLongData(null, 0, length, 1);
+    }
+
+    @Override
+    public long[] getLongData(long[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        if (stride > 0) {
+            return base.getLongData(a, index(startPos), index(endPos - 1) + 1, step * stride);
+        }
+        long[] out = a != null && a.length >= len ? a : new long[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getLong(i);
+        }
+        return out;
+    }
+
+    @Override
+    public float[] getFloatData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getFloatData(null, 0, length, 1);
+    }
+
+    @Override
+    public float[] getFloatData(float[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        if (stride > 0) {
+            return base.getFloatData(a, index(startPos), index(endPos - 1) + 1, step * stride);
+        }
+        float[] out = a != null && a.length >= len ? a : new float[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getFloat(i);
+        }
+        return out;
+    }
+
+    @Override
+    public double[] getDoubleData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getDoubleData(null, 0, length, 1);
+    }
+
+    @Override
+    public double[] getDoubleData(double[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        if (stride > 0) {
+            return base.getDoubleData(a, index(startPos), index(endPos - 1) + 1, step * stride);
+        }
+        double[] out = a != null && a.length >= len ? a : new double[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getDouble(i);
+        }
+        return out;
+    }
+
+    /**
+     * Checks the arguments of getXXXData methods and returns the number of
+     * elements to copy or -1 if it is larger than getMaxSizeOf32bitArray().
+     */
+    private int checkData(long startPos, long endPos, long step)
+    {
+        if (startPos < 0 || startPos >= length) {
+            throw new ArrayIndexOutOfBoundsException("startPos < 0 || startPos >= length");
+        }
+        if (endPos < 0 || endPos > length || endPos < startPos) {
+            throw new ArrayIndexOutOfBoundsException("endPos < 0 || endPos > length || endPos < startPos");
+        }
+        if (step < 1) {
+            throw new IllegalArgumentException("step < 1");
+        }
+        long len = (long) Math.ceil((endPos - startPos) / (double) step);
+        return len > getMaxSizeOf32bitArray() ? -1 : (int) len;
+    }
+
+    @Override
+    public void setToNative(long i, Object value)
+    {
+        base.set(index(i), value);
+    }
+
+    @Override
+    public void setBoolean(long i, boolean value)
+    {
+        base.setBoolean(index(i), value);
+    }
+
+    @Override
+    public void setByte(long i, byte value)
+    {
+        base.setByte(index(i), value);
+    }
+
+    @Override
+    public void setShort(long i, short value)
+    {
+        base.setShort(index(i), value);
+    }
+
+    @Override
+    public void setInt(long i, int value)
+    {
+        base.setInt(index(i), value);
+    }
+
+    @Override
+    public void setLong(long i, long value)
+    {
+        base.setLong(index(i), value);
+    }
+
+    @Override
+    public void setFloat(long i, float value)
+    {
+        base.setFloat(index(i), value);
+    }
+
+    @Override
+    public void setDouble(long i, double value)
+    {
+        base.setDouble(index(i), value);
+    }
+}
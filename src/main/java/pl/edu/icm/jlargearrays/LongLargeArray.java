@@ -26,7 +26,8 @@
  * ***** END LICENSE BLOCK ***** */
 package pl.edu.icm.jlargearrays;
 
-import sun.misc.Cleaner;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 
 /**
  *
@@ -39,6 +40,7 @@ public class LongLargeArray extends LargeArray
 
     private static final long serialVersionUID = -2579271120060523901L;
     private long[] data;
+    private long[][] segments;
 
     /**
      * Creates new instance of this class by wrapping a native pointer.
@@ -77,6 +79,20 @@ public class LongLargeArray extends LargeArray
      * @param zeroNativeMemory if true, then the native memory is zeroed.
      */
     public LongLargeArray(long length, boolean zeroNativeMemory)
+    {
+        this(length, zeroNativeMemory, SEGMENTED_HEAP);
+    }
+
+    /**
+     * Creates new instance of this class.
+     *
+     * @param length           number of elements
+     * @param zeroNativeMemory if true, then the native memory is zeroed.
+     * @param segmented        if true, then an array larger than
+     *                         getMaxSizeOf32bitArray() is stored on the heap
+     *                         in segments instead of the native memory.
+     */
+    public LongLargeArray(long length, boolean zeroNativeMemory, boolean segmented)
     {
         this.type = LargeArrayType.LONG;
         this.sizeof = 8;
@@ -85,13 +101,14 @@ public class LongLargeArray extends LargeArray
         }
         this.length = length;
         if (length > LARGEST_32BIT_INDEX) {
-            System.gc();
-            this.ptr = Utilities.UNSAFE.allocateMemory(this.length * this.sizeof);
-            if (zeroNativeMemory) {
-                zeroNativeMemory(length);
+            if (segmented) {
+                segments = new long[initSegments()][];
+                for (int j = 0; j < segments.length; j++) {
+                    segments[j] = new long[segmentLength(j)];
+                }
+            } else {
+                allocateNativeMemory(this.length, zeroNativeMemory);
             }
-            Cleaner.create(this, new Deallocator(this.ptr, this.length, this.sizeof));
-            MemoryCounter.increaseCounter(this.length * this.sizeof);
         } else {
             data = new long[(int) length];
         }
@@ -99,7 +116,7 @@ public class LongLargeArray extends LargeArray
 
     public LongLargeArray(long length, long constantValue)
     {
-        this.type = LargeArrayType.DOUBLE;
+        this.type = LargeArrayType.LONG;
         this.sizeof = 8;
         if (length <= 0) {
             throw new IllegalArgumentException(length + " is not a positive long value");
@@ -133,12 +150,18 @@ public class LongLargeArray extends LargeArray
         if (isConstant()) {
             return new LongLargeArray(length, getLong(0));
         } else {
-            LongLargeArray v = new LongLargeArray(length, false);
+            LongLargeArray v = new LongLargeArray(length, false, isSegmented());
             Utilities.arraycopy(this, 0, v, 0, length);
             return v;
         }
     }
 
+    @Override
+    long[][] getSegments()
+    {
+        return segments;
+    }
+
     @Override
     public Long get(long i)
     {
@@ -156,6 +179,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (Utilities.UNSAFE.getLong(ptr + sizeof * i)) != 0;
+        } else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]) != 0;
         } else {
             if (isConstant()) {
                 return data[0] != 0;
@@ -170,6 +195,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (byte) (Utilities.UNSAFE.getLong(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (byte) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (byte) data[0];
@@ -184,6 +211,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (short) (Utilities.UNSAFE.getLong(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (short) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (short) data[0];
@@ -198,6 +227,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (int) (Utilities.UNSAFE.getLong(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (int) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (int) data[0];
@@ -213,6 +244,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return Utilities.UNSAFE.getLong(ptr + sizeof * i);
+        } else if (segments != null) {
+            return segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)];
         } else {
             if (isConstant()) {
                 return data[0];
@@ -227,6 +260,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (Utilities.UNSAFE.getLong(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return data[0];
@@ -241,6 +276,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (Utilities.UNSAFE.getLong(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return data[0];
@@ -253,7 +290,7 @@ public class LongLargeArray extends LargeArray
     @Override
     public long[] getData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -269,10 +306,40 @@ public class LongLargeArray extends LargeArray
         }
     }
 
+    /**
+     * Returns a LongBuffer that shares length elements of this array, starting
+     * at offset. No data is copied: for arrays stored in the native memory
+     * the returned buffer is a view of a direct ByteBuffer aliasing that
+     * memory (see asByteBuffer()), otherwise it wraps the internal Java
+     * array.
+     *
+     * @param offset index of the first element
+     * @param length number of elements
+     *
+     * @return the buffer
+     */
+    public LongBuffer asLongBuffer(long offset, int length)
+    {
+        checkBuffer(offset, length);
+        if (ptr != 0) {
+            return asByteBuffer(offset, length).asLongBuffer();
+        }
+        if (segments != null) {
+            long[] segment = segments[(int) (offset >>> segmentShift)];
+            if ((offset & segmentMask) + length > segment.length) {
+                throw new UnsupportedOperationException("The elements are not stored in a single segment.");
+            }
+            LongBuffer buffer = LongBuffer.wrap(segment, (int) (offset & segmentMask), length).slice();
+            return readOnly ? buffer.asReadOnlyBuffer() : buffer;
+        }
+        LongBuffer buffer = LongBuffer.wrap(data, (int) offset, length).slice();
+        return readOnly ? buffer.asReadOnlyBuffer() : buffer;
+    }
+
     @Override
     public boolean[] getBooleanData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -318,7 +385,11 @@ public class LongLargeArray extends LargeArray
                 out = new boolean[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getBoolean(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     long v = Utilities.UNSAFE.getLong(ptr + sizeof * i);
                     out[idx++] = v != 0;
@@ -342,7 +413,7 @@ public class LongLargeArray extends LargeArray
     @Override
     public byte[] getByteData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -388,7 +459,11 @@ public class LongLargeArray extends LargeArray
                 out = new byte[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getByte(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (byte) Utilities.UNSAFE.getLong(ptr + sizeof * i);
                 }
@@ -410,7 +485,7 @@ public class LongLargeArray extends LargeArray
     @Override
     public short[] getShortData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -456,7 +531,11 @@ public class LongLargeArray extends LargeArray
                 out = new short[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getShort(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (short) Utilities.UNSAFE.getLong(ptr + sizeof * i);
                 }
@@ -478,7 +557,7 @@ public class LongLargeArray extends LargeArray
     @Override
     public int[] getIntData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -524,7 +603,11 @@ public class LongLargeArray extends LargeArray
                 out = new int[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getInt(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (int) Utilities.UNSAFE.getLong(ptr + sizeof * i);
                 }
@@ -546,7 +629,7 @@ public class LongLargeArray extends LargeArray
     @Override
     public long[] getLongData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -587,9 +670,17 @@ public class LongLargeArray extends LargeArray
                 out = new long[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
                 for (long i = startPos; i < endPos; i += step) {
-                    out[idx++] = Utilities.UNSAFE.getLong(ptr + sizeof * i);
+                    out[idx++] = getLong(i);
+                }
+            } else if (ptr != 0) {
+                if (step == 1) {
+                    Utilities.copyMemory(null, ptr + sizeof * startPos, out, Utilities.UNSAFE.arrayBaseOffset(long[].class), len, sizeof);
+                } else {
+                    for (long i = startPos; i < endPos; i += step) {
+                        out[idx++] = Utilities.UNSAFE.getLong(ptr + sizeof * i);
+                    }
                 }
             } else {
                 if (isConstant()) {
@@ -597,8 +688,12 @@ public class LongLargeArray extends LargeArray
                         out[idx++] = data[0];
                     }
                 } else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[(int) i];
+                    if (step == 1) {
+                        System.arraycopy(data, (int) startPos, out, 0, (int) len);
+                    } else {
+                        for (long i = startPos; i < endPos; i += step) {
+                            out[idx++] = data[(int) i];
+                        }
                     }
                 }
             }
@@ -609,7 +704,7 @@ public class LongLargeArray extends LargeArray
     @Override
     public float[] getFloatData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -655,7 +750,11 @@ public class LongLargeArray extends LargeArray
                 out = new float[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getFloat(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getLong(ptr + sizeof * i);
                 }
@@ -677,7 +776,7 @@ public class LongLargeArray extends LargeArray
     @Override
     public double[] getDoubleData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -723,7 +822,11 @@ public class LongLargeArray extends LargeArray
                 out = new double[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getDouble(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = Utilities.UNSAFE.getLong(ptr + sizeof * i);
                 }
@@ -742,6 +845,85 @@ public class LongLargeArray extends LargeArray
         }
     }
 
+    /**
+     * Copies len elements of this array, beginning at srcPos, to the
+     * specified position of the destination array. Array bounds are checked.
+     *
+     * @param srcPos starting position in this array.
+     * @param dst    the destination array.
+     * @param dstOff starting position in the destination array.
+     * @param len    the number of elements to be copied.
+     */
+    public void get(long srcPos, long[] dst, int dstOff, int len)
+    {
+        ensureOpen();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (srcPos < 0 || srcPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos + len > length");
+        }
+        if (dstOff < 0 || (long) dstOff + len > dst.length) {
+            throw new ArrayIndexOutOfBoundsException("dstOff < 0 || dstOff + len > dst.length");
+        }
+        if (segments != null) {
+            for (int done = 0; done < len;) {
+                long i = srcPos + done;
+                long[] segment = segments[(int) (i >>> segmentShift)];
+                int n = (int) Math.min(len - done, segment.length - (i & segmentMask));
+                System.arraycopy(segment, (int) (i & segmentMask), dst, dstOff + done, n);
+                done += n;
+            }
+        } else if (ptr != 0) {
+            Utilities.copyMemory(null, ptr + sizeof * srcPos, dst, Utilities.UNSAFE.arrayBaseOffset(long[].class) + sizeof * dstOff, len, sizeof);
+        } else {
+            if (isConstant()) {
+                Arrays.fill(dst, dstOff, dstOff + len, data[0]);
+            } else {
+                System.arraycopy(data, (int) srcPos, dst, dstOff, len);
+            }
+        }
+    }
+
+    /**
+     * Copies len elements of the source array, beginning at srcOff, to the
+     * specified position of this array. Array bounds are checked.
+     *
+     * @param dstPos starting position in this array.
+     * @param src    the source array.
+     * @param srcOff starting position in the source array.
+     * @param len    the number of elements to be copied.
+     */
+    public void set(long dstPos, long[] src, int srcOff, int len)
+    {
+        ensureWritable();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (dstPos < 0 || dstPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("dstPos < 0 || dstPos + len > length");
+        }
+        if (srcOff < 0 || (long) srcOff + len > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcOff < 0 || srcOff + len > src.length");
+        }
+        if (segments != null) {
+            for (int done = 0; done < len;) {
+                long i = dstPos + done;
+                long[] segment = segments[(int) (i >>> segmentShift)];
+                int n = (int) Math.min(len - done, segment.length - (i & segmentMask));
+                System.arraycopy(src, srcOff + done, segment, (int) (i & segmentMask), n);
+                done += n;
+            }
+        } else if (ptr != 0) {
+            Utilities.copyMemory(src, Utilities.UNSAFE.arrayBaseOffset(long[].class) + sizeof * srcOff, null, ptr + sizeof * dstPos, len, sizeof);
+        } else {
+            if (isConstant()) {
+                throw new IllegalAccessError("Constant arrays cannot be modified.");
+            }
+            System.arraycopy(src, srcOff, data, (int) dstPos, len);
+        }
+    }
+
     @Override
     public void setToNative(long i, Object value)
     {
@@ -753,6 +935,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putLong(ptr + sizeof * i, value == true ? 1 : 0);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value == true ? 1 : 0;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -766,6 +950,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putLong(ptr + sizeof * i, value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -779,6 +965,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putLong(ptr + sizeof * i, value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -792,6 +980,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putLong(ptr + sizeof * i, value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -805,6 +995,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putLong(ptr + sizeof * i, value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -818,6 +1010,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putLong(ptr + sizeof * i, (long) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (long) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -831,6 +1025,8 @@ public class LongLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putLong(ptr + sizeof * i, (long) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (long) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -0,0 +1,444 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Global limit of native memory allocated by large arrays.
+ *
+ * All native large arrays reserve their memory through this class. When an
+ * allocation would exceed the limit, the registered reclaim callback (if any)
+ * is invoked first. If the memory is still not available, the allocating
+ * thread waits up to the wait timeout for memory released by other arrays.
+ * Finally, MemoryBudgetExceededException is thrown. With the default wait
+ * timeout of zero the allocation fails fast.
+ *
+ * By default there is no limit.
+ *
+ * Before native memory is allocated, the garbage collector may be run
+ * according to the GCPolicy set by setGCPolicy(). The number of collections
+ * triggered by each policy is available through the getXxxGCCount() methods.
+ *
+ * @author agent (agent@local)
+ */
+public class MemoryBudget
+{
+
+    /**
+     * Callback invoked when an allocation would exceed the limit.
+     */
+    public interface ReclaimCallback
+    {
+
+        /**
+         * Called when an allocation would exceed the limit. Implementations
+         * should release native memory held by the application, e.g. by
+         * closing cached arrays.
+         *
+         * @param requested number of bytes requested
+         * @param available number of bytes available
+         */
+        void reclaim(long requested, long available);
+    }
+
+    private static final Object LOCK = new Object();
+
+    private static final AtomicLong reserved = new AtomicLong();
+
+    private static final AtomicInteger waiters = new AtomicInteger();
+
+    private static volatile long limit = Long.MAX_VALUE;
+
+    private static volatile long waitTimeout = 0;
+
+    private static volatile ReclaimCallback reclaimCallback = null;
+
+    private static volatile GCPolicy gcPolicy = GCPolicy.ON_FAILURE;
+
+    private static volatile long gcThreshold = Long.MAX_VALUE;
+
+    private static final AtomicLong failureGCCount = new AtomicLong();
+
+    private static final AtomicLong thresholdGCCount = new AtomicLong();
+
+    private static final AtomicLong waitGCCount = new AtomicLong();
+
+    /**
+     * Maximal number of retries of a failed allocation under the ON_FAILURE
+     * policy. The delay between consecutive retries doubles, starting from 1
+     * ms.
+     */
+    private static final int MAX_RETRIES = 6;
+
+    private MemoryBudget()
+    {
+    }
+
+    /**
+     * Returns the maximal number of bytes of native memory that can be
+     * allocated by large arrays.
+     *
+     * @return the memory limit
+     */
+    public static long getLimit()
+    {
+        return limit;
+    }
+
+    /**
+     * Sets the maximal number of bytes of native memory that can be allocated
+     * by large arrays. Use Long.MAX_VALUE to remove the limit. Memory that is
+     * already allocated is not affected.
+     *
+     * @param bytes the memory limit
+     */
+    public static void setLimit(long bytes)
+    {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException(bytes + " is not a positive long value");
+        }
+        limit = bytes;
+        signal();
+    }
+
+    /**
+     * Returns the number of bytes of native memory reserved by large arrays.
+     *
+     * @return the number of bytes reserved
+     */
+    public static long getReserved()
+    {
+        return reserved.get();
+    }
+
+    /**
+     * Returns the number of bytes of native memory that can be allocated
+     * without exceeding the limit.
+     *
+     * @return the number of bytes available
+     */
+    public static long getAvailable()
+    {
+        return Math.max(0, limit - reserved.get());
+    }
+
+    /**
+     * Returns the maximal time (in milliseconds) that an allocation waits for
+     * memory to be released.
+     *
+     * @return the wait timeout in milliseconds
+     */
+    public static long getWaitTimeout()
+    {
+        return waitTimeout;
+    }
+
+    /**
+     * Sets the maximal time (in milliseconds) that an allocation waits for
+     * memory to be released. Zero means that allocations fail immediately.
+     *
+     * @param millis the wait timeout in milliseconds
+     */
+    public static void setWaitTimeout(long millis)
+    {
+        if (millis < 0) {
+            throw new IllegalArgumentException(millis + " is not a non-negative long value");
+        }
+        waitTimeout = millis;
+    }
+
+    /**
+     * Returns the reclaim callback.
+     *
+     * @return the reclaim callback or null
+     */
+    public static ReclaimCallback getReclaimCallback()
+    {
+        return reclaimCallback;
+    }
+
+    /**
+     * Sets the callback invoked when an allocation would exceed the limit.
+     *
+     * @param callback the reclaim callback, can be null
+     */
+    public static void setReclaimCallback(ReclaimCallback callback)
+    {
+        reclaimCallback = callback;
+    }
+
+    /**
+     * Returns the policy of running the garbage collector before native memory
+     * is allocated.
+     *
+     * @return the GC policy
+     */
+    public static GCPolicy getGCPolicy()
+    {
+        return gcPolicy;
+    }
+
+    /**
+     * Sets the policy of running the garbage collector before native memory is
+     * allocated. The default policy is ON_FAILURE.
+     *
+     * @param policy the GC policy
+     */
+    public static void setGCPolicy(GCPolicy policy)
+    {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
+        gcPolicy = policy;
+    }
+
+    /**
+     * Returns the number of bytes of native memory above which the garbage
+     * collector is run under the ABOVE_THRESHOLD policy.
+     *
+     * @return the GC threshold
+     */
+    public static long getGCThreshold()
+    {
+        return gcThreshold;
+    }
+
+    /**
+     * Sets the number of bytes of native memory above which the garbage
+     * collector is run under the ABOVE_THRESHOLD policy.
+     *
+     * @param bytes the GC threshold
+     */
+    public static void setGCThreshold(long bytes)
+    {
+        if (bytes < 0) {
+            throw new IllegalArgumentException(bytes + " is not a non-negative long value");
+        }
+        gcThreshold = bytes;
+    }
+
+    /**
+     * Returns the number of times the garbage collector was run because an
+     * allocation failed.
+     *
+     * @return the number of collections triggered by failed allocations
+     */
+    public static long getFailureGCCount()
+    {
+        return failureGCCount.get();
+    }
+
+    /**
+     * Returns the number of times the garbage collector was run because the
+     * GC threshold was exceeded.
+     *
+     * @return the number of collections triggered by the GC threshold
+     */
+    public static long getThresholdGCCount()
+    {
+        return thresholdGCCount.get();
+    }
+
+    /**
+     * Returns the number of times the garbage collector was run by allocations
+     * waiting for memory within the limit.
+     *
+     * @return the number of collections triggered by waiting allocations
+     */
+    public static long getWaitGCCount()
+    {
+        return waitGCCount.get();
+    }
+
+    /**
+     * Resets all GC counters to zero.
+     */
+    public static void resetGCCounts()
+    {
+        failureGCCount.set(0);
+        thresholdGCCount.set(0);
+        waitGCCount.set(0);
+    }
+
+    /**
+     * Reserves the given number of bytes, allocates native memory and returns
+     * its address.
+     *
+     * @param bytes number of bytes
+     *
+     * @return address of the allocated memory
+     *
+     * @throws MemoryBudgetExceededException if the memory cannot be reserved
+     */
+    public static long allocateMemory(long bytes)
+    {
+        GCPolicy policy = gcPolicy;
+        if (policy == GCPolicy.ABOVE_THRESHOLD && MemoryCounter.getCounter() + bytes > gcThreshold) {
+            thresholdGCCount.incrementAndGet();
+            System.gc();
+        }
+        reserve(bytes);
+        try {
+            return Utilities.UNSAFE.allocateMemory(bytes);
+        }
+        catch (OutOfMemoryError ex) {
+            if (policy == GCPolicy.ON_FAILURE) {
+                failureGCCount.incrementAndGet();
+                System.gc();
+                long sleep = 1;
+                for (int i = 0; i < MAX_RETRIES; i++) {
+                    try {
+                        return Utilities.UNSAFE.allocateMemory(bytes);
+                    }
+                    catch (OutOfMemoryError e) {
+                        try {
+                            // give the Cleaners some time to release memory
+                            Thread.sleep(sleep);
+                        }
+                        catch (InterruptedException ie) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                        sleep <<= 1;
+                    }
+                }
+            }
+            release(bytes);
+            throw ex;
+        }
+    }
+
+    /**
+     * Frees native memory allocated by allocateMemory() and releases its
+     * reservation.
+     *
+     * @param ptr   address of the memory
+     * @param bytes number of bytes
+     */
+    public static void freeMemory(long ptr, long bytes)
+    {
+        Utilities.UNSAFE.freeMemory(ptr);
+        release(bytes);
+    }
+
+    /**
+     * Reserves the given number of bytes without allocating memory.
+     *
+     * @param bytes number of bytes
+     *
+     * @throws MemoryBudgetExceededException if the memory cannot be reserved
+     */
+    public static void reserve(long bytes)
+    {
+        if (bytes < 0) {
+            throw new IllegalArgumentException(bytes + " is not a non-negative long value");
+        }
+        if (tryReserve(bytes)) {
+            return;
+        }
+        ReclaimCallback callback = reclaimCallback;
+        if (callback != null) {
+            callback.reclaim(bytes, getAvailable());
+            if (tryReserve(bytes)) {
+                return;
+            }
+        }
+        long timeout = waitTimeout;
+        if (timeout > 0 && bytes <= limit) {
+            if (gcPolicy != GCPolicy.NEVER) {
+                // unreachable arrays release their memory only after they are collected
+                waitGCCount.incrementAndGet();
+                System.gc();
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            boolean success = false;
+            waiters.incrementAndGet();
+            try {
+                synchronized (LOCK) {
+                    while (!(success = tryReserve(bytes))) {
+                        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        try {
+                            LOCK.wait(remaining);
+                        }
+                        catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                            break;
+                        }
+                    }
+                }
+            }
+            finally {
+                waiters.decrementAndGet();
+            }
+            if (success) {
+                return;
+            }
+        }
+        throw new MemoryBudgetExceededException(bytes, reserved.get(), limit);
+    }
+
+    /**
+     * Releases the reservation of the given number of bytes.
+     *
+     * @param bytes number of bytes
+     */
+    public static void release(long bytes)
+    {
+        reserved.addAndGet(-bytes);
+        signal();
+    }
+
+    private static boolean tryReserve(long bytes)
+    {
+        long l = limit;
+        while (true) {
+            long current = reserved.get();
+            long next = current + bytes;
+            if (next > l || next < 0) {
+                return false;
+            }
+            if (reserved.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    private static void signal()
+    {
+        if (waiters.get() > 0) {
+            synchronized (LOCK) {
+                LOCK.notifyAll();
+            }
+        }
+    }
+}
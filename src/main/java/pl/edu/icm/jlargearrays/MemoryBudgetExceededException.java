@@ -0,0 +1,88 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+/**
+ * Thrown when an allocation of native memory would exceed the limit set in
+ * MemoryBudget.
+ *
+ * @author agent (agent@local)
+ */
+public class MemoryBudgetExceededException extends RuntimeException
+{
+
+    private static final long serialVersionUID = -2704425867351409672L;
+
+    private final long requested;
+    private final long reserved;
+    private final long limit;
+
+    /**
+     * Creates new instance of this class.
+     *
+     * @param requested number of bytes requested
+     * @param reserved  number of bytes reserved at the time of the request
+     * @param limit     memory limit
+     */
+    public MemoryBudgetExceededException(long requested, long reserved, long limit)
+    {
+        super("Cannot allocate " + requested + " bytes of native memory: " + reserved + " of " + limit + " bytes are in use.");
+        this.requested = requested;
+        this.reserved = reserved;
+        this.limit = limit;
+    }
+
+    /**
+     * Returns the number of bytes requested.
+     *
+     * @return the number of bytes requested
+     */
+    public long getRequested()
+    {
+        return requested;
+    }
+
+    /**
+     * Returns the number of bytes reserved at the time of the request.
+     *
+     * @return the number of bytes reserved at the time of the request
+     */
+    public long getReserved()
+    {
+        return reserved;
+    }
+
+    /**
+     * Returns the memory limit.
+     *
+     * @return the memory limit
+     */
+    public long getLimit()
+    {
+        return limit;
+    }
+}
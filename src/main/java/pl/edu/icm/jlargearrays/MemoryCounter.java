@@ -26,33 +26,205 @@
  * ***** END LICENSE BLOCK ***** */
 package pl.edu.icm.jlargearrays;
 
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
 /**
- * Utility for counting the amount of memory used by large arrays.
+ * Utility for counting the amount of native memory used by large arrays.
+ *
+ * The counter is striped: every thread updates one of several cells selected
+ * by its id, so allocations on worker threads and deallocations on the
+ * Cleaner thread neither lose updates nor contend on a single memory location.
+ * The values returned by the getters are the sums over all cells.
  *
  * @author Piotr Wendykier (p.wendykier@icm.edu.pl)
  */
 public class MemoryCounter
 {
 
-    private static long counter = 0;
+    private static final int NTYPES = LargeArrayType.values().length;
+
+    /**
+     * Cell layout within a stripe: total bytes, live allocations, bytes not
+     * yet added to the running total and bytes per LargeArrayType.
+     */
+    private static final int TOTAL = 0;
+    private static final int COUNT = 1;
+    private static final int PENDING = 2;
+    private static final int FIRST_TYPE = 3;
+
+    /**
+     * Stripe length rounded up to a multiple of 8 longs (one 64-byte cache
+     * line), so that different stripes do not share cache lines.
+     */
+    private static final int STRIDE = ((FIRST_TYPE + NTYPES + 7) / 8) * 8;
+
+    /**
+     * Number of bytes a stripe has to grow by before it is added to the
+     * running total used to track the peak.
+     */
+    private static final long PEAK_THRESHOLD = 1 << 20;
+
+    private static final int NSTRIPES = stripes();
+
+    private static final AtomicLongArray cells = new AtomicLongArray((NSTRIPES + 1) * STRIDE);
+
+    private static final AtomicLong total = new AtomicLong();
+
+    private static final AtomicLong peak = new AtomicLong();
 
     private MemoryCounter()
     {
     }
 
+    private static int stripes()
+    {
+        int n = 1;
+        while (n < 2 * Runtime.getRuntime().availableProcessors()) {
+            n <<= 1;
+        }
+        return n;
+    }
+
+    private static int stripe()
+    {
+        long id = Thread.currentThread().getId();
+        // the first stripe is left empty as padding
+        return (int) (((id ^ (id >>> 16)) & (NSTRIPES - 1)) + 1) * STRIDE;
+    }
+
+    private static long sum(int slot)
+    {
+        long res = 0;
+        for (int i = 1; i <= NSTRIPES; i++) {
+            res += cells.get(i * STRIDE + slot);
+        }
+        return res;
+    }
+
+    private static void update(LargeArrayType type, long x, long count)
+    {
+        int s = stripe();
+        cells.addAndGet(s + TOTAL, x);
+        if (count != 0) {
+            cells.addAndGet(s + COUNT, count);
+        }
+        if (type != null) {
+            cells.addAndGet(s + FIRST_TYPE + type.ordinal(), x);
+        }
+        long pending = cells.addAndGet(s + PENDING, x);
+        if (x < 0 || pending >= PEAK_THRESHOLD) {
+            // decreases are added at once, so that the running total never
+            // overestimates the usage
+            long d = cells.getAndSet(s + PENDING, 0);
+            long current = total.addAndGet(d);
+            if (d > 0) {
+                long p = peak.get();
+                while (current > p && !peak.compareAndSet(p, current)) {
+                    p = peak.get();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of bytes of native memory currently used by large
+     * arrays.
+     *
+     * @return the number of bytes of native memory in use
+     */
     public static long getCounter()
     {
-        return counter;
+        return Math.max(0, sum(TOTAL));
+    }
+
+    /**
+     * Returns the number of bytes of native memory used by large arrays of a
+     * given type.
+     *
+     * @param type array type
+     *
+     * @return the number of bytes of native memory used by arrays of a given
+     *         type
+     */
+    public static long getCounter(LargeArrayType type)
+    {
+        if (type == null) {
+            throw new IllegalArgumentException("type cannot be null");
+        }
+        return Math.max(0, sum(FIRST_TYPE + type.ordinal()));
+    }
+
+    /**
+     * Returns the number of native memory blocks that are currently allocated.
+     *
+     * @return the number of live native allocations
+     */
+    public static long getAllocationCount()
+    {
+        return Math.max(0, sum(COUNT));
+    }
+
+    /**
+     * Returns the highest value of the counter observed since the class was
+     * loaded or since the last call to resetPeak(). Increases smaller than 1 MB
+     * per thread are accumulated before they are taken into account, so the
+     * value is exact only up to that amount.
+     *
+     * @return the peak number of bytes of native memory in use
+     */
+    public static long getPeak()
+    {
+        return Math.max(peak.get(), getCounter());
     }
 
+    /**
+     * Resets the peak value to the current value of the counter.
+     */
+    public static void resetPeak()
+    {
+        peak.set(getCounter());
+    }
+
+    /**
+     * Increases the counter by the given number of bytes.
+     *
+     * @param x number of bytes
+     */
     public static void increaseCounter(long x)
     {
-        counter += x;
+        update(null, x, 0);
     }
 
+    /**
+     * Decreases the counter by the given number of bytes.
+     *
+     * @param x number of bytes
+     */
     public static void decreaseCounter(long x)
     {
-        counter -= x;
-        if (counter < 0) counter = 0;
+        update(null, -x, 0);
+    }
+
+    /**
+     * Records a new native memory block of a given type.
+     *
+     * @param type array type
+     * @param x    number of bytes
+     */
+    public static void increaseCounter(LargeArrayType type, long x)
+    {
+        update(type, x, 1);
+    }
+
+    /**
+     * Records the release of a native memory block of a given type.
+     *
+     * @param type array type
+     * @param x    number of bytes
+     */
+    public static void decreaseCounter(LargeArrayType type, long x)
+    {
+        update(type, -x, -1);
     }
 }
@@ -0,0 +1,317 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Memory mapping of files and anonymous memory of arbitrary size. The standard
+ * FileChannel.map() is limited to 2<SUP>31</SUP>-1 bytes, therefore this class
+ * uses the private native methods of the FileChannel implementation.
+ *
+ * @author agent (agent@local)
+ */
+final class MemoryMapper
+{
+
+    /**
+     * Mapping modes, the same as in sun.nio.ch.FileChannelImpl.
+     */
+    static final int MAP_RO = 0;
+    static final int MAP_RW = 1;
+    static final int MAP_PV = 2;
+
+    private static final File DEV_ZERO = new File("/dev/zero");
+
+    private static final Method MAP0;
+
+    private static final Method UNMAP0;
+
+    private static final Method FORCE0;
+
+    /**
+     * Any instance of MappedByteBuffer, used to call force0() which does not
+     * depend on the state of the buffer.
+     */
+    private static final ByteBuffer FORCE_BUFFER = ByteBuffer.allocateDirect(0);
+
+    static {
+        Method map0 = null;
+        Method unmap0 = null;
+        Method force0 = null;
+        try {
+            Class<?> c = Class.forName("sun.nio.ch.FileChannelImpl");
+            map0 = c.getDeclaredMethod("map0", int.class, long.class, long.class);
+            map0.setAccessible(true);
+            unmap0 = c.getDeclaredMethod("unmap0", long.class, long.class);
+            unmap0.setAccessible(true);
+        } catch (Exception ex) {
+            map0 = null;
+            unmap0 = null;
+        }
+        try {
+            force0 = MappedByteBuffer.class.getDeclaredMethod("force0", FileDescriptor.class, long.class, long.class);
+            force0.setAccessible(true);
+            if (!(FORCE_BUFFER instanceof MappedByteBuffer)) {
+                force0 = null;
+            }
+        } catch (Exception ex) {
+            force0 = null;
+        }
+        MAP0 = map0;
+        UNMAP0 = unmap0;
+        FORCE0 = force0;
+    }
+
+    private MemoryMapper()
+    {
+    }
+
+    /**
+     * Returns true if memory mapping is supported by this JVM.
+     *
+     * @return true if memory mapping is supported, false otherwise
+     */
+    static boolean isAvailable()
+    {
+        return MAP0 != null;
+    }
+
+    /**
+     * Returns true if anonymous memory mapping is supported on this platform.
+     *
+     * @return true if anonymous memory mapping is supported, false otherwise
+     */
+    static boolean isAnonymousMappingAvailable()
+    {
+        return MAP0 != null && DEV_ZERO.exists();
+    }
+
+    /**
+     * Maps a region of a file into memory. The position has to be a multiple of
+     * the page size and the file has to be at least position + length bytes
+     * long.
+     *
+     * @param channel  file channel
+     * @param mode     one of MAP_RO, MAP_RW, MAP_PV
+     * @param position position within the file
+     * @param length   number of bytes to map
+     *
+     * @return address of the mapping
+     *
+     * @throws IOException if the mapping fails
+     */
+    static long map(FileChannel channel, int mode, long position, long length) throws IOException
+    {
+        if (MAP0 == null) {
+            throw new UnsupportedOperationException("Memory mapping is not supported by this JVM.");
+        }
+        try {
+            return (Long) MAP0.invoke(channel, mode, position, length);
+        } catch (InvocationTargetException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException(cause);
+        } catch (IllegalAccessException ex) {
+            throw new IOException(ex);
+        }
+    }
+
+    /**
+     * Maps private anonymous memory. The operating system supplies zeroed pages
+     * on first access, so the memory does not have to be zeroed explicitly.
+     *
+     * @param length number of bytes to map
+     *
+     * @return address of the mapping
+     *
+     * @throws IOException if the mapping fails
+     */
+    static long mapAnonymous(long length) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(DEV_ZERO, "rw");
+        try {
+            return map(file.getChannel(), MAP_PV, 0, length);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Maps a region of a file into memory. Unlike map(FileChannel, ...), the
+     * position does not need to be aligned and the file is extended if needed
+     * in MAP_RW mode.
+     *
+     * @param file     file
+     * @param mode     one of MAP_RO, MAP_RW, MAP_PV
+     * @param position position within the file
+     * @param length   number of bytes to map
+     *
+     * @return the mapping
+     *
+     * @throws IOException if the file cannot be opened or mapped
+     */
+    static Mapping map(File file, int mode, long position, long length) throws IOException
+    {
+        if (position < 0) {
+            throw new IllegalArgumentException("position < 0");
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException(length + " is not a positive long value");
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, mode == MAP_RW ? "rw" : "r");
+        try {
+            if (raf.length() < position + length) {
+                if (mode != MAP_RW) {
+                    throw new IllegalArgumentException("position + length > file size");
+                }
+                raf.setLength(position + length);
+            }
+            long pageSize = Utilities.UNSAFE.pageSize();
+            long pagePosition = position % pageSize;
+            long address = map(raf.getChannel(), mode, position - pagePosition, length + pagePosition);
+            return new Mapping(raf, mode, address, length + pagePosition, address + pagePosition);
+        } catch (IOException ex) {
+            raf.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            raf.close();
+            throw ex;
+        } catch (Error ex) {
+            raf.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Unmaps memory mapped by map() or mapAnonymous().
+     *
+     * @param address address of the mapping
+     * @param length  number of bytes mapped
+     */
+    static void unmap(long address, long length)
+    {
+        try {
+            UNMAP0.invoke(null, address, length);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Memory-mapped region of a file. Running this object unmaps the region
+     * and closes the file.
+     */
+    static final class Mapping implements Runnable
+    {
+
+        private final RandomAccessFile file;
+        private final int mode;
+        private final long mappingAddress;
+        private final long mappingLength;
+        private final long address;
+        private boolean unmapped = false;
+
+        private Mapping(RandomAccessFile file, int mode, long mappingAddress, long mappingLength, long address)
+        {
+            this.file = file;
+            this.mode = mode;
+            this.mappingAddress = mappingAddress;
+            this.mappingLength = mappingLength;
+            this.address = address;
+        }
+
+        /**
+         * Returns the address of the first requested byte.
+         *
+         * @return the address of the first requested byte
+         */
+        long getAddress()
+        {
+            return address;
+        }
+
+        /**
+         * Forces any changes made to the region to be written to the file. Has
+         * no effect if the region is not mapped in MAP_RW mode.
+         *
+         * @throws IOException if an I/O error occurs
+         */
+        synchronized void force() throws IOException
+        {
+            if (unmapped || mode != MAP_RW) {
+                return;
+            }
+            if (FORCE0 == null) {
+                file.getChannel().force(false);
+                return;
+            }
+            try {
+                FORCE0.invoke(FORCE_BUFFER, file.getFD(), mappingAddress, mappingLength);
+            } catch (IllegalAccessException ex) {
+                throw new IOException(ex);
+            } catch (InvocationTargetException ex) {
+                if (ex.getCause() instanceof IOException) {
+                    throw (IOException) ex.getCause();
+                }
+                throw new IOException(ex.getCause());
+            }
+        }
+
+        @Override
+        public synchronized void run()
+        {
+            if (!unmapped) {
+                unmapped = true;
+                unmap(mappingAddress, mappingLength);
+                try {
+                    file.close();
+                } catch (IOException ex) {
+                    // nothing to do, the mapping has been released
+                }
+            }
+        }
+    }
+}
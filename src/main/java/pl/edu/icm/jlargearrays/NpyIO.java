@@ -0,0 +1,360 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reading and writing of large arrays in the NumPy .npy format.
+ *
+ * Arrays are written as one-dimensional arrays in the native byte order. BYTE,
+ * SHORT, INT, LONG, FLOAT and DOUBLE are stored as i1, i2, i4, i8, f4 and f8,
+ * BIT is unpacked and stored as b1 (one byte per element). When reading, the
+ * unsigned types u1, u2, u4 and u8 are mapped onto the signed types of the
+ * same width, and multi-dimensional arrays in C order are read as flat
+ * arrays. STRING arrays are not supported.
+ *
+ * @author agent (agent@local)
+ */
+public class NpyIO
+{
+
+    private static final byte[] MAGIC = {(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+    private static final int HEADER_ALIGNMENT = 64;
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([<>|=])([a-z])(\\d+)'");
+    private static final Pattern FORTRAN_ORDER = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+    private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(([^)]*)\\)");
+
+    private NpyIO()
+    {
+    }
+
+    /**
+     * Writes an array to a .npy file.
+     *
+     * @param a    array
+     * @param path file
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public static void write(LargeArray a, Path path) throws IOException
+    {
+        LargeArrayType type = a.getType();
+        if (type == LargeArrayType.STRING) {
+            throw new IllegalArgumentException("Arrays of type " + type + " are not supported.");
+        }
+        String header = "{'descr': '" + descr(type) + "', 'fortran_order': False, 'shape': (" + a.length() + ",), }";
+        int length = header.length() + 11;
+        int padding = (HEADER_ALIGNMENT - length % HEADER_ALIGNMENT) % HEADER_ALIGNMENT;
+        StringBuilder sb = new StringBuilder(header);
+        for (int i = 0; i < padding; i++) {
+            sb.append(' ');
+        }
+        sb.append('\n');
+        byte[] dict = sb.toString().getBytes(ASCII);
+        ByteBuffer buffer = ByteBuffer.allocate(10 + dict.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.put((byte) 1);
+        buffer.put((byte) 0);
+        buffer.putShort((short) dict.length);
+        buffer.put(dict);
+        buffer.flip();
+
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            LargeArrayIO.writeFully(channel, buffer, 0);
+            long offset = buffer.limit();
+            if (type == LargeArrayType.BIT) {
+                writeBits(a, channel, offset);
+            }
+            else {
+                a.writeTo(channel, offset, 0, a.length());
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads a .npy file into memory. The array is stored on the heap or in the
+     * native memory depending on LargeArray.getMaxSizeOf32bitArray().
+     *
+     * @param path file
+     *
+     * @return the array
+     *
+     * @throws IOException if an I/O error occurs or the file is not a supported
+     *                     .npy file
+     */
+    public static LargeArray read(Path path) throws IOException
+    {
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            Header header = readHeader(channel);
+            if (header.type == LargeArrayType.BIT) {
+                return readBits(channel, header);
+            }
+            LargeArray a = Utilities.create(header.type, header.length, false);
+            FileChannel[] channels = new FileChannel[ConcurrencyUtils.getNumberOfThreads()];
+            for (int j = 0; j < channels.length; j++) {
+                channels[j] = channel;
+            }
+            a.readFrom(channels, header.offset, 0, header.length);
+            if (header.byteOrder != ByteOrder.nativeOrder()) {
+                LargeArrayIO.reverseBytes(a);
+            }
+            return a;
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Memory-maps a .npy file in the READ_ONLY mode.
+     *
+     * @param path file
+     *
+     * @return the array
+     *
+     * @throws IOException if an I/O error occurs or the file is not a supported
+     *                     .npy file
+     */
+    public static LargeArray map(Path path) throws IOException
+    {
+        return map(path, FileChannel.MapMode.READ_ONLY);
+    }
+
+    /**
+     * Memory-maps a .npy file, so that only the header is read and the data is
+     * paged in on first access. Files of type b1 and files written in the byte
+     * order different than the native one cannot be mapped. In the READ_ONLY
+     * and PRIVATE modes they are read with read() instead (as a read-only array
+     * in the READ_ONLY mode), in the READ_WRITE mode an exception is thrown,
+     * since changes to the copy would never reach the file.
+     *
+     * @param path file
+     * @param mode mapping mode, see LargeArray.map()
+     *
+     * @return the array
+     *
+     * @throws IOException if an I/O error occurs, the file is not a supported
+     *                     .npy file or it cannot be mapped in the READ_WRITE
+     *                     mode
+     */
+    public static LargeArray map(Path path, FileChannel.MapMode mode) throws IOException
+    {
+        Header header;
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+        try {
+            header = readHeader(file.getChannel());
+        } finally {
+            file.close();
+        }
+        if (header.type == LargeArrayType.BIT || (header.byteOrder != ByteOrder.nativeOrder() && header.type != LargeArrayType.BYTE)) {
+            if (mode == FileChannel.MapMode.READ_WRITE) {
+                throw new IOException("Files of type b1 or in the non-native byte order cannot be mapped in the READ_WRITE mode.");
+            }
+            LargeArray a = read(path);
+            a.readOnly = mode == FileChannel.MapMode.READ_ONLY;
+            return a;
+        }
+        return LargeArray.map(path, header.type, header.offset, header.length, mode);
+    }
+
+    private static String descr(LargeArrayType type)
+    {
+        String order = ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN ? "<" : ">";
+        switch (type) {
+            case BIT:
+                return "|b1";
+            case BYTE:
+                return "|i1";
+            case SHORT:
+                return order + "i2";
+            case INT:
+                return order + "i4";
+            case LONG:
+                return order + "i8";
+            case FLOAT:
+                return order + "f4";
+            default:
+                return order + "f8";
+        }
+    }
+
+    private static class Header
+    {
+
+        LargeArrayType type;
+        ByteOrder byteOrder;
+        long length;
+        long offset;
+    }
+
+    private static Header readHeader(FileChannel channel) throws IOException
+    {
+        ByteBuffer prefix = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+        LargeArrayIO.readFully(channel, prefix, 0);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (prefix.get(i) != MAGIC[i]) {
+                throw new IOException("Not a .npy file.");
+            }
+        }
+        int major = prefix.get(6);
+        long length;
+        int start;
+        if (major == 1) {
+            length = prefix.getShort(8) & 0xffff;
+            start = 10;
+        }
+        else if (major == 2 || major == 3) {
+            length = prefix.getInt(8) & 0xffffffffL;
+            start = 12;
+        }
+        else {
+            throw new IOException("Unsupported .npy version: " + major);
+        }
+        ByteBuffer dict = ByteBuffer.allocate((int) length);
+        LargeArrayIO.readFully(channel, dict, start);
+        String s = new String(dict.array(), major == 3 ? Charset.forName("UTF-8") : ASCII);
+
+        Header header = new Header();
+        header.offset = start + length;
+        Matcher m = DESCR.matcher(s);
+        if (!m.find()) {
+            throw new IOException("Invalid .npy header: " + s);
+        }
+        header.byteOrder = m.group(1).equals(">") ? ByteOrder.BIG_ENDIAN : m.group(1).equals("<") ? ByteOrder.LITTLE_ENDIAN : ByteOrder.nativeOrder();
+        header.type = type(m.group(2).charAt(0), Integer.parseInt(m.group(3)));
+        if (header.type == null) {
+            throw new IOException("Unsupported .npy data type: " + m.group(0));
+        }
+        m = SHAPE.matcher(s);
+        if (!m.find()) {
+            throw new IOException("Invalid .npy header: " + s);
+        }
+        long n = 1;
+        int ndim = 0;
+        for (String dim : m.group(1).split(",")) {
+            dim = dim.trim();
+            if (dim.length() > 0) {
+                n *= Long.parseLong(dim.endsWith("L") ? dim.substring(0, dim.length() - 1) : dim);
+                ndim++;
+            }
+        }
+        if (n <= 0) {
+            throw new IOException("Empty arrays are not supported.");
+        }
+        header.length = n;
+        m = FORTRAN_ORDER.matcher(s);
+        if (m.find() && m.group(1).equals("True") && ndim > 1) {
+            throw new IOException("Arrays in Fortran order are not supported.");
+        }
+        return header;
+    }
+
+    private static LargeArrayType type(char kind, int size)
+    {
+        switch (kind) {
+            case 'b':
+                return size == 1 ? LargeArrayType.BIT : null;
+            case 'i':
+            case 'u':
+                switch (size) {
+                    case 1:
+                        return LargeArrayType.BYTE;
+                    case 2:
+                        return LargeArrayType.SHORT;
+                    case 4:
+                        return LargeArrayType.INT;
+                    case 8:
+                        return LargeArrayType.LONG;
+                    default:
+                        return null;
+                }
+            case 'f':
+                switch (size) {
+                    case 4:
+                        return LargeArrayType.FLOAT;
+                    case 8:
+                        return LargeArrayType.DOUBLE;
+                    default:
+                        return null;
+                }
+            default:
+                return null;
+        }
+    }
+
+    private static void writeBits(LargeArray a, FileChannel channel, long offset) throws IOException
+    {
+        long length = a.length();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, length));
+        for (long i = 0; i < length;) {
+            buffer.clear();
+            int n = (int) Math.min(buffer.capacity(), length - i);
+            for (int j = 0; j < n; j++) {
+                buffer.put(a.getByte(i + j));
+            }
+            buffer.flip();
+            LargeArrayIO.writeFully(channel, buffer, offset + i);
+            i += n;
+        }
+    }
+
+    private static LargeArray readBits(FileChannel channel, Header header) throws IOException
+    {
+        BitLargeArray a = new BitLargeArray(header.length);
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, header.length));
+        for (long i = 0; i < header.length;) {
+            buffer.clear();
+            int n = (int) Math.min(buffer.capacity(), header.length - i);
+            buffer.limit(n);
+            LargeArrayIO.readFully(channel, buffer, header.offset + i);
+            for (int j = 0; j < n; j++) {
+                if (buffer.get(j) != 0) {
+                    a.setBoolean(i + j, true);
+                }
+            }
+            i += n;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,1134 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.io.EOFException;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectStreamException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import sun.misc.Cleaner;
+
+/**
+ *
+ * An array of any numeric type stored in a file and accessed through a cache
+ * of fixed-size pages, so that it can be much larger than the available
+ * memory. Pages are loaded on demand and evicted with the CLOCK algorithm
+ * (an approximation of LRU). Modified pages are written back when they are
+ * evicted, when flush() or force() is called and when the array is closed.
+ *
+ * The file contains the elements in the native byte order, starting at a
+ * given offset. All accessors are thread-safe. The array must be closed to
+ * guarantee that all modifications reach the file; if it is reclaimed by the
+ * garbage collector instead, dirty pages are written back on a best-effort
+ * basis. Modifications made through the unchecked setters of a read-only
+ * array stay in the cache and never reach the file. Arrays of type BIT and
+ * STRING are not supported.
+ *
+ * @author agent (agent@local)
+ */
+public class PagedLargeArray extends LargeArray
+{
+
+    private static final long serialVersionUID = -4817320148837516493L;
+
+    /**
+     * Default page size in bytes (1 MB).
+     */
+    public static final int DEFAULT_PAGE_SIZE = 1 << 20;
+
+    /**
+     * Default number of cached pages.
+     */
+    public static final int DEFAULT_CACHED_PAGES = 64;
+
+    private final transient PageCache cache;
+    private final transient boolean isReal;
+
+    /**
+     * Creates new instance of this class backed by a file, with
+     * DEFAULT_CACHED_PAGES pages of DEFAULT_PAGE_SIZE bytes. The file is
+     * created or extended if needed.
+     *
+     * @param path   file
+     * @param type   type of elements
+     * @param length number of elements
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    public PagedLargeArray(Path path, LargeArrayType type, long length) throws IOException
+    {
+        this(path, type, 0, length, DEFAULT_PAGE_SIZE, DEFAULT_CACHED_PAGES, false);
+    }
+
+    /**
+     * Creates new instance of this class backed by a file.
+     *
+     * @param path        file
+     * @param type        type of elements
+     * @param offset      file position of the first element
+     * @param length      number of elements
+     * @param pageSize    page size in bytes, a power of two not smaller than
+     *                    the size of an element
+     * @param cachedPages maximal number of pages kept in memory
+     * @param readOnly    if true, then the file is opened for reading only and
+     *                    the array cannot be modified, otherwise the file is
+     *                    created or extended if needed
+     *
+     * @throws IOException if the file cannot be opened
+     */
+    public PagedLargeArray(Path path, LargeArrayType type, long offset, long length, int pageSize, int cachedPages, boolean readOnly) throws IOException
+    {
+        if (type == LargeArrayType.BIT || type == LargeArrayType.STRING) {
+            throw new IllegalArgumentException("Arrays of type " + type + " are not supported.");
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException(length + " is not a positive long value");
+        }
+        if (offset < 0) {
+            throw new IllegalArgumentException("offset < 0");
+        }
+        if (pageSize < type.sizeOf() || Integer.bitCount(pageSize) != 1) {
+            throw new IllegalArgumentException("pageSize has to be a power of two not smaller than " + type.sizeOf());
+        }
+        if (cachedPages < 1) {
+            throw new IllegalArgumentException("cachedPages has to be positive");
+        }
+        this.type = type;
+        this.sizeof = type.sizeOf();
+        this.length = length;
+        this.readOnly = readOnly;
+        this.isReal = type == LargeArrayType.FLOAT || type == LargeArrayType.DOUBLE;
+        long bytes = length * sizeof;
+        RandomAccessFile file = new RandomAccessFile(path.toFile(), readOnly ? "r" : "rw");
+        try {
+            if (file.length() < offset + bytes) {
+                if (readOnly) {
+                    throw new IllegalArgumentException("The file is too short.");
+                }
+                file.setLength(offset + bytes);
+            }
+            this.cache = new PageCache(file, offset, bytes, pageSize, (int) Math.min(cachedPages, (bytes + pageSize - 1) / pageSize), type, readOnly);
+        } catch (IOException ex) {
+            file.close();
+            throw ex;
+        } catch (RuntimeException ex) {
+            file.close();
+            throw ex;
+        }
+        this.cleaner = Cleaner.create(this, cache);
+    }
+
+    /**
+     * Returns the page size in bytes.
+     *
+     * @return the page size in bytes
+     */
+    public int getPageSize()
+    {
+        return cache.pageSize;
+    }
+
+    /**
+     * Returns the maximal number of pages kept in memory.
+     *
+     * @return the maximal number of pages kept in memory
+     */
+    public int getCachedPages()
+    {
+        return cache.frames;
+    }
+
+    /**
+     * Returns the number of pages loaded ahead of the current page on a cache
+     * miss.
+     *
+     * @return the number of pages loaded ahead
+     */
+    public int getReadAhead()
+    {
+        synchronized (cache) {
+            return cache.readAhead;
+        }
+    }
+
+    /**
+     * Sets the number of pages loaded ahead of the current page on a cache
+     * miss. Pages loaded ahead are evicted first if they are not accessed, so
+     * this is a cheap hint for sequential scans. The default value is 0.
+     *
+     * @param pages number of pages loaded ahead
+     */
+    public void setReadAhead(int pages)
+    {
+        if (pages < 0) {
+            throw new IllegalArgumentException("pages < 0");
+        }
+        synchronized (cache) {
+            cache.readAhead = pages;
+        }
+    }
+
+    /**
+     * Loads the pages containing len elements starting at pos into the cache,
+     * unless they are already cached. At most getCachedPages() pages are
+     * loaded.
+     *
+     * @param pos index of the first element
+     * @param len number of elements
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void prefetch(long pos, long len) throws IOException
+    {
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (pos < 0 || pos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("pos < 0 || pos + len > length");
+        }
+        if (len == 0) {
+            return;
+        }
+        synchronized (cache) {
+            cache.ensureOpen();
+            long first = (pos * sizeof) >>> cache.pageShift;
+            long last = Math.min(((pos + len) * sizeof - 1) >>> cache.pageShift, first + cache.frames - 1);
+            for (long p = first; p <= last; p++) {
+                if (!cache.table.containsKey(p)) {
+                    cache.load(p, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all modified pages back to the file.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void flush() throws IOException
+    {
+        synchronized (cache) {
+            cache.ensureOpen();
+            cache.flush();
+        }
+    }
+
+    /**
+     * Writes all modified pages back to the file and forces them to be written
+     * to the storage device.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    @Override
+    public void force() throws IOException
+    {
+        synchronized (cache) {
+            cache.ensureOpen();
+            cache.flush();
+            cache.channel.force(false);
+        }
+    }
+
+    /**
+     * Writes all modified pages back to the file, closes the file and releases
+     * the memory of the cache.
+     *
+     * @throws IOError if the modified pages cannot be written
+     */
+    @Override
+    public void free()
+    {
+        if (!closed) {
+            try {
+                flush();
+            } catch (IOException ex) {
+                throw new IOError(ex);
+            } finally {
+                super.free();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of accesses to pages that were in the cache.
+     *
+     * @return the number of cache hits
+     */
+    public long getHitCount()
+    {
+        synchronized (cache) {
+            return cache.hits;
+        }
+    }
+
+    /**
+     * Returns the number of accesses to pages that were not in the cache.
+     *
+     * @return the number of cache misses
+     */
+    public long getMissCount()
+    {
+        synchronized (cache) {
+            return cache.misses;
+        }
+    }
+
+    /**
+     * Returns the number of pages evicted from the cache.
+     *
+     * @return the number of evicted pages
+     */
+    public long getEvictionCount()
+    {
+        synchronized (cache) {
+            return cache.evictions;
+        }
+    }
+
+    /**
+     * Returns the number of modified pages written back to the file.
+     *
+     * @return the number of written pages
+     */
+    public long getWriteBackCount()
+    {
+        synchronized (cache) {
+            return cache.writeBacks;
+        }
+    }
+
+    /**
+     * Resets the hit, miss, eviction and write-back counters to zero.
+     */
+    public void resetCounters()
+    {
+        synchronized (cache) {
+            cache.hits = 0;
+            cache.misses = 0;
+            cache.evictions = 0;
+            cache.writeBacks = 0;
+        }
+    }
+
+    /**
+     * Copies len elements of this array, beginning at srcPos, to the
+     * specified position of the destination array. Array bounds are checked.
+     * Pages that are not cached are read directly from the file, without
+     * being loaded into the cache.
+     *
+     * @param srcPos starting position in this array.
+     * @param dst    the destination array of the same type.
+     * @param dstPos starting position in the destination array.
+     * @param len    the number of elements to be copied.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void get(long srcPos, LargeArray dst, long dstPos, long len) throws IOException
+    {
+        checkRange(srcPos, dst, dstPos, len);
+        if (dst.isConstant()) {
+            throw new IllegalAccessError("Constant arrays cannot be modified.");
+        }
+        dst.ensureWritable();
+        copy(srcPos, dst, dstPos, len, false);
+    }
+
+    /**
+     * Copies len elements of the source array, beginning at srcPos, to the
+     * specified position of this array. Array bounds are checked. Pages that
+     * are not cached are written directly to the file, without being loaded
+     * into the cache.
+     *
+     * @param dstPos starting position in this array.
+     * @param src    the source array of the same type.
+     * @param srcPos starting position in the source array.
+     * @param len    the number of elements to be copied.
+     *
+     * @throws IOException if an I/O error occurs
+     */
+    public void set(long dstPos, LargeArray src, long srcPos, long len) throws IOException
+    {
+        ensureWritable();
+        checkRange(dstPos, src, srcPos, len);
+        copy(dstPos, src, srcPos, len, true);
+    }
+
+    private void checkRange(long pos, LargeArray a, long aPos, long len)
+    {
+        ensureOpen();
+        if (a.getType() != type) {
+            throw new IllegalArgumentException("The type of the array is different than the type of this array.");
+        }
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (pos < 0 || pos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("pos < 0 || pos + len > length");
+        }
+        if (aPos < 0 || aPos + len > a.length()) {
+            throw new ArrayIndexOutOfBoundsException("aPos < 0 || aPos + len > a.length()");
+        }
+    }
+
+    private void copy(long pos, LargeArray a, long aPos, long len, boolean write) throws IOException
+    {
+        if (!Utilities.isContiguous(a)) {
+            for (long j = 0; j < len; j++) {
+                if (write) {
+                    set(pos + j, a.get(aPos + j));
+                } else {
+                    a.set(aPos + j, get(pos + j));
+                }
+            }
+            return;
+        }
+        Object base = a.isConstant() ? null : Utilities.getMemoryBase(a);
+        long offset = a.isConstant() ? 0 : Utilities.getMemoryOffset(a) + aPos * sizeof;
+        long start = pos * sizeof;
+        long end = (pos + len) * sizeof;
+        while (start < end) {
+            long page = start >>> cache.pageShift;
+            long n = Math.min(end, (page + 1) << cache.pageShift) - start;
+            long done = (start - pos * sizeof);
+            synchronized (cache) {
+                cache.ensureOpen();
+                Integer f = cache.table.get(page);
+                if (f != null) {
+                    cache.hits++;
+                    long address = cache.frameAddress(f) + (start & (cache.pageSize - 1));
+                    if (write) {
+                        if (a.isConstant()) {
+                            fillWithElement(a, address, n);
+                        } else {
+                            Utilities.UNSAFE.copyMemory(base, offset + done, null, address, n);
+                        }
+                        cache.dirty[f] = !cache.readOnly;
+                    } else {
+                        Utilities.UNSAFE.copyMemory(null, address, base, offset + done, n);
+                    }
+                } else {
+                    cache.misses++;
+                    if (write) {
+                        a.writeTo(cache.channel, cache.offset + start, aPos + done / sizeof, n / sizeof);
+                    } else {
+                        a.readFrom(cache.channel, cache.offset + start, aPos + done / sizeof, n / sizeof);
+                    }
+                }
+            }
+            start += n;
+        }
+    }
+
+    private void fillWithElement(LargeArray a, long address, long bytes)
+    {
+        for (long j = 0; j < bytes; j += sizeof) {
+            switch (type) {
+                case BYTE:
+                    Utilities.UNSAFE.putByte(address + j, a.getByte(0));
+                    break;
+                case SHORT:
+                    Utilities.UNSAFE.putShort(address + j, a.getShort(0));
+                    break;
+                case INT:
+                    Utilities.UNSAFE.putInt(address + j, a.getInt(0));
+                    break;
+                case LONG:
+                    Utilities.UNSAFE.putLong(address + j, a.getLong(0));
+                    break;
+                case FLOAT:
+                    Utilities.UNSAFE.putFloat(address + j, a.getFloat(0));
+                    break;
+                default:
+                    Utilities.UNSAFE.putDouble(address + j, a.getDouble(0));
+                    break;
+            }
+        }
+    }
+
+    @Override
+    long transfer(FileChannel channel, long position, long pos, long len, boolean write) throws IOException
+    {
+        long start = pos * sizeof;
+        long end = (pos + len) * sizeof;
+        ByteBuffer buffer = null;
+        while (start < end) {
+            long page = start >>> cache.pageShift;
+            int n = (int) (Math.min(end, (page + 1) << cache.pageShift) - start);
+            long filePosition = position + start - pos * sizeof;
+            synchronized (cache) {
+                cache.ensureOpen();
+                Integer f = cache.table.get(page);
+                if (f != null) {
+                    cache.hits++;
+                    ByteBuffer frame = Utilities.newDirectByteBuffer(cache.frameAddress(f) + (start & (cache.pageSize - 1)), n);
+                    if (write) {
+                        LargeArrayIO.writeFully(channel, frame, filePosition);
+                    } else {
+                        LargeArrayIO.readFully(channel, frame, filePosition);
+                        cache.dirty[f] = !cache.readOnly;
+                    }
+                } else {
+                    cache.misses++;
+                    if (buffer == null) {
+                        buffer = ByteBuffer.allocate(cache.pageSize);
+                    }
+                    buffer.clear().limit(n);
+                    if (write) {
+                        LargeArrayIO.readFully(cache.channel, buffer, cache.offset + start);
+                        buffer.flip();
+                        LargeArrayIO.writeFully(channel, buffer, filePosition);
+                    } else {
+                        LargeArrayIO.readFully(channel, buffer, filePosition);
+                        buffer.flip();
+                        LargeArrayIO.writeFully(cache.channel, buffer, cache.offset + start);
+                    }
+                }
+            }
+            start += n;
+        }
+        return len * sizeof;
+    }
+
+    private long getIntegral(long i)
+    {
+        synchronized (cache) {
+            long address = cache.address(i * sizeof, false);
+            switch (type) {
+                case BYTE:
+                    return Utilities.UNSAFE.getByte(address);
+                case SHORT:
+                    return Utilities.UNSAFE.getShort(address);
+                case INT:
+                    return Utilities.UNSAFE.getInt(address);
+                default:
+                    return Utilities.UNSAFE.getLong(address);
+            }
+        }
+    }
+
+    private double getReal(long i)
+    {
+        synchronized (cache) {
+            long address = cache.address(i * sizeof, false);
+            if (type == LargeArrayType.FLOAT) {
+                return Utilities.UNSAFE.getFloat(address);
+            } else {
+                return Utilities.UNSAFE.getDouble(address);
+            }
+        }
+    }
+
+    private void setIntegral(long i, long value)
+    {
+        synchronized (cache) {
+            long address = cache.address(i * sizeof, true);
+            switch (type) {
+                case BYTE:
+                    Utilities.UNSAFE.putByte(address, (byte) value);
+                    break;
+                case SHORT:
+                    Utilities.UNSAFE.putShort(address, (short) value);
+                    break;
+                case INT:
+                    Utilities.UNSAFE.putInt(address, (int) value);
+                    break;
+                case LONG:
+                    Utilities.UNSAFE.putLong(address, value);
+                    break;
+                case FLOAT:
+                    Utilities.UNSAFE.putFloat(address, value);
+                    break;
+                default:
+                    Utilities.UNSAFE.putDouble(address, value);
+                    break;
+            }
+        }
+    }
+
+    private void setReal(long i, double value)
+    {
+        synchronized (cache) {
+            long address = cache.address(i * sizeof, true);
+            switch (type) {
+                case BYTE:
+                    Utilities.UNSAFE.putByte(address, (byte) value);
+                    break;
+                case SHORT:
+                    Utilities.UNSAFE.putShort(address, (short) value);
+                    break;
+                case INT:
+                    Utilities.UNSAFE.putInt(address, (int) value);
+                    break;
+                case LONG:
+                    Utilities.UNSAFE.putLong(address, (long) value);
+                    break;
+                case FLOAT:
+                    Utilities.UNSAFE.putFloat(address, (float) value);
+                    break;
+                default:
+                    Utilities.UNSAFE.putDouble(address, value);
+                    break;
+            }
+        }
+    }
+
+    /**
+     * Returns a deep copy of this array, i.e. a new array of the same type
+     * stored in memory and containing the elements of this array.
+     *
+     * @return a copy of this array
+     */
+    @Override
+    public LargeArray clone()
+    {
+        LargeArray v = Utilities.create(type, length, false);
+        try {
+            get(0, v, 0, length);
+        } catch (IOException ex) {
+            throw new IOError(ex);
+        }
+        return v;
+    }
+
+    @Override
+    public Object get(long i)
+    {
+        switch (type) {
+            case BYTE:
+                return getByte(i);
+            case SHORT:
+                return getShort(i);
+            case INT:
+                return getInt(i);
+            case LONG:
+                return getLong(i);
+            case FLOAT:
+                return getFloat(i);
+            default:
+                return getDouble(i);
+        }
+    }
+
+    @Override
+    public Object getFromNative(long i)
+    {
+        return get(i);
+    }
+
+    @Override
+    public boolean getBoolean(long i)
+    {
+        return isReal ? getReal(i) != 0 : getIntegral(i) != 0;
+    }
+
+    @Override
+    public byte getByte(long i)
+    {
+        return isReal ? (byte) getReal(i) : (byte) getIntegral(i);
+    }
+
+    @Override
+    public short getShort(long i)
+    {
+        return isReal ? (short) getReal(i) : (short) getIntegral(i);
+    }
+
+    @Override
+    public int getInt(long i)
+    {
+        return isReal ? (int) getReal(i) : (int) getIntegral(i);
+    }
+
+    @Override
+    public long getLong(long i)
+    {
+        return isReal ? (long) getReal(i) : getIntegral(i);
+    }
+
+    @Override
+    public float getFloat(long i)
+    {
+        return isReal ? (float) getReal(i) : (float) getIntegral(i);
+    }
+
+    @Override
+    public double getDouble(long i)
+    {
+        return isReal ? getReal(i) : (double) getIntegral(i);
+    }
+
+    @Override
+    public Object getData()
+    {
+        return null;
+    }
+
+    @Override
+    public boolean[] getBooleanData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getBooleanData(null, 0, length, 1);
+    }
+
+    @Override
+    public boolean[] getBooleanData(boolean[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        boolean[] out = a != null && a.length >= len ? a : new boolean[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getBoolean(i);
+        }
+        return out;
+    }
+
+    @Override
+    public byte[] getByteData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getByteData(null, 0, length, 1);
+    }
+
+    @Override
+    public byte[] getByteData(byte[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        byte[] out = a != null && a.length >= len ? a : new byte[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getByte(i);
+        }
+        return out;
+    }
+
+    @Override
+    public short[] getShortData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getShortData(null, 0, length, 1);
+    }
+
+    @Override
+    public short[] getShortData(short[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        short[] out = a != null && a.length >= len ? a : new short[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getShort(i);
+        }
+        return out;
+    }
+
+    @Override
+    public int[] getIntData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getIntData(null, 0, length, 1);
+    }
+
+    @Override
+    public int[] getIntData(int[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        int[] out = a != null && a.length >= len ? a : new int[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getInt(i);
+        }
+        return out;
+    }
+
+    @Override
+    public long[] getLongData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getLongData(null, 0, length, 1);
+    }
+
+    @Override
+    public long[] getLongData(long[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        long[] out = a != null && a.length >= len ? a : new long[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getLong(i);
+        }
+        return out;
+    }
+
+    @Override
+    public float[] getFloatData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getFloatData(null, 0, length, 1);
+    }
+
+    @Override
+    public float[] getFloatData(float[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        float[] out = a != null && a.length >= len ? a : new float[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getFloat(i);
+        }
+        return out;
+    }
+
+    @Override
+    public double[] getDoubleData()
+    {
+        return length > getMaxSizeOf32bitArray() ? null : getDoubleData(null, 0, length, 1);
+    }
+
+    @Override
+    public double[] getDoubleData(double[] a, long startPos, long endPos, long step)
+    {
+        int len = checkData(startPos, endPos, step);
+        if (len < 0) {
+            return null;
+        }
+        double[] out = a != null && a.length >= len ? a : new double[len];
+        int idx = 0;
+        for (long i = startPos; i < endPos; i += step) {
+            out[idx++] = getDouble(i);
+        }
+        return out;
+    }
+
+    /**
+     * Checks the arguments of getXXXData methods and returns the number of
+     * elements to copy or -1 if it is larger than getMaxSizeOf32bitArray().
+     */
+    private int checkData(long startPos, long endPos, long step)
+    {
+        if (startPos < 0 || startPos >= length) {
+            throw new ArrayIndexOutOfBoundsException("startPos < 0 || startPos >= length");
+        }
+        if (endPos < 0 || endPos > length || endPos < startPos) {
+            throw new ArrayIndexOutOfBoundsException("endPos < 0 || endPos > length || endPos < startPos");
+        }
+        if (step < 1) {
+            throw new IllegalArgumentException("step < 1");
+        }
+        long len = (long) Math.ceil((endPos - startPos) / (double) step);
+        return len > getMaxSizeOf32bitArray() ? -1 : (int) len;
+    }
+
+    @Override
+    public void setToNative(long i, Object value)
+    {
+        set(i, value);
+    }
+
+    @Override
+    public void setBoolean(long i, boolean value)
+    {
+        setIntegral(i, value == true ? 1 : 0);
+    }
+
+    @Override
+    public void setByte(long i, byte value)
+    {
+        setIntegral(i, value);
+    }
+
+    @Override
+    public void setShort(long i, short value)
+    {
+        setIntegral(i, value);
+    }
+
+    @Override
+    public void setInt(long i, int value)
+    {
+        setIntegral(i, value);
+    }
+
+    @Override
+    public void setLong(long i, long value)
+    {
+        setIntegral(i, value);
+    }
+
+    @Override
+    public void setFloat(long i, float value)
+    {
+        setReal(i, value);
+    }
+
+    @Override
+    public void setDouble(long i, double value)
+    {
+        setReal(i, value);
+    }
+
+    private Object writeReplace() throws ObjectStreamException
+    {
+        throw new NotSerializableException(getClass().getName());
+    }
+
+    /**
+     * Page cache. The cache is also the cleaner of the array, so that dirty
+     * pages are written back and the memory is released when the array is
+     * closed or reclaimed by the garbage collector. All methods have to be
+     * called while holding the lock of the cache.
+     */
+    private static final class PageCache implements Runnable
+    {
+
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final long offset;
+        private final long bytes;
+        private final boolean readOnly;
+        private final int pageSize;
+        private final int pageShift;
+        private final int frames;
+        private final long memory;
+        private final Deallocator deallocator;
+        private final long[] framePages;
+        private final boolean[] dirty;
+        private final boolean[] referenced;
+        private final HashMap<Long, Integer> table;
+        private int used = 0;
+        private int hand = 0;
+        private final boolean[] pinned;
+        private long lastPage = -1;
+        private int lastFrame = -1;
+        private int readAhead = 0;
+        private long hits = 0;
+        private long misses = 0;
+        private long evictions = 0;
+        private long writeBacks = 0;
+        private boolean closed = false;
+
+        PageCache(RandomAccessFile file, long offset, long bytes, int pageSize, int frames, LargeArrayType type, boolean readOnly)
+        {
+            this.file = file;
+            this.channel = file.getChannel();
+            this.offset = offset;
+            this.bytes = bytes;
+            this.readOnly = readOnly;
+            this.pageSize = pageSize;
+            this.pageShift = Integer.numberOfTrailingZeros(pageSize);
+            this.frames = frames;
+            this.framePages = new long[frames];
+            this.dirty = new boolean[frames];
+            this.referenced = new boolean[frames];
+            this.pinned = new boolean[frames];
+            this.table = new HashMap<Long, Integer>(2 * frames);
+            long size = (long) frames * pageSize;
+            this.memory = MemoryBudget.allocateMemory(size);
+            this.deallocator = new Deallocator(memory, size, 1, type);
+            MemoryCounter.increaseCounter(type, size);
+        }
+
+        void ensureOpen()
+        {
+            if (closed) {
+                throw new IllegalStateException("The array has been closed.");
+            }
+        }
+
+        long frameAddress(int frame)
+        {
+            return memory + (long) frame * pageSize;
+        }
+
+        /**
+         * Returns the address of a byte of the array, loading its page if
+         * needed.
+         */
+        long address(long index, boolean write)
+        {
+            long page = index >>> pageShift;
+            int frame;
+            if (page == lastPage) {
+                hits++;
+                frame = lastFrame;
+            } else {
+                ensureOpen();
+                Integer f = table.get(page);
+                if (f != null) {
+                    hits++;
+                    frame = f;
+                } else {
+                    misses++;
+                    try {
+                        // pages of one batch cannot evict each other
+                        frame = load(page, true);
+                        pinned[frame] = true;
+                        long pages = ((bytes - 1) >>> pageShift) + 1;
+                        for (long p = page + 1; p <= page + Math.min(readAhead, frames - 1) && p < pages; p++) {
+                            if (!table.containsKey(p)) {
+                                pinned[load(p, false)] = true;
+                            }
+                        }
+                    } catch (IOException ex) {
+                        throw new IOError(ex);
+                    } finally {
+                        Arrays.fill(pinned, false);
+                    }
+                }
+                referenced[frame] = true;
+                lastPage = page;
+                lastFrame = frame;
+            }
+            if (write && !readOnly) {
+                dirty[frame] = true;
+            }
+            return frameAddress(frame) + (index & (pageSize - 1));
+        }
+
+        /**
+         * Loads a page into a free or evicted frame.
+         */
+        int load(long page, boolean reference) throws IOException
+        {
+            int frame = victim();
+            evict(frame);
+            long start = page << pageShift;
+            int n = (int) Math.min(pageSize, bytes - start);
+            ByteBuffer buffer = Utilities.newDirectByteBuffer(frameAddress(frame), n);
+            try {
+                LargeArrayIO.readFully(channel, buffer, offset + start);
+            } catch (EOFException ex) {
+                // the file was truncated by another process
+                Utilities.setMemory(frameAddress(frame) + buffer.position(), n - buffer.position(), (byte) 0);
+            }
+            framePages[frame] = page;
+            dirty[frame] = false;
+            referenced[frame] = reference;
+            table.put(page, frame);
+            return frame;
+        }
+
+        /**
+         * Selects a frame for a new page using the CLOCK algorithm.
+         */
+        private int victim()
+        {
+            if (used < frames) {
+                framePages[used] = -1;
+                return used++;
+            }
+            while (true) {
+                int frame = hand;
+                hand = (hand + 1) % frames;
+                if (!pinned[frame]) {
+                    if (!referenced[frame]) {
+                        return frame;
+                    }
+                    referenced[frame] = false;
+                }
+            }
+        }
+
+        private void evict(int frame) throws IOException
+        {
+            if (framePages[frame] < 0) {
+                return;
+            }
+            if (dirty[frame]) {
+                writeBack(frame);
+            }
+            table.remove(framePages[frame]);
+            if (lastFrame == frame) {
+                lastPage = -1;
+                lastFrame = -1;
+            }
+            framePages[frame] = -1;
+            evictions++;
+        }
+
+        private void writeBack(int frame) throws IOException
+        {
+            long start = framePages[frame] << pageShift;
+            int n = (int) Math.min(pageSize, bytes - start);
+            LargeArrayIO.writeFully(channel, Utilities.newDirectByteBuffer(frameAddress(frame), n), offset + start);
+            dirty[frame] = false;
+            writeBacks++;
+        }
+
+        void flush() throws IOException
+        {
+            if (readOnly) {
+                return;
+            }
+            for (int f = 0; f < used; f++) {
+                if (dirty[f] && framePages[f] >= 0) {
+                    writeBack(f);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void run()
+        {
+            if (!closed) {
+                closed = true;
+                lastPage = -1;
+                try {
+                    flush();
+                } catch (IOException ex) {
+                    // the array is unreachable or being closed, there is no one to report to
+                } catch (RuntimeException ex) {
+                    // an exception thrown by a cleaner terminates the virtual machine
+                } finally {
+                    try {
+                        file.close();
+                    } catch (IOException ex) {
+                    }
+                    deallocator.run();
+                }
+            }
+        }
+    }
+}
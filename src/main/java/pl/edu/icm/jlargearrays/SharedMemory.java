@@ -0,0 +1,325 @@
+/* ***** BEGIN LICENSE BLOCK *****
+ * JLargeArrays
+ * Copyright (C) 2013 onward University of Warsaw, ICM
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer. 
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS" AND
+ * ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE IMPLIED
+ * WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR
+ * ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES
+ * (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;
+ * LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND
+ * ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ***** END LICENSE BLOCK ***** */
+package pl.edu.icm.jlargearrays;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Large arrays shared between processes on the same host. A shared array is a
+ * file in a memory-backed file system (/dev/shm by default) that is mapped by
+ * every process using it, so changes made by one process are immediately
+ * visible to the others, without any copying.
+ *
+ * The file starts with a header of one page (4096 bytes) in the native byte
+ * order:
+ * <pre>
+ *  0  int   magic number 0x4A4C534D ("JLSM")
+ *  4  int   version (1)
+ *  8  int   array type (LargeArrayType ordinal)
+ * 12  int   reserved
+ * 16  long  array length
+ * 24  long  generation counter
+ * </pre>
+ * followed by the elements. The generation counter can be used by a producer
+ * to announce that new data is available, see incrementGeneration() and
+ * awaitGeneration(). Arrays of type BIT and STRING are not supported.
+ *
+ * @author agent (agent@local)
+ */
+public class SharedMemory
+{
+
+    static final int MAGIC = 0x4A4C534D;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 4096;
+    private static final int GENERATION_OFFSET = 24;
+    private static final long AWAIT_PARK_NANOS = 50000;
+
+    private static Path DIRECTORY = defaultDirectory();
+
+    private SharedMemory()
+    {
+    }
+
+    private static Path defaultDirectory()
+    {
+        File shm = new File("/dev/shm");
+        return shm.isDirectory() ? shm.toPath() : Paths.get(System.getProperty("java.io.tmpdir"));
+    }
+
+    /**
+     * Returns the directory of the files of shared arrays.
+     *
+     * @return the directory of the files of shared arrays
+     */
+    public static Path getDirectory()
+    {
+        return DIRECTORY;
+    }
+
+    /**
+     * Sets the directory of the files of shared arrays. It should be on a
+     * memory-backed file system (tmpfs), otherwise the data is also written
+     * to the disk. The default is /dev/shm, or java.io.tmpdir if /dev/shm does
+     * not exist.
+     *
+     * @param directory the directory
+     */
+    public static void setDirectory(Path directory)
+    {
+        if (directory == null) {
+            throw new IllegalArgumentException("directory cannot be null");
+        }
+        DIRECTORY = directory;
+    }
+
+    private static File file(String name)
+    {
+        if (name == null || name.isEmpty() || name.indexOf('/') >= 0 || name.indexOf(File.separatorChar) >= 0) {
+            throw new IllegalArgumentException("Invalid name: " + name);
+        }
+        return DIRECTORY.resolve(name).toFile();
+    }
+
+    /**
+     * Creates a new shared array. The elements are initialized to zero.
+     *
+     * @param name   name of the array, a valid file name
+     * @param type   type of the array
+     * @param length number of elements
+     *
+     * @return the array
+     *
+     * @throws IOException if a shared array with the given name already exists
+     *                     or an I/O error occurs
+     */
+    public static LargeArray create(String name, LargeArrayType type, long length) throws IOException
+    {
+        if (type == LargeArrayType.BIT || type == LargeArrayType.STRING) {
+            throw new IllegalArgumentException("Shared arrays of type " + type + " are not supported.");
+        }
+        if (length <= 0) {
+            throw new IllegalArgumentException(length + " is not a positive long value");
+        }
+        File file = file(name);
+        Files.createFile(file.toPath());
+        MemoryMapper.Mapping mapping = null;
+        try {
+            mapping = MemoryMapper.map(file, MemoryMapper.MAP_RW, 0, HEADER_SIZE + length * type.sizeOf());
+            long header = mapping.getAddress();
+            Utilities.UNSAFE.putInt(header + 4, VERSION);
+            Utilities.UNSAFE.putInt(header + 8, type.ordinal());
+            Utilities.UNSAFE.putLong(header + 16, length);
+            Utilities.UNSAFE.putLong(header + GENERATION_OFFSET, 0);
+            // the magic number is written last, so that other processes never see an incomplete header
+            Utilities.UNSAFE.putIntVolatile(null, header, MAGIC);
+            return LargeArray.wrapMapping(mapping, header + HEADER_SIZE, type, length, false);
+        } catch (IOException ex) {
+            cleanUp(mapping, file);
+            throw ex;
+        } catch (RuntimeException ex) {
+            cleanUp(mapping, file);
+            throw ex;
+        }
+    }
+
+    private static void cleanUp(MemoryMapper.Mapping mapping, File file)
+    {
+        if (mapping != null) {
+            mapping.run();
+        }
+        file.delete();
+    }
+
+    /**
+     * Attaches to an existing shared array in read-write mode.
+     *
+     * @param name name of the array
+     *
+     * @return the array
+     *
+     * @throws IOException if the shared array does not exist or is not valid
+     */
+    public static LargeArray attach(String name) throws IOException
+    {
+        return attach(name, false);
+    }
+
+    /**
+     * Attaches to an existing shared array.
+     *
+     * @param name     name of the array
+     * @param readOnly if true, then the array is read-only
+     *
+     * @return the array
+     *
+     * @throws IOException if the shared array does not exist or is not valid
+     */
+    public static LargeArray attach(String name, boolean readOnly) throws IOException
+    {
+        File file = file(name);
+        ByteBuffer header = ByteBuffer.allocate(24).order(ByteOrder.nativeOrder());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            LargeArrayIO.readFully(raf.getChannel(), header, 0);
+        } finally {
+            raf.close();
+        }
+        if (header.getInt(0) != MAGIC) {
+            throw new IOException("Not a shared array or not initialized yet: " + name);
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Unsupported version: " + header.getInt(4));
+        }
+        LargeArrayType[] types = LargeArrayType.values();
+        int type = header.getInt(8);
+        long length = header.getLong(16);
+        if (type < 0 || type >= types.length || types[type] == LargeArrayType.BIT || types[type] == LargeArrayType.STRING || length <= 0) {
+            throw new IOException("Invalid header: " + name);
+        }
+        // read-only arrays are mapped privately, as in LargeArray.map()
+        MemoryMapper.Mapping mapping = MemoryMapper.map(file, readOnly ? MemoryMapper.MAP_PV : MemoryMapper.MAP_RW, 0, HEADER_SIZE + length * types[type].sizeOf());
+        return LargeArray.wrapMapping(mapping, mapping.getAddress() + HEADER_SIZE, types[type], length, readOnly);
+    }
+
+    /**
+     * Removes the file of a shared array. Processes that have already attached
+     * to the array can still use it, and its memory is released after all of
+     * them close it.
+     *
+     * @param name name of the array
+     *
+     * @return true if the file was removed, false otherwise
+     */
+    public static boolean unlink(String name)
+    {
+        return file(name).delete();
+    }
+
+    private static long header(LargeArray a)
+    {
+        if (a.parent instanceof MemoryMapper.Mapping) {
+            long header = ((MemoryMapper.Mapping) a.parent).getAddress();
+            if (!a.isClosed() && a.nativePointer() == header + HEADER_SIZE && Utilities.UNSAFE.getInt(header) == MAGIC) {
+                return header;
+            }
+        }
+        throw new IllegalArgumentException("The array is not an open shared array.");
+    }
+
+    /**
+     * Returns true if a given array was created by create() or attach() and
+     * has not been closed.
+     *
+     * @param a an array
+     *
+     * @return true if the array is an open shared array, false otherwise
+     */
+    public static boolean isShared(LargeArray a)
+    {
+        try {
+            header(a);
+            return true;
+        } catch (IllegalArgumentException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns the generation counter of a shared array.
+     *
+     * @param a a shared array
+     *
+     * @return the generation counter
+     */
+    public static long getGeneration(LargeArray a)
+    {
+        return Utilities.UNSAFE.getLongVolatile(null, header(a) + GENERATION_OFFSET);
+    }
+
+    /**
+     * Atomically increments the generation counter of a shared array, e.g.
+     * after a producer has written new data. The increment is visible to all
+     * processes.
+     *
+     * @param a a shared array
+     *
+     * @return the new value of the generation counter
+     */
+    public static long incrementGeneration(LargeArray a)
+    {
+        if (a.isReadOnly()) {
+            throw new IllegalAccessError("Read-only arrays cannot be modified.");
+        }
+        long address = header(a) + GENERATION_OFFSET;
+        while (true) {
+            long generation = Utilities.UNSAFE.getLongVolatile(null, address);
+            if (Utilities.UNSAFE.compareAndSwapLong(null, address, generation, generation + 1)) {
+                return generation + 1;
+            }
+        }
+    }
+
+    /**
+     * Waits until the generation counter of a shared array is larger than a
+     * given value. The counter is polled, so this method is intended for
+     * handing over large blocks of data, not for fine-grained
+     * synchronization.
+     *
+     * @param a          a shared array
+     * @param generation the last seen value of the generation counter
+     * @param timeout    maximal waiting time
+     * @param unit       time unit of the timeout
+     *
+     * @return the current value of the generation counter, which is not
+     *         larger than generation if the timeout elapsed
+     *
+     * @throws InterruptedException if the calling thread was interrupted while
+     *                              waiting
+     */
+    public static long awaitGeneration(LargeArray a, long generation, long timeout, TimeUnit unit) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long current;
+        while ((current = getGeneration(a)) <= generation && deadline - System.nanoTime() > 0) {
+            LockSupport.parkNanos(AWAIT_PARK_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return current;
+    }
+}
@@ -26,7 +26,8 @@
  * ***** END LICENSE BLOCK ***** */
 package pl.edu.icm.jlargearrays;
 
-import sun.misc.Cleaner;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
 
 /**
  *
@@ -39,6 +40,26 @@ public class ShortLargeArray extends LargeArray
 
     private static final long serialVersionUID = 8813991144303908703L;
     private short[] data;
+    private short[][] segments;
+
+    /**
+     * Creates new instance of this class by wrapping a native pointer.
+     * Providing an invalid pointer, parent or length will result in
+     * unpredictable behavior and likely JVM crash. The assumption is that the
+     * pointer is valid as long as the parent is not garbage collected.
+     * 
+     * @param parent class instance responsible for handling the pointer's life
+     *            cycle, the created instance of LargeArray will prevent the GC
+     *            from reclaiming the parent.
+     * @param nativePointer native pointer to wrap.
+     * @param length array length
+     */
+    public ShortLargeArray(final Object parent,
+                           final long nativePointer,
+                           final long length)
+    {
+        super(parent, nativePointer, LargeArrayType.SHORT, length);
+    }
 
     /**
      * Creates new instance of this class.
@@ -57,6 +78,20 @@ public class ShortLargeArray extends LargeArray
      * @param zeroNativeMemory if true, then the native memory is zeroed.
      */
     public ShortLargeArray(long length, boolean zeroNativeMemory)
+    {
+        this(length, zeroNativeMemory, SEGMENTED_HEAP);
+    }
+
+    /**
+     * Creates new instance of this class.
+     *
+     * @param length           number of elements
+     * @param zeroNativeMemory if true, then the native memory is zeroed.
+     * @param segmented        if true, then an array larger than
+     *                         getMaxSizeOf32bitArray() is stored on the heap
+     *                         in segments instead of the native memory.
+     */
+    public ShortLargeArray(long length, boolean zeroNativeMemory, boolean segmented)
     {
         this.type = LargeArrayType.SHORT;
         this.sizeof = 2;
@@ -65,13 +100,14 @@ public class ShortLargeArray extends LargeArray
         }
         this.length = length;
         if (length > LARGEST_32BIT_INDEX) {
-            System.gc();
-            this.ptr = Utilities.UNSAFE.allocateMemory(this.length * this.sizeof);
-            if (zeroNativeMemory) {
-                zeroNativeMemory(length);
+            if (segmented) {
+                segments = new short[initSegments()][];
+                for (int j = 0; j < segments.length; j++) {
+                    segments[j] = new short[segmentLength(j)];
+                }
+            } else {
+                allocateNativeMemory(this.length, zeroNativeMemory);
             }
-            Cleaner.create(this, new Deallocator(this.ptr, this.length, this.sizeof));
-            MemoryCounter.increaseCounter(this.length * this.sizeof);
         } else {
             data = new short[(int) length];
         }
@@ -79,8 +115,8 @@ public class ShortLargeArray extends LargeArray
 
     public ShortLargeArray(long length, short constantValue)
     {
-        this.type = LargeArrayType.DOUBLE;
-        this.sizeof = 8;
+        this.type = LargeArrayType.SHORT;
+        this.sizeof = 2;
         if (length <= 0) {
             throw new IllegalArgumentException(length + " is not a positive long value");
         }
@@ -113,12 +149,18 @@ public class ShortLargeArray extends LargeArray
         if (isConstant()) {
             return new ShortLargeArray(length, getShort(0));
         } else {
-            ShortLargeArray v = new ShortLargeArray(length, false);
+            ShortLargeArray v = new ShortLargeArray(length, false, isSegmented());
             Utilities.arraycopy(this, 0, v, 0, length);
             return v;
         }
     }
 
+    @Override
+    short[][] getSegments()
+    {
+        return segments;
+    }
+
     @Override
     public Short get(long i)
     {
@@ -136,6 +178,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (Utilities.UNSAFE.getShort(ptr + sizeof * i)) != 0;
+        } else if (segments != null) {
+            return (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]) != 0;
         } else {
             if (isConstant()) {
                 return data[0] != 0;
@@ -150,6 +194,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (byte) (Utilities.UNSAFE.getShort(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (byte) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (byte) data[0];
@@ -164,6 +210,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return Utilities.UNSAFE.getShort(ptr + sizeof * i);
+        } else if (segments != null) {
+            return segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)];
         } else {
             if (isConstant()) {
                 return data[0];
@@ -178,6 +226,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (int) (Utilities.UNSAFE.getShort(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (int) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (int) data[0];
@@ -192,6 +242,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (long) (Utilities.UNSAFE.getShort(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (long) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (long) data[0];
@@ -206,6 +258,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (float) (Utilities.UNSAFE.getShort(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (float) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (float) data[0];
@@ -220,6 +274,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             return (double) (Utilities.UNSAFE.getShort(ptr + sizeof * i));
+        } else if (segments != null) {
+            return (double) (segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)]);
         } else {
             if (isConstant()) {
                 return (double) data[0];
@@ -232,7 +288,7 @@ public class ShortLargeArray extends LargeArray
     @Override
     public short[] getData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -248,10 +304,40 @@ public class ShortLargeArray extends LargeArray
         }
     }
 
+    /**
+     * Returns a ShortBuffer that shares length elements of this array, starting
+     * at offset. No data is copied: for arrays stored in the native memory
+     * the returned buffer is a view of a direct ByteBuffer aliasing that
+     * memory (see asByteBuffer()), otherwise it wraps the internal Java
+     * array.
+     *
+     * @param offset index of the first element
+     * @param length number of elements
+     *
+     * @return the buffer
+     */
+    public ShortBuffer asShortBuffer(long offset, int length)
+    {
+        checkBuffer(offset, length);
+        if (ptr != 0) {
+            return asByteBuffer(offset, length).asShortBuffer();
+        }
+        if (segments != null) {
+            short[] segment = segments[(int) (offset >>> segmentShift)];
+            if ((offset & segmentMask) + length > segment.length) {
+                throw new UnsupportedOperationException("The elements are not stored in a single segment.");
+            }
+            ShortBuffer buffer = ShortBuffer.wrap(segment, (int) (offset & segmentMask), length).slice();
+            return readOnly ? buffer.asReadOnlyBuffer() : buffer;
+        }
+        ShortBuffer buffer = ShortBuffer.wrap(data, (int) offset, length).slice();
+        return readOnly ? buffer.asReadOnlyBuffer() : buffer;
+    }
+
     @Override
     public boolean[] getBooleanData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -297,7 +383,11 @@ public class ShortLargeArray extends LargeArray
                 out = new boolean[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getBoolean(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     short v = Utilities.UNSAFE.getShort(ptr + sizeof * i);
                     out[idx++] = v != 0;
@@ -321,7 +411,7 @@ public class ShortLargeArray extends LargeArray
     @Override
     public byte[] getByteData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -367,7 +457,11 @@ public class ShortLargeArray extends LargeArray
                 out = new byte[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getByte(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (byte) Utilities.UNSAFE.getShort(ptr + sizeof * i);
                 }
@@ -389,7 +483,7 @@ public class ShortLargeArray extends LargeArray
     @Override
     public short[] getShortData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -430,9 +524,17 @@ public class ShortLargeArray extends LargeArray
                 out = new short[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
                 for (long i = startPos; i < endPos; i += step) {
-                    out[idx++] = Utilities.UNSAFE.getShort(ptr + sizeof * i);
+                    out[idx++] = getShort(i);
+                }
+            } else if (ptr != 0) {
+                if (step == 1) {
+                    Utilities.copyMemory(null, ptr + sizeof * startPos, out, Utilities.UNSAFE.arrayBaseOffset(short[].class), len, sizeof);
+                } else {
+                    for (long i = startPos; i < endPos; i += step) {
+                        out[idx++] = Utilities.UNSAFE.getShort(ptr + sizeof * i);
+                    }
                 }
             } else {
                 if (isConstant()) {
@@ -440,8 +542,12 @@ public class ShortLargeArray extends LargeArray
                         out[idx++] = data[0];
                     }
                 } else {
-                    for (long i = startPos; i < endPos; i += step) {
-                        out[idx++] = data[(int) i];
+                    if (step == 1) {
+                        System.arraycopy(data, (int) startPos, out, 0, (int) len);
+                    } else {
+                        for (long i = startPos; i < endPos; i += step) {
+                            out[idx++] = data[(int) i];
+                        }
                     }
                 }
             }
@@ -452,7 +558,7 @@ public class ShortLargeArray extends LargeArray
     @Override
     public int[] getIntData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -498,7 +604,11 @@ public class ShortLargeArray extends LargeArray
                 out = new int[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getInt(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (int) Utilities.UNSAFE.getShort(ptr + sizeof * i);
                 }
@@ -520,7 +630,7 @@ public class ShortLargeArray extends LargeArray
     @Override
     public long[] getLongData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -566,7 +676,11 @@ public class ShortLargeArray extends LargeArray
                 out = new long[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getLong(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (long) Utilities.UNSAFE.getShort(ptr + sizeof * i);
                 }
@@ -588,7 +702,7 @@ public class ShortLargeArray extends LargeArray
     @Override
     public float[] getFloatData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -634,7 +748,11 @@ public class ShortLargeArray extends LargeArray
                 out = new float[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getFloat(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (float) Utilities.UNSAFE.getShort(ptr + sizeof * i);
                 }
@@ -656,7 +774,7 @@ public class ShortLargeArray extends LargeArray
     @Override
     public double[] getDoubleData()
     {
-        if (ptr != 0) {
+        if (ptr != 0 || segments != null) {
             return null;
         } else {
             if (isConstant()) {
@@ -702,7 +820,11 @@ public class ShortLargeArray extends LargeArray
                 out = new double[(int) len];
             }
             int idx = 0;
-            if (ptr != 0) {
+            if (segments != null) {
+                for (long i = startPos; i < endPos; i += step) {
+                    out[idx++] = getDouble(i);
+                }
+            } else if (ptr != 0) {
                 for (long i = startPos; i < endPos; i += step) {
                     out[idx++] = (double) Utilities.UNSAFE.getShort(ptr + sizeof * i);
                 }
@@ -721,6 +843,85 @@ public class ShortLargeArray extends LargeArray
         }
     }
 
+    /**
+     * Copies len elements of this array, beginning at srcPos, to the
+     * specified position of the destination array. Array bounds are checked.
+     *
+     * @param srcPos starting position in this array.
+     * @param dst    the destination array.
+     * @param dstOff starting position in the destination array.
+     * @param len    the number of elements to be copied.
+     */
+    public void get(long srcPos, short[] dst, int dstOff, int len)
+    {
+        ensureOpen();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (srcPos < 0 || srcPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos + len > length");
+        }
+        if (dstOff < 0 || (long) dstOff + len > dst.length) {
+            throw new ArrayIndexOutOfBoundsException("dstOff < 0 || dstOff + len > dst.length");
+        }
+        if (segments != null) {
+            for (int done = 0; done < len;) {
+                long i = srcPos + done;
+                short[] segment = segments[(int) (i >>> segmentShift)];
+                int n = (int) Math.min(len - done, segment.length - (i & segmentMask));
+                System.arraycopy(segment, (int) (i & segmentMask), dst, dstOff + done, n);
+                done += n;
+            }
+        } else if (ptr != 0) {
+            Utilities.copyMemory(null, ptr + sizeof * srcPos, dst, Utilities.UNSAFE.arrayBaseOffset(short[].class) + sizeof * dstOff, len, sizeof);
+        } else {
+            if (isConstant()) {
+                Arrays.fill(dst, dstOff, dstOff + len, data[0]);
+            } else {
+                System.arraycopy(data, (int) srcPos, dst, dstOff, len);
+            }
+        }
+    }
+
+    /**
+     * Copies len elements of the source array, beginning at srcOff, to the
+     * specified position of this array. Array bounds are checked.
+     *
+     * @param dstPos starting position in this array.
+     * @param src    the source array.
+     * @param srcOff starting position in the source array.
+     * @param len    the number of elements to be copied.
+     */
+    public void set(long dstPos, short[] src, int srcOff, int len)
+    {
+        ensureWritable();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (dstPos < 0 || dstPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("dstPos < 0 || dstPos + len > length");
+        }
+        if (srcOff < 0 || (long) srcOff + len > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcOff < 0 || srcOff + len > src.length");
+        }
+        if (segments != null) {
+            for (int done = 0; done < len;) {
+                long i = dstPos + done;
+                short[] segment = segments[(int) (i >>> segmentShift)];
+                int n = (int) Math.min(len - done, segment.length - (i & segmentMask));
+                System.arraycopy(src, srcOff + done, segment, (int) (i & segmentMask), n);
+                done += n;
+            }
+        } else if (ptr != 0) {
+            Utilities.copyMemory(src, Utilities.UNSAFE.arrayBaseOffset(short[].class) + sizeof * srcOff, null, ptr + sizeof * dstPos, len, sizeof);
+        } else {
+            if (isConstant()) {
+                throw new IllegalAccessError("Constant arrays cannot be modified.");
+            }
+            System.arraycopy(src, srcOff, data, (int) dstPos, len);
+        }
+    }
+
     @Override
     public void setToNative(long i, Object value)
     {
@@ -732,6 +933,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putShort(ptr + sizeof * i, value == true ? (short) 1 : (short) 0);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value == true ? (short) 1 : (short) 0;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -745,6 +948,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putShort(ptr + sizeof * i, (short) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (short) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -758,6 +963,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putShort(ptr + sizeof * i, value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -771,6 +978,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putShort(ptr + sizeof * i, (short) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (short) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -784,6 +993,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putShort(ptr + sizeof * i, (short) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (short) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -797,6 +1008,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putShort(ptr + sizeof * i, (short) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (short) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -810,6 +1023,8 @@ public class ShortLargeArray extends LargeArray
     {
         if (ptr != 0) {
             Utilities.UNSAFE.putShort(ptr + sizeof * i, (short) value);
+        } else if (segments != null) {
+            segments[(int) (i >>> segmentShift)][(int) (i & segmentMask)] = (short) value;
         } else {
             if (isConstant()) {
                 throw new IllegalAccessError("Constant arrays cannot be modified.");
@@ -28,8 +28,6 @@ package pl.edu.icm.jlargearrays;
 
 import java.io.UnsupportedEncodingException;
 
-import sun.misc.Cleaner;
-
 /**
  *
  * An array of strings that can store up to 2<SUP>63</SUP> elements.
@@ -110,13 +108,7 @@ public class StringLargeArray extends LargeArray
         this.size = length * maxStringLength * CHARSET_SIZE;
         this.maxStringLength = maxStringLength;
         if (length > LARGEST_32BIT_INDEX) {
-            System.gc();
-            this.ptr = Utilities.UNSAFE.allocateMemory(this.size * this.sizeof);
-            if (zeroNativeMemory) {
-                zeroNativeMemory(this.size);
-            }
-            Cleaner.create(this, new Deallocator(this.ptr, this.size, this.sizeof));
-            MemoryCounter.increaseCounter(this.size * this.sizeof);
+            allocateNativeMemory(this.size, zeroNativeMemory);
             stringLengths = new ShortLargeArray(length);
             byteArray = new byte[maxStringLength * CHARSET_SIZE];
         } else {
@@ -166,6 +158,21 @@ public class StringLargeArray extends LargeArray
         }
     }
 
+    @Override
+    public void free()
+    {
+        super.free();
+        if (stringLengths != null) {
+            stringLengths.free();
+        }
+    }
+
+    @Override
+    protected long getNativeMemorySize()
+    {
+        return size * sizeof;
+    }
+
     @Override
     public String get(long i)
     {
@@ -349,6 +356,61 @@ public class StringLargeArray extends LargeArray
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    /**
+     * Copies len elements of this array, beginning at srcPos, to the
+     * specified position of the destination array. Array bounds are checked.
+     *
+     * @param srcPos starting position in this array.
+     * @param dst    the destination array.
+     * @param dstOff starting position in the destination array.
+     * @param len    the number of elements to be copied.
+     */
+    public void get(long srcPos, String[] dst, int dstOff, int len)
+    {
+        ensureOpen();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (srcPos < 0 || srcPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos + len > length");
+        }
+        if (dstOff < 0 || (long) dstOff + len > dst.length) {
+            throw new ArrayIndexOutOfBoundsException("dstOff < 0 || dstOff + len > dst.length");
+        }
+        for (int j = 0; j < len; j++) {
+            dst[dstOff + j] = get(srcPos + j);
+        }
+    }
+
+    /**
+     * Copies len elements of the source array, beginning at srcOff, to the
+     * specified position of this array. Array bounds are checked.
+     *
+     * @param dstPos starting position in this array.
+     * @param src    the source array.
+     * @param srcOff starting position in the source array.
+     * @param len    the number of elements to be copied.
+     */
+    public void set(long dstPos, String[] src, int srcOff, int len)
+    {
+        ensureWritable();
+        if (len < 0) {
+            throw new IllegalArgumentException("len < 0");
+        }
+        if (dstPos < 0 || dstPos + len > length) {
+            throw new ArrayIndexOutOfBoundsException("dstPos < 0 || dstPos + len > length");
+        }
+        if (srcOff < 0 || (long) srcOff + len > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcOff < 0 || srcOff + len > src.length");
+        }
+        if (isConstant()) {
+            throw new IllegalAccessError("Constant arrays cannot be modified.");
+        }
+        for (int j = 0; j < len; j++) {
+            set(dstPos + j, src[srcOff + j]);
+        }
+    }
+
     @Override
     public void setToNative(long i, Object value)
     {
@@ -410,6 +472,7 @@ public class StringLargeArray extends LargeArray
     @Override
     public void set_safe(long i, Object o)
     {
+        ensureWritable();
         if (i < 0 || i >= length) {
             throw new ArrayIndexOutOfBoundsException(Long.toString(i));
         }
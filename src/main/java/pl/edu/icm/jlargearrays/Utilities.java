@@ -26,7 +26,12 @@
  * ***** END LICENSE BLOCK ***** */
 package pl.edu.icm.jlargearrays;
 
+import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.Future;
 
 /**
  *
@@ -67,10 +72,538 @@ public class Utilities
         }
     }
 
+    /**
+     * Maximal number of bytes copied by a single call to
+     * sun.misc.Unsafe.copyMemory(). Large copies are split into chunks of this
+     * size, so that a single call does not delay safepoints for too long.
+     */
+    private static final long UNSAFE_COPY_THRESHOLD = 1024L * 1024L;
+
+    private static final long BYTE_ARRAY_BASE_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+
+    /**
+     * Private constructor of java.nio.DirectByteBuffer wrapping a memory
+     * address.
+     */
+    private static final Constructor<?> DIRECT_BYTE_BUFFER_CONSTRUCTOR;
+
+    /**
+     * Offset of the field of java.nio.DirectByteBuffer that keeps the owner of
+     * the memory reachable, or -1 if there is no such field.
+     */
+    private static final long DIRECT_BYTE_BUFFER_ATTACHMENT_OFFSET;
+
+    /**
+     * Offset of the field of java.nio.Buffer that holds the address of a
+     * direct buffer, or -1 if there is no such field.
+     */
+    private static final long BUFFER_ADDRESS_OFFSET;
+
+    static {
+        Constructor<?> c;
+        long att;
+        long address;
+        try {
+            c = Class.forName("java.nio.DirectByteBuffer").getDeclaredConstructor(long.class, int.class);
+            c.setAccessible(true);
+        } catch (Exception ex) {
+            c = null;
+        }
+        try {
+            att = UNSAFE.objectFieldOffset(Class.forName("java.nio.DirectByteBuffer").getDeclaredField("att"));
+        } catch (Exception ex) {
+            att = -1;
+        }
+        try {
+            address = UNSAFE.objectFieldOffset(java.nio.Buffer.class.getDeclaredField("address"));
+        } catch (Exception ex) {
+            address = -1;
+        }
+        DIRECT_BYTE_BUFFER_CONSTRUCTOR = c;
+        DIRECT_BYTE_BUFFER_ATTACHMENT_OFFSET = att;
+        BUFFER_ADDRESS_OFFSET = address;
+    }
+
     private Utilities()
     {
     }
 
+    /**
+     * Creates a direct ByteBuffer of native byte order that wraps a region of
+     * native memory. The buffer does not own the memory, the caller has to
+     * ensure that the memory remains valid while the buffer is in use.
+     *
+     * @param address  address of the region
+     * @param capacity number of bytes
+     *
+     * @return new direct ByteBuffer
+     */
+    static ByteBuffer newDirectByteBuffer(final long address, final int capacity)
+    {
+        if (DIRECT_BYTE_BUFFER_CONSTRUCTOR == null) {
+            throw new UnsupportedOperationException("Wrapping native memory in a ByteBuffer is not supported by this JVM.");
+        }
+        try {
+            return ((ByteBuffer) DIRECT_BYTE_BUFFER_CONSTRUCTOR.newInstance(address, capacity)).order(ByteOrder.nativeOrder());
+        } catch (InstantiationException ex) {
+            throw new IllegalStateException(ex);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InvocationTargetException ex) {
+            throw new IllegalStateException(ex.getCause());
+        }
+    }
+
+    /**
+     * Creates a direct ByteBuffer of native byte order that wraps a region of
+     * native memory owned by a given object. The buffer, and all buffers
+     * derived from it, keep the owner reachable, if the JVM allows it.
+     *
+     * @param address  address of the region
+     * @param capacity number of bytes
+     * @param owner    owner of the memory
+     *
+     * @return new direct ByteBuffer
+     */
+    static ByteBuffer newDirectByteBuffer(final long address, final int capacity, final Object owner)
+    {
+        ByteBuffer buffer = newDirectByteBuffer(address, capacity);
+        if (DIRECT_BYTE_BUFFER_ATTACHMENT_OFFSET >= 0) {
+            UNSAFE.putObject(buffer, DIRECT_BYTE_BUFFER_ATTACHMENT_OFFSET, owner);
+        }
+        return buffer;
+    }
+
+    /**
+     * Returns the address of the first element of a direct buffer, i.e. the
+     * element at index 0, regardless of the position of the buffer.
+     *
+     * @param buffer direct buffer
+     *
+     * @return the address of the buffer
+     */
+    static long getDirectBufferAddress(final ByteBuffer buffer)
+    {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("The buffer is not direct.");
+        }
+        if (BUFFER_ADDRESS_OFFSET < 0) {
+            throw new UnsupportedOperationException("Accessing the address of a direct buffer is not supported by this JVM.");
+        }
+        return UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+    }
+
+    /**
+     * Returns the base object of the memory used by a given array, i.e. the
+     * internal Java array for arrays stored on the heap or null for arrays
+     * stored in the native memory.
+     *
+     * @param a an array
+     *
+     * @return the internal Java array or null
+     */
+    static Object getMemoryBase(final LargeArray a)
+    {
+        checkContiguous(a);
+        if (a instanceof LargeArrayView) {
+            return getMemoryBase(((LargeArrayView) a).getBase());
+        }
+        return a.isLarge() ? null : a.getData();
+    }
+
+    /**
+     * Returns the offset of the first element of a given array relative to the
+     * object returned by getMemoryBase(a). For arrays stored in the native
+     * memory this is the absolute address of the first element.
+     *
+     * @param a an array
+     *
+     * @return the offset of the first element
+     */
+    static long getMemoryOffset(final LargeArray a)
+    {
+        checkContiguous(a);
+        if (a instanceof LargeArrayView) {
+            LargeArrayView v = (LargeArrayView) a;
+            return getMemoryOffset(v.getBase()) + v.getOffset() * a.sizeof;
+        }
+        return a.isLarge() ? a.nativePointer() : UNSAFE.arrayBaseOffset(a.getData().getClass());
+    }
+
+    /**
+     * Returns true if the elements of a given array are stored contiguously in
+     * a Java array or in the native memory, so that they can be accessed
+     * through getMemoryBase() and getMemoryOffset().
+     *
+     * @param a an array
+     *
+     * @return true if the elements are stored contiguously, false otherwise
+     */
+    static boolean isContiguous(final LargeArray a)
+    {
+        if (a instanceof LargeArrayView) {
+            return ((LargeArrayView) a).isContiguous();
+        }
+        return !(a instanceof PagedLargeArray) && !a.isSegmented();
+    }
+
+    /**
+     * Returns true if the elements of a given array are stored contiguously or
+     * in segments, so that they can be accessed through getMemoryBase(a, i)
+     * and getMemoryOffset(a, i).
+     */
+    static boolean isAddressable(final LargeArray a)
+    {
+        return a.isSegmented() || isContiguous(a);
+    }
+
+    /**
+     * Returns the base object of the memory holding the element i of a given
+     * array, see getMemoryBase(LargeArray). For arrays stored in segments this
+     * is the segment containing the element.
+     */
+    static Object getMemoryBase(final LargeArray a, final long i)
+    {
+        if (a.isSegmented()) {
+            return a.getSegments()[(int) (i >>> a.segmentShift)];
+        }
+        return getMemoryBase(a);
+    }
+
+    /**
+     * Returns the offset of the element i of a given array relative to the
+     * object returned by getMemoryBase(a, i).
+     */
+    static long getMemoryOffset(final LargeArray a, final long i)
+    {
+        if (a.isSegmented()) {
+            Object segment = a.getSegments()[(int) (i >>> a.segmentShift)];
+            return UNSAFE.arrayBaseOffset(segment.getClass()) + (i & a.segmentMask) * a.sizeof;
+        }
+        return getMemoryOffset(a) + i * a.sizeof;
+    }
+
+    /**
+     * Returns the number of elements, starting at i, that are stored
+     * contiguously in the memory returned by getMemoryBase(a, i).
+     */
+    static long getContiguousLength(final LargeArray a, final long i)
+    {
+        if (a.isSegmented()) {
+            return a.segmentMask + 1 - (i & a.segmentMask);
+        }
+        return a.length() - i;
+    }
+
+    /**
+     * Returns the index of the element i of a given array in the Java array
+     * returned by getMemoryBase(a, i). Valid only for arrays stored on the
+     * heap or in segments.
+     */
+    static int getArrayIndex(final LargeArray a, final long i)
+    {
+        if (a.isSegmented()) {
+            return (int) (i & a.segmentMask);
+        }
+        if (a instanceof LargeArrayView) {
+            LargeArrayView v = (LargeArrayView) a;
+            return getArrayIndex(v.getBase(), v.getOffset() + i);
+        }
+        return (int) i;
+    }
+
+    /**
+     * Copies length bytes of the memory of an array that is stored
+     * contiguously or in segments, starting at a given byte offset, to a Java
+     * array of bytes.
+     */
+    static void getBytes(final LargeArray a, final long offset, final byte[] dst, final int dstOff, final int length)
+    {
+        if (a.isSegmented()) {
+            copySegments(a, offset, ByteBuffer.wrap(dst, dstOff, length), true);
+            return;
+        }
+        for (int done = 0; done < length;) {
+            long i = (offset + done) / a.sizeof;
+            long r = (offset + done) % a.sizeof;
+            int n = (int) Math.min(length - done, getContiguousLength(a, i) * a.sizeof - r);
+            UNSAFE.copyMemory(getMemoryBase(a, i), getMemoryOffset(a, i) + r, dst, BYTE_ARRAY_BASE_OFFSET + dstOff + done, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Copies length bytes of a Java array of bytes to the memory of an array
+     * that is stored contiguously or in segments, starting at a given byte
+     * offset.
+     */
+    static void setBytes(final LargeArray a, final long offset, final byte[] src, final int srcOff, final int length)
+    {
+        if (a.isSegmented()) {
+            copySegments(a, offset, ByteBuffer.wrap(src, srcOff, length), false);
+            return;
+        }
+        for (int done = 0; done < length;) {
+            long i = (offset + done) / a.sizeof;
+            long r = (offset + done) % a.sizeof;
+            int n = (int) Math.min(length - done, getContiguousLength(a, i) * a.sizeof - r);
+            UNSAFE.copyMemory(src, BYTE_ARRAY_BASE_OFFSET + srcOff + done, getMemoryBase(a, i), getMemoryOffset(a, i) + r, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Copies the remaining bytes of a buffer from (toBuffer == true) or to the
+     * segments of an array, starting at a given byte offset of the array. The
+     * bytes are stored in the native byte order and the position of the
+     * buffer is not changed. The segments are accessed only through the
+     * buffer, never through Unsafe.
+     */
+    static void copySegments(final LargeArray a, final long offset, final ByteBuffer buffer, final boolean toBuffer)
+    {
+        final ByteBuffer b = buffer.slice().order(ByteOrder.nativeOrder());
+        final int sizeof = (int) a.sizeof;
+        ByteBuffer element = null;
+        while (b.hasRemaining()) {
+            long pos = offset + b.position();
+            long i = pos / sizeof;
+            int r = (int) (pos % sizeof);
+            Object segment = getMemoryBase(a, i);
+            int index = getArrayIndex(a, i);
+            if (r == 0 && b.remaining() >= sizeof) {
+                int n = (int) Math.min(b.remaining() / sizeof, getContiguousLength(a, i));
+                copySegment(segment, index, b, n, toBuffer);
+            } else {
+                // a part of a single element at either end of the region
+                if (element == null) {
+                    element = ByteBuffer.allocate(sizeof).order(ByteOrder.nativeOrder());
+                }
+                int n = Math.min(b.remaining(), sizeof - r);
+                element.clear();
+                copySegment(segment, index, element, 1, true);
+                element.position(r);
+                element.limit(r + n);
+                if (toBuffer) {
+                    b.put(element);
+                } else {
+                    ByteBuffer part = b.duplicate();
+                    part.limit(part.position() + n);
+                    element.put(part);
+                    b.position(b.position() + n);
+                    element.clear();
+                    copySegment(segment, index, element, 1, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies n elements of a segment, starting at index, to (toBuffer == true)
+     * or from a buffer of native byte order, advancing its position.
+     */
+    private static void copySegment(final Object segment, final int index, final ByteBuffer buffer, final int n, final boolean toBuffer)
+    {
+        int bytes;
+        if (segment instanceof byte[]) {
+            if (toBuffer) {
+                buffer.put((byte[]) segment, index, n);
+            } else {
+                buffer.get((byte[]) segment, index, n);
+            }
+            return;
+        }
+        if (segment instanceof short[]) {
+            if (toBuffer) {
+                buffer.asShortBuffer().put((short[]) segment, index, n);
+            } else {
+                buffer.asShortBuffer().get((short[]) segment, index, n);
+            }
+            bytes = 2 * n;
+        } else if (segment instanceof int[]) {
+            if (toBuffer) {
+                buffer.asIntBuffer().put((int[]) segment, index, n);
+            } else {
+                buffer.asIntBuffer().get((int[]) segment, index, n);
+            }
+            bytes = 4 * n;
+        } else if (segment instanceof long[]) {
+            if (toBuffer) {
+                buffer.asLongBuffer().put((long[]) segment, index, n);
+            } else {
+                buffer.asLongBuffer().get((long[]) segment, index, n);
+            }
+            bytes = 8 * n;
+        } else if (segment instanceof float[]) {
+            if (toBuffer) {
+                buffer.asFloatBuffer().put((float[]) segment, index, n);
+            } else {
+                buffer.asFloatBuffer().get((float[]) segment, index, n);
+            }
+            bytes = 4 * n;
+        } else {
+            if (toBuffer) {
+                buffer.asDoubleBuffer().put((double[]) segment, index, n);
+            } else {
+                buffer.asDoubleBuffer().get((double[]) segment, index, n);
+            }
+            bytes = 8 * n;
+        }
+        buffer.position(buffer.position() + bytes);
+    }
+
+    /**
+     * Copies length elements between two arrays of the same type that are
+     * stored contiguously or in segments. Overlapping regions of the same
+     * array are copied as if through a temporary array. Segments are copied
+     * with System.arraycopy(), or with copyMemory() if the other array is
+     * stored in the native memory.
+     */
+    static void copyMemory(final LargeArray src, final long srcPos, final LargeArray dest, final long destPos, final long length)
+    {
+        final long sizeof = src.sizeof;
+        if (!src.isSegmented() && !dest.isSegmented()) {
+            copyMemory(getMemoryBase(src), getMemoryOffset(src) + srcPos * sizeof, getMemoryBase(dest), getMemoryOffset(dest) + destPos * sizeof, length, sizeof);
+            return;
+        }
+        if (src == dest && srcPos < destPos && destPos < srcPos + length) {
+            for (long remaining = length; remaining > 0;) {
+                long i = srcPos + remaining - 1;
+                long j = destPos + remaining - 1;
+                long n = Math.min(remaining, Math.min(src.segmentMask & i, dest.segmentMask & j) + 1);
+                copySegment(src, i - n + 1, dest, j - n + 1, n);
+                remaining -= n;
+            }
+            return;
+        }
+        for (long done = 0; done < length;) {
+            long i = srcPos + done;
+            long j = destPos + done;
+            long n = Math.min(length - done, Math.min(getContiguousLength(src, i), getContiguousLength(dest, j)));
+            copySegment(src, i, dest, j, n);
+            done += n;
+        }
+    }
+
+    /**
+     * Copies n elements that are stored contiguously in both arrays, at least
+     * one of which is stored in segments.
+     */
+    private static void copySegment(final LargeArray src, final long i, final LargeArray dest, final long j, final long n)
+    {
+        Object srcBase = getMemoryBase(src, i);
+        Object destBase = getMemoryBase(dest, j);
+        if (srcBase != null && destBase != null) {
+            System.arraycopy(srcBase, getArrayIndex(src, i), destBase, getArrayIndex(dest, j), (int) n);
+        } else {
+            copyMemory(srcBase, getMemoryOffset(src, i), destBase, getMemoryOffset(dest, j), n, src.sizeof);
+        }
+    }
+
+    private static void checkContiguous(final LargeArray a)
+    {
+        if (!isContiguous(a)) {
+            throw new UnsupportedOperationException("The elements of the array are not stored contiguously.");
+        }
+    }
+
+    /**
+     * Copies length elements of size sizeof between two memory regions. Each
+     * region is either a Java primitive array (base != null, offset relative to
+     * the array) or native memory (base == null, offset is an absolute
+     * address). Regions that do not overlap are copied in parallel.
+     *
+     * @param srcBase    the source array or null
+     * @param srcOffset  the offset of the first source element
+     * @param destBase   the destination array or null
+     * @param destOffset the offset of the first destination element
+     * @param length     the number of elements to be copied
+     * @param sizeof     the size of a single element in bytes
+     */
+    static void copyMemory(final Object srcBase, final long srcOffset, final Object destBase, final long destOffset, final long length, final long sizeof)
+    {
+        final long bytes = length * sizeof;
+        final boolean overlap = srcBase == destBase && srcOffset < destOffset + bytes && destOffset < srcOffset + bytes;
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (overlap || nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
+            copyMemoryChunked(srcBase, srcOffset, destBase, destOffset, bytes, overlap);
+        } else {
+            long k = length / nthreads;
+            Future<?>[] futures = new Future<?>[nthreads];
+            for (int j = 0; j < nthreads; j++) {
+                final long firstIdx = j * k * sizeof;
+                final long lastIdx = (j == nthreads - 1) ? bytes : firstIdx + k * sizeof;
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        copyMemoryChunked(srcBase, srcOffset + firstIdx, destBase, destOffset + firstIdx, lastIdx - firstIdx, false);
+                    }
+                });
+            }
+            try {
+                ConcurrencyUtils.waitForCompletion(futures);
+            } catch (InterruptedException ex) {
+                copyMemoryChunked(srcBase, srcOffset, destBase, destOffset, bytes, false);
+            }
+        }
+    }
+
+    private static void copyMemoryChunked(final Object srcBase, final long srcOffset, final Object destBase, final long destOffset, final long bytes, final boolean overlap)
+    {
+        if (srcBase != null && destBase != null) {
+            long srcBaseOffset = UNSAFE.arrayBaseOffset(srcBase.getClass());
+            long destBaseOffset = UNSAFE.arrayBaseOffset(destBase.getClass());
+            long scale = UNSAFE.arrayIndexScale(srcBase.getClass());
+            System.arraycopy(srcBase, (int) ((srcOffset - srcBaseOffset) / scale), destBase, (int) ((destOffset - destBaseOffset) / scale), (int) (bytes / scale));
+        } else if (overlap) {
+            UNSAFE.copyMemory(srcBase, srcOffset, destBase, destOffset, bytes);
+        } else {
+            for (long offset = 0; offset < bytes; offset += UNSAFE_COPY_THRESHOLD) {
+                UNSAFE.copyMemory(srcBase, srcOffset + offset, destBase, destOffset + offset, Math.min(UNSAFE_COPY_THRESHOLD, bytes - offset));
+            }
+        }
+    }
+
+    /**
+     * Sets all bytes in a block of native memory to a given value. Large blocks
+     * are split into page-aligned chunks that are set in parallel, so that no
+     * two threads write to the same page.
+     *
+     * @param address address of the block
+     * @param bytes   number of bytes to set
+     * @param value   the value
+     */
+    static void setMemory(final long address, final long bytes, final byte value)
+    {
+        final long pageSize = UNSAFE.pageSize();
+        int nthreads = (int) Math.min(bytes / pageSize, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || bytes < ConcurrencyUtils.getConcurrentThreshold()) {
+            UNSAFE.setMemory(address, bytes, value);
+        } else {
+            final long end = address + bytes;
+            long k = bytes / nthreads;
+            Future<?>[] futures = new Future<?>[nthreads];
+            for (int j = 0; j < nthreads; j++) {
+                final long first = (j == 0) ? address : Math.min(end, (address + j * k + pageSize - 1) & -pageSize);
+                final long last = (j == nthreads - 1) ? end : Math.min(end, (address + (j + 1) * k + pageSize - 1) & -pageSize);
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        UNSAFE.setMemory(first, last - first, value);
+                    }
+                });
+            }
+            try {
+                ConcurrencyUtils.waitForCompletion(futures);
+            } catch (InterruptedException ex) {
+                UNSAFE.setMemory(address, bytes, value);
+            }
+        }
+    }
+
     /**
      * Copies an array from the specified source array, beginning at the
      * specified position, to the specified position of the destination array.
@@ -87,6 +620,10 @@ public class Utilities
         if (src.getType() != dest.getType()) {
             throw new IllegalArgumentException("The type of source array is different than the type of destimation array.");
         }
+        if (src instanceof LargeArrayView || dest instanceof LargeArrayView || src instanceof PagedLargeArray || dest instanceof PagedLargeArray) {
+            arraycopyElements(src, srcPos, dest, destPos, length);
+            return;
+        }
         switch (src.getType()) {
             case BIT:
                 arraycopy((BitLargeArray) src, srcPos, (BitLargeArray) dest, destPos, length);
@@ -117,6 +654,85 @@ public class Utilities
         }
     }
 
+    /**
+     * Copies elements between arrays of the same type that are not instances
+     * of the classes specific to their types, e.g. views. Contiguous regions
+     * are copied as memory, others element by element.
+     */
+    private static void arraycopyElements(final LargeArray src, final long srcPos, final LargeArray dest, final long destPos, final long length)
+    {
+        src.ensureOpen();
+        dest.ensureWritable();
+        if (srcPos < 0 || srcPos + length > src.length()) {
+            throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos + length > src.length()");
+        }
+        if (destPos < 0 || destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos < 0 || destPos + length > dest.length()");
+        }
+        if (length < 0) {
+            throw new IllegalArgumentException("length < 0");
+        }
+        if (dest.isConstant()) {
+            throw new IllegalArgumentException("Constant arrays cannot be modified.");
+        }
+        final LargeArrayType type = src.getType();
+        if (!src.isConstant() && type != LargeArrayType.BIT && type != LargeArrayType.STRING && isAddressable(src) && isAddressable(dest)) {
+            copyMemory(src, srcPos, dest, destPos, length);
+            return;
+        }
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold() || src instanceof PagedLargeArray || dest instanceof PagedLargeArray) {
+            copyElements(src, srcPos, dest, destPos, 0, length);
+        } else {
+            long k = length / nthreads;
+            Future<?>[] futures = new Future<?>[nthreads];
+            for (int j = 0; j < nthreads; j++) {
+                final long firstIdx = j * k;
+                final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        copyElements(src, srcPos, dest, destPos, firstIdx, lastIdx);
+                    }
+                });
+            }
+            try {
+                ConcurrencyUtils.waitForCompletion(futures);
+            } catch (InterruptedException ex) {
+                copyElements(src, srcPos, dest, destPos, 0, length);
+            }
+        }
+    }
+
+    private static void copyElements(final LargeArray src, final long srcPos, final LargeArray dest, final long destPos, final long firstIdx, final long lastIdx)
+    {
+        switch (src.getType()) {
+            case BIT:
+                for (long k = firstIdx; k < lastIdx; k++) {
+                    dest.setBoolean(destPos + k, src.getBoolean(srcPos + k));
+                }
+                break;
+            case FLOAT:
+            case DOUBLE:
+                for (long k = firstIdx; k < lastIdx; k++) {
+                    dest.setDouble(destPos + k, src.getDouble(srcPos + k));
+                }
+                break;
+            case STRING:
+                for (long k = firstIdx; k < lastIdx; k++) {
+                    dest.set(destPos + k, src.get(srcPos + k));
+                }
+                break;
+            default:
+                for (long k = firstIdx; k < lastIdx; k++) {
+                    dest.setLong(destPos + k, src.getLong(srcPos + k));
+                }
+                break;
+        }
+    }
+
     /**
      * Copies an array from the specified source array, beginning at the
      * specified position, to the specified position of the destination array.
@@ -130,6 +746,8 @@ public class Utilities
      */
     public static void arraycopy(final BitLargeArray src, final long srcPos, final BitLargeArray dest, final long destPos, final long length)
     {
+        src.ensureOpen();
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length()) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length()");
         }
@@ -142,18 +760,19 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                 dest.setByte(j, src.getByte(i));
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
-                final long firstIdx = j * k;
-                final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                // chunks start at 64-bit word boundaries of dest, so that no two threads modify the same word
+                final long firstIdx = (j == 0) ? 0 : Math.min(length, (((destPos + j * k + 63) >>> 6) << 6) - destPos);
+                final long lastIdx = (j == nthreads - 1) ? length : Math.min(length, (((destPos + (j + 1) * k + 63) >>> 6) << 6) - destPos);
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -163,13 +782,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                     dest.setByte(j, src.getByte(i));
@@ -191,6 +806,7 @@ public class Utilities
      */
     public static void arraycopy(final boolean[] src, final int srcPos, final BitLargeArray dest, final long destPos, final long length)
     {
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length");
         }
@@ -205,18 +821,19 @@ public class Utilities
         }
 
         int i = srcPos;
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long j = destPos; j < destPos + length; j++) {
                 dest.setBoolean(j, src[i++]);
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
-                final long firstIdx = j * k;
-                final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                // chunks start at 64-bit word boundaries of dest, so that no two threads modify the same word
+                final long firstIdx = (j == 0) ? 0 : Math.min(length, (((destPos + j * k + 63) >>> 6) << 6) - destPos);
+                final long lastIdx = (j == nthreads - 1) ? length : Math.min(length, (((destPos + (j + 1) * k + 63) >>> 6) << 6) - destPos);
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -226,13 +843,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long j = destPos; j < destPos + length; j++) {
                     dest.setBoolean(j, src[i++]);
@@ -254,6 +867,8 @@ public class Utilities
      */
     public static void arraycopy(final ByteLargeArray src, final long srcPos, final ByteLargeArray dest, final long destPos, final long length)
     {
+        src.ensureOpen();
+        dest.ensureWritable();
 
         if (srcPos < 0 || srcPos >= src.length()) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length()");
@@ -267,18 +882,28 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        if (srcPos + length > src.length()) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length()");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
+        }
+        if (!src.isConstant()) {
+            copyMemory(src, srcPos, dest, destPos, length);
+            return;
+        }
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                 dest.setByte(j, src.getByte(i));
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
                 final long firstIdx = j * k;
                 final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -288,13 +913,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                     dest.setByte(j, src.getByte(i));
@@ -316,6 +937,7 @@ public class Utilities
      */
     public static void arraycopy(final byte[] src, final int srcPos, final ByteLargeArray dest, final long destPos, final long length)
     {
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length");
         }
@@ -328,41 +950,17 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int i = srcPos;
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
-            for (long j = destPos; j < destPos + length; j++) {
-                dest.setByte(j, src[i++]);
-            }
-        } else {
-            long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
-            for (int j = 0; j < nthreads; j++) {
-                final long firstIdx = j * k;
-                final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        for (long k = firstIdx; k < lastIdx; k++) {
-                            dest.setByte(destPos + k, src[srcPos + (int) k]);
-                        }
-                    }
-                });
-                threads[j].start();
-            }
-            try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
-            } catch (InterruptedException ex) {
-                for (long j = destPos; j < destPos + length; j++) {
-                    dest.setByte(j, src[i++]);
-                }
-            }
+        if (srcPos + length > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
         }
+        if (dest.isSegmented()) {
+            dest.set(destPos, src, srcPos, (int) length);
+            return;
+        }
+        copyMemory(src, UNSAFE.arrayBaseOffset(byte[].class) + srcPos * dest.sizeof, getMemoryBase(dest), getMemoryOffset(dest) + destPos * dest.sizeof, length, dest.sizeof);
     }
 
     /**
@@ -378,6 +976,8 @@ public class Utilities
      */
     public static void arraycopy(final ShortLargeArray src, final long srcPos, final ShortLargeArray dest, final long destPos, final long length)
     {
+        src.ensureOpen();
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length()) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length()");
         }
@@ -390,19 +990,29 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
+        if (srcPos + length > src.length()) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length()");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
+        }
+        if (!src.isConstant()) {
+            copyMemory(src, srcPos, dest, destPos, length);
+            return;
+        }
 
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                 dest.setShort(j, src.getShort(i));
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
                 final long firstIdx = j * k;
                 final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -412,13 +1022,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                     dest.setShort(j, src.getShort(i));
@@ -440,6 +1046,7 @@ public class Utilities
      */
     public static void arraycopy(final short[] src, final int srcPos, final ShortLargeArray dest, final long destPos, final long length)
     {
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length");
         }
@@ -452,41 +1059,17 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int i = srcPos;
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
-            for (long j = destPos; j < destPos + length; j++) {
-                dest.setShort(j, src[i++]);
-            }
-        } else {
-            long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
-            for (int j = 0; j < nthreads; j++) {
-                final long firstIdx = j * k;
-                final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        for (long k = firstIdx; k < lastIdx; k++) {
-                            dest.setShort(destPos + k, src[srcPos + (int) k]);
-                        }
-                    }
-                });
-                threads[j].start();
-            }
-            try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
-            } catch (InterruptedException ex) {
-                for (long j = destPos; j < destPos + length; j++) {
-                    dest.setShort(j, src[i++]);
-                }
-            }
+        if (srcPos + length > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length");
         }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
+        }
+        if (dest.isSegmented()) {
+            dest.set(destPos, src, srcPos, (int) length);
+            return;
+        }
+        copyMemory(src, UNSAFE.arrayBaseOffset(short[].class) + srcPos * dest.sizeof, getMemoryBase(dest), getMemoryOffset(dest) + destPos * dest.sizeof, length, dest.sizeof);
     }
 
     /**
@@ -502,6 +1085,8 @@ public class Utilities
      */
     public static void arraycopy(final IntLargeArray src, final long srcPos, final IntLargeArray dest, final long destPos, final long length)
     {
+        src.ensureOpen();
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length()) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length()");
         }
@@ -514,18 +1099,28 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        if (srcPos + length > src.length()) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length()");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
+        }
+        if (!src.isConstant()) {
+            copyMemory(src, srcPos, dest, destPos, length);
+            return;
+        }
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                 dest.setInt(j, src.getInt(i));
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
                 final long firstIdx = j * k;
                 final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -535,13 +1130,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                     dest.setInt(j, src.getInt(i));
@@ -563,6 +1154,7 @@ public class Utilities
      */
     public static void arraycopy(final int[] src, final int srcPos, final IntLargeArray dest, final long destPos, final long length)
     {
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length");
         }
@@ -575,41 +1167,17 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int i = srcPos;
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
-            for (long j = destPos; j < destPos + length; j++) {
-                dest.setInt(j, src[i++]);
-            }
-        } else {
-            long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
-            for (int j = 0; j < nthreads; j++) {
-                final long firstIdx = j * k;
-                final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        for (long k = firstIdx; k < lastIdx; k++) {
-                            dest.setInt(destPos + k, src[srcPos + (int) k]);
-                        }
-                    }
-                });
-                threads[j].start();
-            }
-            try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
-            } catch (InterruptedException ex) {
-                for (long j = destPos; j < destPos + length; j++) {
-                    dest.setInt(j, src[i++]);
-                }
-            }
+        if (srcPos + length > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
         }
+        if (dest.isSegmented()) {
+            dest.set(destPos, src, srcPos, (int) length);
+            return;
+        }
+        copyMemory(src, UNSAFE.arrayBaseOffset(int[].class) + srcPos * dest.sizeof, getMemoryBase(dest), getMemoryOffset(dest) + destPos * dest.sizeof, length, dest.sizeof);
     }
 
     /**
@@ -625,6 +1193,8 @@ public class Utilities
      */
     public static void arraycopy(final LongLargeArray src, final long srcPos, final LongLargeArray dest, final long destPos, final long length)
     {
+        src.ensureOpen();
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length()) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length()");
         }
@@ -637,18 +1207,28 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        if (srcPos + length > src.length()) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length()");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
+        }
+        if (!src.isConstant()) {
+            copyMemory(src, srcPos, dest, destPos, length);
+            return;
+        }
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                 dest.setLong(j, src.getLong(i));
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
                 final long firstIdx = j * k;
                 final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -658,13 +1238,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                     dest.setLong(j, src.getLong(i));
@@ -686,6 +1262,7 @@ public class Utilities
      */
     public static void arraycopy(final long[] src, final int srcPos, final LongLargeArray dest, final long destPos, final long length)
     {
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length");
         }
@@ -698,41 +1275,17 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int i = srcPos;
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
-            for (long j = destPos; j < destPos + length; j++) {
-                dest.setLong(j, src[i++]);
-            }
-        } else {
-            long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
-            for (int j = 0; j < nthreads; j++) {
-                final long firstIdx = j * k;
-                final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        for (long k = firstIdx; k < lastIdx; k++) {
-                            dest.setLong(destPos + k, src[srcPos + (int) k]);
-                        }
-                    }
-                });
-                threads[j].start();
-            }
-            try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
-            } catch (InterruptedException ex) {
-                for (long j = destPos; j < destPos + length; j++) {
-                    dest.setLong(j, src[i++]);
-                }
-            }
+        if (srcPos + length > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
+        }
+        if (dest.isSegmented()) {
+            dest.set(destPos, src, srcPos, (int) length);
+            return;
         }
+        copyMemory(src, UNSAFE.arrayBaseOffset(long[].class) + srcPos * dest.sizeof, getMemoryBase(dest), getMemoryOffset(dest) + destPos * dest.sizeof, length, dest.sizeof);
     }
 
     /**
@@ -748,6 +1301,8 @@ public class Utilities
      */
     public static void arraycopy(final FloatLargeArray src, final long srcPos, final FloatLargeArray dest, final long destPos, final long length)
     {
+        src.ensureOpen();
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length()) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length()");
         }
@@ -760,18 +1315,28 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        if (srcPos + length > src.length()) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length()");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
+        }
+        if (!src.isConstant()) {
+            copyMemory(src, srcPos, dest, destPos, length);
+            return;
+        }
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                 dest.setFloat(j, src.getFloat(i));
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
                 final long firstIdx = j * k;
                 final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -781,13 +1346,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                     dest.setFloat(j, src.getFloat(i));
@@ -809,6 +1370,7 @@ public class Utilities
      */
     public static void arraycopy(final float[] src, final int srcPos, final FloatLargeArray dest, final long destPos, final long length)
     {
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length");
         }
@@ -821,41 +1383,17 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int i = srcPos;
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
-            for (long j = destPos; j < destPos + length; j++) {
-                dest.setFloat(j, src[i++]);
-            }
-        } else {
-            long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
-            for (int j = 0; j < nthreads; j++) {
-                final long firstIdx = j * k;
-                final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        for (long k = firstIdx; k < lastIdx; k++) {
-                            dest.setFloat(destPos + k, src[srcPos + (int) k]);
-                        }
-                    }
-                });
-                threads[j].start();
-            }
-            try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
-            } catch (InterruptedException ex) {
-                for (long j = destPos; j < destPos + length; j++) {
-                    dest.setFloat(j, src[i++]);
-                }
-            }
+        if (srcPos + length > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
         }
+        if (dest.isSegmented()) {
+            dest.set(destPos, src, srcPos, (int) length);
+            return;
+        }
+        copyMemory(src, UNSAFE.arrayBaseOffset(float[].class) + srcPos * dest.sizeof, getMemoryBase(dest), getMemoryOffset(dest) + destPos * dest.sizeof, length, dest.sizeof);
     }
 
     /**
@@ -871,6 +1409,8 @@ public class Utilities
      */
     public static void arraycopy(final DoubleLargeArray src, final long srcPos, final DoubleLargeArray dest, final long destPos, final long length)
     {
+        src.ensureOpen();
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length()) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length()");
         }
@@ -883,18 +1423,28 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        if (srcPos + length > src.length()) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length()");
+        }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
+        }
+        if (!src.isConstant()) {
+            copyMemory(src, srcPos, dest, destPos, length);
+            return;
+        }
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                 dest.setDouble(j, src.getDouble(i));
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
                 final long firstIdx = j * k;
                 final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -904,13 +1454,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                     dest.setDouble(j, src.getDouble(i));
@@ -932,6 +1478,7 @@ public class Utilities
      */
     public static void arraycopy(final double[] src, final int srcPos, final DoubleLargeArray dest, final long destPos, final long length)
     {
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length");
         }
@@ -944,41 +1491,17 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int i = srcPos;
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
-            for (long j = destPos; j < destPos + length; j++) {
-                dest.setDouble(j, src[i++]);
-            }
-        } else {
-            long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
-            for (int j = 0; j < nthreads; j++) {
-                final long firstIdx = j * k;
-                final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        for (long k = firstIdx; k < lastIdx; k++) {
-                            dest.setDouble(destPos + k, src[srcPos + (int) k]);
-                        }
-                    }
-                });
-                threads[j].start();
-            }
-            try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
-            } catch (InterruptedException ex) {
-                for (long j = destPos; j < destPos + length; j++) {
-                    dest.setDouble(j, src[i++]);
-                }
-            }
+        if (srcPos + length > src.length) {
+            throw new ArrayIndexOutOfBoundsException("srcPos + length > src.length");
         }
+        if (destPos + length > dest.length()) {
+            throw new ArrayIndexOutOfBoundsException("destPos + length > dest.length()");
+        }
+        if (dest.isSegmented()) {
+            dest.set(destPos, src, srcPos, (int) length);
+            return;
+        }
+        copyMemory(src, UNSAFE.arrayBaseOffset(double[].class) + srcPos * dest.sizeof, getMemoryBase(dest), getMemoryOffset(dest) + destPos * dest.sizeof, length, dest.sizeof);
     }
 
     /**
@@ -994,6 +1517,8 @@ public class Utilities
      */
     public static void arraycopy(final StringLargeArray src, final long srcPos, final StringLargeArray dest, final long destPos, final long length)
     {
+        src.ensureOpen();
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length()) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length()");
         }
@@ -1006,18 +1531,18 @@ public class Utilities
         if (dest.isConstant()) {
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                 dest.set(j, src.get(i));
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
                 final long firstIdx = j * k;
                 final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -1027,13 +1552,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long i = srcPos, j = destPos; i < srcPos + length; i++, j++) {
                     dest.set(j, src.get(i));
@@ -1055,6 +1576,7 @@ public class Utilities
      */
     public static void arraycopy(final String[] src, final int srcPos, final StringLargeArray dest, final long destPos, final long length)
     {
+        dest.ensureWritable();
         if (srcPos < 0 || srcPos >= src.length) {
             throw new ArrayIndexOutOfBoundsException("srcPos < 0 || srcPos >= src.length");
         }
@@ -1068,18 +1590,18 @@ public class Utilities
             throw new IllegalArgumentException("Constant arrays cannot be modified.");
         }
         int i = srcPos;
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             for (long j = destPos; j < destPos + length; j++) {
                 dest.set(j, src[i++]);
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
                 final long firstIdx = j * k;
                 final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
@@ -1089,13 +1611,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 for (long j = destPos; j < destPos + length; j++) {
                     dest.set(j, src[i++]);
@@ -1127,22 +1645,39 @@ public class Utilities
      * @return new instance of LargeArray
      */
     public static LargeArray create(LargeArrayType type, long length, boolean zeroNativeMemory)
+    {
+        return create(type, length, zeroNativeMemory, LargeArray.isSegmentedHeap());
+    }
+
+    /**
+     * Creates a new instance of LargeArray
+     *
+     * @param type             the type of LargeArray
+     * @param length           number of elements
+     * @param zeroNativeMemory if true, then the native memory is zeroed
+     * @param segmented        if true, then a numeric array larger than
+     *                         LargeArray.getMaxSizeOf32bitArray() is stored on
+     *                         the heap in segments instead of the native memory
+     *
+     * @return new instance of LargeArray
+     */
+    public static LargeArray create(LargeArrayType type, long length, boolean zeroNativeMemory, boolean segmented)
     {
         switch (type) {
             case BIT:
                 return new BitLargeArray(length, zeroNativeMemory);
             case BYTE:
-                return new ByteLargeArray(length, zeroNativeMemory);
+                return new ByteLargeArray(length, zeroNativeMemory, segmented);
             case SHORT:
-                return new ShortLargeArray(length, zeroNativeMemory);
+                return new ShortLargeArray(length, zeroNativeMemory, segmented);
             case INT:
-                return new IntLargeArray(length, zeroNativeMemory);
+                return new IntLargeArray(length, zeroNativeMemory, segmented);
             case LONG:
-                return new LongLargeArray(length, zeroNativeMemory);
+                return new LongLargeArray(length, zeroNativeMemory, segmented);
             case FLOAT:
-                return new FloatLargeArray(length, zeroNativeMemory);
+                return new FloatLargeArray(length, zeroNativeMemory, segmented);
             case DOUBLE:
-                return new DoubleLargeArray(length, zeroNativeMemory);
+                return new DoubleLargeArray(length, zeroNativeMemory, segmented);
             case STRING:
                 return new StringLargeArray(length, 100, zeroNativeMemory);
             default:
@@ -1185,8 +1720,8 @@ public class Utilities
         }
         long length = src.length;
         final LargeArray out = create(type, length, false);
-        int nthreads = Runtime.getRuntime().availableProcessors();
-        if (nthreads < 2 || length < 100000) {
+        int nthreads = (int) Math.min(length, ConcurrencyUtils.getNumberOfThreads());
+        if (nthreads < 2 || length < ConcurrencyUtils.getConcurrentThreshold()) {
             switch (type) {
                 case BIT:
                 case BYTE:
@@ -1224,16 +1759,17 @@ public class Utilities
             }
         } else {
             long k = length / nthreads;
-            Thread[] threads = new Thread[nthreads];
+            Future<?>[] futures = new Future<?>[nthreads];
             for (int j = 0; j < nthreads; j++) {
                 final long firstIdx = j * k;
                 final long lastIdx = (j == nthreads - 1) ? length : firstIdx + k;
-                threads[j] = new Thread(new Runnable()
+                futures[j] = ConcurrencyUtils.submit(new Runnable()
                 {
                     @Override
                     public void run()
                     {
                         switch (type) {
+                            case BIT:
                             case BYTE:
                                 for (long i = firstIdx; i < lastIdx; i++) {
                                     out.setByte(i, src.getByte(i));
@@ -1269,13 +1805,9 @@ public class Utilities
                         }
                     }
                 });
-                threads[j].start();
             }
             try {
-                for (int j = 0; j < nthreads; j++) {
-                    threads[j].join();
-                    threads[j] = null;
-                }
+                ConcurrencyUtils.waitForCompletion(futures);
             } catch (InterruptedException ex) {
                 switch (type) {
                     case BIT:
@@ -26,6 +26,18 @@
  * ***** END LICENSE BLOCK ***** */
 package pl.edu.icm.jlargearrays;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -115,6 +127,11 @@ public class JLargeArraysTest extends TestCase
         for (long i = startPos; i < endPos; i += step) {
             assertEquals(data[(int) i], res[idx++]);
         }
+        byte[] bytes = a.getData();
+        assertEquals(2, bytes.length);
+        assertEquals((byte) 0x8E, bytes[0]);
+        assertEquals((byte) 0xC0, bytes[1]);
+        assertEquals(0x371l, a.getWords()[0]);
         LargeArray.setMaxSizeOf32bitArray(data.length - 1);
         a = new BitLargeArray(data);
         res = a.getBooleanData(null, startPos, endPos, step);
@@ -911,4 +928,1698 @@ public class JLargeArraysTest extends TestCase
         assertNull(a.getData());
     }
 
+    public void testConcurrencyUtilsThreadPool()
+    {
+        ConcurrencyUtils.setConcurrentThreshold(2);
+        ConcurrencyUtils.setNumberOfThreads(4);
+        try {
+            float[] data = new float[]{1.1f, 2.2f, 3.3f, 4.4f, 5.5f, 6.6f, 7.7f, 8.8f, 9.9f, 10.10f};
+            LargeArray.setMaxSizeOf32bitArray(data.length - 1);
+            FloatLargeArray a = new FloatLargeArray(data);
+            FloatLargeArray b = new FloatLargeArray(data.length);
+            Utilities.arraycopy(a, 0, b, 0, data.length);
+            for (int i = 0; i < data.length; i++) {
+                assertEquals(data[i], b.getFloat(i));
+            }
+            DoubleLargeArray c = (DoubleLargeArray) Utilities.convert(b, LargeArrayType.DOUBLE);
+            for (int i = 0; i < data.length; i++) {
+                assertEquals(data[i], c.getDouble(i), 0.0);
+            }
+        } finally {
+            ConcurrencyUtils.resetConcurrentThreshold();
+            ConcurrencyUtils.setNumberOfThreads(ConcurrencyUtils.getNumberOfProcessors());
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+        }
+    }
+
+    public void testArraycopyBulk()
+    {
+        ConcurrencyUtils.setConcurrentThreshold(2);
+        try {
+            int n = 1000;
+            double[] data = new double[n];
+            for (int i = 0; i < n; i++) {
+                data[i] = i;
+            }
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            DoubleLargeArray heap = new DoubleLargeArray(data.clone());
+            LargeArray.setMaxSizeOf32bitArray(1);
+            DoubleLargeArray nat1 = new DoubleLargeArray(n);
+            DoubleLargeArray nat2 = new DoubleLargeArray(n);
+            Utilities.arraycopy(heap, 0, nat1, 0, n);
+            Utilities.arraycopy(nat1, 10, nat2, 0, n - 10);
+            Utilities.arraycopy(nat2, 0, heap, 0, n - 10);
+            for (int i = 0; i < n - 10; i++) {
+                assertEquals(data[i], nat1.getDouble(i), 0.0);
+                assertEquals(data[i + 10], nat2.getDouble(i), 0.0);
+                assertEquals(data[i + 10], heap.getDouble(i), 0.0);
+            }
+            Utilities.arraycopy(nat1, 0, nat1, 5, n - 5);
+            for (int i = 0; i < n - 5; i++) {
+                assertEquals(data[i], nat1.getDouble(i + 5), 0.0);
+            }
+            Throwable e = null;
+            try {
+                Utilities.arraycopy(nat1, 1, nat2, 0, n);
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof ArrayIndexOutOfBoundsException);
+            nat2.close();
+            e = null;
+            try {
+                Utilities.arraycopy(nat2, 0, nat1, 0, n);
+            } catch (IllegalStateException ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof IllegalStateException);
+        } finally {
+            ConcurrencyUtils.resetConcurrentThreshold();
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+        }
+    }
+
+    public void testFloatLargeArrayGetSetBulk()
+    {
+        float[] data = new float[]{1.1f, 2.2f, 3.3f, 4.4f, 5.5f, 6.6f, 7.7f, 8.8f, 9.9f, 10.10f};
+        float[] tile = new float[6];
+        LargeArray.setMaxSizeOf32bitArray(1073741824);
+        FloatLargeArray a = new FloatLargeArray(data.length);
+        a.set(0, data, 0, data.length);
+        a.get(3, tile, 1, 5);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(data[3 + i], tile[1 + i]);
+        }
+        LargeArray.setMaxSizeOf32bitArray(data.length - 1);
+        a = new FloatLargeArray(data.length);
+        a.set(2, data, 4, 6);
+        a.get(2, tile, 0, 6);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(data[4 + i], tile[i]);
+            assertEquals(data[4 + i], a.getFloat(2 + i));
+        }
+        float[] res = a.getFloatData(null, 2, 8, 1);
+        for (int i = 0; i < 6; i++) {
+            assertEquals(data[4 + i], res[i]);
+        }
+        Throwable e = null;
+        try {
+            a.get(5, tile, 0, 6);
+        } catch (ArrayIndexOutOfBoundsException ex) {
+            e = ex;
+        }
+        assertTrue(e instanceof ArrayIndexOutOfBoundsException);
+        a = new FloatLargeArray(data.length, 2.5f);
+        a.get(0, tile, 0, tile.length);
+        for (int i = 0; i < tile.length; i++) {
+            assertEquals(2.5f, tile[i]);
+        }
+        LargeArray.setMaxSizeOf32bitArray(1073741824);
+    }
+
+    public void testBitLargeArrayConcurrentSet() throws InterruptedException
+    {
+        final int nthreads = 4;
+        final long n = 64 * 1000;
+        for (int max : new int[]{1073741824, 1}) {
+            LargeArray.setMaxSizeOf32bitArray(max);
+            final BitLargeArray a = new BitLargeArray(n);
+            Thread[] threads = new Thread[nthreads];
+            for (int j = 0; j < nthreads; j++) {
+                final int first = j;
+                threads[j] = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (long i = first; i < n; i += nthreads) {
+                            a.setBoolean(i, true);
+                        }
+                    }
+                });
+                threads[j].start();
+            }
+            for (int j = 0; j < nthreads; j++) {
+                threads[j].join();
+            }
+            for (long i = 0; i < n; i++) {
+                assertTrue(a.getBoolean(i));
+            }
+            a.setSingleWriterMode(true);
+            a.setBoolean(3, false);
+            assertFalse(a.getBoolean(3));
+            assertTrue(a.getBoolean(4));
+            BitLargeArray b = a.clone();
+            assertFalse(b.getBoolean(3));
+            assertTrue(b.getBoolean(n - 1));
+        }
+        LargeArray.setMaxSizeOf32bitArray(1073741824);
+    }
+
+    public void testBitLargeArrayBitwiseOperations()
+    {
+        final long n = 1000;
+        ConcurrencyUtils.setConcurrentThreshold(2);
+        try {
+            for (int max : new int[]{1073741824, 1}) {
+                LargeArray.setMaxSizeOf32bitArray(max);
+                BitLargeArray a = new BitLargeArray(n);
+                BitLargeArray b = new BitLargeArray(n);
+                java.util.BitSet ra = new java.util.BitSet();
+                java.util.BitSet rb = new java.util.BitSet();
+                for (long i = 0; i < n; i++) {
+                    if (i % 3 == 0) {
+                        a.setBoolean(i, true);
+                        ra.set((int) i);
+                    }
+                    if (i % 5 == 0) {
+                        b.setBoolean(i, true);
+                        rb.set((int) i);
+                    }
+                }
+                a.set(70, 400, true);
+                ra.set(70, 400, true);
+                a.clear(10, 20);
+                ra.clear(10, 20);
+                a.flip(3, 999);
+                ra.flip(3, 999);
+                a.xor(b);
+                ra.xor(rb);
+                a.or(new BitLargeArray(n, (byte) 0));
+                a.andNot(b);
+                ra.andNot(rb);
+                a.not();
+                ra.flip(0, (int) n);
+                a.and(new BitLargeArray(n, (byte) 1));
+                assertEquals(ra.cardinality(), a.cardinality());
+                for (long i = 0; i < n; i++) {
+                    assertEquals(ra.get((int) i), a.getBoolean(i));
+                }
+                assertEquals(ra.nextSetBit(7), a.nextSetBit(7));
+                assertEquals(ra.nextClearBit(7), a.nextClearBit(7));
+                a.set(0, n, true);
+                assertEquals(n, a.cardinality());
+                assertEquals(-1, a.nextClearBit(0));
+                a.clear(0, n);
+                assertEquals(-1, a.nextSetBit(0));
+                assertEquals(n, new BitLargeArray(n, (byte) 1).cardinality());
+            }
+        } finally {
+            ConcurrencyUtils.resetConcurrentThreshold();
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+        }
+    }
+
+    public void testMemoryCounter() throws InterruptedException
+    {
+        LargeArray.setMaxSizeOf32bitArray(1);
+        final int nthreads = 8;
+        final long n = 1000;
+        final DoubleLargeArray[] arrays = new DoubleLargeArray[nthreads];
+        Thread[] threads = new Thread[nthreads];
+        for (int j = 0; j < nthreads; j++) {
+            final int jj = j;
+            threads[j] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    arrays[jj] = new DoubleLargeArray(n);
+                }
+            });
+            threads[j].start();
+        }
+        for (int j = 0; j < nthreads; j++) {
+            threads[j].join();
+        }
+        assertTrue(MemoryCounter.getCounter(LargeArrayType.DOUBLE) >= nthreads * n * 8);
+        assertTrue(MemoryCounter.getCounter() >= MemoryCounter.getCounter(LargeArrayType.DOUBLE));
+        assertTrue(MemoryCounter.getAllocationCount() >= nthreads);
+        assertTrue(MemoryCounter.getPeak() >= nthreads * n * 8);
+        MemoryCounter.resetPeak();
+        assertTrue(MemoryCounter.getPeak() >= nthreads * n * 8);
+        for (int j = 0; j < nthreads; j++) {
+            assertEquals(n, arrays[j].length());
+        }
+        MemoryCounter.resetPeak();
+        long before = MemoryCounter.getCounter();
+        ByteLargeArray b = new ByteLargeArray(4 << 20);
+        b.close();
+        // small allocations of other threads may not be included in the peak yet
+        assertTrue(MemoryCounter.getPeak() >= before + (3 << 20));
+        LargeArray.setMaxSizeOf32bitArray(1073741824);
+    }
+
+    public void testMemoryBudget() throws InterruptedException
+    {
+        LargeArray.setMaxSizeOf32bitArray(1);
+        try {
+            MemoryBudget.setLimit(MemoryBudget.getReserved() + 1000);
+            ByteLargeArray a = new ByteLargeArray(600);
+            Throwable e = null;
+            try {
+                new ByteLargeArray(600);
+            } catch (MemoryBudgetExceededException ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof MemoryBudgetExceededException);
+            assertEquals(600, ((MemoryBudgetExceededException) e).getRequested());
+
+            final int[] calls = new int[1];
+            MemoryBudget.setReclaimCallback(new MemoryBudget.ReclaimCallback()
+            {
+                @Override
+                public void reclaim(long requested, long available)
+                {
+                    calls[0]++;
+                    MemoryBudget.setLimit(MemoryBudget.getReserved() + requested);
+                }
+            });
+            ByteLargeArray b = new ByteLargeArray(600);
+            assertEquals(1, calls[0]);
+            MemoryBudget.setReclaimCallback(null);
+
+            MemoryBudget.setWaitTimeout(10000);
+            long available = MemoryBudget.getAvailable();
+            MemoryBudget.reserve(available);
+            Thread t = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try {
+                        Thread.sleep(100);
+                    } catch (InterruptedException ex) {
+                    }
+                    MemoryBudget.release(500);
+                }
+            });
+            t.start();
+            ByteLargeArray c = new ByteLargeArray(500);
+            t.join();
+            assertEquals(500, c.length());
+            MemoryBudget.release(available - 500);
+            assertEquals(600, a.length());
+            assertEquals(600, b.length());
+        } finally {
+            MemoryBudget.setReclaimCallback(null);
+            MemoryBudget.setWaitTimeout(0);
+            MemoryBudget.setLimit(Long.MAX_VALUE);
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+        }
+    }
+
+    public void testClose()
+    {
+        LargeArray.setMaxSizeOf32bitArray(1);
+        long n = 1000;
+        long counter = MemoryCounter.getCounter(LargeArrayType.INT);
+        long reserved = MemoryBudget.getReserved();
+        try (IntLargeArray a = new IntLargeArray(n)) {
+            a.setInt_safe(5, 7);
+            assertEquals(7, a.getInt_safe(5));
+            assertTrue(MemoryBudget.getReserved() >= reserved + n * 4);
+        }
+        IntLargeArray a = new IntLargeArray(n);
+        a.close();
+        assertTrue(a.isClosed());
+        assertFalse(a.isLarge());
+        a.free();
+        assertTrue(MemoryCounter.getCounter(LargeArrayType.INT) <= counter);
+        assertTrue(MemoryBudget.getReserved() <= reserved);
+        Throwable e = null;
+        try {
+            a.getInt_safe(0);
+        } catch (IllegalStateException ex) {
+            e = ex;
+        }
+        assertTrue(e instanceof IllegalStateException);
+        StringLargeArray s = new StringLargeArray(n);
+        s.close();
+        e = null;
+        try {
+            s.set_safe(0, "a");
+        } catch (IllegalStateException ex) {
+            e = ex;
+        }
+        assertTrue(e instanceof IllegalStateException);
+        LargeArray.setMaxSizeOf32bitArray(1073741824);
+    }
+
+    public void testGCPolicy()
+    {
+        LargeArray.setMaxSizeOf32bitArray(1);
+        try {
+            MemoryBudget.resetGCCounts();
+            MemoryBudget.setGCPolicy(GCPolicy.NEVER);
+            new ByteLargeArray(1000).close();
+            assertEquals(0, MemoryBudget.getThresholdGCCount() + MemoryBudget.getFailureGCCount() + MemoryBudget.getWaitGCCount());
+            MemoryBudget.setGCPolicy(GCPolicy.ABOVE_THRESHOLD);
+            MemoryBudget.setGCThreshold(MemoryCounter.getCounter() + 1500);
+            ByteLargeArray a = new ByteLargeArray(1000);
+            assertEquals(0, MemoryBudget.getThresholdGCCount());
+            a.close();
+            MemoryBudget.setGCThreshold(0);
+            new ByteLargeArray(1000).close();
+            assertEquals(1, MemoryBudget.getThresholdGCCount());
+            assertEquals(0, MemoryBudget.getFailureGCCount());
+        } finally {
+            MemoryBudget.setGCPolicy(GCPolicy.ON_FAILURE);
+            MemoryBudget.setGCThreshold(Long.MAX_VALUE);
+            MemoryBudget.resetGCCounts();
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+        }
+    }
+
+    public void testLargeArrayPool()
+    {
+        LargeArrayPool pool = new LargeArrayPool(1 << 20, 2, true);
+        ShortLargeArray a = pool.allocateShortArray(1000);
+        assertTrue(a.isLarge());
+        long ptr = a.nativePointer();
+        for (long i = 0; i < a.length(); i++) {
+            a.setShort(i, (short) i);
+        }
+        pool.release(a);
+        assertTrue(a.isClosed());
+        assertEquals(LargeArrayPool.sizeClass(2000), pool.getRetainedBytes());
+        ShortLargeArray b = pool.allocateShortArray(990);
+        assertEquals(ptr, b.nativePointer());
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        for (long i = 0; i < b.length(); i++) {
+            assertEquals(0, b.getShort(i));
+        }
+        b.close();
+        b.close();
+        long shorts = MemoryCounter.getCounter(LargeArrayType.SHORT);
+        long doubles = MemoryCounter.getCounter(LargeArrayType.DOUBLE);
+        DoubleLargeArray c = pool.allocateDoubleArray(250);
+        assertEquals(ptr, c.nativePointer());
+        assertEquals(shorts - LargeArrayPool.sizeClass(2000), MemoryCounter.getCounter(LargeArrayType.SHORT));
+        assertEquals(doubles + LargeArrayPool.sizeClass(2000), MemoryCounter.getCounter(LargeArrayType.DOUBLE));
+        c.close();
+        Throwable e = null;
+        try {
+            pool.release(new ShortLargeArray(10));
+        } catch (IllegalArgumentException ex) {
+            e = ex;
+        }
+        assertTrue(e instanceof IllegalArgumentException);
+        pool.clear();
+        assertEquals(0, pool.getRetainedBytes());
+
+        pool = new LargeArrayPool(0, 0, false);
+        pool.allocateFloatArray(100).close();
+        assertEquals(0, pool.getRetainedBytes());
+        assertEquals(2048, LargeArrayPool.sizeClass(2048));
+        assertEquals(2560, LargeArrayPool.sizeClass(2049));
+
+        pool = new LargeArrayPool();
+        IntLargeArray d = pool.allocateIntArray(1000);
+        pool.allocateIntArray(2000).close();
+        assertTrue(pool.getRetainedBytes() > 0);
+        pool.close();
+        assertTrue(pool.isClosed());
+        assertEquals(0, pool.getRetainedBytes());
+        d.setInt(999, 1);
+        d.close();
+        assertEquals(0, pool.getRetainedBytes());
+        e = null;
+        try {
+            pool.allocateIntArray(10);
+        } catch (IllegalStateException ex) {
+            e = ex;
+        }
+        assertTrue(e instanceof IllegalStateException);
+
+        pool = new LargeArrayPool();
+        pool.allocateIntArray(1000).close();
+        WeakReference<LargeArrayPool> ref = new WeakReference<LargeArrayPool>(pool);
+        pool = null;
+        for (int i = 0; i < 100 && ref.get() != null; i++) {
+            System.gc();
+        }
+        assertNull(ref.get());
+    }
+
+    public void testZeroNativeMemory()
+    {
+        LargeArray.setMaxSizeOf32bitArray(1);
+        ConcurrencyUtils.setConcurrentThreshold(2);
+        try {
+            long n = 100003;
+            DoubleLargeArray a = new DoubleLargeArray(n, false);
+            for (long i = 0; i < n; i++) {
+                a.setDouble(i, 1.0);
+            }
+            a.zeroNativeMemory(n);
+            for (long i = 0; i < n; i++) {
+                assertEquals(0.0, a.getDouble(i));
+            }
+            a.close();
+
+            LargeArray.setZeroOnFirstTouch(true);
+            long reserved = MemoryBudget.getReserved();
+            a = new DoubleLargeArray(n);
+            for (long i = 0; i < n; i++) {
+                assertEquals(0.0, a.getDouble(i));
+            }
+            a.setDouble(n - 1, 2.0);
+            assertEquals(2.0, a.getDouble_safe(n - 1));
+            a.close();
+            assertTrue(MemoryBudget.getReserved() <= reserved);
+        } finally {
+            LargeArray.setZeroOnFirstTouch(false);
+            ConcurrencyUtils.resetConcurrentThreshold();
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+        }
+    }
+
+    public void testMemoryMappedArray() throws IOException
+    {
+        File file = File.createTempFile("jlargearrays", ".raw");
+        try {
+            int n = 1000;
+            int offset = 12;
+            ByteBuffer buf = ByteBuffer.allocate(offset + 4 * n).order(ByteOrder.nativeOrder());
+            for (int i = 0; i < n; i++) {
+                buf.putFloat(offset + 4 * i, i);
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.write(buf.array());
+            raf.close();
+
+            FloatLargeArray a = (FloatLargeArray) LargeArray.map(file.toPath(), LargeArrayType.FLOAT, offset, n, FileChannel.MapMode.READ_ONLY);
+            assertTrue(a.isMemoryMapped());
+            assertTrue(a.isReadOnly());
+            for (int i = 0; i < n; i++) {
+                assertEquals((float) i, a.getFloat(i));
+            }
+            Throwable e = null;
+            try {
+                a.setFloat_safe(0, 1);
+            } catch (IllegalAccessError ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof IllegalAccessError);
+            e = null;
+            try {
+                a.set(0, new float[]{1, 2}, 0, 2);
+            } catch (IllegalAccessError ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof IllegalAccessError);
+            assertEquals(0f, a.getFloat(0));
+            for (LargeArray dest : new LargeArray[]{a, a.view(0, n / 2, 2)}) {
+                e = null;
+                try {
+                    Utilities.arraycopy(new FloatLargeArray(n / 2), 0, dest, 0, n / 2);
+                } catch (IllegalAccessError ex) {
+                    e = ex;
+                }
+                assertTrue(e instanceof IllegalAccessError);
+            }
+            e = null;
+            try {
+                new LargeArrayNDView(a, 10, n / 10).copyFrom(new FloatLargeArray(n), 0);
+            } catch (IllegalAccessError ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof IllegalAccessError);
+            assertEquals(2f, a.getFloat(2));
+            a.close();
+            e = null;
+            try {
+                a.get(0, new float[2], 0, 2);
+            } catch (IllegalStateException ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof IllegalStateException);
+
+            a = (FloatLargeArray) LargeArray.map(file.toPath(), LargeArrayType.FLOAT, offset, n, FileChannel.MapMode.PRIVATE);
+            a.setFloat_safe(0, -1);
+            assertEquals(-1f, a.getFloat(0));
+            a.close();
+
+            a = (FloatLargeArray) LargeArray.map(file.toPath(), LargeArrayType.FLOAT, offset, n + 10, FileChannel.MapMode.READ_WRITE);
+            assertEquals(0f, a.getFloat(0));
+            assertEquals(0f, a.getFloat(n + 9));
+            a.setFloat(1, -2);
+            a.setFloat(n + 9, 5);
+            a.force();
+            a.close();
+            assertEquals(offset + 4 * (n + 10), file.length());
+            raf = new RandomAccessFile(file, "r");
+            byte[] bytes = new byte[(int) file.length()];
+            raf.readFully(bytes);
+            raf.close();
+            buf = ByteBuffer.wrap(bytes).order(ByteOrder.nativeOrder());
+            assertEquals(0f, buf.getFloat(offset));
+            assertEquals(-2f, buf.getFloat(offset + 4));
+            assertEquals(5f, buf.getFloat(offset + 4 * (n + 9)));
+
+            e = null;
+            try {
+                LargeArray.map(file.toPath(), LargeArrayType.DOUBLE, 0, n, FileChannel.MapMode.READ_ONLY);
+            } catch (IllegalArgumentException ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof IllegalArgumentException);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testFileChannelIO() throws IOException
+    {
+        File file = File.createTempFile("jlargearrays", ".raw");
+        try {
+            int n = 100001;
+            for (int max : new int[]{1073741824, 1}) {
+                LargeArray.setMaxSizeOf32bitArray(max);
+                ShortLargeArray a = new ShortLargeArray(n);
+                for (int i = 0; i < n; i++) {
+                    a.setShort(i, (short) (i * 3));
+                }
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel();
+                channel.position(4);
+                assertEquals(2L * n, a.writeTo(channel, 0, n));
+                assertEquals(4 + 2L * n, channel.position());
+                assertEquals(2L * n, new ShortLargeArray(n, (short) 7).writeTo(channel, 0, n));
+
+                RandomAccessFile[] files = new RandomAccessFile[3];
+                FileChannel[] channels = new FileChannel[files.length];
+                for (int j = 0; j < files.length; j++) {
+                    files[j] = new RandomAccessFile(file, "rw");
+                    channels[j] = files[j].getChannel();
+                }
+                a.writeTo(channels, 4 + 4L * n, 1, n - 1);
+                ShortLargeArray b = new ShortLargeArray(n);
+                assertEquals(2L * (n - 1), b.readFrom(channels, 4 + 4L * n, 0, n - 1));
+                for (int i = 0; i < n - 1; i++) {
+                    assertEquals(a.getShort(i + 1), b.getShort(i));
+                }
+                for (int j = 0; j < files.length; j++) {
+                    files[j].close();
+                }
+
+                channel.position(4);
+                ShortLargeArray c = new ShortLargeArray(2 * n);
+                assertEquals(4L * n, c.readFrom(channel, 0, 2 * n));
+                for (int i = 0; i < n; i++) {
+                    assertEquals(a.getShort(i), c.getShort(i));
+                    assertEquals(7, c.getShort(n + i));
+                }
+                Throwable e = null;
+                try {
+                    c.readFrom(channel, file.length() - 1, 0, 1);
+                } catch (java.io.EOFException ex) {
+                    e = ex;
+                }
+                assertTrue(e instanceof java.io.EOFException);
+                raf.close();
+            }
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            file.delete();
+        }
+    }
+
+    private static Object serializeAndDeserialize(Object o) throws IOException, ClassNotFoundException
+    {
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes);
+        out.writeObject(o);
+        out.close();
+        java.io.ObjectInputStream in = new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(bytes.toByteArray()));
+        Object res = in.readObject();
+        in.close();
+        return res;
+    }
+
+    public void testSerialization() throws IOException, ClassNotFoundException
+    {
+        long n = 300001;
+        for (int max : new int[]{1073741824, 1}) {
+            LargeArray.setMaxSizeOf32bitArray(max);
+            FloatLargeArray a = new FloatLargeArray(n);
+            BitLargeArray bits = new BitLargeArray(n);
+            for (long i = 0; i < n; i++) {
+                a.setFloat(i, i / 2f);
+                bits.setBoolean(i, i % 3 == 0);
+            }
+            FloatLargeArray b = (FloatLargeArray) serializeAndDeserialize(a);
+            assertEquals(a.isLarge(), b.isLarge());
+            assertEquals(n, b.length());
+            for (long i = 0; i < n; i++) {
+                assertEquals(a.getFloat(i), b.getFloat(i));
+            }
+            BitLargeArray bits2 = (BitLargeArray) serializeAndDeserialize(bits);
+            assertEquals(bits.cardinality(), bits2.cardinality());
+            for (long i = 0; i < n; i++) {
+                assertEquals(bits.getBoolean(i), bits2.getBoolean(i));
+            }
+            b.close();
+            ShortLargeArray c = (ShortLargeArray) serializeAndDeserialize(new ShortLargeArray(n, (short) 5));
+            assertTrue(c.isConstant());
+            assertEquals(n, c.length());
+            assertEquals(5, c.getShort(n - 1));
+        }
+        LargeArray.setMaxSizeOf32bitArray(1);
+        java.io.ByteArrayOutputStream bytes = new java.io.ByteArrayOutputStream();
+        java.io.ObjectOutputStream out = new java.io.ObjectOutputStream(bytes);
+        out.writeObject(new FloatLargeArray(1000));
+        out.close();
+        byte[] stream = bytes.toByteArray();
+        // replace the size of the native memory (4000 bytes) with 8 bytes
+        byte[] size = new byte[]{1, 0, 0, 0, 0, 0, 0, 0x0F, (byte) 0xA0};
+        int found = 0;
+        for (int i = 0; i + size.length <= stream.length; i++) {
+            int j = 0;
+            while (j < size.length && stream[i + j] == size[j]) {
+                j++;
+            }
+            if (j == size.length) {
+                stream[i + 7] = 0;
+                stream[i + 8] = 8;
+                found++;
+            }
+        }
+        assertEquals(1, found);
+        Throwable e = null;
+        try {
+            new java.io.ObjectInputStream(new java.io.ByteArrayInputStream(stream)).readObject();
+        } catch (java.io.InvalidObjectException ex) {
+            e = ex;
+        }
+        assertTrue(e instanceof java.io.InvalidObjectException);
+        LargeArray.setMaxSizeOf32bitArray(1073741824);
+    }
+
+    public void testLargeArrayIO() throws IOException
+    {
+        File file = File.createTempFile("jlargearrays", ".jla");
+        try {
+            long n = 300001;
+            for (int max : new int[]{1073741824, 1}) {
+                LargeArray.setMaxSizeOf32bitArray(max);
+                IntLargeArray a = new IntLargeArray(n);
+                for (long i = 0; i < n; i++) {
+                    a.setInt(i, (int) (i * 7));
+                }
+                for (long chunkSize : new long[]{0, 4096, LargeArrayIO.DEFAULT_CHUNK_SIZE}) {
+                    LargeArrayIO.save(file.toPath(), a, chunkSize);
+                    LargeArrayIO.Header header = LargeArrayIO.readHeader(file.toPath());
+                    assertEquals(LargeArrayType.INT, header.getType());
+                    assertEquals(n, header.getLength());
+                    assertEquals(chunkSize > 0, header.hasChunkIndex());
+                    assertEquals(0, header.getPayloadOffset() % 4096);
+                    assertTrue(LargeArrayIO.verify(file.toPath()));
+                    IntLargeArray b = (IntLargeArray) LargeArrayIO.load(file.toPath());
+                    LargeArray c = LargeArrayIO.open(file.toPath(), FileChannel.MapMode.READ_ONLY);
+                    assertTrue(c.isMemoryMapped());
+                    for (long i = 0; i < n; i++) {
+                        assertEquals(a.getInt(i), b.getInt(i));
+                        assertEquals(a.getInt(i), c.getInt(i));
+                    }
+                    c.close();
+                }
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.seek(file.length() - 1);
+                int last = raf.read();
+                raf.seek(file.length() - 1);
+                raf.write(last ^ 1);
+                raf.close();
+                assertFalse(LargeArrayIO.verify(file.toPath()));
+                Throwable e = null;
+                try {
+                    LargeArrayIO.load(file.toPath());
+                } catch (IOException ex) {
+                    e = ex;
+                }
+                assertNotNull(e);
+                assertEquals(a.getInt(n - 2), LargeArrayIO.load(file.toPath(), false).getInt(n - 2));
+            }
+            LargeArrayIO.save(file.toPath(), new DoubleLargeArray(n, 2.5));
+            LargeArray d = LargeArrayIO.open(file.toPath(), FileChannel.MapMode.READ_ONLY);
+            assertTrue(d.isConstant());
+            assertEquals(n, d.length());
+            assertEquals(2.5, d.getDouble(n - 1));
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            file.delete();
+        }
+    }
+
+    public void testNpyIO() throws IOException
+    {
+        File file = File.createTempFile("jlargearrays", ".npy");
+        try {
+            long n = 300001;
+            for (int max : new int[]{1073741824, 1}) {
+                LargeArray.setMaxSizeOf32bitArray(max);
+                DoubleLargeArray a = new DoubleLargeArray(n);
+                BitLargeArray bits = new BitLargeArray(n);
+                for (long i = 0; i < n; i++) {
+                    a.setDouble(i, i / 4.0);
+                    bits.setBoolean(i, i % 5 == 0);
+                }
+                NpyIO.write(a, file.toPath());
+                assertEquals(0, (file.length() - 8 * n) % 64);
+                DoubleLargeArray b = (DoubleLargeArray) NpyIO.read(file.toPath());
+                LargeArray c = NpyIO.map(file.toPath());
+                assertTrue(c.isMemoryMapped());
+                assertEquals(n, c.length());
+                for (long i = 0; i < n; i++) {
+                    assertEquals(a.getDouble(i), b.getDouble(i));
+                    assertEquals(a.getDouble(i), c.getDouble(i));
+                }
+                c.close();
+
+                NpyIO.write(bits, file.toPath());
+                assertEquals(n, file.length() - 128);
+                BitLargeArray bits2 = (BitLargeArray) NpyIO.map(file.toPath());
+                assertEquals(bits.cardinality(), bits2.cardinality());
+                for (long i = 0; i < n; i++) {
+                    assertEquals(bits.getBoolean(i), bits2.getBoolean(i));
+                }
+                assertTrue(bits2.isReadOnly());
+                assertFalse(NpyIO.map(file.toPath(), FileChannel.MapMode.PRIVATE).isReadOnly());
+                Throwable e = null;
+                try {
+                    NpyIO.map(file.toPath(), FileChannel.MapMode.READ_WRITE);
+                } catch (IOException ex) {
+                    e = ex;
+                }
+                assertTrue(e instanceof IOException);
+            }
+
+            String dict = "{'descr': '>i2', 'fortran_order': False, 'shape': (2, 3), }";
+            ByteBuffer buffer = ByteBuffer.allocate(10 + dict.length() + 1 + 12).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.put(new byte[]{(byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0});
+            buffer.putShort((short) (dict.length() + 1));
+            buffer.put(dict.getBytes("US-ASCII")).put((byte) '\n');
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            for (int i = 0; i < 6; i++) {
+                buffer.putShort((short) (i - 3));
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(0);
+            raf.write(buffer.array());
+            raf.close();
+            LargeArray d = NpyIO.map(file.toPath());
+            assertEquals(LargeArrayType.SHORT, d.getType());
+            assertEquals(6, d.length());
+            for (int i = 0; i < 6; i++) {
+                assertEquals(i - 3, d.getShort(i));
+            }
+            Throwable e = null;
+            try {
+                NpyIO.map(file.toPath(), FileChannel.MapMode.READ_WRITE);
+            } catch (IOException ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof IOException);
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            file.delete();
+        }
+    }
+
+    public void testPagedLargeArray() throws IOException
+    {
+        File file = File.createTempFile("jlargearrays", ".raw");
+        try {
+            long n = 300001;
+            PagedLargeArray a = new PagedLargeArray(file.toPath(), LargeArrayType.DOUBLE, 16, n, 4096, 8, false);
+            assertEquals(16 + 8 * n, file.length());
+            assertFalse(a.isLarge());
+            for (long i = 0; i < n; i++) {
+                a.setDouble(i, i / 2.0);
+            }
+            assertTrue(a.getEvictionCount() > 0);
+            assertTrue(a.getWriteBackCount() > 0);
+            for (long i = 0; i < n; i++) {
+                assertEquals(i / 2.0, a.getDouble(i));
+            }
+            assertEquals(7, a.getInt(15));
+
+            a.resetCounters();
+            a.setReadAhead(4);
+            for (long i = 0; i < n; i++) {
+                a.getDouble(i);
+            }
+            long pages = (n * 8 + 4095) / 4096;
+            assertTrue(a.getMissCount() > 0);
+            assertTrue(a.getMissCount() <= (pages + 4) / 5);
+
+            DoubleLargeArray b = new DoubleLargeArray(n);
+            a.get(0, b, 0, n);
+            for (long i = 0; i < n; i++) {
+                assertEquals(i / 2.0, b.getDouble(i));
+            }
+            a.set(1000, new DoubleLargeArray(n, -1.0), 0, 10000);
+            a.prefetch(0, 1000);
+            a.resetCounters();
+            assertEquals(499.5, a.getDouble(999));
+            assertEquals(1, a.getHitCount());
+            assertEquals(-1.0, a.getDouble(10999));
+            assertEquals(5500.0, a.getDouble(11000));
+
+            File copy = File.createTempFile("jlargearrays", ".raw");
+            RandomAccessFile raf = new RandomAccessFile(copy, "rw");
+            assertEquals(8L * n, a.writeTo(raf.getChannel(), 0, 0, n));
+            DoubleLargeArray c = new DoubleLargeArray(n);
+            c.readFrom(raf.getChannel(), 0, 0, n);
+            raf.close();
+            copy.delete();
+            for (long i = 0; i < n; i++) {
+                assertEquals(a.getDouble(i), c.getDouble(i));
+            }
+            a.close();
+            assertTrue(a.isClosed());
+
+            PagedLargeArray d = new PagedLargeArray(file.toPath(), LargeArrayType.DOUBLE, 16, n, 1 << 16, 2, true);
+            assertEquals(-1.0, d.getDouble(1000));
+            assertEquals((n - 1) / 2.0, d.getDouble(n - 1));
+            Throwable e = null;
+            try {
+                d.setDouble_safe(0, 1.0);
+            } catch (IllegalAccessError ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+            LargeArray.setMaxSizeOf32bitArray(1);
+            assertNull(d.getDoubleData());
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            double[] data = d.getDoubleData();
+            assertEquals(n, data.length);
+            assertEquals(-1.0, data[1000]);
+            LargeArray f = d.clone();
+            assertTrue(f instanceof DoubleLargeArray);
+            assertEquals((n - 1) / 2.0, f.getDouble(n - 1));
+            double first = d.getDouble(0);
+            d.setDouble(0, first + 1);
+            d.flush();
+            d.close();
+            d = new PagedLargeArray(file.toPath(), LargeArrayType.DOUBLE, 16, n, 1 << 16, 2, true);
+            assertEquals(first, d.getDouble(0));
+            d.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testCompressedLargeArrayIO() throws IOException
+    {
+        File file = File.createTempFile("jlargearrays", ".jla");
+        try {
+            long n = 300001;
+            for (int max : new int[]{1073741824, 1}) {
+                LargeArray.setMaxSizeOf32bitArray(max);
+                ShortLargeArray a = new ShortLargeArray(n);
+                for (long i = 0; i < n; i++) {
+                    a.setShort(i, (short) (1000 + 100 * Math.sin(i / 1000.0) + i % 3));
+                }
+                long rawSize = 0;
+                for (Codec codec : Codec.values()) {
+                    LargeArrayIO.save(file.toPath(), a, 65536, codec);
+                    LargeArrayIO.Header header = LargeArrayIO.readHeader(file.toPath());
+                    assertEquals(codec, header.getCodec());
+                    if (codec == Codec.RAW) {
+                        rawSize = header.getPayloadSize();
+                    } else {
+                        assertTrue(header.getPayloadSize() < rawSize);
+                    }
+                    assertTrue(LargeArrayIO.verify(file.toPath()));
+                    LargeArray b = LargeArrayIO.open(file.toPath(), FileChannel.MapMode.READ_ONLY);
+                    assertEquals(codec == Codec.RAW, b.isMemoryMapped());
+                    for (long i = 0; i < n; i++) {
+                        assertEquals(a.getShort(i), b.getShort(i));
+                    }
+                    b.close();
+                }
+            }
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            Throwable e = null;
+            try {
+                LargeArrayIO.save(file.toPath(), new FloatLargeArray(n), 65536, Codec.DELTA_DEFLATE);
+            } catch (IllegalArgumentException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+
+            byte[] chunk = new byte[]{0, 1, 0, 3, 0, 2, (byte) 0xff, (byte) 0xff};
+            LargeArrayIO.decode(chunk, LargeArrayType.SHORT, ByteOrder.BIG_ENDIAN, true);
+            ByteBuffer decoded = ByteBuffer.wrap(chunk).order(ByteOrder.nativeOrder());
+            assertEquals(1, decoded.getShort(0));
+            assertEquals(4, decoded.getShort(2));
+            assertEquals(6, decoded.getShort(4));
+            assertEquals(5, decoded.getShort(6));
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            file.delete();
+        }
+    }
+
+    public void testLargeArrayPrefetcher() throws IOException
+    {
+        File file = File.createTempFile("jlargearrays", ".raw");
+        try {
+            long n = 300001;
+            PagedLargeArray a = new PagedLargeArray(file.toPath(), LargeArrayType.DOUBLE, 0, n, 4096, 16, false);
+            double expected = 0;
+            for (long i = 0; i < n; i++) {
+                a.setDouble(i, i % 7);
+                expected += i % 7;
+            }
+            a.flush();
+            LargeArray m = LargeArray.map(file.toPath(), LargeArrayType.DOUBLE, 0, n, FileChannel.MapMode.READ_ONLY);
+            for (LargeArray b : new LargeArray[]{a, m, new DoubleLargeArray(n, 1.0)}) {
+                LargeArrayPrefetcher p = new LargeArrayPrefetcher(b, 10, n - 10, 512, 4);
+                double sum = 0;
+                long count = 0;
+                while (p.next()) {
+                    assertTrue(p.getBlockEnd() - p.getBlockStart() <= 512);
+                    for (long i = p.getBlockStart(); i < p.getBlockEnd(); i++) {
+                        sum += b.getDouble(i);
+                        count++;
+                    }
+                }
+                p.close();
+                assertEquals(n - 20, count);
+                assertEquals((n - 20 + 511) / 512, p.getBlockCount());
+                assertTrue(p.getStallCount() <= p.getBlockCount());
+                assertTrue(p.getStallTime() >= 0);
+                if (b.isConstant()) {
+                    assertEquals((double) (n - 20), sum);
+                } else {
+                    double head = 0;
+                    for (long i = 0; i < 10; i++) {
+                        head += i % 7 + (n - 10 + i) % 7;
+                    }
+                    assertEquals(expected - head, sum);
+                }
+            }
+            for (LargeArray b : new LargeArray[]{a, m}) {
+                for (long stride : new long[]{2, -2}) {
+                    long offset = stride > 0 ? 1 : n - 2;
+                    LargeArray v = b.view(offset, n / 2, stride);
+                    LargeArrayPrefetcher p = new LargeArrayPrefetcher(v, 1 << 16, 2);
+                    double sum = 0;
+                    double vexpected = 0;
+                    while (p.next()) {
+                        for (long i = p.getBlockStart(); i < p.getBlockEnd(); i++) {
+                            sum += v.getDouble(i);
+                            vexpected += (offset + stride * i) % 7;
+                        }
+                    }
+                    p.close();
+                    assertEquals(vexpected, sum);
+                }
+            }
+            LargeArrayPrefetcher p = new LargeArrayPrefetcher(a, 1 << 14, 8);
+            assertTrue(p.next());
+            p.close();
+            // close() returns only after all loads have finished
+            long loadTime = p.getLoadTime();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException();
+            }
+            assertEquals(loadTime, p.getLoadTime());
+            m.close();
+            a.close();
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testSharedMemory() throws IOException, InterruptedException
+    {
+        String name = "jlargearrays-test-" + System.nanoTime();
+        try {
+            long n = 300001;
+            LargeArray a = SharedMemory.create(name, LargeArrayType.FLOAT, n);
+            assertTrue(SharedMemory.isShared(a));
+            assertTrue(a.isMemoryMapped());
+            assertEquals(0, SharedMemory.getGeneration(a));
+            Throwable e = null;
+            try {
+                SharedMemory.create(name, LargeArrayType.FLOAT, n);
+            } catch (IOException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+
+            LargeArray b = SharedMemory.attach(name);
+            LargeArray c = SharedMemory.attach(name, true);
+            assertEquals(LargeArrayType.FLOAT, b.getType());
+            assertEquals(n, b.length());
+            assertTrue(c.isReadOnly());
+            for (long i = 0; i < n; i++) {
+                a.setFloat(i, i);
+            }
+            assertEquals(1, SharedMemory.incrementGeneration(a));
+            assertEquals(1, SharedMemory.awaitGeneration(b, 0, 1, java.util.concurrent.TimeUnit.SECONDS));
+            assertEquals(1, SharedMemory.awaitGeneration(c, 1, 1, java.util.concurrent.TimeUnit.MILLISECONDS));
+            for (long i = 0; i < n; i++) {
+                assertEquals((float) i, b.getFloat(i));
+                assertEquals((float) i, c.getFloat(i));
+            }
+            b.setFloat(7, -1f);
+            assertEquals(-1f, a.getFloat(7));
+            assertEquals(2, SharedMemory.incrementGeneration(b));
+            assertEquals(2, SharedMemory.getGeneration(c));
+
+            assertFalse(SharedMemory.isShared(new FloatLargeArray(n)));
+            assertTrue(SharedMemory.unlink(name));
+            assertEquals(-1f, b.getFloat(7));
+            a.close();
+            b.close();
+            c.close();
+            assertFalse(SharedMemory.isShared(a));
+        } finally {
+            SharedMemory.unlink(name);
+        }
+    }
+
+    public void testLargeArrayView() throws IOException
+    {
+        File file = File.createTempFile("jlargearrays", ".raw");
+        try {
+            int n = 200001;
+            for (int max : new int[]{1073741824, 1}) {
+                LargeArray.setMaxSizeOf32bitArray(max);
+                IntLargeArray a = new IntLargeArray(n);
+                for (int i = 0; i < n; i++) {
+                    a.setInt(i, i);
+                }
+                LargeArray v = a.view(10, 1000);
+                assertEquals(1000, v.length());
+                assertEquals(LargeArrayType.INT, v.getType());
+                assertEquals(max == 1, v instanceof IntLargeArray);
+                assertEquals(10, v.getInt(0));
+                v.setInt(1, -1);
+                assertEquals(-1, a.getInt(11));
+                a.setInt(11, 11);
+                assertEquals(11, v.getInt(1));
+
+                LargeArray s = a.view(n - 1, n / 2 + 1, -2);
+                assertTrue(s instanceof LargeArrayView);
+                assertEquals(n - 1, s.getInt(0));
+                assertEquals(n - 5, s.getInt(2));
+                assertEquals(0, s.getInt(n / 2));
+                LargeArray ss = s.view(1, 10, 3);
+                assertTrue(ss instanceof LargeArrayView);
+                assertSame(a, ((LargeArrayView) ss).getBase());
+                assertEquals(-6, ((LargeArrayView) ss).getStride());
+                assertEquals(n - 3, ss.getInt(0));
+                assertEquals(n - 9, ss.getInt(1));
+                ss.setInt(1, -9);
+                assertEquals(-9, a.getInt(n - 9));
+                a.setInt(n - 9, n - 9);
+
+                int[] data = s.getIntData(null, 0, 6, 2);
+                if (max > 1) {
+                    assertEquals(3, data.length);
+                    assertEquals(n - 9, data[2]);
+                } else {
+                    assertNull(data);
+                }
+                IntLargeArray c = new IntLargeArray(s.length());
+                Utilities.arraycopy(s, 0, c, 0, s.length());
+                LargeArray d = (LargeArray) s.clone();
+                for (int i = 0; i < s.length(); i++) {
+                    assertEquals(n - 1 - 2 * i, c.getInt(i));
+                    assertEquals(n - 1 - 2 * i, d.getInt(i));
+                }
+                Utilities.arraycopy(c, 0, a.view(0, n, 1), 0, 5);
+                assertEquals(n - 9, a.getInt(4));
+                for (int i = 0; i < 5; i++) {
+                    a.setInt(i, i);
+                }
+
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                FileChannel channel = raf.getChannel();
+                assertEquals(4L * 100, s.writeTo(channel, 0, 0, 100));
+                LargeArray r = new IntLargeArray(2 * n).view(1, 100, 3);
+                assertEquals(4L * 100, r.readFrom(channel, 0, 0, 100));
+                raf.close();
+                for (int i = 0; i < 100; i++) {
+                    assertEquals(s.getInt(i), r.getInt(i));
+                }
+
+                Throwable e = null;
+                try {
+                    a.view(n - 10, 6, 2);
+                } catch (ArrayIndexOutOfBoundsException ex) {
+                    e = ex;
+                }
+                assertNotNull(e);
+                e = null;
+                try {
+                    new IntLargeArray(n, 5).view(0, 10, 2).setInt(0, 1);
+                } catch (IllegalAccessError ex) {
+                    e = ex;
+                }
+                assertNotNull(e);
+                assertEquals(5, new IntLargeArray(n, 5).view(0, 10, 2).getInt(9));
+            }
+
+            BitLargeArray b = new BitLargeArray(100);
+            LargeArray bv = b.view(3, 10, 7);
+            bv.setBoolean(2, true);
+            assertTrue(b.getBoolean(17));
+            StringLargeArray str = new StringLargeArray(10);
+            str.set(4, "abc");
+            assertEquals("abc", str.view(9, 10, -1).get(5));
+
+            LargeArray m = LargeArray.map(file.toPath(), LargeArrayType.INT, 0, 100, FileChannel.MapMode.READ_ONLY);
+            LargeArray mv = m.view(1, 10);
+            assertTrue(mv.isMemoryMapped());
+            assertTrue(mv.isReadOnly());
+            m.close();
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            file.delete();
+        }
+    }
+
+    public void testLargeArrayNDView()
+    {
+        try {
+            int nz = 7, ny = 60, nx = 500;
+            for (int max : new int[]{1073741824, 1}) {
+                LargeArray.setMaxSizeOf32bitArray(max);
+                FloatLargeArray a = new FloatLargeArray(nz * ny * nx);
+                for (long i = 0; i < a.length(); i++) {
+                    a.setFloat(i, i);
+                }
+                LargeArrayNDView v = new LargeArrayNDView(a, nz, ny, nx);
+                assertEquals(3, v.getNdim());
+                assertEquals(a.length(), v.size());
+                assertTrue(v.isContiguous());
+                assertEquals(a.length(), v.getRunLength());
+                assertEquals((3 * ny + 4) * nx + 5, v.index(3, 4, 5));
+                assertEquals(v.index(3, 4, 5), v.index(new long[]{3, 4, 5}));
+                assertEquals((double) v.index(3, 4, 5), v.getDouble(3, 4, 5));
+                v.setDouble(3, 4, 5, -1);
+                assertEquals(-1f, a.getFloat(v.index(3, 4, 5)));
+                v.set(3, 4, 5, (float) v.index(3, 4, 5));
+
+                LargeArrayNDView p = v.permute(2, 0, 1);
+                assertEquals(nx, p.getShape()[0]);
+                assertFalse(p.isContiguous());
+                assertEquals(v.getDouble(3, 4, 5), p.getDouble(5, 3, 4));
+
+                LargeArrayNDView c = v.crop(new long[]{1, 10, 20}, new long[]{5, 40, 300}).flip(2);
+                assertEquals(300, c.getRunLength());
+                assertEquals(v.getDouble(1, 10, 319), c.getDouble(0, 0, 0));
+                assertEquals(v.getDouble(5, 49, 20), c.getDouble(4, 39, 299));
+
+                LargeArrayNDView plane = v.slice(0, 2);
+                assertEquals(2, plane.getNdim());
+                assertTrue(plane.isContiguous());
+                assertEquals(v.getDouble(2, 7, 8), plane.getDouble(7, 8));
+                LargeArrayNDView odd = new LargeArrayNDView(a.view(1, a.length() / 2, 2), nz, ny, nx / 2);
+                assertSame(a, odd.getBase());
+                assertEquals(2, odd.getStrides()[2]);
+                assertEquals(v.getDouble(2, 7, 17), odd.getDouble(2, 7, 8));
+
+                LargeArray b = c.copy();
+                assertEquals(c.size(), b.length());
+                long k = 0;
+                for (long z = 0; z < 5; z++) {
+                    for (long y = 0; y < 40; y++) {
+                        for (long x = 0; x < 300; x++) {
+                            assertEquals(c.getDouble(z, y, x), b.getDouble(k++));
+                        }
+                    }
+                }
+                LargeArray t = p.copy();
+                assertEquals(v.getDouble(6, 59, 499), t.getDouble(t.length() - 1));
+                assertEquals(v.getDouble(0, 1, 0), t.getDouble(1));
+
+                for (long i = 0; i < b.length(); i++) {
+                    b.setFloat(i, -i);
+                }
+                c.copyFrom(b, 0);
+                assertEquals(-1.0, c.getDouble(0, 0, 1));
+                assertEquals(-1.0, a.getDouble(v.index(1, 10, 318)));
+                assertEquals(v.getDouble(1, 10, 320), (double) v.index(1, 10, 320));
+
+                Throwable e = null;
+                try {
+                    v.getDouble(1, 2);
+                } catch (IllegalArgumentException ex) {
+                    e = ex;
+                }
+                assertNotNull(e);
+                e = null;
+                try {
+                    v.crop(new long[]{0, 0, 1}, new long[]{1, 1, nx});
+                } catch (ArrayIndexOutOfBoundsException ex) {
+                    e = ex;
+                }
+                assertNotNull(e);
+                e = null;
+                try {
+                    v.permute(0, 0, 1);
+                } catch (IllegalArgumentException ex) {
+                    e = ex;
+                }
+                assertNotNull(e);
+                e = null;
+                try {
+                    new LargeArrayNDView(a, 0, new long[]{ny, nx}, new long[]{0, 1});
+                } catch (IllegalArgumentException ex) {
+                    e = ex;
+                }
+                assertNotNull(e);
+            }
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+        }
+    }
+
+    public void testByteBufferViews() throws IOException
+    {
+        File file = File.createTempFile("jlargearrays", ".raw");
+        try {
+            int n = 100001;
+            LargeArray.setMaxSizeOf32bitArray(1);
+            FloatLargeArray a = new FloatLargeArray(n);
+            for (int i = 0; i < n; i++) {
+                a.setFloat(i, i);
+            }
+            ByteBuffer bb = a.asByteBuffer(10, 100);
+            assertTrue(bb.isDirect());
+            assertEquals(ByteOrder.nativeOrder(), bb.order());
+            assertEquals(400, bb.capacity());
+            assertEquals(10f, bb.getFloat(0));
+            java.nio.FloatBuffer fb = a.asFloatBuffer(20, 1000);
+            assertEquals(1000, fb.capacity());
+            assertEquals(25f, fb.get(5));
+            fb.put(5, -1f);
+            assertEquals(-1f, a.getFloat(25));
+            a.setFloat(26, -2f);
+            assertEquals(-2f, bb.getFloat(64));
+            assertEquals(-2f, ((FloatLargeArray) a.view(20, 100)).asFloatBuffer(0, 10).get(6));
+
+            java.nio.DoubleBuffer db = new DoubleLargeArray(n).asDoubleBuffer(n - 10, 10);
+            for (int j = 0; j < 20; j++) {
+                System.gc();
+            }
+            db.put(9, 3.0);
+            assertEquals(3.0, db.get(9));
+
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            IntLargeArray h = new IntLargeArray(n);
+            java.nio.IntBuffer ib = h.asIntBuffer(3, 10);
+            assertFalse(ib.isDirect());
+            ib.put(0, 7);
+            assertEquals(7, h.getInt(3));
+            ByteLargeArray hb = new ByteLargeArray(n);
+            hb.asByteBuffer(5, 3).put(1, (byte) 4);
+            assertEquals(4, hb.getByte(6));
+
+            Throwable e = null;
+            try {
+                h.asByteBuffer(0, 10);
+            } catch (UnsupportedOperationException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+            e = null;
+            try {
+                new ShortLargeArray(n, (short) 1).asShortBuffer(0, 10);
+            } catch (UnsupportedOperationException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+            e = null;
+            try {
+                h.asIntBuffer(n - 5, 10);
+            } catch (ArrayIndexOutOfBoundsException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+
+            LongLargeArray l = new LongLargeArray(100);
+            l.setLong(3, 42);
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            l.writeTo(raf.getChannel(), 0, 0, 100);
+            raf.close();
+            LargeArray m = LargeArray.map(file.toPath(), LargeArrayType.LONG, 0, 100, FileChannel.MapMode.READ_ONLY);
+            java.nio.LongBuffer lb = ((LongLargeArray) m).asLongBuffer(0, 100);
+            assertTrue(lb.isReadOnly());
+            assertEquals(42, lb.get(3));
+            m.close();
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            file.delete();
+        }
+    }
+
+    public void testWrap()
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(8 * 1001).order(ByteOrder.nativeOrder());
+        buffer.putDouble(8, 2.5);
+        buffer.position(8);
+        LargeArray a = LargeArray.wrap(buffer, LargeArrayType.DOUBLE);
+        assertTrue(a instanceof DoubleLargeArray);
+        assertEquals(1000, a.length());
+        assertEquals(2.5, a.getDouble(0));
+        a.setDouble(1, -1.0);
+        assertEquals(-1.0, buffer.getDouble(16));
+        LargeArray b = LargeArray.wrap(buffer);
+        assertEquals(8000, b.length());
+        assertTrue(LargeArray.wrap(buffer.asReadOnlyBuffer().order(ByteOrder.nativeOrder()), LargeArrayType.DOUBLE).isReadOnly());
+
+        Throwable e = null;
+        try {
+            LargeArray.wrap(ByteBuffer.allocate(16), LargeArrayType.BYTE);
+        } catch (IllegalArgumentException ex) {
+            e = ex;
+        }
+        assertNotNull(e);
+        e = null;
+        buffer.position(4);
+        try {
+            LargeArray.wrap(buffer, LargeArrayType.DOUBLE);
+        } catch (IllegalArgumentException ex) {
+            e = ex;
+        }
+        assertNotNull(e);
+        e = null;
+        try {
+            LargeArray.wrap(ByteBuffer.allocateDirect(16).order(ByteOrder.BIG_ENDIAN == ByteOrder.nativeOrder() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN), LargeArrayType.INT);
+        } catch (IllegalArgumentException ex) {
+            e = ex;
+        }
+        assertNotNull(e);
+
+        LargeArray.setMaxSizeOf32bitArray(1);
+        try {
+            LongLargeArray owner = new LongLargeArray(100, true);
+            final int[] released = new int[1];
+            LargeArray c = LargeArray.wrap(owner.nativePointer() + 8, LargeArrayType.LONG, 99, owner, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    released[0]++;
+                }
+            });
+            owner.setLong(5, 7);
+            assertEquals(7, c.getLong(4));
+            c.close();
+            c.close();
+            assertEquals(1, released[0]);
+            e = null;
+            try {
+                LargeArray.wrap(owner.nativePointer() + 4, LargeArrayType.LONG, 10, owner, null);
+            } catch (IllegalArgumentException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+            e = null;
+            try {
+                LargeArray.wrap(owner.nativePointer(), LargeArrayType.BIT, 10, owner, null);
+            } catch (IllegalArgumentException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+        }
+    }
+
+    public void testSegmentedLargeArray() throws IOException, ClassNotFoundException
+    {
+        File file = File.createTempFile("jlargearrays", ".jla");
+        try {
+            int n = 10001;
+            LargeArray.setMaxSizeOf32bitArray(1);
+            LargeArray.setSegmentLength(1024);
+            for (LargeArrayType type : new LargeArrayType[]{LargeArrayType.BYTE, LargeArrayType.SHORT, LargeArrayType.INT, LargeArrayType.LONG, LargeArrayType.FLOAT, LargeArrayType.DOUBLE}) {
+                LargeArray a = Utilities.create(type, n, false, true);
+                assertTrue(a.isSegmented());
+                assertFalse(a.isLarge());
+                assertEquals(0, a.nativePointer());
+                for (long i = 0; i < n; i++) {
+                    a.setLong(i, i % 100);
+                }
+                for (long i = 0; i < n; i++) {
+                    assertEquals(i % 100, a.getLong(i));
+                    assertEquals((double) (i % 100), a.getDouble(i));
+                }
+                assertNull(a.getData());
+                LargeArray b = Utilities.create(type, n, false, false);
+                assertFalse(b.isSegmented());
+                Utilities.arraycopy(a, 1000, b, 0, 3000);
+                assertEquals(1050 % 100, b.getLong(50));
+                Utilities.arraycopy(b, 0, a, 2000, 3000);
+                Utilities.arraycopy(a, 2000, a, 2500, 3000);
+                assertEquals(1000 % 100, a.getLong(2500));
+                assertEquals(3999 % 100, a.getLong(5499));
+                LargeArray c = (LargeArray) a.clone();
+                assertTrue(c.isSegmented());
+                assertEquals(a.getLong(n - 1), c.getLong(n - 1));
+
+                Utilities.arraycopy(a, 0, b, 0, n);
+                byte[] expected = new byte[(int) (3000 * a.sizeof) + 5];
+                byte[] bytes = new byte[expected.length];
+                Utilities.getBytes(b, 1000 * a.sizeof + 3, expected, 0, expected.length);
+                Utilities.getBytes(a, 1000 * a.sizeof + 3, bytes, 0, bytes.length);
+                assertTrue(Arrays.equals(expected, bytes));
+                for (int i = 0; i < bytes.length; i++) {
+                    bytes[i] = (byte) i;
+                }
+                Utilities.setBytes(a, 100 * a.sizeof + 1, bytes, 0, bytes.length);
+                Utilities.setBytes(b, 100 * a.sizeof + 1, bytes, 0, bytes.length);
+                for (long i = 0; i < n; i++) {
+                    assertEquals(b.getLong(i), a.getLong(i));
+                }
+
+                LargeArrayIO.save(file.toPath(), a, 0);
+                LargeArray d = LargeArrayIO.load(file.toPath(), true);
+                assertFalse(d.isSegmented());
+                for (long i = 0; i < n; i++) {
+                    assertEquals(a.getLong(i), d.getLong(i));
+                }
+                LargeArrayIO.save(file.toPath(), d, 4000);
+                LargeArray.setSegmentedHeap(true);
+                d = LargeArrayIO.load(file.toPath(), true);
+                LargeArray.setSegmentedHeap(false);
+                assertTrue(d.isSegmented());
+                for (long i = 0; i < n; i++) {
+                    assertEquals(a.getLong(i), d.getLong(i));
+                }
+            }
+
+            FloatLargeArray f = new FloatLargeArray(n, false, true);
+            for (long i = 0; i < n; i++) {
+                f.setFloat(i, i);
+            }
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            float[] data = f.getFloatData(null, 1000, 1100, 1);
+            assertEquals(100, data.length);
+            assertEquals(1050f, data[50]);
+            data = f.getFloatData(null, 1, n, 1000);
+            assertEquals(5001f, data[5]);
+            float[] dst = new float[3000];
+            f.get(1000, dst, 0, 3000);
+            assertEquals(3999f, dst[2999]);
+            f.set(5000, dst, 0, 3000);
+            assertEquals(1024f, f.getFloat(5024));
+            Utilities.arraycopy(dst, 0, f, 100, 3000);
+            assertEquals(1000f, f.getFloat(100));
+            java.nio.FloatBuffer fb = f.asFloatBuffer(1030, 10);
+            fb.put(0, -1f);
+            assertEquals(-1f, f.getFloat(1030));
+            Throwable e = null;
+            try {
+                f.asFloatBuffer(1020, 10);
+            } catch (UnsupportedOperationException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+
+            LargeArrayIO.save(file.toPath(), f, 4000, Codec.DEFLATE);
+            LargeArray.setMaxSizeOf32bitArray(1);
+            LargeArray.setSegmentedHeap(true);
+            LargeArray g = LargeArrayIO.load(file.toPath(), true);
+            assertTrue(g.isSegmented());
+            assertTrue(new ShortLargeArray(n).isSegmented());
+            LargeArray.setSegmentedHeap(false);
+            assertFalse(new ShortLargeArray(n).isSegmented());
+            for (long i = 0; i < n; i++) {
+                assertEquals(f.getFloat(i), g.getFloat(i));
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            FileChannel channel = raf.getChannel();
+            assertEquals(4L * (n - 3), f.writeTo(channel, 0, 3, n - 3));
+            FloatLargeArray h = new FloatLargeArray(n, true, true);
+            h.readFrom(channel, 0, 0, n - 3);
+            raf.close();
+            assertEquals(f.getFloat(n - 1), h.getFloat(n - 4));
+            FloatLargeArray s = (FloatLargeArray) serializeAndDeserialize(f);
+            assertTrue(s.isSegmented());
+            assertEquals(f.getFloat(1030), s.getFloat(1030));
+
+            e = null;
+            try {
+                LargeArray.setSegmentLength(1000);
+            } catch (IllegalArgumentException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+            LargeArray.setSegmentLength(1 << 26);
+            LargeArray.setSegmentedHeap(false);
+            file.delete();
+        }
+    }
+
+    public void testViewOfClosedArray()
+    {
+        try {
+            LargeArray.setMaxSizeOf32bitArray(1);
+            IntLargeArray a = new IntLargeArray(1 << 16);
+            LargeArray v = a.view(0, 1 << 16);
+            LargeArray s = a.view(0, 1 << 15, 2);
+            LargeArray w = v.view((1 << 10) - 50, 100);
+            assertTrue(v instanceof IntLargeArray);
+            v.setInt_safe(1 << 10, 5);
+            assertEquals(5, w.getInt_safe(50));
+            a.close();
+            for (LargeArray b : new LargeArray[]{v, s, w}) {
+                assertTrue(b.isClosed());
+                Throwable e = null;
+                try {
+                    b.getInt_safe(50);
+                } catch (IllegalStateException ex) {
+                    e = ex;
+                }
+                assertTrue(e instanceof IllegalStateException);
+            }
+        } finally {
+            LargeArray.setMaxSizeOf32bitArray(1073741824);
+        }
+    }
+
+    public void testForEachRunInterrupted()
+    {
+        ConcurrencyUtils.setNumberOfThreads(2);
+        ConcurrencyUtils.setConcurrentThreshold(1);
+        try {
+            final int ny = 100, nx = 10;
+            LargeArrayNDView v = new LargeArrayNDView(new IntLargeArray(ny * nx), ny, nx).crop(new long[]{0, 0}, new long[]{ny, nx - 1});
+            final CountDownLatch latch = new CountDownLatch(1);
+            final AtomicLongArray visits = new AtomicLongArray(ny);
+            Thread.currentThread().interrupt();
+            Throwable e = null;
+            try {
+                v.forEachRun(new LargeArrayNDView.RunVisitor()
+                {
+                    @Override
+                    public void visit(long index, LargeArray run)
+                    {
+                        visits.incrementAndGet((int) (index / (nx - 1)));
+                        try {
+                            latch.await();
+                        } catch (InterruptedException ex) {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                });
+            } catch (IllegalStateException ex) {
+                e = ex;
+            }
+            assertTrue(e instanceof IllegalStateException);
+            assertTrue(Thread.interrupted());
+            latch.countDown();
+            for (int i = 0; i < ny; i++) {
+                assertTrue(visits.get(i) <= 1);
+            }
+        } finally {
+            Thread.interrupted();
+            ConcurrencyUtils.resetConcurrentThreshold();
+            ConcurrencyUtils.setNumberOfThreads(ConcurrencyUtils.getNumberOfProcessors());
+        }
+    }
+
+    public void testBitLargeArrayInterruptedFlip()
+    {
+        ConcurrencyUtils.setNumberOfThreads(4);
+        ConcurrencyUtils.setConcurrentThreshold(1);
+        try {
+            long n = 1l << 27;
+            BitLargeArray a = new BitLargeArray(n);
+            a.setBoolean(5, true);
+            a.setBoolean(n - 3, true);
+            Thread.currentThread().interrupt();
+            Throwable e = null;
+            try {
+                a.flip(1, n);
+            } catch (IllegalStateException ex) {
+                e = ex;
+            }
+            assertTrue(e == null || e instanceof IllegalStateException);
+            assertTrue(Thread.interrupted());
+            // each word is flipped exactly once, whether or not the interrupt was noticed
+            assertEquals(n - 3, a.cardinality());
+            assertFalse(a.getBoolean(0));
+            assertFalse(a.getBoolean(5));
+        } finally {
+            Thread.interrupted();
+            ConcurrencyUtils.resetConcurrentThreshold();
+            ConcurrencyUtils.setNumberOfThreads(ConcurrencyUtils.getNumberOfProcessors());
+        }
+    }
+
+    public void testForEachChunkFailure() throws Exception
+    {
+        ConcurrencyUtils.setNumberOfThreads(4);
+        try {
+            final AtomicLong processed = new AtomicLong();
+            IOException e = null;
+            try {
+                LargeArrayIO.forEachChunk(400, new LargeArrayIO.ChunkTask()
+                {
+                    @Override
+                    public void run(long chunk) throws IOException
+                    {
+                        if (chunk == 0) {
+                            throw new IOException("chunk 0");
+                        }
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException ex) {
+                            throw new InterruptedIOException();
+                        }
+                        processed.incrementAndGet();
+                    }
+                });
+            } catch (IOException ex) {
+                e = ex;
+            }
+            assertNotNull(e);
+            assertEquals("chunk 0", e.getMessage());
+            long count = processed.get();
+            assertTrue(count < 399);
+            Thread.sleep(50);
+            // no task keeps running after the failure has been reported
+            assertEquals(count, processed.get());
+        } finally {
+            ConcurrencyUtils.setNumberOfThreads(ConcurrencyUtils.getNumberOfProcessors());
+        }
+    }
+
 }